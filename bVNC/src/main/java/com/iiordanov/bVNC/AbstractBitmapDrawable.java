@@ -20,6 +20,9 @@
 
 package com.iiordanov.bVNC;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -39,6 +42,10 @@ public class AbstractBitmapDrawable extends DrawableContainer {
     int hotX, hotY;
     Bitmap softCursor;
     boolean softCursorInit;
+    // Bitmaps of the most recently shown cursors, by the pixel array they were made
+    // from. Decoder returns the same array whenever a cached shape is sent again.
+    private static final int SOFT_CURSOR_CACHE_SIZE = 8;
+    private LinkedHashMap<int[], Bitmap> softCursors = new LinkedHashMap<int[], Bitmap>(16, 0.75f, true);
     Rect clipRect;
     Rect toDraw;
     boolean drawing = false;
@@ -86,12 +93,24 @@ public class AbstractBitmapDrawable extends DrawableContainer {
         setCursorRect(x, y, cursorRect.width(), cursorRect.height(), hotX, hotY);
     }
 
-    void setSoftCursor (int[] newSoftCursorPixels) {
+    synchronized void setSoftCursor (int[] newSoftCursorPixels) {
         Bitmap oldSoftCursor = softCursor;
-        softCursor = Bitmap.createBitmap(newSoftCursorPixels, (int)cursorRect.width(),
-                                         (int)cursorRect.height(), Bitmap.Config.ARGB_8888);
+        softCursor = softCursors.get(newSoftCursorPixels);
+        if (softCursor == null) {
+            softCursor = Bitmap.createBitmap(newSoftCursorPixels, (int)cursorRect.width(),
+                                             (int)cursorRect.height(), Bitmap.Config.ARGB_8888);
+            softCursors.put(newSoftCursorPixels, softCursor);
+            if (softCursors.size() > SOFT_CURSOR_CACHE_SIZE) {
+                Iterator<Bitmap> eldest = softCursors.values().iterator();
+                Bitmap evicted = eldest.next();
+                eldest.remove();
+                if (evicted != oldSoftCursor)
+                    evicted.recycle();
+            }
+        }
         softCursorInit = true;
-        oldSoftCursor.recycle();
+        if (oldSoftCursor != softCursor && !softCursors.containsValue(oldSoftCursor))
+            oldSoftCursor.recycle();
     }
     
     /* (non-Javadoc)
@@ -126,10 +145,13 @@ public class AbstractBitmapDrawable extends DrawableContainer {
         return false;
     }
     
-    public void dispose() {
+    public synchronized void dispose() {
         drawing = false;
         if (softCursor != null)
             softCursor.recycle();
+        for (Bitmap b : softCursors.values())
+            b.recycle();
+        softCursors.clear();
         softCursor = null;
         cursorRect = null;
         clipRect = null;
@@ -53,6 +53,13 @@ public enum COLORMODEL {
         }
     }
     
+    /**
+     * Returns a converter for the pixel format requested by setPixelFormat().
+     */
+    PixelConverter converter() {
+        return PixelConverter.forFormat(bpp() * 8, palette());
+    }
+
     public String nameString()
     {
         return super.toString();
@@ -26,6 +26,10 @@ package com.iiordanov.bVNC;
 public class Constants {
     public static final String CONNECTION = "com.iiordanov.bVNC.CONNECTION";
 
+    // Boolean extra which makes a VNC connection record what the server sends, e.g.
+    // adb shell am start -a android.intent.action.VIEW -d vnc://host:5900 --ez com.iiordanov.bVNC.RECORD_SESSION true
+    public static final String RECORD_SESSION = "com.iiordanov.bVNC.RECORD_SESSION";
+
     public static final int CONN_TYPE_PLAIN        = 0;
     public static final int CONN_TYPE_SSH          = 1;
     public static final int CONN_TYPE_ULTRAVNC     = 2;
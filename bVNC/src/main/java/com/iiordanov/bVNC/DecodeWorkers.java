@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/*
+ * A process-wide pool of daemon threads used by the decoders to spread CPU-bound
+ * work over all cores. Sized to the number of available processors.
+ *
+ * In addition to the shared pool there are a few ordered lanes, each backed by a
+ * single thread, for work which must run in submission order, such as inflating
+ * successive rectangles of one zlib stream. Queueing on a lane does not allocate,
+ * so callers which reuse their tasks can keep a lane busy without creating garbage.
+ */
+
+class DecodeWorkers {
+    private final static String TAG = "DecodeWorkers";
+
+    // Number of ordered lanes, one for each Tight zlib stream.
+    static final int ORDERED_LANES = 4;
+
+    private static DecodeWorkers instance = null;
+
+    private final ExecutorService pool;
+    private final OrderedLane[] lanes = new OrderedLane[ORDERED_LANES];
+    private final int threads;
+
+    private final ThreadFactory threadFactory = new ThreadFactory() {
+        private int n = 0;
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG + "-" + (n++));
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    static synchronized DecodeWorkers getInstance() {
+        if (instance == null)
+            instance = new DecodeWorkers(Runtime.getRuntime().availableProcessors());
+        return instance;
+    }
+
+    private DecodeWorkers(int threads) {
+        this.threads = Math.max(1, threads);
+        pool = Executors.newFixedThreadPool(this.threads, threadFactory);
+    }
+
+    /**
+     * @return The number of threads that can decode at the same time.
+     */
+    int getThreadCount() {
+        return threads;
+    }
+
+    Future<?> submit(Runnable task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Queues a task on the given lane. Tasks on the same lane run one at a time
+     * in the order they were submitted. A task has to signal its own completion.
+     * @param lane The lane, from 0 to ORDERED_LANES - 1.
+     * @param task The task to run.
+     */
+    void submitOrdered(int lane, Runnable task) {
+        OrderedLane l;
+        synchronized (lanes) {
+            l = lanes[lane];
+            if (l == null) {
+                l = new OrderedLane();
+                threadFactory.newThread(l).start();
+                lanes[lane] = l;
+            }
+        }
+        l.add(task);
+    }
+
+    /**
+     * Runs the given tasks concurrently, running the last one on the calling thread,
+     * and waits for all of them to complete.
+     * @param tasks The tasks to run.
+     * @param count The number of tasks from the start of the array to run.
+     * @throws Exception The first exception thrown by any of the tasks.
+     */
+    void runAll(Runnable[] tasks, int count) throws Exception {
+        Future<?>[] futures = new Future<?>[count - 1];
+        for (int i = 0; i < count - 1; i++)
+            futures[i] = pool.submit(tasks[i]);
+
+        Exception error = null;
+        try {
+            tasks[count - 1].run();
+        } catch (RuntimeException e) {
+            error = e;
+        }
+
+        for (int i = 0; i < count - 1; i++) {
+            try {
+                futures[i].get();
+            } catch (ExecutionException e) {
+                if (error == null)
+                    error = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /*
+     * A queue of tasks, in a ring which only grows when it is full, run by one thread.
+     */
+    private static class OrderedLane implements Runnable {
+        private Runnable[] queue = new Runnable[64];
+        private int head, count;
+
+        synchronized void add(Runnable task) {
+            if (count == queue.length) {
+                Runnable[] bigger = new Runnable[queue.length * 2];
+                for (int i = 0; i < count; i++)
+                    bigger[i] = queue[(head + i) % queue.length];
+                queue = bigger;
+                head = 0;
+            }
+            queue[(head + count) % queue.length] = task;
+            count++;
+            notify();
+        }
+
+        private synchronized Runnable take() throws InterruptedException {
+            while (count == 0)
+                wait();
+            Runnable task = queue[head];
+            queue[head] = null;
+            head = (head + 1) % queue.length;
+            count--;
+            return task;
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Ordered task failed", e);
+                }
+            }
+        }
+    }
+}
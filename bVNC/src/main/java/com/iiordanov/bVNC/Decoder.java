@@ -26,6 +26,9 @@
 package com.iiordanov.bVNC;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -46,22 +49,40 @@ public class Decoder {
     // Color Model settings
     private COLORMODEL pendingColorModel = COLORMODEL.C24bit;
     private COLORMODEL colorModel = null;
+    private COLORMODEL requestedColorModel = null;
     private int bytesPerPixel = 0;
     private int[] colorPalette = null;
+    private PixelConverter converter = null;
 
     // Tight decoder's data.
-    private Inflater[] tightInflaters  = new Inflater[4];
     private Paint handleTightRectPaint = new Paint();
     private byte[] solidColorBuf       = new byte[3];
     private byte[] tightPalette8       = new byte[2];
-    private int[]  tightPalette24      = new int[256];
     private byte[] colorBuf            = new byte[768];
-    private byte[] uncompDataBuf       = new byte[RfbProto.TightMinToCompress*3];
-    private byte[] zlibData            = new byte[4096];
-    private byte[] inflBuf             = new byte[8192];
-    private BitmapFactory.Options bitmapopts = new BitmapFactory.Options();
-    private boolean valid, useGradient;
-    private int c, dx, dy, offset, boffset, idx, stream_id, comp_ctl, numColors, rowSize, dataSize, jpegDataLen;
+    private boolean valid;
+
+    // Tight rectangles are read on the protocol thread into tightData, and decoded on
+    // the lane of their zlib stream, so that each stream is inflated in order. JPEG
+    // rectangles do not depend on anything and are spread over the lanes. With more than
+    // one core, decoded pixels go to tightPixels and are committed to bitmapData in
+    // protocol order by flushTightRects(); otherwise rectangles are decoded straight into
+    // bitmapData as they arrive. The buffers, lanes and rectangles are all allocated once
+    // per framebuffer size, which bounds what the decoder holds on to and keeps it from
+    // allocating per rectangle.
+    private boolean parallelTight = Runtime.getRuntime().availableProcessors() > 1;
+    private static final int MAX_PENDING_TIGHT_RECTS = 64;
+    private static final int TIGHT_LANE_BUFFER_SIZE  = 65536;
+    // Servers split Tight rectangles to at most 65536 pixels, 3 bytes each uncompressed.
+    private static final int MAX_TIGHT_RECT_DATA     = 65536 * 3 + 1024;
+    private TightLane[] tightLanes;
+    private boolean[] tightStreamResets = new boolean[DecodeWorkers.ORDERED_LANES];
+    private TightRect[] tightRects;
+    private int pendingTightRects;
+    private byte[] tightData;
+    private int tightDataUsed;
+    private int[] tightPixels;
+    private int tightPixelCapacity, tightPixelsUsed;
+    private int nextJpegLane;
 
     // ZRLE decoder's data.
     private byte[] zrleBuf;
@@ -71,13 +92,24 @@ public class Decoder {
     private int[] handleZRLERectPalette = new int[128];
     private byte[] readPixelsBuffer     = new byte[128];
 
+    // Parallel ZRLE decoding. Only the zlib stream has to be consumed in order, so it is
+    // inflated serially into per-tile slices, and the pixels of the tiles are then
+    // expanded concurrently straight into bitmapData.bitmapPixels.
+    private boolean parallelZrle = Runtime.getRuntime().availableProcessors() > 1;
+    private static final int PARALLEL_ZRLE_MIN_TILES = 4;
+    private static final int ZRLE_TILE_FIELDS = 6; // tx, ty, tw, th, mode, slice offset
+    private byte[] zrleSliceBuf = new byte[65536];
+    private int zrleSliceLen;
+    private int[] zrleTiles = new int[ZRLE_TILE_FIELDS * 64];
+    private int nZrleTiles;
+    private ZrleTileTask[] zrleTileTasks;
+
     // Zlib decoder's data.
     private byte[] zlibBuf;
     private Inflater zlibInflater;
     private byte[] handleZlibRectBuffer = new byte[128];
 
     // RRE decoder's data.
-    private Paint handleRREPaint         = new Paint();
     private byte[] bg_buf                = new byte[4];
     private byte[] rre_buf               = new byte[128];
 
@@ -87,34 +119,56 @@ public class Decoder {
     // Hextile decoder's data.
     // These colors should be kept between handleHextileSubrect() calls.
     private int hextile_bg, hextile_fg;
-    private Paint handleHextileSubrectPaint = new Paint();
     private byte[] backgroundColorBuffer    = new byte[4];
+
+    // Cursor shape data. Servers send the same few shapes over and over as the
+    // pointer moves between text, links and window edges, so the most recently
+    // used ones are kept decoded, by a hash of their encoded data.
+    private static final int CURSOR_CACHE_SIZE = 16;
+    private static final int MAX_CACHED_CURSOR_PIXELS = 128 * 128;
+    private byte[] cursorBuf = new byte[1024];
+    private LinkedHashMap<Integer, CursorShape> cursorCache = new LinkedHashMap<Integer, CursorShape>(16, 0.75f, true);
     
     private AbstractBitmapData bitmapData;
     private RemoteCanvas vncCanvas;
 
 
     public Decoder (RemoteCanvas v) {
-        handleRREPaint.setStyle(Style.FILL);
         handleTightRectPaint.setStyle(Style.FILL);
-        bitmapopts.inPurgeable      = false;
-        bitmapopts.inDither         = false;
-        bitmapopts.inTempStorage    = new byte[32768];
-        bitmapopts.inPreferredConfig= Bitmap.Config.RGB_565;
-        bitmapopts.inScaled         = false;
         vncCanvas = v;
     }
-    
+
     void setBitmapData (AbstractBitmapData b) {
         bitmapData = b;
     }
     
     void setPixelFormat(RfbProto rfb) throws IOException {
-        pendingColorModel.setPixelFormat(rfb);
-        bytesPerPixel = pendingColorModel.bpp();
-        colorPalette = pendingColorModel.palette();
-        colorModel = pendingColorModel;
+        writePixelFormat(rfb);
+        applyPixelFormat();
+    }
+    
+    /**
+     * Asks the server for the pending pixel format without switching the decoder to it yet.
+     */
+    void writePixelFormat(RfbProto rfb) throws IOException {
+        requestedColorModel = pendingColorModel;
         pendingColorModel = null;
+        requestedColorModel.setPixelFormat(rfb);
+    }
+    
+    /**
+     * Starts decoding in the last pixel format requested from the server.
+     */
+    void applyPixelFormat() {
+        bytesPerPixel = requestedColorModel.bpp();
+        colorPalette = requestedColorModel.palette();
+        converter = requestedColorModel.converter();
+        colorModel = requestedColorModel;
+        // RichCursor shapes decode differently in another pixel format.
+        synchronized (this) {
+            cursorCache.clear();
+        }
+        requestedColorModel = null;
     }
     
     public void setColorModel(COLORMODEL cm) {
@@ -132,55 +186,63 @@ public class Decoder {
     }
 
     void handleRawRect(RfbProto rfb, int x, int y, int w, int h) throws IOException {
-        handleRawRect(rfb, x, y, w, h, true);
+        handleRawRect(rfb, x, y, w, h, bitmapData.validDraw(x, y, w, h), true);
     }
 
-    void handleRawRect(RfbProto rfb, int x, int y, int w, int h, boolean paint) throws IOException {
-        boolean valid=bitmapData.validDraw(x, y, w, h);
+    //
+    // Reads a Raw rectangle into bitmapPixels if valid. If paint is false, the caller
+    // updates the bitmap and redraws instead, as Hextile does for its raw tiles.
+    //
+    void handleRawRect(RfbProto rfb, int x, int y, int w, int h, boolean valid, boolean paint) throws IOException {
         int[] pixels=bitmapData.bitmapPixels;
-        if (bytesPerPixel == 1) {
-            // 1 byte per pixel. Use palette lookup table.
-          if (w > handleRawRectBuffer.length) {
-              handleRawRectBuffer = new byte[w];
-          }
-            int i, offset;
-            for (int dy = y; dy < y + h; dy++) {
-                rfb.readFully(handleRawRectBuffer, 0, w);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    pixels[offset + i] = colorPalette[0xFF & handleRawRectBuffer[i]];
-                }
-            }
-        } else {
-            // 4 bytes per pixel (argb) 24-bit color
-          
-            final int l = w * 4;
-            if (l>handleRawRectBuffer.length) {
-                handleRawRectBuffer = new byte[l];
-            }
-            int i, offset;
-            for (int dy = y; dy < y + h; dy++) {
-                rfb.readFully(handleRawRectBuffer, 0, l);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                  final int idx = i*4;
-                    pixels[offset + i] = // 0xFF << 24 |
-                    (handleRawRectBuffer[idx + 2] & 0xff) << 16 | (handleRawRectBuffer[idx + 1] & 0xff) << 8 | (handleRawRectBuffer[idx] & 0xff);
-                }
-            }
+        final int l = w * bytesPerPixel;
+        if (l > handleRawRectBuffer.length) {
+            handleRawRectBuffer = new byte[l];
+        }
+        for (int dy = y; dy < y + h; dy++) {
+            rfb.readFully(handleRawRectBuffer, 0, l);
+            if ( ! valid)
+                continue;
+            converter.convert(handleRawRectBuffer, 0, pixels, bitmapData.offset(x, dy), w);
         }
         
-        if ( ! valid)
+        if ( ! valid || ! paint)
             return;
 
         bitmapData.updateBitmap(x, y, w, h);
+        vncCanvas.reDraw(x, y, w, h);
+    }
 
-        if (paint)
-            vncCanvas.reDraw(x, y, w, h);
+    //
+    // Fills a subrectangle with a color, straight in bitmapPixels. A subrectangle
+    // sent by the server which does not lie within its enclosing rectangle
+    // (bx, by, bw, bh) is clipped to it. The caller checks the enclosing rectangle
+    // with validDraw() first and calls updateBitmap() for it once all its
+    // subrectangles are filled.
+    //
+    private void fillRect(int x, int y, int w, int h, int color, int bx, int by, int bw, int bh) {
+        if (x < bx || y < by || x + w > bx + bw || y + h > by + bh) {
+            int left = Math.max(x, bx);
+            int top  = Math.max(y, by);
+            w = Math.min(x + w, bx + bw) - left;
+            h = Math.min(y + h, by + bh) - top;
+            x = left;
+            y = top;
+            if (w <= 0 || h <= 0)
+                return;
+        }
+
+        int[] pixels = bitmapData.bitmapPixels;
+        int stride = bitmapData.bitmapwidth;
+        int offset = bitmapData.offset(x, y);
+        if (w > 10) {
+            for (int j = 0; j < h; j++, offset += stride)
+                Arrays.fill(pixels, offset, offset + w, color);
+        } else {
+            for (int j = 0; j < h; j++, offset += stride - w)
+                for (int k = 0; k < w; k++, offset++)
+                    pixels[offset] = color;
+        }
     }
 
     //
@@ -205,15 +267,9 @@ public class Decoder {
         int nSubrects = rfb.is.readInt();
 
         rfb.readFully(bg_buf, 0, bytesPerPixel);
-        int pixel;
-        if (bytesPerPixel == 1) {
-            pixel = colorPalette[0xFF & bg_buf[0]];
-        } else {
-            pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
-        }
-        handleRREPaint.setColor(pixel);
+        int pixel = converter.pixel(bg_buf, 0);
         if ( valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
+            fillRect(x, y, w, h, pixel, x, y, w, h);
 
         int len = nSubrects * (bytesPerPixel + 8);
         if (len > rre_buf.length)
@@ -227,21 +283,17 @@ public class Decoder {
 
         int i = 0;
         for (int j = 0; j < nSubrects; j++) {
-            if (bytesPerPixel == 1) {
-                pixel = colorPalette[0xFF & rre_buf[i++]];
-            } else {
-                pixel = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-            }
+            pixel = converter.pixel(rre_buf, i);
+            i += bytesPerPixel;
             sx = x + ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
             sy = y + ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
             sw = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
             sh = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i+1] & 0xff); i+=2;
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+            fillRect(sx, sy, sw, sh, pixel, x, y, w, h);
         }
 
+        bitmapData.updateBitmap(x, y, w, h);
         vncCanvas.reDraw(x, y, w, h);
     }
 
@@ -254,17 +306,11 @@ public class Decoder {
         int nSubrects = rfb.is.readInt();
 
         rfb.readFully(bg_buf, 0, bytesPerPixel);
-        int pixel;
-        if (bytesPerPixel == 1) {
-            pixel = colorPalette[0xFF & bg_buf[0]];
-        } else {
-            pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
-        }
-        handleRREPaint.setColor(pixel);
+        int pixel = converter.pixel(bg_buf, 0);
         if ( valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
+            fillRect(x, y, w, h, pixel, x, y, w, h);
 
-        int len = nSubrects * (bytesPerPixel + 8);
+        int len = nSubrects * (bytesPerPixel + 4);
         if (len > rre_buf.length)
             rre_buf = new byte[len];
         
@@ -276,21 +322,17 @@ public class Decoder {
         int i = 0;
 
         for (int j = 0; j < nSubrects; j++) {
-            if (bytesPerPixel == 1) {
-                pixel = colorPalette[0xFF & rre_buf[i++]];
-            } else {
-                pixel = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-            }
+            pixel = converter.pixel(rre_buf, i);
+            i += bytesPerPixel;
             sx = x + (rre_buf[i++] & 0xFF);
             sy = y + (rre_buf[i++] & 0xFF);
             sw = rre_buf[i++] & 0xFF;
             sh = rre_buf[i++] & 0xFF;
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+            fillRect(sx, sy, sw, sh, pixel, x, y, w, h);
         }
 
+        bitmapData.updateBitmap(x, y, w, h);
         vncCanvas.reDraw(x, y, w, h);
     }
 
@@ -298,6 +340,10 @@ public class Decoder {
     // Handle a Hextile-encoded rectangle.
     //
     void handleHextileRect(RfbProto rfb, int x, int y, int w, int h) throws IOException {
+        // When the whole rectangle can be drawn, the tiles are only filled in and the
+        // bitmap is updated once at the end. Otherwise each tile is checked and
+        // updated on its own.
+        boolean valid = bitmapData.validDraw(x, y, w, h);
 
         hextile_bg = Color.BLACK;
         hextile_fg = Color.BLACK;
@@ -312,58 +358,54 @@ public class Decoder {
                 if (x + w - tx < 16)
                     tw = x + w - tx;
 
-                handleHextileSubrect(rfb, tx, ty, tw, th);
+                handleHextileSubrect(rfb, tx, ty, tw, th, valid);
             }
-
-            // Finished with a row of tiles, now let's show it.
-            vncCanvas.reDraw(x, y, w, h);
         }
+
+        if (valid)
+            bitmapData.updateBitmap(x, y, w, h);
+        vncCanvas.reDraw(x, y, w, h);
     }
 
     //
     // Handle one tile in the Hextile-encoded data.
     //
-    private void handleHextileSubrect(RfbProto rfb, int tx, int ty, int tw, int th) throws IOException {
+    private void handleHextileSubrect(RfbProto rfb, int tx, int ty, int tw, int th, boolean rectValid) throws IOException {
 
         int subencoding = rfb.is.readUnsignedByte();
+        boolean valid = rectValid || bitmapData.validDraw(tx, ty, tw, th);
 
         // Is it a raw-encoded sub-rectangle?
         if ((subencoding & RfbProto.HextileRaw) != 0) {
-            handleRawRect(rfb, tx, ty, tw, th, false);
+            handleRawRect(rfb, tx, ty, tw, th, valid, false);
+            if (valid && ! rectValid)
+                bitmapData.updateBitmap(tx, ty, tw, th);
             return;
         }
 
-        boolean valid=bitmapData.validDraw(tx, ty, tw, th);
         // Read and draw the background if specified.
         if (bytesPerPixel > backgroundColorBuffer.length) {
           throw new RuntimeException("impossible colordepth");
         }
         if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
             rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-            if (bytesPerPixel == 1) {
-                hextile_bg = colorPalette[0xFF & backgroundColorBuffer[0]];
-            } else {
-                hextile_bg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-            }
+            hextile_bg = converter.pixel(backgroundColorBuffer, 0);
         }
-        handleHextileSubrectPaint.setColor(hextile_bg);
-        handleHextileSubrectPaint.setStyle(Paint.Style.FILL);
         if ( valid )
-            bitmapData.drawRect(tx, ty, tw, th, handleHextileSubrectPaint);
+            fillRect(tx, ty, tw, th, hextile_bg, tx, ty, tw, th);
 
         // Read the foreground color if specified.
         if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
             rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-            if (bytesPerPixel == 1) {
-                hextile_fg = colorPalette[0xFF & backgroundColorBuffer[0]];
-            } else {
-                hextile_fg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-            }
+            hextile_fg = converter.pixel(backgroundColorBuffer, 0);
         }
 
         // Done with this tile if there is no sub-rectangles.
-        if ((subencoding & RfbProto.HextileAnySubrects) == 0)
+        if ((subencoding & RfbProto.HextileAnySubrects) == 0) {
+            if (valid && ! rectValid)
+                bitmapData.updateBitmap(tx, ty, tw, th);
             return;
+        }
 
         int nSubrects = rfb.is.readUnsignedByte();
         int bufsize = nSubrects * 2;
@@ -379,51 +421,36 @@ public class Decoder {
         if ((subencoding & RfbProto.HextileSubrectsColoured) == 0) {
 
             // Sub-rectangles are all of the same color.
-            handleHextileSubrectPaint.setColor(hextile_fg);
-            for (int j = 0; j < nSubrects; j++) {
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                if ( valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
-            }
-        } else if (bytesPerPixel == 1) {
-
-            // BGR233 (8-bit color) version for colored sub-rectangles.
             for (int j = 0; j < nSubrects; j++) {
-                hextile_fg = colorPalette[0xFF & rre_buf[i++]];
                 b1 = rre_buf[i++] & 0xFF;
                 b2 = rre_buf[i++] & 0xFF;
                 sx = tx + (b1 >> 4);
                 sy = ty + (b1 & 0xf);
                 sw = (b2 >> 4) + 1;
                 sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
                 if ( valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+                    fillRect(sx, sy, sw, sh, hextile_fg, tx, ty, tw, th);
             }
-
         } else {
 
-            // Full-color (24-bit) version for colored sub-rectangles.
+            // Colored sub-rectangles.
             for (int j = 0; j < nSubrects; j++) {
-                hextile_fg = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
+                hextile_fg = converter.pixel(rre_buf, i);
+                i += bytesPerPixel;
                 b1 = rre_buf[i++] & 0xFF;
                 b2 = rre_buf[i++] & 0xFF;
                 sx = tx + (b1 >> 4);
                 sy = ty + (b1 & 0xf);
                 sw = (b2 >> 4) + 1;
                 sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
                 if ( valid )
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+                    fillRect(sx, sy, sw, sh, hextile_fg, tx, ty, tw, th);
             }
 
         }
+
+        if (valid && ! rectValid)
+            bitmapData.updateBitmap(tx, ty, tw, th);
     }
 
     //
@@ -448,6 +475,14 @@ public class Decoder {
         
         boolean valid=bitmapData.validDraw(x, y, w, h);
 
+        int nTiles = ((w + 63) / 64) * ((h + 63) / 64);
+        if (parallelZrle && valid && nTiles >= PARALLEL_ZRLE_MIN_TILES) {
+            handleZRLERectParallel(x, y, w, h);
+            zrleInStream.reset();
+            vncCanvas.reDraw(x, y, w, h);
+            return;
+        }
+
         for (int ty = y; ty < y + h; ty += 64) {
 
             int th = Math.min(y + h - ty, 64);
@@ -463,9 +498,7 @@ public class Decoder {
                 readZrlePalette(handleZRLERectPalette, palSize);
 
                 if (palSize == 1) {
-                    int pix = handleZRLERectPalette[0];
-                    int c = (bytesPerPixel == 1) ? colorPalette[0xFF & pix] : (0xFF000000 | pix);
-                    handleZRLERectPaint.setColor(c);
+                    handleZRLERectPaint.setColor(handleZRLERectPalette[0]);
                     handleZRLERectPaint.setStyle(Paint.Style.FILL);
                     if ( valid)
                         bitmapData.drawRect(tx, ty, tw, th, handleZRLERectPaint);
@@ -495,6 +528,215 @@ public class Decoder {
         vncCanvas.reDraw(x, y, w, h);
     }
 
+    //
+    // Decode a ZRLE rectangle using all cores. The tiles are first sliced out of the
+    // zlib stream in order, then expanded concurrently by the decode workers.
+    //
+    private void handleZRLERectParallel(int x, int y, int w, int h) throws Exception {
+        zrleSliceLen = 0;
+        nZrleTiles = 0;
+
+        for (int ty = y; ty < y + h; ty += 64) {
+            int th = Math.min(y + h - ty, 64);
+            for (int tx = x; tx < x + w; tx += 64) {
+                int tw = Math.min(x + w - tx, 64);
+                sliceZrleTile(tx, ty, tw, th);
+            }
+        }
+
+        DecodeWorkers workers = DecodeWorkers.getInstance();
+        int nTasks = Math.min(workers.getThreadCount(), nZrleTiles);
+        if (zrleTileTasks == null || zrleTileTasks.length < nTasks) {
+            zrleTileTasks = new ZrleTileTask[nTasks];
+            for (int i = 0; i < nTasks; i++)
+                zrleTileTasks[i] = new ZrleTileTask();
+        }
+        for (int i = 0; i < nTasks; i++) {
+            zrleTileTasks[i].first = i;
+            zrleTileTasks[i].step  = nTasks;
+        }
+        workers.runAll(zrleTileTasks, nTasks);
+
+        bitmapData.updateBitmap(x, y, w, h);
+    }
+
+    //
+    // Copy the encoded data of one ZRLE tile out of the zlib stream into zrleSliceBuf,
+    // checking its run lengths so that tile expansion can not fail later.
+    //
+    private void sliceZrleTile(int tx, int ty, int tw, int th) throws Exception {
+        int mode = zrleInStream.readU8();
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+        int cpixelSize = converter.cpixelSize;
+
+        if (zrleTiles.length < (nZrleTiles + 1) * ZRLE_TILE_FIELDS) {
+            int[] newTiles = new int[zrleTiles.length * 2];
+            System.arraycopy(zrleTiles, 0, newTiles, 0, zrleTiles.length);
+            zrleTiles = newTiles;
+        }
+        int t = nZrleTiles++ * ZRLE_TILE_FIELDS;
+        zrleTiles[t]     = tx;
+        zrleTiles[t + 1] = ty;
+        zrleTiles[t + 2] = tw;
+        zrleTiles[t + 3] = th;
+        zrleTiles[t + 4] = mode;
+        zrleTiles[t + 5] = zrleSliceLen;
+
+        appendZrleSlice(palSize * cpixelSize);
+        if (palSize == 1)
+            return;
+
+        if (!rle) {
+            if (palSize == 0) {
+                appendZrleSlice(tw * th * cpixelSize);
+            } else {
+                int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+                appendZrleSlice(th * ((tw * bppp + 7) / 8));
+            }
+            return;
+        }
+
+        int end = tw * th;
+        int ptr = 0;
+        while (ptr < end) {
+            int len = 1;
+            boolean hasRun = true;
+            if (palSize == 0) {
+                appendZrleSlice(cpixelSize);
+            } else {
+                int index = zrleInStream.readU8();
+                appendZrleByte(index);
+                hasRun = (index & 128) != 0;
+            }
+            if (hasRun) {
+                int b;
+                do {
+                    b = zrleInStream.readU8();
+                    appendZrleByte(b);
+                    len += b;
+                } while (b == 255);
+            }
+            if (!(len <= end - ptr))
+                throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
+            ptr += len;
+        }
+    }
+
+    private void ensureZrleSlice(int len) {
+        if (zrleSliceLen + len > zrleSliceBuf.length) {
+            byte[] newBuf = new byte[Math.max(zrleSliceBuf.length * 2, zrleSliceLen + len)];
+            System.arraycopy(zrleSliceBuf, 0, newBuf, 0, zrleSliceLen);
+            zrleSliceBuf = newBuf;
+        }
+    }
+
+    private void appendZrleSlice(int len) throws Exception {
+        ensureZrleSlice(len);
+        zrleInStream.readBytes(zrleSliceBuf, zrleSliceLen, len);
+        zrleSliceLen += len;
+    }
+
+    private void appendZrleByte(int b) {
+        ensureZrleSlice(1);
+        zrleSliceBuf[zrleSliceLen++] = (byte)b;
+    }
+
+    //
+    // Expands every step'th ZRLE tile starting at first into the framebuffer.
+    //
+    private class ZrleTileTask implements Runnable {
+        int first, step;
+        private int[] palette = new int[128];
+
+        public void run() {
+            for (int i = first; i < nZrleTiles; i += step)
+                expandZrleTile(i * ZRLE_TILE_FIELDS, palette);
+        }
+    }
+
+    private void expandZrleTile(int t, int[] palette) {
+        int tx = zrleTiles[t], ty = zrleTiles[t + 1], tw = zrleTiles[t + 2], th = zrleTiles[t + 3];
+        int mode = zrleTiles[t + 4];
+        int pos  = zrleTiles[t + 5];
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+        PixelConverter cv = converter;
+        int cpixelSize = cv.cpixelSize;
+        byte[] src = zrleSliceBuf;
+        int[] pixels = bitmapData.bitmapPixels;
+
+        cv.convertCompact(src, pos, palette, 0, palSize);
+        pos += palSize * cpixelSize;
+
+        if (palSize == 1) {
+            for (int j = 0; j < th; j++) {
+                int offset = bitmapData.offset(tx, ty + j);
+                Arrays.fill(pixels, offset, offset + tw, palette[0]);
+            }
+            return;
+        }
+
+        if (!rle) {
+            if (palSize == 0) {
+                for (int j = 0; j < th; j++, pos += tw * cpixelSize)
+                    cv.convertCompact(src, pos, pixels, bitmapData.offset(tx, ty + j), tw);
+            } else {
+                int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
+                int mask = ((1 << bppp) - 1) & 127;
+                for (int j = 0; j < th; j++) {
+                    int offset = bitmapData.offset(tx, ty + j);
+                    int b = 0;
+                    int nbits = 0;
+                    for (int i = 0; i < tw; i++) {
+                        if (nbits == 0) {
+                            b = src[pos++] & 0xFF;
+                            nbits = 8;
+                        }
+                        nbits -= bppp;
+                        pixels[offset + i] = palette[(b >> nbits) & mask];
+                    }
+                }
+            }
+            return;
+        }
+
+        // Run-length encoded tiles. Runs may span rows.
+        int row = 0, col = 0;
+        int offset = bitmapData.offset(tx, ty);
+        while (row < th) {
+            int pix;
+            int len = 1;
+            boolean hasRun = true;
+            if (palSize == 0) {
+                pix = cv.cpixel(src, pos);
+                pos += cpixelSize;
+            } else {
+                int index = src[pos++] & 0xFF;
+                hasRun = (index & 128) != 0;
+                pix = palette[index & 127];
+            }
+            if (hasRun) {
+                int b;
+                do {
+                    b = src[pos++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+            }
+            while (len > 0) {
+                int n = Math.min(len, tw - col);
+                Arrays.fill(pixels, offset + col, offset + col + n, pix);
+                len -= n;
+                col += n;
+                if (col == tw) {
+                    col = 0;
+                    if (++row < th)
+                        offset = bitmapData.offset(tx, ty + row);
+                }
+            }
+        }
+    }
+
     //
     // Handle a Zlib-encoded rectangle.
     //
@@ -515,38 +757,15 @@ public class Decoder {
         
         int[] pixels=bitmapData.bitmapPixels;
 
-        if (bytesPerPixel == 1) {
-            // 1 byte per pixel. Use palette lookup table.
-          if (w > handleZlibRectBuffer.length) {
-            handleZlibRectBuffer = new byte[w];
-          }
-            int i, offset;
-            for (int dy = y; dy < y + h; dy++) {
-                zlibInflater.inflate(handleZlibRectBuffer,  0, w);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                    pixels[offset + i] = colorPalette[0xFF & handleZlibRectBuffer[i]];
-                }
-            }
-        } else {
-            // 24-bit color (ARGB) 4 bytes per pixel.
-          final int l = w*4;
-          if (l > handleZlibRectBuffer.length) {
-              handleZlibRectBuffer = new byte[l];
-          }
-            int i, offset;
-            for (int dy = y; dy < y + h; dy++) {
-                zlibInflater.inflate(handleZlibRectBuffer, 0, l);
-                if ( ! valid)
-                    continue;
-                offset = bitmapData.offset(x, dy);
-                for (i = 0; i < w; i++) {
-                  final int idx = i*4;
-                    pixels[offset + i] = (handleZlibRectBuffer[idx + 2] & 0xFF) << 16 | (handleZlibRectBuffer[idx + 1] & 0xFF) << 8 | (handleZlibRectBuffer[idx] & 0xFF);
-                }
-            }
+        final int l = w * bytesPerPixel;
+        if (l > handleZlibRectBuffer.length) {
+            handleZlibRectBuffer = new byte[l];
+        }
+        for (int dy = y; dy < y + h; dy++) {
+            zlibInflater.inflate(handleZlibRectBuffer, 0, l);
+            if ( ! valid)
+                continue;
+            converter.convert(handleZlibRectBuffer, 0, pixels, bitmapData.offset(x, dy), w);
         }
         if ( ! valid)
             return;
@@ -555,40 +774,24 @@ public class Decoder {
         vncCanvas.reDraw(x, y, w, h);
     }
 
+    //
+    // Read one CPIXEL and convert it.
+    //
     private int readPixel(InStream is) throws Exception {
-        int pix;
-        if (bytesPerPixel == 1) {
-            pix = is.readU8();
-        } else {
-            int p1 = is.readU8();
-            int p2 = is.readU8();
-            int p3 = is.readU8();
-            pix = (p3 & 0xFF) << 16 | (p2 & 0xFF) << 8 | (p1 & 0xFF);
-        }
-        return pix;
+        is.readBytes(readPixelsBuffer, 0, converter.cpixelSize);
+        return converter.cpixel(readPixelsBuffer, 0);
     }
 
-
+    //
+    // Read count CPIXELs and convert them into dst.
+    //
     private void readPixels(InStream is, int[] dst, int count) throws Exception {
-        if (bytesPerPixel == 1) {
-          if (count > readPixelsBuffer.length) {
-            readPixelsBuffer = new byte[count];
-          }
-            is.readBytes(readPixelsBuffer, 0, count);
-            for (int i = 0; i < count; i++) {
-                dst[i] = (int) readPixelsBuffer[i] & 0xFF;
-            }
-        } else {
-          final int l = count * 3;
-      if (l > readPixelsBuffer.length) {
+        final int l = count * converter.cpixelSize;
+        if (l > readPixelsBuffer.length) {
             readPixelsBuffer = new byte[l];
-      }
-            is.readBytes(readPixelsBuffer, 0, l);
-            for (int i = 0; i < count; i++) {
-              final int idx = i*3;
-                dst[i] = ((readPixelsBuffer[idx + 2] & 0xFF) << 16 | (readPixelsBuffer[idx + 1] & 0xFF) << 8 | (readPixelsBuffer[idx] & 0xFF));
-            }
         }
+        is.readBytes(readPixelsBuffer, 0, l);
+        converter.convertCompact(readPixelsBuffer, 0, dst, 0, count);
     }
 
     private void readZrlePalette(int[] palette, int palSize) throws Exception {
@@ -599,7 +802,7 @@ public class Decoder {
         int len = tw * th;
         if (zrleTilePixels == null || len > zrleTilePixels.length)
             zrleTilePixels = new int[len];
-        readPixels(zrleInStream, zrleTilePixels, tw * th); // /
+        readPixels(zrleInStream, zrleTilePixels, len);
     }
 
     private void readZrlePackedPixels(int tw, int th, int[] palette, int palSize) throws Exception {
@@ -622,13 +825,7 @@ public class Decoder {
                 }
                 nbits -= bppp;
                 int index = (b >> nbits) & ((1 << bppp) - 1) & 127;
-                if (bytesPerPixel == 1) {
-                    if (index >= colorPalette.length)
-                        Log.e(TAG, "zrlePlainRLEPixels palette lookup out of bounds " + index + " (0x" + Integer.toHexString(index) + ")");
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & palette[index]];
-                } else {
-                    zrleTilePixels[ptr++] = palette[index];
-                }
+                zrleTilePixels[ptr++] = palette[index];
             }
         }
     }
@@ -650,13 +847,8 @@ public class Decoder {
             if (!(len <= end - ptr))
                 throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
 
-            if (bytesPerPixel == 1) {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-            } else {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = pix;
-            }
+            Arrays.fill(zrleTilePixels, ptr, ptr + len, pix);
+            ptr += len;
         }
     }
 
@@ -681,15 +873,8 @@ public class Decoder {
             }
 
             index &= 127;
-            int pix = palette[index];
-
-            if (bytesPerPixel == 1) {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-            } else {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = pix;
-            }
+            Arrays.fill(zrleTilePixels, ptr, ptr + len, palette[index]);
+            ptr += len;
         }
     }
 
@@ -713,325 +898,478 @@ public class Decoder {
     // Handle a Tight-encoded rectangle.
     //
     void handleTightRect(RfbProto rfb, int x, int y, int w, int h) throws Exception {
-        
-        int[] pixels = bitmapData.bitmapPixels;
+
+        ensureTightBuffers();
         valid = bitmapData.validDraw(x, y, w, h);
-        comp_ctl = rfb.is.readUnsignedByte();
-        
-        rowSize = w;
-        boffset = 0;
-        numColors = 0;
-        useGradient = false;
-        
-        // Flush zlib streams if we are told by the server to do so.
-        for (stream_id = 0; stream_id < 4; stream_id++) {
-            if ((comp_ctl & 1) != 0) {
-                tightInflaters[stream_id] = null;
-            }
-            comp_ctl >>= 1;
+        int ctl = rfb.is.readUnsignedByte();
+
+        // Flush zlib streams if we are told by the server to do so. A stream is reset
+        // by the next rectangle that uses it, in order with the rectangles before.
+        for (int i = 0; i < tightStreamResets.length; i++) {
+            if ((ctl & 1) != 0)
+                tightStreamResets[i] = true;
+            ctl >>= 1;
         }
 
         // Check correctness of sub-encoding value.
-        if (comp_ctl > RfbProto.TightMaxSubencoding) {
-            throw new Exception("Incorrect tight subencoding: " + comp_ctl);
+        if (ctl > RfbProto.TightMaxSubencoding) {
+            throw new Exception("Incorrect tight subencoding: " + ctl);
         }
 
+        TightRect r = tightRects[pendingTightRects];
+        r.reset(x, y, w, h);
+
         // Handle solid-color rectangles.
-        if (comp_ctl == RfbProto.TightFill) {
+        if (ctl == RfbProto.TightFill) {
             if (bytesPerPixel == 1) {
-                idx = rfb.is.readUnsignedByte();
-                handleTightRectPaint.setColor(colorPalette[0xFF & idx]);
+                r.color = colorPalette[rfb.is.readUnsignedByte()];
             } else {
                 rfb.readFully(solidColorBuf, 0, 3);
-                handleTightRectPaint.setColor(0xFF000000 | (solidColorBuf[0] & 0xFF) << 16 
-                                                         | (solidColorBuf[1] & 0xFF) << 8 | (solidColorBuf[2] & 0xFF));
-            }
-            if (valid) {
-                bitmapData.drawRect(x, y, w, h, handleTightRectPaint);
-                vncCanvas.reDraw(x, y, w, h);
+                r.color = 0xFF000000 | (solidColorBuf[0] & 0xFF) << 16
+                                     | (solidColorBuf[1] & 0xFF) << 8 | (solidColorBuf[2] & 0xFF);
             }
+            r.kind = TightRect.FILL;
+            queueTightRect(rfb, r);
             return;
         }
 
-        if (comp_ctl == RfbProto.TightJpeg) {
-            // Read JPEG data.
-            jpegDataLen = rfb.readCompactLen();
-            if (jpegDataLen > inflBuf.length) {
-                inflBuf = new byte[2*jpegDataLen];
-            }
-            rfb.readFully(inflBuf, 0, jpegDataLen);
-            if (!valid)
-                return;
-
-            // Decode JPEG data
-            Bitmap tightBitmap = BitmapFactory.decodeByteArray(inflBuf, 0, jpegDataLen, bitmapopts);
-
-            // Copy decoded data into bitmapData and recycle bitmap.
-            //tightBitmap.getPixels(pixels, bitmapData.offset(x, y), bitmapData.bitmapwidth, 0, 0, w, h);
-            bitmapData.updateBitmap(tightBitmap, x, y, w, h);        
-            vncCanvas.reDraw(x, y, w, h);
-            // To avoid running out of memory, recycle bitmap immediately.
-            tightBitmap.recycle();
+        if (ctl == RfbProto.TightJpeg) {
+            r.kind = TightRect.JPEG;
+            r.dataLen = rfb.readCompactLen();
+            r.lane = (nextJpegLane++) & (tightLanes.length - 1);
+            queueTightRect(rfb, r);
             return;
         }
 
         // Read filter id and parameters.
-        if ((comp_ctl & RfbProto.TightExplicitFilter) != 0) {
+        r.kind = TightRect.PIXELS;
+        r.rowSize = w;
+        if ((ctl & RfbProto.TightExplicitFilter) != 0) {
             int filter_id = rfb.is.readUnsignedByte();
 
             if (filter_id == RfbProto.TightFilterPalette) {
-                numColors = rfb.is.readUnsignedByte() + 1;
-                
+                r.numColors = rfb.is.readUnsignedByte() + 1;
+
                 if (bytesPerPixel == 1) {
-                    if (numColors != 2) {
-                        throw new Exception("Incorrect tight palette size: " + numColors);
+                    if (r.numColors != 2) {
+                        throw new Exception("Incorrect tight palette size: " + r.numColors);
                     }
                     rfb.readFully(tightPalette8, 0, 2);
-
+                    converter.convert(tightPalette8, 0, r.palette, 0, 2);
                 } else {
-                    rfb.readFully(colorBuf, 0, numColors*3);
-                    for (c = 0; c < numColors; c++) {
-                        idx = c*3;
-                        tightPalette24[c] = ((colorBuf[idx]     & 0xFF) << 16 |
-                                             (colorBuf[idx + 1] & 0xFF) << 8  |
-                                             (colorBuf[idx + 2] & 0xFF));
-                    }
+                    rfb.readFully(colorBuf, 0, r.numColors*3);
+                    PixelConverter.convertRGB(colorBuf, 0, r.palette, 0, r.numColors);
                 }
 
-                if (numColors == 2)
-                    rowSize = (w + 7) / 8;
+                if (r.numColors == 2)
+                    r.rowSize = (w + 7) / 8;
 
             } else if (filter_id == RfbProto.TightFilterGradient) {
-                useGradient = true;
+                r.useGradient = true;
             } else if (filter_id != RfbProto.TightFilterCopy) {
                 throw new Exception("Incorrect tight filter id: " + filter_id);
             }
         }
 
-        if (numColors == 0 && bytesPerPixel == 4)
-            rowSize *= 3;
-
-        // Read, optionally uncompress and decode data.
-        dataSize = h * rowSize;
+        if (r.numColors == 0 && bytesPerPixel == 4)
+            r.rowSize *= 3;
+        r.dataSize = h * r.rowSize;
 
-        if (dataSize < RfbProto.TightMinToCompress) {
+        if (r.dataSize < RfbProto.TightMinToCompress) {
             // Data size is small - not compressed with zlib.
-            rfb.readFully(uncompDataBuf, 0, dataSize);
-            if (!valid)
-                return;
+            r.dataLen = r.dataSize;
+        } else {
+            r.dataLen = rfb.readCompactLen();
+            r.lane = ctl & 0x03;
+            r.resetStream = tightStreamResets[r.lane];
+            tightStreamResets[r.lane] = false;
+        }
+        queueTightRect(rfb, r);
+    }
 
-            if (numColors != 0) {
-                // Indexed colors.
-                if (numColors == 2) {
-                    // Two colors.
-                    if (bytesPerPixel == 1) {
-                        decodeMonoData(x, y, w, h, uncompDataBuf, tightPalette8);
-                    } else {
-                        decodeMonoData(x, y, w, h, uncompDataBuf, tightPalette24);
-                    }    
-                } else {
-                    // 3..255 colors (assuming bytesPerPixel == 4).
-                    boffset = 0;
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = x; dx < x + w; dx++) {
-                            pixels[offset++] = tightPalette24[uncompDataBuf[boffset++] & 0xFF];
-                        }
-                    }
-                }
-            } else if (useGradient) {
-                // "Gradient"-processed data
-                decodeGradientData(x, y, w, h, uncompDataBuf);
-            } else {
-                boffset = 0;
-                // Raw true-color data.
-                if (bytesPerPixel == 1) {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            pixels[offset++] = colorPalette[0xFF & uncompDataBuf[boffset++]];
-                        }                        
-                    }
-                } else {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            idx = boffset*3; boffset++;
-                            pixels[offset++] =  (uncompDataBuf[idx]     & 0xFF) << 16 | 
-                                                (uncompDataBuf[idx + 1] & 0xFF) << 8  |
-                                                (uncompDataBuf[idx + 2] & 0xFF);
-                        }
-                    }
-                }
-            }
+    //
+    // Reads the data of a Tight rectangle whose header has been parsed, and decodes it,
+    // either straight into bitmapData, or into tightPixels on the rectangle's lane. In
+    // the latter case the pixels reach bitmapData only when flushTightRects() is called.
+    //
+    private void queueTightRect(RfbProto rfb, TightRect r) throws Exception {
+        int pixels = (r.valid && r.kind != TightRect.FILL) ? r.w * r.h : 0;
+        boolean direct = !parallelTight || r.dataLen > tightData.length || pixels > tightPixelCapacity;
+
+        if (pendingTightRects > 0 && (direct || r.dataLen > tightData.length - tightDataUsed
+                                             || pixels > tightPixelCapacity - tightPixelsUsed)) {
+            // Make room, and keep r in the first free slot.
+            int slot = pendingTightRects;
+            flushTightRects();
+            tightRects[slot] = tightRects[0];
+            tightRects[0] = r;
+        }
 
+        if (r.dataLen > tightData.length) {
+            // More than tightData can hold, which is rare enough not to keep a buffer for.
+            r.data = new byte[r.dataLen];
+            r.dataOffset = 0;
         } else {
-            // Data was compressed with zlib.
-            int zlibDataLen = rfb.readCompactLen();
-            if (zlibDataLen > zlibData.length) {
-                zlibData = new byte[zlibDataLen*2];
+            r.data = tightData;
+            r.dataOffset = tightDataUsed;
+            tightDataUsed += r.dataLen;
+        }
+        rfb.readFully(r.data, r.dataOffset, r.dataLen);
+
+        if (direct) {
+            if (r.valid) {
+                r.out = bitmapData.bitmapPixels;
+                r.outOffset = bitmapData.offset(r.x, r.y);
+                r.outStride = bitmapData.bitmapwidth;
             }
-            rfb.readFully(zlibData, 0, zlibDataLen);
+            r.run();
+            tightDataUsed = 0;
+            if (r.error == null && r.valid)
+                commitTightRect(r);
+            r.data = null;
+            r.out = null;
+            if (r.error != null)
+                throw r.error;
+            return;
+        }
+
+        r.out = tightPixels;
+        r.outOffset = tightPixelsUsed;
+        r.outStride = r.w;
+        tightPixelsUsed += pixels;
+        pendingTightRects++;
+
+        if (r.kind == TightRect.JPEG ? r.valid : r.lane >= 0) {
+            // Queued even if not visible, to keep the stream's inflater in sync.
+            r.done = false;
+            DecodeWorkers.getInstance().submitOrdered(r.lane, r);
+        } else if (r.kind == TightRect.PIXELS) {
+            // Too small to be worth handing off.
+            r.run();
+        }
+
+        if (pendingTightRects == MAX_PENDING_TIGHT_RECTS)
+            flushTightRects();
+    }
+
+    /**
+     * Chooses whether Tight rectangles are decoded on the ordered lanes, whatever the
+     * number of cores. Lets the benchmarks exercise both paths on any machine.
+     */
+    void setParallelTight(boolean parallel) {
+        parallelTight = parallel;
+    }
 
-            stream_id = comp_ctl & 0x03;
-            if (tightInflaters[stream_id] == null) {
-                tightInflaters[stream_id] = new Inflater();
+    //
+    // Sizes the Tight buffers to the framebuffer, if it is new or has changed size.
+    //
+    private void ensureTightBuffers() throws Exception {
+        int pixels = bitmapData.bitmapwidth * bitmapData.bitmapheight;
+        int laneBufferSize = Math.max(TIGHT_LANE_BUFFER_SIZE, bitmapData.framebufferwidth * 3);
+        if (tightData != null && tightPixelCapacity == pixels && tightLanes[0].buf.length == laneBufferSize
+                && (tightPixels != null) == parallelTight)
+            return;
+
+        flushTightRects();
+        if (tightRects == null) {
+            tightRects = new TightRect[MAX_PENDING_TIGHT_RECTS];
+            for (int i = 0; i < tightRects.length; i++)
+                tightRects[i] = new TightRect();
+            tightLanes = new TightLane[DecodeWorkers.ORDERED_LANES];
+        }
+        for (int i = 0; i < tightLanes.length; i++) {
+            Inflater inflater = (tightLanes[i] != null) ? tightLanes[i].inflater : new Inflater();
+            tightLanes[i] = new TightLane(inflater, laneBufferSize);
+        }
+        // A byte of compressed data per pixel is far more than an update normally needs.
+        tightData = new byte[Math.max(pixels, MAX_TIGHT_RECT_DATA)];
+        tightPixelCapacity = pixels;
+        tightPixels = parallelTight ? new int[pixels] : null;
+    }
+
+    /**
+     * Waits for all queued Tight rectangles to be decoded and draws them in the order
+     * they were received. Must be called before anything else touches the framebuffer.
+     * @throws Exception The first error encountered while decoding.
+     */
+    void flushTightRects() throws Exception {
+        RuntimeException error = null;
+        for (int i = 0; i < pendingTightRects; i++) {
+            TightRect r = tightRects[i];
+            r.await();
+            if (error == null)
+                error = r.error;
+            if (error == null && r.valid)
+                commitTightRect(r);
+            r.data = null;
+            r.out = null;
+        }
+        pendingTightRects = 0;
+        tightDataUsed = 0;
+        tightPixelsUsed = 0;
+        if (error != null)
+            throw error;
+    }
+
+    private void commitTightRect(TightRect r) {
+        if (r.kind == TightRect.FILL) {
+            handleTightRectPaint.setColor(r.color);
+            bitmapData.drawRect(r.x, r.y, r.w, r.h, handleTightRectPaint);
+        } else {
+            if (r.out == tightPixels) {
+                int[] pixels = bitmapData.bitmapPixels;
+                for (int j = 0; j < r.h; j++)
+                    System.arraycopy(r.out, r.outOffset + j * r.w, pixels, bitmapData.offset(r.x, r.y + j), r.w);
             }
+            bitmapData.updateBitmap(r.x, r.y, r.w, r.h);
+        }
+        vncCanvas.reDraw(r.x, r.y, r.w, r.h);
+    }
 
-            Inflater myInflater = tightInflaters[stream_id];
-            myInflater.setInput(zlibData, 0, zlibDataLen);
-            
-            if (dataSize > inflBuf.length) {
-                inflBuf = new byte[dataSize*2];
+    //
+    // The decoding state of one ordered lane: the inflater of its zlib stream, where the
+    // stream is inflated to, and the last JPEG bitmap it decoded.
+    //
+    private static class TightLane {
+        final Inflater inflater;
+        final byte[] buf;
+        final BitmapFactory.Options jpegOptions = new BitmapFactory.Options();
+        Bitmap jpegBitmap;
+
+        TightLane(Inflater inflater, int bufferSize) {
+            this.inflater = inflater;
+            buf = new byte[bufferSize];
+            jpegOptions.inPurgeable      = false;
+            jpegOptions.inDither         = false;
+            jpegOptions.inTempStorage    = new byte[32768];
+            jpegOptions.inPreferredConfig= Bitmap.Config.RGB_565;
+            jpegOptions.inScaled         = false;
+        }
+
+        //
+        // Decodes a w x h JPEG image. From Honeycomb on, it is decoded into the bitmap
+        // decoded last, which then belongs to the lane, if the platform can reuse it.
+        //
+        Bitmap decodeJpeg(byte[] data, int offset, int length, int w, int h) {
+            int sdk = android.os.Build.VERSION.SDK_INT;
+            if (sdk >= 11) {
+                boolean fits = jpegBitmap != null && (sdk >= 19
+                        ? jpegBitmap.getAllocationByteCount() >= w * h * 2
+                        : jpegBitmap.getWidth() == w && jpegBitmap.getHeight() == h);
+                jpegOptions.inMutable = true;
+                jpegOptions.inBitmap  = fits ? jpegBitmap : null;
+            }
+            Bitmap b = BitmapFactory.decodeByteArray(data, offset, length, jpegOptions);
+            if (sdk >= 11 && b != null && b != jpegBitmap) {
+                if (jpegBitmap != null)
+                    jpegBitmap.recycle();
+                jpegBitmap = b;
             }
+            return b;
+        }
+    }
+
+    //
+    // A Tight rectangle which has been read off the wire, and is decoded into out,
+    // either on its lane or on the protocol thread.
+    //
+    private class TightRect implements Runnable {
+        static final int FILL   = 0;
+        static final int JPEG   = 1;
+        static final int PIXELS = 2;
+
+        int x, y, w, h, kind, color, lane, numColors, rowSize, dataSize, bytesPerPixel;
+        boolean valid, useGradient, resetStream;
+        PixelConverter converter;
+        int[] palette = new int[256];
+        byte[] data;
+        int dataOffset, dataLen;
+        int[] out;
+        int outOffset, outStride;
+        boolean done;
+        RuntimeException error;
+
+        void reset(int x, int y, int w, int h) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            valid = Decoder.this.valid;
+            bytesPerPixel = Decoder.this.bytesPerPixel;
+            converter = Decoder.this.converter;
+            lane = -1;
+            numColors = 0;
+            useGradient = false;
+            resetStream = false;
+            dataLen = 0;
+            done = true;
+            error = null;
+        }
 
+        public void run() {
             try {
-                myInflater.inflate(inflBuf, 0, dataSize);
-            } catch (DataFormatException e) {
-                e.printStackTrace();
+                decode();
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
             }
+        }
 
-            if (!valid)
+        synchronized void await() throws InterruptedException {
+            while (!done)
+                wait();
+        }
+
+        private void decode() {
+            if (kind == FILL)
                 return;
 
-            if (numColors != 0) {
-                // Indexed colors.
-                if (numColors == 2) {
-                    // Two colors.
-                    if (bytesPerPixel == 1) {
-                        decodeMonoData(x, y, w, h, inflBuf, tightPalette8);
-                    } else {
-                        decodeMonoData(x, y, w, h, inflBuf, tightPalette24);
-                    }
-                } else {
-                    // More than two colors (assuming bytesPerPixel == 4).
-                    boffset = 0;
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = x; dx < x + w; dx++) {
-                            pixels[offset++] = tightPalette24[inflBuf[boffset++] & 0xFF];
-                        }
-                    }
+            if (kind == JPEG) {
+                if (!valid)
+                    return;
+                TightLane l = tightLanes[lane];
+                Bitmap b = l.decodeJpeg(data, dataOffset, dataLen, w, h);
+                if (b == null) {
+                    valid = false;
+                    return;
+                }
+                b.getPixels(out, outOffset, outStride, 0, 0, w, h);
+                if (b != l.jpegBitmap)
+                    b.recycle();
+                return;
+            }
+
+            if (lane < 0) {
+                if (valid)
+                    decodeRows(data, dataOffset, 0, h);
+                return;
+            }
+
+            TightLane l = tightLanes[lane];
+            if (resetStream)
+                l.inflater.reset();
+            l.inflater.setInput(data, dataOffset, dataLen);
+
+            if (!valid) {
+                for (int left = dataSize; left > 0; ) {
+                    int n = inflate(l.inflater, l.buf, Math.min(left, l.buf.length));
+                    if (n == 0)
+                        break;
+                    left -= n;
+                }
+                return;
+            }
+
+            // Whole rows at a time, a row always fits.
+            int rows = l.buf.length / rowSize;
+            for (int j = 0; j < h; j += rows) {
+                int n = Math.min(rows, h - j);
+                inflate(l.inflater, l.buf, n * rowSize);
+                decodeRows(l.buf, 0, j, n);
+            }
+        }
+
+        //
+        // Decodes n rows, from row j of the rectangle on, whose data starts at src[pos].
+        //
+        private void decodeRows(byte[] src, int pos, int j, int n) {
+            int offset = outOffset + j * outStride;
+            if (numColors == 2) {
+                decodeMonoData(w, n, src, pos, palette, out, offset, outStride);
+            } else if (numColors != 0) {
+                for (int row = 0; row < n; row++, pos += rowSize, offset += outStride) {
+                    for (int i = 0; i < w; i++)
+                        out[offset + i] = palette[src[pos + i] & 0xFF];
                 }
             } else if (useGradient) {
-                // Compressed "Gradient"-filtered data (assuming bytesPerPixel == 4).
-                decodeGradientData(x, y, w, h, inflBuf);
+                decodeGradientData(w, n, src, pos, out, offset, outStride, j > 0);
             } else {
-                boffset = 0;
-                // Compressed true-color data.
-                if (bytesPerPixel == 1) {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            pixels[offset++] = colorPalette[0xFF & inflBuf[boffset++]];
-                        }
-                    }
-                } else {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            idx = boffset*3; boffset++;
-                            pixels[offset++] =  (inflBuf[idx]     & 0xFF) << 16 |
-                                                (inflBuf[idx + 1] & 0xFF) << 8  |
-                                                (inflBuf[idx + 2] & 0xFF);
-                        }
-                    }
+                for (int row = 0; row < n; row++, pos += rowSize, offset += outStride) {
+                    if (bytesPerPixel == 1)
+                        converter.convert(src, pos, out, offset, w);
+                    else
+                        PixelConverter.convertRGB(src, pos, out, offset, w);
                 }
             }
         }
-        
-        bitmapData.updateBitmap(x, y, w, h);
-        vncCanvas.reDraw(x, y, w, h);
     }
-      
+
     //
-    // Decode 1bpp-encoded bi-color rectangle (8-bit and 24-bit versions).
+    // Inflates up to len bytes into buf, and returns how many there were.
     //
-    void decodeMonoData(int x, int y, int w, int h, byte[] src, byte[] palette) {
-
-        int dx, dy, n;
-        int i = bitmapData.offset(x, y);
-        int[] pixels = bitmapData.bitmapPixels;
-        int rowBytes = (w + 7) / 8;
-        byte b;
-
-        for (dy = 0; dy < h; dy++) {
-            for (dx = 0; dx < w / 8; dx++) {
-                b = src[dy*rowBytes+dx];
-                for (n = 7; n >= 0; n--) {
-                    pixels[i++] = colorPalette[0xFF & palette[b >> n & 1]];
-                }
-            }
-            for (n = 7; n >= 8 - w % 8; n--) {
-                pixels[i++] = colorPalette[0xFF & palette[src[dy*rowBytes+dx] >> n & 1]];
+    private static int inflate(Inflater inflater, byte[] buf, int len) {
+        int n = 0;
+        try {
+            while (n < len) {
+                int k = inflater.inflate(buf, n, len - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished()))
+                    break;
+                n += k;
             }
-            i += (bitmapData.bitmapwidth - w);
+        } catch (DataFormatException e) {
+            e.printStackTrace();
         }
+        return n;
     }
 
-    void decodeMonoData(int x, int y, int w, int h, byte[] src, int[] palette) {
+    //
+    // Decode 1bpp-encoded bi-color data.
+    //
+    private static void decodeMonoData(int w, int h, byte[] src, int pos, int[] palette, int[] pixels, int i, int stride) {
 
         int dx, dy, n;
-        int i = bitmapData.offset(x, y);
-        int[] pixels = bitmapData.bitmapPixels;
         int rowBytes = (w + 7) / 8;
         byte b;
 
         for (dy = 0; dy < h; dy++) {
             for (dx = 0; dx < w / 8; dx++) {
-                b = src[dy*rowBytes+dx];
+                b = src[pos+dy*rowBytes+dx];
                 for (n = 7; n >= 0; n--) {
                     pixels[i++] = palette[b >> n & 1];
                 }
             }
             for (n = 7; n >= 8 - w % 8; n--) {
-                pixels[i++] = palette[src[dy*rowBytes+dx] >> n & 1];
+                pixels[i++] = palette[src[pos+dy*rowBytes+dx] >> n & 1];
             }
-            i += (bitmapData.bitmapwidth - w);
+            i += (stride - w);
         }
     }
 
     //
-    // Decode data processed with the "Gradient" filter.
+    // Decode data processed with the "Gradient" filter. The prediction for each pixel
+    // is taken from the row above and the pixel to the left, which have already been
+    // written to pixels, so no scratch rows are needed. If continued is set, the row
+    // above the first one is part of the same rectangle.
     //
-    void decodeGradientData (int x, int y, int w, int h, byte[] buf) {
+    private static void decodeGradientData (int w, int h, byte[] buf, int i, int[] pixels, int offset, int stride,
+                                            boolean continued) {
 
-        int dx, dy, c;
-        byte[] prevRow = new byte[w * 3];
-        byte[] thisRow = new byte[w * 3];
-        byte[] pix = new byte[3];
-        int[] est = new int[3];
-        int[] pixels = bitmapData.bitmapPixels;
-
-        int offset = bitmapData.offset(x, y);
+        int dx, dy, s, est, above, left, aboveLeft, pix;
 
         for (dy = 0; dy < h; dy++) {
-
-            /* First pixel in a row */
-            for (c = 0; c < 3; c++) {
-                pix[c] = (byte)(prevRow[c] + buf[dy * w * 3 + c]);
-                thisRow[c] = pix[c];
-            }
-            pixels[offset++] = (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF);
-
-            /* Remaining pixels of a row */
-            for (dx = 1; dx < w; dx++) {
-                for (c = 0; c < 3; c++) {
-                    est[c] = ((prevRow[dx * 3 + c] & 0xFF) + (pix[c] & 0xFF) -
-                              (prevRow[(dx-1) * 3 + c] & 0xFF));
-                    if (est[c] > 0xFF) {
-                        est[c] = 0xFF;
-                    } else if (est[c] < 0x00) {
-                        est[c] = 0x00;
+            left = 0;
+            aboveLeft = 0;
+            for (dx = 0; dx < w; dx++) {
+                above = (dy > 0 || continued) ? pixels[offset - stride] : 0;
+                pix = 0;
+                for (s = 16; s >= 0; s -= 8) {
+                    est = ((above >> s) & 0xFF) + ((left >> s) & 0xFF) - ((aboveLeft >> s) & 0xFF);
+                    if (est > 0xFF) {
+                        est = 0xFF;
+                    } else if (est < 0x00) {
+                        est = 0x00;
                     }
-                    pix[c] = (byte)(est[c] + buf[(dy * w + dx) * 3 + c]);
-                    thisRow[dx * 3 + c] = pix[c];
+                    pix |= ((est + buf[i++]) & 0xFF) << s;
                 }
-                pixels[offset++] = (pix[0] & 0xFF) << 16 | (pix[1] & 0xFF) << 8 | (pix[2] & 0xFF);
+                pixels[offset++] = pix;
+                left = pix;
+                aboveLeft = above;
             }
-
-            System.arraycopy(thisRow, 0, prevRow, 0, w * 3);
-            offset += (bitmapData.bitmapwidth - w);
+            offset += (stride - w);
         }
     }
 
@@ -1074,7 +1412,8 @@ public class Decoder {
     }
 
     /**
-     * Decode cursor pixel data and return it in an int array.
+     * Decode cursor pixel data and return it in an int array. Shapes seen recently
+     * are taken from cursorCache instead, so the array returned must not be modified.
      * @param encodingType
      * @param width
      * @param height
@@ -1086,32 +1425,48 @@ public class Decoder {
         int bytesPerRow = (width + 7) / 8;
         int bytesMaskData = bytesPerRow * height;
 
+        // Read the encoded shape: the colors, pixel data and mask of an XCursor,
+        // or the pixel data and mask of a RichCursor.
+        int pixOffset, maskOffset;
+        if (encodingType == RfbProto.EncodingXCursor) {
+            pixOffset = 6;
+            maskOffset = pixOffset + bytesMaskData;
+        } else {
+            pixOffset = 0;
+            maskOffset = width * height * bytesPerPixel;
+        }
+        int len = maskOffset + bytesMaskData;
+        if (len > cursorBuf.length)
+            cursorBuf = new byte[len];
+        rfb.readFully(cursorBuf, 0, len);
+
+        int hash = (encodingType * 31 + width) * 31 + height;
+        for (int i = 0; i < len; i++)
+            hash = hash * 31 + cursorBuf[i];
+        Integer key = hash;
+        CursorShape cached = cursorCache.get(key);
+        if (cached != null && cached.matches(encodingType, width, height, cursorBuf, len))
+            return cached.pixels;
+
         int[] softCursorPixels = new int[width * height];
 
         if (encodingType == RfbProto.EncodingXCursor) {
 
-            // Read foreground and background colors of the cursor.
-            byte[] rgb = new byte[6];
-            rfb.readFully(rgb);
+            // Foreground and background colors of the cursor.
+            byte[] rgb = cursorBuf;
             int[] colors = { (0xFF000000 | (rgb[3] & 0xFF) << 16 |
                     (rgb[4] & 0xFF) << 8 | (rgb[5] & 0xFF)),
                     (0xFF000000 | (rgb[0] & 0xFF) << 16 |
                             (rgb[1] & 0xFF) << 8 | (rgb[2] & 0xFF)) };
 
-            // Read pixel and mask data.
-            byte[] pixBuf = new byte[bytesMaskData];
-            rfb.readFully(pixBuf);
-            byte[] maskBuf = new byte[bytesMaskData];
-            rfb.readFully(maskBuf);
-
             // Decode pixel data into softCursorPixels[].
             byte pixByte, maskByte;
             int x, y, n, result;
             int i = 0;
             for (y = 0; y < height; y++) {
                 for (x = 0; x < width / 8; x++) {
-                    pixByte = pixBuf[y * bytesPerRow + x];
-                    maskByte = maskBuf[y * bytesPerRow + x];
+                    pixByte = cursorBuf[pixOffset + y * bytesPerRow + x];
+                    maskByte = cursorBuf[maskOffset + y * bytesPerRow + x];
                     for (n = 7; n >= 0; n--) {
                         if ((maskByte >> n & 1) != 0) {
                             result = colors[pixByte >> n & 1];
@@ -1122,8 +1477,8 @@ public class Decoder {
                     }
                 }
                 for (n = 7; n >= 8 - width % 8; n--) {
-                    if ((maskBuf[y * bytesPerRow + x] >> n & 1) != 0) {
-                        result = colors[pixBuf[y * bytesPerRow + x] >> n & 1];
+                    if ((cursorBuf[maskOffset + y * bytesPerRow + x] >> n & 1) != 0) {
+                        result = colors[cursorBuf[pixOffset + y * bytesPerRow + x] >> n & 1];
                     } else {
                         result = 0;        // Transparent pixel
                     }
@@ -1134,29 +1489,16 @@ public class Decoder {
         } else {
             // encodingType == rfb.EncodingRichCursor
 
-            // Read pixel and mask data.
-            byte[] pixBuf = new byte[width * height * bytesPerPixel];
-            rfb.readFully(pixBuf);
-            byte[] maskBuf = new byte[bytesMaskData];
-            rfb.readFully(maskBuf);
-
             // Decode pixel data into softCursorPixels[].
-            byte pixByte, maskByte;
+            byte maskByte;
             int x, y, n, result;
             int i = 0;
             for (y = 0; y < height; y++) {
                 for (x = 0; x < width / 8; x++) {
-                    maskByte = maskBuf[y * bytesPerRow + x];
+                    maskByte = cursorBuf[maskOffset + y * bytesPerRow + x];
                     for (n = 7; n >= 0; n--) {
                         if ((maskByte >> n & 1) != 0) {
-                            if (bytesPerPixel == 1) {
-                                result =  colorPalette[0xFF & pixBuf[i]];
-                            } else {
-                                result = 0xFF000000 |
-                                        (pixBuf[i * 4 + 2] & 0xFF) << 16 |
-                                        (pixBuf[i * 4 + 1] & 0xFF) << 8 |
-                                        (pixBuf[i * 4] & 0xFF);
-                            }
+                            result = converter.pixel(cursorBuf, i * bytesPerPixel);
                         } else {
                             result = 0;    // Transparent pixel
                         }
@@ -1164,15 +1506,8 @@ public class Decoder {
                     }
                 }
                 for (n = 7; n >= 8 - width % 8; n--) {
-                    if ((maskBuf[y * bytesPerRow + x] >> n & 1) != 0) {
-                        if (bytesPerPixel == 1) {
-                            result = colorPalette[0xFF & pixBuf[i]];
-                        } else {
-                            result = 0xFF000000 |
-                                    (pixBuf[i * 4 + 2] & 0xFF) << 16 |
-                                    (pixBuf[i * 4 + 1] & 0xFF) << 8 |
-                                    (pixBuf[i * 4] & 0xFF);
-                        }
+                    if ((cursorBuf[maskOffset + y * bytesPerRow + x] >> n & 1) != 0) {
+                        result = converter.pixel(cursorBuf, i * bytesPerPixel);
                     } else {
                         result = 0;        // Transparent pixel
                     }
@@ -1182,6 +1517,46 @@ public class Decoder {
 
         }
 
+        if (width * height <= MAX_CACHED_CURSOR_PIXELS) {
+            byte[] data = new byte[len];
+            System.arraycopy(cursorBuf, 0, data, 0, len);
+            cursorCache.put(key, new CursorShape(encodingType, width, height, data, softCursorPixels));
+            if (cursorCache.size() > CURSOR_CACHE_SIZE) {
+                Iterator<Integer> eldest = cursorCache.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+
         return softCursorPixels;
     }
+
+    //
+    // A decoded cursor shape, with the encoded data it was decoded from.
+    //
+    private static final class CursorShape {
+        final int encodingType, width, height;
+        final byte[] data;
+        final int[] pixels;
+
+        CursorShape (int encodingType, int width, int height, byte[] data, int[] pixels) {
+            this.encodingType = encodingType;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.pixels = pixels;
+        }
+
+        // Tells whether the shape was decoded from the same data, rather than from
+        // other data with the same hash.
+        boolean matches(int encodingType, int width, int height, byte[] buf, int len) {
+            if (encodingType != this.encodingType || width != this.width ||
+                height != this.height || len != data.length)
+                return false;
+            for (int i = 0; i < len; i++)
+                if (buf[i] != data[i])
+                    return false;
+            return true;
+        }
+    }
 }
\ No newline at end of file
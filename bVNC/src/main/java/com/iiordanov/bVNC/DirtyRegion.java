@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import android.graphics.Rect;
+
+/*
+ * Collects the parts of the remote desktop which have changed since they were
+ * last invalidated, so that the rectangles of an update can be invalidated
+ * together rather than one at a time.
+ *
+ * A rectangle which overlaps or touches one already collected is merged with it
+ * into their bounding box. At most MAX_RECTS separate rectangles are kept: when
+ * one more arrives, the two rectangles whose bounding box covers the fewest
+ * unchanged pixels are merged, so that distant changes, such as a clock in one
+ * corner and a cursor in another, stay separate while an update consists of
+ * hundreds of small rectangles. Merging can only grow the region, so no changed
+ * pixel is ever left out.
+ *
+ * Instances may be used from several threads.
+ */
+
+class DirtyRegion {
+    // Beyond this many rectangles, the closest two are merged.
+    static final int MAX_RECTS = 8;
+
+    private final Rect[] rects = new Rect[MAX_RECTS];
+    private int count = 0;
+    private final Rect added = new Rect();
+    private final Rect merged = new Rect();
+
+    DirtyRegion () {
+        for (int i = 0; i < MAX_RECTS; i++)
+            rects[i] = new Rect();
+    }
+
+    /**
+     * Adds a changed rectangle. Empty rectangles are ignored.
+     */
+    synchronized void add(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0)
+            return;
+        added.set(x, y, x + w, y + h);
+
+        while (true) {
+            // Absorb every collected rectangle which overlaps or touches the new one.
+            // Each merge can make the new rectangle reach others, so start over.
+            int i = 0;
+            while (i < count) {
+                Rect r = rects[i];
+                if (r.left <= added.right && added.left <= r.right &&
+                    r.top <= added.bottom && added.top <= r.bottom) {
+                    added.union(r);
+                    removeAt(i);
+                    i = 0;
+                } else {
+                    i++;
+                }
+            }
+
+            if (count < MAX_RECTS) {
+                rects[count++].set(added);
+                return;
+            }
+
+            // Full: merge the pair, out of the collected rectangles and the new one,
+            // whose bounding box adds the least area. Index count stands for the new one.
+            int bestI = 0, bestJ = 1;
+            long bestCost = Long.MAX_VALUE;
+            for (i = 0; i < count; i++) {
+                for (int j = i + 1; j <= count; j++) {
+                    long cost = mergeCost(rects[i], j == count ? added : rects[j]);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
+            }
+
+            if (bestJ == count) {
+                added.union(rects[bestI]);
+                removeAt(bestI);
+            } else {
+                // Keep the new rectangle in place of the merged pair and carry on with
+                // their bounding box, which may now reach other rectangles.
+                merged.set(rects[bestI]);
+                merged.union(rects[bestJ]);
+                rects[bestI].set(added);
+                removeAt(bestJ);
+                added.set(merged);
+            }
+        }
+    }
+
+    /*
+     * Returns the area of the bounding box of a and b which neither of them covers.
+     */
+    private static long mergeCost(Rect a, Rect b) {
+        long w = Math.max(a.right, b.right) - Math.min(a.left, b.left);
+        long h = Math.max(a.bottom, b.bottom) - Math.min(a.top, b.top);
+        return w * h - (long)a.width() * a.height() - (long)b.width() * b.height();
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Moves the collected rectangles into the given array and empties the region.
+     * @param out Receives the rectangles. Must have room for MAX_RECTS entries.
+     * @return The number of rectangles stored in out.
+     */
+    synchronized int drain(Rect[] out) {
+        int n = count;
+        for (int i = 0; i < n; i++)
+            out[i].set(rects[i]);
+        count = 0;
+        return n;
+    }
+
+    /*
+     * Removes the rectangle at index i by swapping the last one into its place.
+     */
+    private void removeAt(int i) {
+        Rect removed = rects[i];
+        rects[i] = rects[--count];
+        rects[count] = removed;
+    }
+}
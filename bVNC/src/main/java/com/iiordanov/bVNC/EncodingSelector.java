@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import android.util.Log;
+
+/*
+ * Picks an encoding, JPEG quality and compression level from the measured
+ * throughput of the connection, in the spirit of TigerVNC's AutoSelect.
+ *
+ * Each FramebufferUpdate contributes one sample: the number of bytes it took,
+ * how long it took to receive and decode, and how much of that time the
+ * decoder spent waiting for the network. Updates during which we mostly waited
+ * are network-bound and give a bandwidth estimate. Updates during which we
+ * hardly waited are decode-bound and only give a lower bound.
+ *
+ * Settings are grouped in tiers ordered by bandwidth. A move to another tier
+ * needs the estimate to clear the tier boundary by a margin for several
+ * consecutive updates, so that the encoding does not flap on noisy links.
+ */
+
+class EncodingSelector {
+    private final static String TAG = "EncodingSelector";
+
+    // Updates smaller than this, or faster than this, say little about the link.
+    private static final long MIN_SAMPLE_BYTES = 8192;
+    private static final long MIN_SAMPLE_NANOS = 5000000L;
+
+    // Fraction of an update's time spent waiting above which it is network-bound.
+    private static final double NETWORK_BOUND_WAIT_FRACTION = 0.5;
+
+    // Weight of a new sample in the moving average.
+    private static final double SMOOTHING = 0.25;
+
+    // Relative margin an estimate must clear beyond a tier boundary.
+    private static final double HYSTERESIS = 0.25;
+
+    // Number of consecutive updates that must agree before switching tiers.
+    private static final int SWITCH_AFTER = 3;
+
+    /*
+     * Tiers from the slowest to the fastest link. Each entry is the minimum
+     * bandwidth in kbit/s, the encoding, the JPEG quality and the compression level.
+     */
+    private static final int[][] TIERS = {
+        {     0, RfbProto.EncodingTight, 2, 9 },   // cellular, poor
+        {  1000, RfbProto.EncodingTight, 4, 7 },   // cellular, good / DSL
+        {  4000, RfbProto.EncodingTight, 6, 6 },   // broadband
+        { 16000, RfbProto.EncodingZRLE,  9, 1 },   // fast WAN / slow LAN
+        { 80000, RfbProto.EncodingRaw,   9, 0 },   // LAN
+    };
+
+    private double kbitsPerSecond = 0;
+    private int tier;
+    private int candidateTier;
+    private int candidateCount = 0;
+
+    EncodingSelector (int initialTier) {
+        tier = candidateTier = initialTier;
+    }
+
+    EncodingSelector () {
+        // Start out at the same settings we have always used by default.
+        this(2);
+    }
+
+    /**
+     * Records one FramebufferUpdate.
+     * @param bytes number of bytes received for the update
+     * @param elapsedNanos time between the update header and the end of its last rectangle
+     * @param waitedNanos part of elapsedNanos spent blocked on the network
+     * @return true if the preferred settings have changed as a result
+     */
+    boolean updateDone (long bytes, long elapsedNanos, long waitedNanos) {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedNanos < MIN_SAMPLE_NANOS)
+            return false;
+
+        double sample = (double)bytes * 8 * 1000000 / elapsedNanos;
+        if (waitedNanos >= elapsedNanos * NETWORK_BOUND_WAIT_FRACTION) {
+            // Network-bound: this is what the link delivers.
+            if (kbitsPerSecond == 0)
+                kbitsPerSecond = sample;
+            else
+                kbitsPerSecond += (sample - kbitsPerSecond) * SMOOTHING;
+        } else if (sample > kbitsPerSecond) {
+            // Decode-bound: the link can deliver at least this much.
+            kbitsPerSecond += (sample - kbitsPerSecond) * SMOOTHING;
+        }
+
+        int target = targetTier();
+        if (target == tier) {
+            candidateCount = 0;
+            return false;
+        }
+
+        if (target != candidateTier) {
+            candidateTier = target;
+            candidateCount = 0;
+        }
+        if (++candidateCount < SWITCH_AFTER)
+            return false;
+
+        Log.i(TAG, "Estimated " + (long)kbitsPerSecond + " kbit/s, switching from tier " + tier + " to " + target);
+        tier = target;
+        candidateCount = 0;
+        return true;
+    }
+
+    /*
+     * Finds the tier the current estimate belongs to, requiring it to clear
+     * the boundaries of neighbouring tiers by the hysteresis margin.
+     */
+    private int targetTier() {
+        int target = tier;
+        while (target + 1 < TIERS.length && kbitsPerSecond > TIERS[target + 1][0] * (1 + HYSTERESIS))
+            target++;
+        while (target > 0 && kbitsPerSecond < TIERS[target][0] * (1 - HYSTERESIS))
+            target--;
+        return target;
+    }
+
+    int encoding () {
+        return TIERS[tier][1];
+    }
+
+    int jpegQuality () {
+        return TIERS[tier][2];
+    }
+
+    int compressLevel () {
+        return TIERS[tier][3];
+    }
+
+    long kbitsPerSecond () {
+        return (long)kbitsPerSecond;
+    }
+}
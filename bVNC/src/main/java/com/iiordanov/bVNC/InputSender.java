@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/*
+ * Sends pointer and key events to the server on a thread of its own, so that
+ * the thread which generates them never waits for the network.
+ *
+ * Events are queued in the order they are generated and written out together.
+ * A pointer motion, that is a pointer event with the same button mask as the one
+ * before it, which arrives while the previous motion is still waiting replaces
+ * its position rather than being queued after it, so a drag over a slow link
+ * sends the latest position instead of falling further and further behind.
+ * Button changes and key events are never merged or dropped.
+ *
+ * Pointer motions are also limited to a maximum rate: a lone motion is held back
+ * until the interval since the last pointer event sent has passed, and motions
+ * which arrive meanwhile are merged into it.
+ */
+
+class InputSender {
+    private final static String TAG = "InputSender";
+
+    // The default maximum number of pointer motions sent per second.
+    static final int DEFAULT_MOTION_RATE = 60;
+
+    // Length of a PointerEvent message.
+    private static final int POINTER_EVENT_LEN = 6;
+
+    private final RfbProto rfb;
+
+    // Events waiting to be sent, and the buffer the sender thread writes from.
+    private byte[] pending = new byte[256];
+    private int pendingLen = 0;
+    private byte[] sending = new byte[256];
+
+    // Offset of the last pointer motion in pending while it is still the last
+    // event queued, otherwise -1.
+    private int motionOffset = -1;
+    private int lastMask = -1;
+    private boolean pendingPointer = false;
+
+    private long motionIntervalNanos;
+    private long lastPointerSent;
+    private boolean stopped = false;
+    private Thread senderThread;
+
+    InputSender (RfbProto rfb) {
+        this.rfb = rfb;
+        lastPointerSent = System.nanoTime();
+        setMotionRate(DEFAULT_MOTION_RATE);
+    }
+
+    /**
+     * Sets the maximum number of pointer motions sent per second.
+     * @param perSecond The rate, or 0 for no limit.
+     */
+    synchronized void setMotionRate(int perSecond) {
+        motionIntervalNanos = (perSecond > 0) ? 1000000000L / perSecond : 0;
+        notifyAll();
+    }
+
+    /**
+     * Queues a batch of events which were generated together.
+     * @param buf The messages.
+     * @param len Length of the messages.
+     * @param pointerMask The button mask of the pointer event in the batch, or
+     * -1 if it has none.
+     */
+    synchronized void queue(byte[] buf, int len, int pointerMask) {
+        if (stopped)
+            return;
+
+        boolean pointer = pointerMask >= 0;
+        boolean motion = pointer && len == POINTER_EVENT_LEN && pointerMask == lastMask;
+        if (pointer)
+            lastMask = pointerMask;
+
+        if (motion && motionOffset >= 0) {
+            // Same button mask, only the position has changed.
+            System.arraycopy(buf, 2, pending, motionOffset + 2, POINTER_EVENT_LEN - 2);
+            return;
+        }
+
+        if (pendingLen + len > pending.length) {
+            byte[] larger = new byte[Math.max(2 * pending.length, pendingLen + len)];
+            System.arraycopy(pending, 0, larger, 0, pendingLen);
+            pending = larger;
+        }
+        System.arraycopy(buf, 0, pending, pendingLen, len);
+        motionOffset = motion ? pendingLen : -1;
+        pendingPointer |= pointer;
+        pendingLen += len;
+
+        if (senderThread == null) {
+            senderThread = new Thread(new Runnable() {
+                public void run() {
+                    sendLoop();
+                }
+            }, TAG);
+            senderThread.setDaemon(true);
+            senderThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Discards whatever is still queued and stops the sender thread.
+     */
+    synchronized void stop() {
+        stopped = true;
+        pendingLen = 0;
+        notifyAll();
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                int len;
+                synchronized (this) {
+                    while (true) {
+                        if (stopped)
+                            return;
+                        if (pendingLen == 0) {
+                            wait();
+                            continue;
+                        }
+                        // Only a lone motion waits for the rate limit; anything
+                        // else queued behind it must go out without delay.
+                        if (motionOffset == 0 && pendingLen == POINTER_EVENT_LEN) {
+                            long delay = lastPointerSent + motionIntervalNanos - System.nanoTime();
+                            if (delay > 0) {
+                                wait(delay / 1000000, (int) (delay % 1000000));
+                                continue;
+                            }
+                        }
+                        break;
+                    }
+
+                    byte[] swap = sending;
+                    sending = pending;
+                    pending = swap;
+                    len = pendingLen;
+                    pendingLen = 0;
+                    motionOffset = -1;
+                    if (pendingPointer)
+                        lastPointerSent = System.nanoTime();
+                    pendingPointer = false;
+                }
+
+                try {
+                    rfb.writeInputEvents(sending, len);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write input events to VNC server.");
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "Sender interrupted");
+        }
+    }
+}
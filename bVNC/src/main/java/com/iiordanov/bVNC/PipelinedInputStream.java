@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/*
+ * An InputStream which drains the underlying stream on its own thread into a
+ * bounded ring buffer. The protocol thread consumes the ring while the reader
+ * keeps pulling data off the socket, so network transfer of the next rectangles
+ * overlaps with the decoding of the current one.
+ */
+
+class PipelinedInputStream extends InputStream {
+    private final static String TAG = "PipelinedInputStream";
+
+    // Default ring size. Large enough to hold several full-screen rectangles
+    // of compressed data, small enough to be harmless on low-memory devices.
+    static final int DEFAULT_RING_SIZE = 1024 * 1024;
+
+    // The largest single read we issue against the underlying stream.
+    private static final int MAX_READ_CHUNK = 64 * 1024;
+
+    private final InputStream underlying;
+    private final byte[] ring;
+    private int head  = 0;  // next byte to be consumed
+    private int count = 0;  // number of bytes in the ring
+    private boolean eof = false;
+    private boolean closed = false;
+    private IOException error = null;
+    private Thread readerThread;
+
+    // Statistics used to tell network-bound from decode-bound updates.
+    private long bytesConsumed = 0;
+    private long nanosWaited = 0;
+
+    PipelinedInputStream (InputStream underlying) {
+        this(underlying, DEFAULT_RING_SIZE);
+    }
+
+    PipelinedInputStream (InputStream underlying, int ringSize) {
+        this.underlying = underlying;
+        this.ring = new byte[ringSize];
+        readerThread = new Thread(new Runnable() {
+            public void run() {
+                readLoop();
+            }
+        }, TAG);
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /*
+     * Reader stage: keeps the ring as full as possible, blocking only
+     * when the decoder has fallen a full ring behind.
+     */
+    private void readLoop() {
+        try {
+            while (true) {
+                int tail, free;
+                synchronized (this) {
+                    while (count == ring.length && !closed) {
+                        wait();
+                    }
+                    if (closed)
+                        return;
+                    tail = (head + count) % ring.length;
+                    // Only fill the contiguous free region after the tail.
+                    free = (tail >= head) ? ring.length - tail : head - tail;
+                }
+
+                int n = underlying.read(ring, tail, Math.min(free, MAX_READ_CHUNK));
+
+                synchronized (this) {
+                    if (n < 0) {
+                        eof = true;
+                        notifyAll();
+                        return;
+                    }
+                    count += n;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!closed)
+                    error = e;
+                eof = true;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                eof = true;
+                notifyAll();
+            }
+        }
+        Log.v(TAG, "Reader stage exiting");
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!waitForData())
+            return -1;
+        int b = ring[head] & 0xff;
+        head = (head + 1) % ring.length;
+        count--;
+        bytesConsumed++;
+        notifyAll();
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!waitForData())
+            return -1;
+
+        int n = 0;
+        while (n < len && count > 0) {
+            int chunk = Math.min(Math.min(len - n, count), ring.length - head);
+            System.arraycopy(ring, head, b, off + n, chunk);
+            head = (head + chunk) % ring.length;
+            count -= chunk;
+            n += chunk;
+        }
+        bytesConsumed += n;
+        notifyAll();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return count;
+    }
+
+    /**
+     * @return Total number of bytes handed to the consumer so far.
+     */
+    synchronized long bytesConsumed() {
+        return bytesConsumed;
+    }
+
+    /**
+     * @return Total time the consumer has spent blocked waiting for data, in nanoseconds.
+     */
+    synchronized long nanosWaited() {
+        return nanosWaited;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        underlying.close();
+    }
+
+    /*
+     * Blocks until there is data in the ring. Returns false at end of stream,
+     * and rethrows any error seen by the reader stage once the ring is drained.
+     */
+    private boolean waitForData() throws IOException {
+        long start = 0;
+        if (count == 0)
+            start = System.nanoTime();
+        while (count == 0) {
+            if (error != null)
+                throw error;
+            if (eof || closed)
+                return false;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for data");
+            }
+            if (count > 0)
+                nanosWaited += System.nanoTime() - start;
+        }
+        return true;
+    }
+}
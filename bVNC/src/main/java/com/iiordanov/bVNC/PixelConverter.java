@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Converts pixels in the format requested from the server into opaque ARGB
+ * framebuffer pixels. There is one implementation per kind of pixel format,
+ * each with its own loop over whole rows, so that the decoders do not test the
+ * format for every pixel.
+ *
+ * A PIXEL has the full bytesPerPixel of the format. A CPIXEL is the compressed
+ * pixel of ZRLE, which leaves out the unused byte of a 32-bit pixel. A TPIXEL
+ * is Tight's compressed pixel, which always holds red, green and blue in that
+ * order.
+ *
+ * Converters hold no state, so one may be shared by several threads.
+ */
+
+abstract class PixelConverter {
+    private static final int OPAQUE = 0xFF000000;
+
+    final int bytesPerPixel;
+    final int cpixelSize;
+
+    private PixelConverter (int bytesPerPixel, int cpixelSize) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.cpixelSize = cpixelSize;
+    }
+
+    /**
+     * Returns the converter for an 8-bit format looked up in a palette, or for a
+     * 32-bit little-endian true color format with depth 24 and the colors in the
+     * low 3 bytes. These are the only formats COLORMODEL ever requests.
+     */
+    static PixelConverter forFormat(int bitsPerPixel, int[] palette) {
+        if (bitsPerPixel == 8)
+            return new Palette8(palette);
+        return new TrueColor32LE();
+    }
+
+    /**
+     * Converts the PIXEL at src[pos].
+     */
+    abstract int pixel(byte[] src, int pos);
+
+    /**
+     * Converts count PIXELs starting at src[pos] into dst[off] onwards.
+     */
+    abstract void convert(byte[] src, int pos, int[] dst, int off, int count);
+
+    /**
+     * Converts the CPIXEL at src[pos].
+     */
+    abstract int cpixel(byte[] src, int pos);
+
+    /**
+     * Converts count CPIXELs starting at src[pos] into dst[off] onwards.
+     */
+    abstract void convertCompact(byte[] src, int pos, int[] dst, int off, int count);
+
+    /**
+     * Converts count TPIXELs starting at src[pos] into dst[off] onwards.
+     */
+    static void convertRGB(byte[] src, int pos, int[] dst, int off, int count) {
+        for (int i = 0; i < count; i++) {
+            int p = pos + i * 3;
+            dst[off + i] = OPAQUE | (src[p] & 0xFF) << 16 | (src[p + 1] & 0xFF) << 8 | (src[p + 2] & 0xFF);
+        }
+    }
+
+    //
+    // 8-bit pixels, which index a palette of ARGB colors.
+    //
+    private static final class Palette8 extends PixelConverter {
+        private final int[] palette;
+
+        Palette8 (int[] palette) {
+            super(1, 1);
+            this.palette = palette;
+        }
+
+        int pixel(byte[] src, int pos) {
+            return palette[src[pos] & 0xFF];
+        }
+
+        void convert(byte[] src, int pos, int[] dst, int off, int count) {
+            int[] p = palette;
+            int end = off + count;
+            while (off < end)
+                dst[off++] = p[src[pos++] & 0xFF];
+        }
+
+        int cpixel(byte[] src, int pos) {
+            return palette[src[pos] & 0xFF];
+        }
+
+        void convertCompact(byte[] src, int pos, int[] dst, int off, int count) {
+            convert(src, pos, dst, off, count);
+        }
+    }
+
+    //
+    // 32-bit little-endian pixels: blue, green, red and an unused byte. Whole
+    // rows are read as ints through a little-endian view of the source, which
+    // is a plain copy where the platform is little-endian too.
+    //
+    private static final class TrueColor32LE extends PixelConverter {
+        TrueColor32LE () {
+            super(4, 3);
+        }
+
+        int pixel(byte[] src, int pos) {
+            return OPAQUE | (src[pos + 2] & 0xFF) << 16 | (src[pos + 1] & 0xFF) << 8 | (src[pos] & 0xFF);
+        }
+
+        void convert(byte[] src, int pos, int[] dst, int off, int count) {
+            ByteBuffer.wrap(src, pos, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, off, count);
+            int end = off + count;
+            for (int i = off; i < end; i++)
+                dst[i] |= OPAQUE;
+        }
+
+        int cpixel(byte[] src, int pos) {
+            return OPAQUE | (src[pos + 2] & 0xFF) << 16 | (src[pos + 1] & 0xFF) << 8 | (src[pos] & 0xFF);
+        }
+
+        void convertCompact(byte[] src, int pos, int[] dst, int off, int count) {
+            for (int i = 0; i < count; i++) {
+                int p = pos + i * 3;
+                dst[off + i] = OPAQUE | (src[p + 2] & 0xFF) << 16 | (src[p + 1] & 0xFF) << 8 | (src[p] & 0xFF);
+            }
+        }
+    }
+}
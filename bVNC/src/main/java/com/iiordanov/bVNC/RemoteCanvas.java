@@ -30,12 +30,16 @@
 
 package com.iiordanov.bVNC;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
 import java.util.Timer;
 
@@ -45,6 +49,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Build;
 import android.os.Bundle;
@@ -96,6 +101,17 @@ public class RemoteCanvas extends ImageView {
     
     boolean maintainConnection = true;
     
+    // Parts of the desktop changed since they were last invalidated. Invalidations are
+    // posted at most once every MIN_DAMAGE_FLUSH_INTERVAL milliseconds.
+    static final long MIN_DAMAGE_FLUSH_INTERVAL = 16;
+    private final DirtyRegion dirtyRegion = new DirtyRegion();
+    private final Rect[] dirtyRects = new Rect[DirtyRegion.MAX_RECTS];
+    private long lastDamageFlush = 0;
+    private boolean damageFlushScheduled = false;
+    
+    // Whether to record the session to a file for offline replay, see SessionRecorder.
+    boolean recordSession = false;
+    
     // RFB Decoder
     Decoder decoder = null;
     
@@ -166,6 +182,9 @@ public class RemoteCanvas extends ImageView {
         
         decoder = new Decoder (this);
         
+        for (int i = 0; i < dirtyRects.length; i++)
+            dirtyRects[i] = new Rect();
+        
         final Display display = ((Activity)context).getWindow().getWindowManager().getDefaultDisplay();
         displayWidth  = display.getWidth();
         displayHeight = display.getHeight();
@@ -307,6 +326,8 @@ public class RemoteCanvas extends ImageView {
         rfb.readServerInit();
         initializeBitmap (displayWidth, displayHeight);
         decoder.setPixelFormat(rfb);
+        if (recordSession)
+            startSessionRecording();
         
         handler.post(new Runnable() {
             public void run() {
@@ -330,6 +351,28 @@ public class RemoteCanvas extends ImageView {
     }
     
     
+    /**
+     * Starts recording what the server sends to a file in the app's external files directory.
+     */
+    private void startSessionRecording() {
+        File dir = getContext().getExternalFilesDir(null);
+        if (dir == null) {
+            Log.e(TAG, "External storage not available, not recording session");
+            return;
+        }
+        String name = connection.getAddress().replaceAll("[^A-Za-z0-9.-]", "_") + "-" +
+                      new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) +
+                      SessionRecorder.FILE_EXTENSION;
+        File file = new File(dir, name);
+        try {
+            rfb.startRecording(new FileOutputStream(file));
+            Log.i(TAG, "Recording session to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not record session to " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+    
+    
     /**
      * Sends over the unix username and password if this is VNC over SSH connectio and automatic sending of 
      * UNIX credentials is enabled for AutoX (for x11vnc's "-unixpw" option).
@@ -502,8 +545,7 @@ public class RemoteCanvas extends ImageView {
             useFull = (connection.getForceFull() == BitmapImplHint.FULL);
         
         if (!useFull) {
-            bitmapData=new LargeBitmapData(rfbconn, this, dx, dy, capacity);
-            android.util.Log.i(TAG, "Using LargeBitmapData.");
+            bitmapData=createPartialBitmapData(dx, dy);
         } else {
             try {
                 // TODO: Remove this if Android 4.2 receives a fix for a bug which causes it to stop drawing
@@ -519,8 +561,7 @@ public class RemoteCanvas extends ImageView {
                 disposeDrawable ();
                 
                 useFull = false;
-                bitmapData=new LargeBitmapData(rfbconn, this, dx, dy, capacity);
-                android.util.Log.i(TAG, "Using LargeBitmapData.");
+                bitmapData=createPartialBitmapData(dx, dy);
             }
         }
         
@@ -528,6 +569,26 @@ public class RemoteCanvas extends ImageView {
     }
     
     
+    /**
+     * Creates a drawable which does not hold the whole remote desktop in one buffer. Uses
+     * TiledBitmapData, and LargeBitmapData if there is not enough memory even for that.
+     * @param dx
+     * @param dy
+     */
+    private AbstractBitmapData createPartialBitmapData (int dx, int dy) {
+        try {
+            AbstractBitmapData data = new TiledBitmapData(rfbconn, this, dx, dy, capacity, true);
+            android.util.Log.i(TAG, "Using TiledBitmapData.");
+            return data;
+        } catch (Throwable e) {
+            // Try to free up some memory.
+            System.gc();
+            android.util.Log.i(TAG, "Using LargeBitmapData.");
+            return new LargeBitmapData(rfbconn, this, dx, dy, capacity);
+        }
+    }
+    
+    
     /**
      * Disposes of the old drawable which holds the remote desktop data.
      */
@@ -564,12 +625,12 @@ public class RemoteCanvas extends ImageView {
                 } else
                     useLBBM = true;
                 
-                // Failing FullBufferBitmapData or if we weren't using CompactBitmapData, try LBBM.
+                // Failing FullBufferBitmapData or if we weren't using CompactBitmapData, try tiles or LBBM.
                 if (useLBBM) {
                     disposeDrawable ();
                     
                     useFull = false;
-                    bitmapData = new LargeBitmapData(rfbconn, this, getWidth(), getHeight(), capacity);
+                    bitmapData = createPartialBitmapData(getWidth(), getHeight());
                 }
                 decoder.setBitmapData(bitmapData);
             }
@@ -613,7 +674,7 @@ public class RemoteCanvas extends ImageView {
     
     /**
      * Indicates that RemoteCanvas's scroll position should be synchronized with the
-     * drawable's scroll position (used only in LargeBitmapData)
+     * drawable's scroll position (used only in LargeBitmapData and TiledBitmapData)
      */
     public void syncScroll () {
         bitmapData.syncScroll();
@@ -896,15 +957,13 @@ public class RemoteCanvas extends ImageView {
     
     
     /**
-     * Causes a redraw of the bitmapData to happen at the indicated coordinates.
+     * Causes a redraw of the bitmapData to happen at the indicated coordinates. The area
+     * is invalidated together with the other changes of the current update, at the latest
+     * MIN_DAMAGE_FLUSH_INTERVAL milliseconds after the previous invalidation.
      */
     public void reDraw(int x, int y, int w, int h) {
-        float scale = getScale();
-        float shiftedX = x-shiftX;
-        float shiftedY = y-shiftY;
-        // Make the box slightly larger to avoid artifacts due to truncation errors.
-        postInvalidate ((int)((shiftedX-1)*scale),   (int)((shiftedY-1)*scale),
-                        (int)((shiftedX+w+1)*scale), (int)((shiftedY+h+1)*scale));
+        dirtyRegion.add(x, y, w, h);
+        scheduleDamageFlush();
     }
     
     
@@ -913,12 +972,65 @@ public class RemoteCanvas extends ImageView {
      * Causes a redraw of the bitmapData to happen at the indicated coordinates.
      */
     public void reDraw(float x, float y, float w, float h) {
+        int left = (int)Math.floor(x);
+        int top  = (int)Math.floor(y);
+        reDraw(left, top, (int)Math.ceil(x + w) - left, (int)Math.ceil(y + h) - top);
+    }
+    
+    
+    /**
+     * Invalidates everything that has changed, unless the last invalidation was less than
+     * MIN_DAMAGE_FLUSH_INTERVAL milliseconds ago, in which case the scheduled one will do.
+     * Called at the end of every framebuffer update.
+     */
+    public void flushDamage() {
+        synchronized (dirtyRects) {
+            if (SystemClock.uptimeMillis() - lastDamageFlush < MIN_DAMAGE_FLUSH_INTERVAL)
+                scheduleDamageFlush();
+            else
+                invalidateDirtyRegion();
+        }
+    }
+    
+    
+    private void scheduleDamageFlush() {
+        synchronized (dirtyRects) {
+            if (damageFlushScheduled)
+                return;
+            damageFlushScheduled = true;
+            long delay = lastDamageFlush + MIN_DAMAGE_FLUSH_INTERVAL - SystemClock.uptimeMillis();
+            handler.postDelayed(scheduledDamageFlush, Math.max(0, delay));
+        }
+    }
+    
+    
+    private Runnable scheduledDamageFlush = new Runnable() {
+        public void run() {
+            synchronized (dirtyRects) {
+                damageFlushScheduled = false;
+                invalidateDirtyRegion();
+            }
+        }
+    };
+    
+    
+    /**
+     * Posts an invalidation for each rectangle of the dirty region. Must hold dirtyRects.
+     */
+    private void invalidateDirtyRegion() {
+        if (dirtyRegion.isEmpty())
+            return;
+        lastDamageFlush = SystemClock.uptimeMillis();
+        int n = dirtyRegion.drain(dirtyRects);
         float scale = getScale();
-        float shiftedX = x-shiftX;
-        float shiftedY = y-shiftY;
-        // Make the box slightly larger to avoid artifacts due to truncation errors.
-        postInvalidate ((int)((shiftedX-1.f)*scale),   (int)((shiftedY-1.f)*scale),
-                        (int)((shiftedX+w+1.f)*scale), (int)((shiftedY+h+1.f)*scale));
+        for (int i = 0; i < n; i++) {
+            Rect r = dirtyRects[i];
+            float shiftedX = r.left - shiftX;
+            float shiftedY = r.top  - shiftY;
+            // Make the box slightly larger to avoid artifacts due to truncation errors.
+            postInvalidate ((int)((shiftedX-1)*scale),             (int)((shiftedY-1)*scale),
+                            (int)((shiftedX+r.width()+1)*scale), (int)((shiftedY+r.height()+1)*scale));
+        }
     }
     
     /**
@@ -241,6 +241,7 @@ public class RemoteCanvasActivity extends Activity implements OnKeyListener {
         // Initialize and define actions for on-screen keys.
         initializeOnScreenKeys ();
     
+        canvas.recordSession = getIntent().getBooleanExtra(Constants.RECORD_SESSION, false);
         canvas.initializeCanvas(connection, database, new Runnable() {
             public void run() {
                 try { setModes(); } catch (NullPointerException e) { }
@@ -24,11 +24,16 @@
 package com.iiordanov.bVNC;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLSocket;
 
@@ -121,7 +126,9 @@ class RfbProto implements RfbConnectable {
     SetColourMapEntries = 1,
     Bell                = 2,
     ServerCutText       = 3,
-    TextChat            = 11;
+    TextChat            = 11,
+    EndOfContinuousUpdates = 150,
+    ServerFence         = 248;
 
   // Client-to-server messages
   final static int
@@ -131,7 +138,9 @@ class RfbProto implements RfbConnectable {
     FramebufferUpdateRequest = 3,
     KeyboardEvent            = 4,
     PointerEvent             = 5,
-    ClientCutText            = 6;
+    ClientCutText            = 6,
+    EnableContinuousUpdates  = 150,
+    ClientFence              = 248;
 
   // Supported encodings and pseudo-encodings
   final static int
@@ -150,7 +159,29 @@ class RfbProto implements RfbConnectable {
     EncodingPointerPos     = -232,
     EncodingLastRect       = -224,
     EncodingNewFBSize      = -223,
-    EncodingClientRedirect = -311;
+    EncodingClientRedirect = -311,
+    EncodingFence          = -312,
+    EncodingContinuousUpdates = -313,
+    EncodingExtendedClipboard = 0xC0A1E5CE;
+
+  // Extended Clipboard formats and actions, as carried in the flags of a
+  // ServerCutText or ClientCutText message with a negative length.
+  final static int
+    ClipboardUTF8     = 1 << 0,
+    ClipboardFormats  = 0xffff,
+    ClipboardCaps     = 1 << 24,
+    ClipboardRequest  = 1 << 25,
+    ClipboardPeek     = 1 << 26,
+    ClipboardNotify   = 1 << 27,
+    ClipboardProvide  = 1 << 28;
+
+  // Largest clipboard text accepted from the server. Anything longer is skipped
+  // rather than read into memory.
+  final static int MAX_CLIPBOARD_SIZE = 1024 * 1024;
+
+  // Largest text the server may send us without being asked for it. Longer
+  // text is only announced, and requested from the server separately.
+  final static int MAX_UNSOLICITED_CLIPBOARD_SIZE = 20 * 1024;
   
   final static String
     SigEncodingRaw            = "RAW_____",
@@ -190,6 +221,15 @@ class RfbProto implements RfbConnectable {
     TightFilterPalette  = 0x01,
     TightFilterGradient = 0x02;
 
+  // Fence flags
+  final static int
+    FenceFlagBlockBefore = 1<<0,
+    FenceFlagBlockAfter  = 1<<1,
+    FenceFlagSyncNext    = 1<<2,
+    FenceFlagRequest     = 1<<31,
+    FenceFlagsSupported  = FenceFlagBlockBefore | FenceFlagBlockAfter |
+                           FenceFlagSyncNext    | FenceFlagRequest;
+
   // Constants used for UltraVNC chat extension
   final static int
     CHAT_OPEN = -1,
@@ -283,7 +323,34 @@ class RfbProto implements RfbConnectable {
     
     // Whether to only use a local cursor.
     private boolean useLocalCursor = false;
-    
+
+    // Whether to read from the socket on a separate thread while decoding, so that
+    // network transfer and rectangle decoding overlap.
+    private boolean pipelinedReads = true;
+    private PipelinedInputStream pipeline;
+
+    // Sends pointer and key events off the calling thread.
+    private final InputSender inputSender = new InputSender(this);
+
+    // Copies what the server sends into a session file while recording.
+    private SessionRecorder recorder;
+
+    // Picks encoding settings from measured throughput. Only used when the
+    // user has not asked for a specific encoding other than the default.
+    private EncodingSelector encodingSelector;
+
+    // Continuous updates and fence extension state.
+    private boolean supportsFence = false;
+    private boolean supportsContinuousUpdates = false;
+    private boolean continuousUpdates = false;
+    private boolean pendingPixelFormatFence = false;
+
+    // Extended Clipboard state. The server's flags are 0 until it has sent its
+    // capabilities. The local clipboard text is kept until the server asks for
+    // it, rather than being sent as soon as it changes.
+    private volatile int serverClipboardFlags = 0;
+    private volatile String clientClipboard = null;
+
   //
   // Constructor. Make TCP connection to RFB server.
   //
@@ -310,6 +377,19 @@ class RfbProto implements RfbConnectable {
       setParameters(decoder, canvas, host, port, sock, preferredEncoding, viewOnly, useLocalCursor);
   }
 
+  //
+  // Constructor for replaying a recorded session. No connection is made, the
+  // streams are supplied with setStreams() and the protocol is already past
+  // ServerInit.
+  //
+  RfbProto(Decoder decoder, RemoteCanvas canvas, int width, int height, String desktopName) {
+      this.decoder = decoder;
+      this.canvas = canvas;
+      this.desktopName = desktopName;
+      setFramebufferSize(width, height);
+      inNormalProtocol = true;
+  }
+
   
   void setParameters(Decoder decoder, RemoteCanvas canvas,
                       String host, int port, Socket sock, int preferredEncoding,
@@ -337,8 +417,10 @@ class RfbProto implements RfbConnectable {
   
   public synchronized void closeSocket() {
       inNormalProtocol = false;
+      stopRecording();
     try {
-      sock.close();
+      if (sock != null)
+        sock.close();
       closed = true;
       Log.v(TAG, "RFB socket closed");
     } catch (Exception e) {
@@ -349,6 +431,7 @@ class RfbProto implements RfbConnectable {
   public void close() {
       inNormalProtocol = false;
       maintainConnection = false;
+      inputSender.stop();
       closeSocket();
   }
 
@@ -1153,43 +1236,204 @@ class RfbProto implements RfbConnectable {
   // Read a ServerCutText message
   //
 
+  // Returns the text for the device clipboard, or null if there is none.
+  //
+
   String readServerCutText() throws IOException {
     byte[] pad = new byte[3];
     readFully(pad);
     int len = is.readInt();
+    if (len < 0)
+      return readExtendedClipboard(-(long) len);
+
+    if (len > MAX_CLIPBOARD_SIZE) {
+      Log.w(TAG, "Ignoring " + len + " bytes of server clipboard text");
+      skipFully(len);
+      return null;
+    }
     byte[] text = new byte[len];
     readFully(text);
     return new String(text);
   }
 
+  //
+  // Read the rest of an Extended Clipboard message and act on it.
+  //
+
+  String readExtendedClipboard(long len) throws IOException {
+    if (len < 4 || len > Integer.MAX_VALUE)
+      throw new IOException("Invalid extended clipboard message length: " + len);
+
+    int flags = is.readInt();
+    int remaining = (int) len - 4;
+
+    if ((flags & ClipboardCaps) != 0) {
+      // One maximum size follows for each format the server supports. We
+      // only deal in text, so the sizes are of no interest.
+      skipFully(remaining);
+      serverClipboardFlags = flags;
+      writeClipboardCaps();
+    } else if ((flags & ClipboardProvide) != 0) {
+      return readClipboardProvide(flags, remaining);
+    } else {
+      skipFully(remaining);
+      if ((flags & ClipboardRequest) != 0) {
+        String text = clientClipboard;
+        if ((flags & ClipboardUTF8) != 0 && text != null)
+          writeClipboardProvide(text);
+      } else if ((flags & ClipboardPeek) != 0) {
+        writeClipboardFlags(ClipboardNotify | (clientClipboard != null ? ClipboardUTF8 : 0));
+      } else if ((flags & ClipboardNotify) != 0) {
+        // Android has no way of telling us when the device clipboard is
+        // pasted from, so new server text is fetched as soon as it is announced.
+        if ((flags & ClipboardUTF8) != 0 && (serverClipboardFlags & ClipboardRequest) != 0)
+          writeClipboardFlags(ClipboardRequest | ClipboardUTF8);
+      }
+    }
+    return null;
+  }
+
+  //
+  // Decompress the text out of an Extended Clipboard provide message. The data
+  // of each format in the flags is preceded by its size, in format bit order.
+  //
+
+  String readClipboardProvide(int flags, int len) throws IOException {
+    if ((flags & ClipboardUTF8) == 0 || len > MAX_CLIPBOARD_SIZE) {
+      skipFully(len);
+      return null;
+    }
+    byte[] compressed = new byte[len];
+    readFully(compressed);
+
+    // Closing the stream ends its Inflater, which otherwise holds on to native
+    // memory until it is finalized.
+    DataInputStream zis = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+    int size;
+    byte[] text;
+    try {
+      size = zis.readInt();
+      if (size < 0 || size > MAX_CLIPBOARD_SIZE) {
+        Log.w(TAG, "Ignoring " + (size & 0xffffffffL) + " bytes of server clipboard text");
+        return null;
+      }
+      text = new byte[size];
+      zis.readFully(text);
+    } finally {
+      zis.close();
+    }
+
+    // The text is null terminated and has CRLF line endings.
+    int end = 0;
+    while (end < size && text[end] != 0)
+      end++;
+    return new String(text, 0, end, "UTF-8").replace("\r\n", "\n");
+  }
+
+  void skipFully(int len) throws IOException {
+    while (len > 0) {
+      int n = is.skipBytes(len);
+      if (n <= 0) {
+        is.readByte();
+        n = 1;
+      }
+      len -= n;
+    }
+  }
+
+
+  //
+  // Read a ServerFence message and act on it. Fence requests are echoed back
+  // with the flags we understand, and the response to our own SyncNext fence
+  // marks the point from which updates arrive in a newly requested pixel format.
+  //
+
+  byte[] fenceData = new byte[256];
+  void readFence() throws Exception {
+    byte[] pad = new byte[3];
+    readFully(pad);
+    int flags = is.readInt();
+    int len = is.readUnsignedByte();
+    readFully(fenceData, 0, len);
+    if (len > 64)
+      throw new Exception("Too large fence payload: " + len);
+
+    if (!supportsFence) {
+      supportsFence = true;
+      enableContinuousUpdates();
+    }
+
+    if ((flags & FenceFlagRequest) != 0) {
+      // We handle all messages in order, so the block flags need no special treatment.
+      flags &= (FenceFlagBlockBefore | FenceFlagBlockAfter | FenceFlagSyncNext);
+      writeFence(flags, len, fenceData);
+      return;
+    }
+
+    if ((flags & FenceFlagSyncNext) != 0 && pendingPixelFormatFence) {
+      pendingPixelFormatFence = false;
+      decoder.applyPixelFormat();
+      canvas.writeFullUpdateRequest(false);
+    }
+  }
+
+  //
+  // Handle an EndOfContinuousUpdates message. The first one tells us that the
+  // server supports the extension, at which point we try to switch it on.
+  //
+
+  void endOfContinuousUpdates() {
+    if (supportsContinuousUpdates)
+      return;
+
+    supportsContinuousUpdates = true;
+    enableContinuousUpdates();
+  }
+
+  //
+  // Switch on continuous updates for the whole framebuffer. Only done when the
+  // whole framebuffer is held in memory, since LargeBitmapData and TiledBitmapData
+  // need to request specific regions as they scroll, and when the server supports
+  // fences, without which we cannot tell where a change of pixel format takes effect
+  // in an unbroken stream of updates.
+  //
+
+  void enableContinuousUpdates() {
+    if (!supportsContinuousUpdates || !supportsFence)
+      return;
+    try {
+      if (!canvas.useFull) {
+        if (continuousUpdates) {
+          writeEnableContinuousUpdates(false, 0, 0, 0, 0);
+          continuousUpdates = false;
+          canvas.writeFullUpdateRequest(true);
+        }
+        return;
+      }
+      writeEnableContinuousUpdates(true, 0, 0, framebufferWidth, framebufferHeight);
+      continuousUpdates = true;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not enable continuous updates.");
+      e.printStackTrace();
+    }
+  }
 
   //
   // Read an integer in compact representation (1..3 bytes).
   // Such format is used as a part of the Tight encoding.
-  // Also, this method records data if session recording is active and
-  // the viewer's recordFromBeginning variable is set to true.
   //
 
   int readCompactLen() throws IOException {
-    int[] portion = new int[3];
-    portion[0] = is.readUnsignedByte();
-    //int byteCount = 1;
-    int len = portion[0] & 0x7F;
-    if ((portion[0] & 0x80) != 0) {
-      portion[1] = is.readUnsignedByte();
-      //byteCount++;
-      len |= (portion[1] & 0x7F) << 7;
-      if ((portion[1] & 0x80) != 0) {
-    portion[2] = is.readUnsignedByte();
-    //byteCount++;
-    len |= (portion[2] & 0xFF) << 14;
+    int portion = is.readUnsignedByte();
+    int len = portion & 0x7F;
+    if ((portion & 0x80) != 0) {
+      portion = is.readUnsignedByte();
+      len |= (portion & 0x7F) << 7;
+      if ((portion & 0x80) != 0) {
+        portion = is.readUnsignedByte();
+        len |= (portion & 0xFF) << 14;
       }
     }
-    /*-
-    if (rec != null && recordFromBeginning)
-      for (int i = 0; i < byteCount; i++)
-    rec.writeByte(portion[i]);
-    */
     return len;
   }
 
@@ -1221,6 +1465,53 @@ class RfbProto implements RfbConnectable {
   }
 
 
+  //
+  // Write an EnableContinuousUpdates message
+  //
+
+  synchronized void writeEnableContinuousUpdates(boolean enable, int x, int y, int w, int h)
+       throws IOException
+  {
+    byte[] b = new byte[10];
+
+    b[0] = (byte) EnableContinuousUpdates;
+    b[1] = (byte) (enable ? 1 : 0);
+    b[2] = (byte) ((x >> 8) & 0xff);
+    b[3] = (byte) (x & 0xff);
+    b[4] = (byte) ((y >> 8) & 0xff);
+    b[5] = (byte) (y & 0xff);
+    b[6] = (byte) ((w >> 8) & 0xff);
+    b[7] = (byte) (w & 0xff);
+    b[8] = (byte) ((h >> 8) & 0xff);
+    b[9] = (byte) (h & 0xff);
+
+    os.write(b);
+  }
+
+
+  //
+  // Write a ClientFence message
+  //
+
+  synchronized void writeFence(int flags, int len, byte[] data) throws IOException {
+    if (len > 64)
+      throw new IOException("Too large fence payload");
+
+    byte[] b = new byte[9 + len];
+
+    b[0] = (byte) ClientFence;
+    b[4] = (byte) ((flags >> 24) & 0xff);
+    b[5] = (byte) ((flags >> 16) & 0xff);
+    b[6] = (byte) ((flags >> 8) & 0xff);
+    b[7] = (byte) (flags & 0xff);
+    b[8] = (byte) len;
+    if (len > 0)
+      System.arraycopy(data, 0, b, 9, len);
+
+    os.write(b);
+  }
+
+
   //
   // Write a SetPixelFormat message
   //
@@ -1329,17 +1620,116 @@ class RfbProto implements RfbConnectable {
     os.write(b);
   }
 
+  //
+  // Write an Extended Clipboard message: a ClientCutText message with the
+  // negated payload length, followed by the flags and the payload.
+  //
+
+  synchronized void writeExtendedClipboard(int flags, byte[] payload, int len) throws IOException {
+    byte[] b = new byte[12 + len];
+
+    b[0] = (byte) ClientCutText;
+    int total = -(4 + len);
+    b[4] = (byte) ((total >> 24) & 0xff);
+    b[5] = (byte) ((total >> 16) & 0xff);
+    b[6] = (byte) ((total >> 8) & 0xff);
+    b[7] = (byte) (total & 0xff);
+    b[8] = (byte) ((flags >> 24) & 0xff);
+    b[9] = (byte) ((flags >> 16) & 0xff);
+    b[10] = (byte) ((flags >> 8) & 0xff);
+    b[11] = (byte) (flags & 0xff);
+
+    if (len > 0)
+      System.arraycopy(payload, 0, b, 12, len);
+
+    os.write(b);
+  }
+
+  void writeClipboardFlags(int flags) throws IOException {
+    writeExtendedClipboard(flags, null, 0);
+  }
+
+  //
+  // Answer the server's capabilities with ours: text only, every action, and
+  // the largest text we want sent without asking for it.
+  //
+
+  void writeClipboardCaps() throws IOException {
+    int size = MAX_UNSOLICITED_CLIPBOARD_SIZE;
+    byte[] sizes = { (byte) (size >> 24), (byte) (size >> 16), (byte) (size >> 8), (byte) size };
+    writeExtendedClipboard(ClipboardCaps | ClipboardRequest | ClipboardPeek | ClipboardNotify |
+                           ClipboardProvide | ClipboardUTF8, sizes, sizes.length);
+  }
+
+  //
+  // Send text to the server as a zlib compressed, null terminated UTF-8 string
+  // with CRLF line endings.
+  //
+
+  void writeClipboardProvide(String text) throws IOException {
+    byte[] utf8 = text.replace("\r\n", "\n").replace("\n", "\r\n").getBytes("UTF-8");
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(utf8.length / 4 + 64);
+    DataOutputStream zos = new DataOutputStream(new DeflaterOutputStream(compressed));
+    zos.writeInt(utf8.length + 1);
+    zos.write(utf8);
+    zos.write(0);
+    zos.close();
+    writeExtendedClipboard(ClipboardProvide | ClipboardUTF8, compressed.toByteArray(), compressed.size());
+  }
+
+  //
+  // Make new local clipboard text available to the server. With the Extended
+  // Clipboard extension the text is only announced, and sent once the server
+  // asks for it, unless the server cannot ask.
+  //
+
+  void announceClientCutText(String text) throws IOException {
+    if (viewOnly)
+        return;
+
+    if ((serverClipboardFlags & ClipboardCaps) == 0) {
+      writeClientCutText(text, text.length());
+    } else if ((serverClipboardFlags & ClipboardNotify) != 0) {
+      clientClipboard = text;
+      writeClipboardFlags(ClipboardNotify | ClipboardUTF8);
+    } else if ((serverClipboardFlags & ClipboardProvide) != 0) {
+      writeClipboardProvide(text);
+    } else {
+      writeClientCutText(text, text.length());
+    }
+  }
+
 
   //
   // A buffer for putting pointer and keyboard events before being sent.  This
   // is to ensure that multiple RFB events generated from a single Java Event 
   // will all be sent in a single network packet.  The maximum possible
   // length is 4 modifier down events, a single key event followed by 4
-  // modifier up events i.e. 9 key events or 72 bytes.
+  // modifier up events i.e. 9 key events or 72 bytes. Events are built under
+  // eventLock and handed to inputSender, so the caller never waits for the
+  // network.
   //
 
   byte[] eventBuf = new byte[72];
   int eventBufLen;
+  private final Object eventLock = new Object();
+
+  /**
+   * Sets the maximum number of pointer motions sent to the server per second.
+   * Motions in between are merged into the latest position.
+   * @param perSecond The rate, or 0 for no limit.
+   */
+  public void setPointerMotionRate(int perSecond) {
+      inputSender.setMotionRate(perSecond);
+  }
+
+  /**
+   * Writes a batch of input events queued by inputSender.
+   */
+  synchronized void writeInputEvents(byte[] buf, int len) throws IOException {
+      if (os != null)
+          os.write(buf, 0, len);
+  }
 
 
   /**
@@ -1351,10 +1741,11 @@ class RfbProto implements RfbConnectable {
    * @param pointerMask
    * @throws IOException
    */
-  public synchronized void writePointerEvent( int x, int y, int modifiers, int pointerMask) {
+  public void writePointerEvent( int x, int y, int modifiers, int pointerMask) {
         if (viewOnly)
             return;
         
+      synchronized (eventLock) {
         eventBufLen = 0;
         writeModifierKeyEvents(modifiers);
 
@@ -1373,23 +1764,19 @@ class RfbProto implements RfbConnectable {
           writeModifierKeyEvents(0);
         }
 
-        try {
-            os.write(eventBuf, 0, eventBufLen);
-        } catch (IOException e) {
-            Log.e (TAG, "Failed to write pointer event to VNC server.");
-            e.printStackTrace();
-        }      
+        inputSender.queue(eventBuf, eventBufLen, pointerMask & 0xff);
+      }
   }
 
   void writeCtrlAltDel() throws IOException {
       final int DELETE = 0xffff;
       final int CTRLALT = RemoteKeyboard.CTRL_MASK | RemoteKeyboard.ALT_MASK;
-      try {
+      synchronized (eventLock) {
           // Press
           eventBufLen = 0;
           writeModifierKeyEvents(CTRLALT);
           writeKeyEvent(DELETE, true);
-          os.write(eventBuf, 0, eventBufLen);
+          inputSender.queue(eventBuf, eventBufLen, -1);
           
           // Release
           eventBufLen = 0;
@@ -1398,9 +1785,7 @@ class RfbProto implements RfbConnectable {
           
           // Reset VNC server modifiers state
           writeModifierKeyEvents(0);
-          os.write(eventBuf, 0, eventBufLen);
-      } catch (IOException e) {
-          e.printStackTrace();
+          inputSender.queue(eventBuf, eventBufLen, -1);
       }
   }
     
@@ -1409,26 +1794,24 @@ class RfbProto implements RfbConnectable {
   // around it to set the correct modifier state.  Also we need to translate
   // from the Java key values to the X keysym values used by the RFB protocol.
   //
-  public synchronized void writeKeyEvent(int keySym, int metaState, boolean down) {
+  public void writeKeyEvent(int keySym, int metaState, boolean down) {
     if (viewOnly)
         return;
     
-    eventBufLen = 0;
-    if (down)
-        writeModifierKeyEvents(metaState);
-    if (keySym > 0)
-        writeKeyEvent(keySym, down);
-
-    // Always release all modifiers after an "up" event
-    if (!down) {
-        writeModifierKeyEvents(0);
-    }
+    synchronized (eventLock) {
+        eventBufLen = 0;
+        if (down)
+            writeModifierKeyEvents(metaState);
+        if (keySym > 0)
+            writeKeyEvent(keySym, down);
 
-    try {
-        os.write(eventBuf, 0, eventBufLen);
-    } catch (IOException e) {
-        Log.e(TAG, "Failed to write key event to VNC server.");
-        e.printStackTrace();
+        // Always release all modifiers after an "up" event
+        if (!down) {
+            writeModifierKeyEvents(0);
+        }
+
+        if (eventBufLen > 0)
+            inputSender.queue(eventBuf, eventBufLen, -1);
     }
   }
   
@@ -1502,11 +1885,6 @@ class RfbProto implements RfbConnectable {
 
     oldModifiers = newModifiers;
   }
-  //
-  // Compress and write the data into the recorded session file. This
-  // method assumes the recording is on (rec != null).
-  //
-
 
   public void startTiming() {
     timing = true;
@@ -1538,7 +1916,7 @@ class RfbProto implements RfbConnectable {
   }
 
   public void readFully(byte b[], int off, int len) throws IOException {
-      // TODO: Try reenabling timing and set color according to bandwidth
+    // Throughput is now measured by PipelinedInputStream and acted upon by EncodingSelector.
     /*
     long before = 0;
     timing = false; // for test
@@ -1606,10 +1984,38 @@ class RfbProto implements RfbConnectable {
   public void setStreams(InputStream is_, OutputStream os_) {
     // After much testing, 8192 does seem like the best compromize between
     // responsiveness and throughput.
-    is = new DataInputStream(new BufferedInputStream(is_, 8192));
+    recorder = new SessionRecorder(is_);
+    is = new DataInputStream(new BufferedInputStream(recorder, 8192));
     os = os_;
   }
 
+  //
+  // Start copying everything the server sends from now on into a session file.
+  // Must be called after the pixel format has been set and before the first
+  // update request, see SessionRecorder.
+  //
+
+  void startRecording(OutputStream out) throws IOException {
+    recorder.start(out, framebufferWidth, framebufferHeight, decoder.getColorModel(), desktopName);
+  }
+
+  void stopRecording() {
+    if (recorder != null)
+      recorder.stop();
+  }
+
+  //
+  // Insert a reader stage between the socket and the decoder. This must only be
+  // done once all security negotiation is over, since TLS setup replaces the
+  // streams and the reader stage would otherwise consume handshake bytes.
+  // Whatever is already buffered in the current stream is drained first.
+  //
+
+  void startPipelinedReads() {
+    pipeline = new PipelinedInputStream(is);
+    is = new DataInputStream(new BufferedInputStream(pipeline, 8192));
+  }
+
     synchronized void writeOpenChat() throws Exception {
         os.write(TextChat); // byte type
         os.write(0); // byte pad 1
@@ -1702,7 +2108,7 @@ class RfbProto implements RfbConnectable {
     @Override
     public void writeClientCutText(String text) {
         try {
-            writeClientCutText(text, text.length());
+            announceClientCutText(text);
         } catch (IOException e) {
             Log.e(TAG, "Could not write text to VNC server clipboard.");
             e.printStackTrace();
@@ -1739,6 +2145,17 @@ class RfbProto implements RfbConnectable {
         return "";
     }
 
+    /**
+     * Takes over the encoding settings chosen by the encoding selector, if any.
+     */
+    private void applySelectedEncoding() {
+        if (encodingSelector == null)
+            return;
+        preferredEncoding = encodingSelector.encoding();
+        jpegQuality       = encodingSelector.jpegQuality();
+        compressLevel     = encodingSelector.compressLevel();
+    }
+
     private void setEncodings() {
         if (!inNormalProtocol)
             return;
@@ -1767,6 +2184,9 @@ class RfbProto implements RfbConnectable {
         encodings[nEncodings++] = RfbProto.EncodingPointerPos;
         encodings[nEncodings++] = RfbProto.EncodingLastRect;
         encodings[nEncodings++] = RfbProto.EncodingNewFBSize;
+        encodings[nEncodings++] = RfbProto.EncodingFence;
+        encodings[nEncodings++] = RfbProto.EncodingContinuousUpdates;
+        encodings[nEncodings++] = RfbProto.EncodingExtendedClipboard;
         // TODO: Disabling ClientRedirect encoding for now because of
         // it being reserved for CursorWithAlpha by RealVNC and for
         // ClientRedirect by IANA. This can be reenabled once the
@@ -1801,7 +2221,16 @@ class RfbProto implements RfbConnectable {
         boolean exitforloop = false;
         int msgType = 0;
 
+        long updateStartNanos = 0, updateStartBytes = 0, updateStartWaited = 0;
+
         try {
+            if (pipelinedReads) {
+                startPipelinedReads();
+                // Throughput is measured by the reader stage, so we can only adapt with it in place.
+                if (preferredEncoding == EncodingTight && encodingSelector == null)
+                    encodingSelector = new EncodingSelector();
+            }
+            applySelectedEncoding();
             setEncodings();
             canvas.writeFullUpdateRequest(false);
 
@@ -1821,11 +2250,20 @@ class RfbProto implements RfbConnectable {
                 // Process the message depending on its type.
                 switch (msgType) {
                 case RfbProto.FramebufferUpdate:
+                    if (encodingSelector != null) {
+                        updateStartNanos  = System.nanoTime();
+                        updateStartBytes  = pipeline.bytesConsumed();
+                        updateStartWaited = pipeline.nanosWaited();
+                    }
                     readFramebufferUpdate();
 
                     for (int i = 0; i < updateNRects; i++) {
                         readFramebufferUpdateRectHdr();
 
+                        // Tight rectangles may still be decoding; draw them before anything else.
+                        if (updateRectEncoding != RfbProto.EncodingTight)
+                            decoder.flushTightRects();
+
                         switch (updateRectEncoding) {
                         case RfbProto.EncodingTight:
                             decoder.handleTightRect(this, updateRectX, updateRectY, updateRectW, updateRectH);
@@ -1847,6 +2285,8 @@ class RfbProto implements RfbConnectable {
                         case RfbProto.EncodingNewFBSize:
                             setFramebufferSize(updateRectW, updateRectH);
                             canvas.updateFBSize();
+                            if (continuousUpdates)
+                                enableContinuousUpdates();
                             exitforloop = true;
                             break;
                         case RfbProto.EncodingRaw:
@@ -1880,12 +2320,36 @@ class RfbProto implements RfbConnectable {
                             break;
                         }
                     }
+                    decoder.flushTightRects();
+                    canvas.flushDamage();
+
+                    if (encodingSelector != null &&
+                        encodingSelector.updateDone(pipeline.bytesConsumed() - updateStartBytes,
+                                                    System.nanoTime()        - updateStartNanos,
+                                                    pipeline.nanosWaited()   - updateStartWaited)) {
+                        applySelectedEncoding();
+                        setEncodings();
+                    }
 
                     if (decoder.isChangedColorModel()) {
-                        decoder.setPixelFormat(this);
-                        //setEncodings();
-                        canvas.writeFullUpdateRequest(false);
-                    } else {
+                        // A recording only holds one pixel format.
+                        stopRecording();
+                        if (supportsFence) {
+                            // Updates already in flight use the old pixel format, so we switch
+                            // only once the server answers a fence sent ahead of SetPixelFormat.
+                            // This also covers continuous updates we have just switched off,
+                            // which the server may still be sending.
+                            if (!pendingPixelFormatFence) {
+                                pendingPixelFormatFence = true;
+                                writeFence(FenceFlagRequest | FenceFlagSyncNext, 0, null);
+                                decoder.writePixelFormat(this);
+                            }
+                        } else {
+                            decoder.setPixelFormat(this);
+                            //setEncodings();
+                            canvas.writeFullUpdateRequest(false);
+                        }
+                    } else if (!continuousUpdates) {
                         //setEncodings();
                         canvas.writeFullUpdateRequest(true);
                     }
@@ -1899,8 +2363,11 @@ class RfbProto implements RfbConnectable {
                     break;
 
                 case RfbProto.ServerCutText:
-                    canvas.serverJustCutText = true;
-                    canvas.setClipboardText(readServerCutText());
+                    String text = readServerCutText();
+                    if (text != null) {
+                        canvas.serverJustCutText = true;
+                        canvas.setClipboardText(text);
+                    }
                     break;
 
                 case RfbProto.TextChat:
@@ -1911,6 +2378,14 @@ class RfbProto implements RfbConnectable {
                     }
                     break;
 
+                case RfbProto.EndOfContinuousUpdates:
+                    endOfContinuousUpdates();
+                    break;
+
+                case RfbProto.ServerFence:
+                    readFence();
+                    break;
+
                 default:
                     throw new Exception("Unknown RFB message type " + msgType);
                 }
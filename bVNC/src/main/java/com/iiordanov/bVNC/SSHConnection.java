@@ -38,6 +38,7 @@ import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.KnownHosts;
 import com.trilead.ssh2.Session;
+import com.trilead.ssh2.packets.TypesReader;
 
 /**
  * @author Iordan K Iordanov
@@ -241,6 +242,12 @@ public class SSHConnection implements InteractiveCallback {
             connection.setTCPNoDelay(true);
             connection.setCompression(false);
 
+            // Ask for the type of host key saved for this server first, so that a
+            // server which also has a newer type of key is not seen as having changed it.
+            String[] hostKeyAlgorithms = getPreferredHostKeyAlgorithms();
+            if (hostKeyAlgorithms != null)
+                connection.setServerHostKeyAlgorithms(hostKeyAlgorithms);
+
             // TODO: Try using the provided KeyVerifier instead of verifying keys myself.
             connectionInfo = connection.connect(null, 6000, 24000);
 
@@ -256,6 +263,36 @@ public class SSHConnection implements InteractiveCallback {
         }
     }
 
+    /**
+     * Returns the supported host key algorithms with the type of the saved host key first,
+     * or null if there is no saved host key or its type is not known.
+     */
+    private String[] getPreferredHostKeyAlgorithms() {
+        if (savedServerHostKey == null || savedServerHostKey.equals(""))
+            return null;
+
+        String savedType;
+        try {
+            byte[] blob = Base64.decode(savedServerHostKey, Base64.DEFAULT);
+            savedType = new TypesReader(blob).readString();
+        } catch (Exception e) {
+            return null;
+        }
+
+        String[] available = Connection.getAvailableServerHostKeyAlgorithms();
+        if (!Arrays.asList(available).contains(savedType))
+            return null;
+
+        String[] algorithms = new String[available.length];
+        algorithms[0] = savedType;
+        int i = 1;
+        for (String algorithm : available) {
+            if (!algorithm.equals(savedType))
+                algorithms[i++] = algorithm;
+        }
+        return algorithms;
+    }
+
     /**
      * Return a string holding a Hex representation of the signature of the remote host's key.
      */
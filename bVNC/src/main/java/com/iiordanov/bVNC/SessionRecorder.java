@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/*
+ * Sits between the socket and RfbProto and, while a recording is in progress,
+ * copies every chunk read from the server into a session file together with
+ * the time elapsed since the previous chunk. The file can be fed back through
+ * RfbProto.setStreams() to replay the session offline.
+ *
+ * Recording has to start before the first FramebufferUpdate, since the zlib
+ * streams of the Zlib, ZRLE and Tight encodings cannot be decoded from the middle.
+ * A recording holds one pixel format and ends if the pixel format changes.
+ *
+ * The file is gzip compressed and, after decompression, laid out big-endian as:
+ *
+ *   int    MAGIC
+ *   int    VERSION
+ *   short  framebuffer width
+ *   short  framebuffer height
+ *   UTF    color model, as named in COLORMODEL
+ *   UTF    desktop name
+ *
+ * followed by chunks of:
+ *
+ *   int    microseconds since the previous chunk, or since the header
+ *   int    length
+ *   byte[] data
+ */
+
+class SessionRecorder extends FilterInputStream {
+    private final static String TAG = "SessionRecorder";
+
+    static final int MAGIC   = 0x52464252; // "RFBR"
+    static final int VERSION = 1;
+    static final String FILE_EXTENSION = ".rfbr";
+
+    private volatile DataOutputStream out = null;
+    private long lastChunkNanos;
+    private byte[] skipBuffer;
+
+    SessionRecorder (InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Starts copying data read from the server into the given stream, which is closed
+     * when the recording stops.
+     */
+    synchronized void start(OutputStream os, int width, int height,
+                            COLORMODEL colorModel, String desktopName) throws IOException {
+        stop();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os), 65536));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeShort(width);
+        dos.writeShort(height);
+        dos.writeUTF(colorModel.name());
+        dos.writeUTF(desktopName != null ? desktopName : "");
+        out = dos;
+        lastChunkNanos = System.nanoTime();
+        Log.i(TAG, "Recording started");
+    }
+
+    synchronized void stop() {
+        if (out == null)
+            return;
+        try {
+            out.close();
+            Log.i(TAG, "Recording stopped");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not finish recording: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    synchronized boolean isRecording() {
+        return out != null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0 && out != null) {
+            byte[] one = { (byte)b };
+            record(one, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0 && out != null)
+            record(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (out == null)
+            return in.skip(n);
+
+        // Skipped data has to end up in the recording too.
+        if (skipBuffer == null)
+            skipBuffer = new byte[8192];
+        int read = read(skipBuffer, 0, (int)Math.min(n, skipBuffer.length));
+        return Math.max(read, 0);
+    }
+
+    /*
+     * Appends a chunk to the recording. A failure to write ends the recording
+     * but leaves the connection alone.
+     */
+    private synchronized void record(byte[] b, int off, int len) {
+        if (out == null)
+            return;
+        long now = System.nanoTime();
+        try {
+            out.writeInt((int)Math.min((now - lastChunkNanos) / 1000, Integer.MAX_VALUE));
+            out.writeInt(len);
+            out.write(b, off, len);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to recording: " + e.getMessage());
+            stop();
+        }
+        lastChunkNanos = now;
+    }
+}
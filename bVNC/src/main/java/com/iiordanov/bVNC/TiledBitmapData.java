@@ -0,0 +1,620 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+/*
+ * Holds the remote desktop as TILE_SIZE x TILE_SIZE tiles which are allocated the
+ * first time something is drawn in them, so that desktops too large for
+ * FullBufferBitmapData can be kept without a full-size buffer.
+ *
+ * The decoders write into bitmapPixels, which as in LargeBitmapData only covers a
+ * window around the visible part of the desktop, and updateBitmap() copies what they
+ * wrote into the tiles. The drawable paints straight from the tiles, so unlike
+ * LargeBitmapData, scrolling to a part of the desktop which has been seen before
+ * needs no round trip to the server: moving the window only asks the server for an
+ * incremental update of it, which brings in whatever changed while it was away.
+ * Only tiles which have never been received, or which were dropped or missed an
+ * update, are requested in full.
+ *
+ * At most maxHotTiles tiles are kept uncompressed. The least recently used ones
+ * beyond that are deflated into a cold tier of at most maxColdBytes, or dropped
+ * if compressColdTiles is false, and inflated again when they are next needed.
+ */
+
+class TiledBitmapData extends AbstractBitmapData {
+    private final static String TAG = "TiledBitmapData";
+
+    static final int TILE_SIZE = 128;
+
+    /**
+     * Fraction of the process heap, as 1/n, given to uncompressed and compressed tiles.
+     */
+    static final int HOT_TILES_DIVISOR = 4;
+    static final int COLD_TILES_DIVISOR = 8;
+
+    int scrolledToX;
+    int scrolledToY;
+    private int displayWidth;
+    private int displayHeight;
+    private int capacity;
+    private boolean compressColdTiles;
+
+    private int tilesX;
+    private int tilesY;
+    private int maxHotTiles;
+    private long maxColdBytes;
+    private long coldBytes;
+    private LinkedHashMap<Integer, int[]> hotTiles;
+    private LinkedHashMap<Integer, byte[]> coldTiles;
+    // Tiles which missed an update while outside the window.
+    private boolean[] stale;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] packBuffer;
+    private byte[] deflateBuffer;
+    private int[] rowBuffer;
+
+    class TiledBitmapDrawable extends AbstractBitmapDrawable {
+        TiledBitmapDrawable() {
+            super(TiledBitmapData.this);
+        }
+
+        /* (non-Javadoc)
+         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         */
+        @Override
+        public void draw(Canvas canvas) {
+            toDraw = canvas.getClipBounds();
+
+            // To avoid artifacts, we need to enlarge the box by one pixel in all directions.
+            int left   = Math.max(toDraw.left - 1, 0);
+            int top    = Math.max(toDraw.top - 1, 0);
+            int right  = Math.min(toDraw.right + 1, framebufferwidth);
+            int bottom = Math.min(toDraw.bottom + 1, framebufferheight);
+
+            try {
+                for (int ty = top / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+                    int y0 = Math.max(top, ty * TILE_SIZE);
+                    int y1 = Math.min(bottom, (ty + 1) * TILE_SIZE);
+                    for (int tx = left / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                        int x0 = Math.max(left, tx * TILE_SIZE);
+                        int x1 = Math.min(right, (tx + 1) * TILE_SIZE);
+                        int[] tile;
+                        synchronized (TiledBitmapData.this) {
+                            tile = getTile(tx + ty * tilesX, false);
+                        }
+                        if (tile == null)
+                            canvas.drawRect(x0, y0, x1, y1, _blackPaint);
+                        else
+                            canvas.drawBitmap(tile, (y0 - ty * TILE_SIZE) * TILE_SIZE + x0 - tx * TILE_SIZE, TILE_SIZE,
+                                              x0, y0, x1 - x0, y1 - y0, false, _defaultPaint);
+                    }
+                }
+                canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
+            } catch (Throwable e) { }
+        }
+    }
+
+    /**
+     *
+     * @param p Protocol implementation
+     * @param c View that will display screen
+     * @param displayWidth
+     * @param displayHeight
+     * @param capacity Max process heap size in megabytes
+     * @param compressColdTiles Whether to keep the least recently used tiles compressed
+     * rather than drop them and request them again when they are next needed
+     */
+    TiledBitmapData(RfbConnectable p, RemoteCanvas c, int displayWidth, int displayHeight,
+                    int capacity, boolean compressColdTiles) {
+        super(p, c);
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+        this.capacity = capacity;
+        this.compressColdTiles = compressColdTiles;
+        allocateObjects();
+    }
+
+    @Override
+    AbstractBitmapDrawable createDrawable() {
+        return new TiledBitmapDrawable();
+    }
+
+    /**
+     *
+     * @return The smallest scale supported by the implementation; the scale at which
+     * the visible part of the desktop still fits in the window
+     */
+    float getMinimumScale() {
+        // Keep a tile of slack, since the window is aligned to the tiles.
+        int w = bitmapwidth  >= framebufferwidth  ? framebufferwidth  : bitmapwidth  - TILE_SIZE;
+        int h = bitmapheight >= framebufferheight ? framebufferheight : bitmapheight - TILE_SIZE;
+        return Math.max((float)vncCanvas.getWidth()/w, (float)vncCanvas.getHeight()/h);
+    }
+
+    /**
+     * The width of the window which lies within the framebuffer.
+     */
+    @Override
+    public int bmWidth () {
+        return Math.min(bitmapwidth, framebufferwidth - xoffset);
+    }
+
+    /**
+     * The height of the window which lies within the framebuffer.
+     */
+    @Override
+    public int bmHeight () {
+        return Math.min(bitmapheight, framebufferheight - yoffset);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#copyRect(int, int, int, int, int, int)
+     */
+    @Override
+    public synchronized void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        if (rowBuffer == null || rowBuffer.length < w)
+            rowBuffer = new int[w];
+
+        int startSrcY, endSrcY, dstY, deltaY;
+        if (sy > dy) {
+            startSrcY = sy;
+            endSrcY = sy + h;
+            dstY = dy;
+            deltaY = +1;
+        } else {
+            startSrcY = sy + h - 1;
+            endSrcY = sy - 1;
+            dstY = dy + h - 1;
+            deltaY = -1;
+        }
+        boolean complete = true;
+        for (int y = startSrcY; y != endSrcY; y += deltaY) {
+            complete &= copyFromTiles(sx, y, w, 1, rowBuffer, 0, w);
+            copyToTiles(rowBuffer, 0, w, dx, dstY, w, 1);
+            dstY += deltaY;
+        }
+        // Part of the source was never received or is out of date, so the result is too.
+        if (!complete)
+            markStale(dx, dy, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#drawRect(int, int, int, int, android.graphics.Paint)
+     */
+    @Override
+    synchronized void drawRect(int x, int y, int w, int h, Paint paint) {
+        int color = paint.getColor();
+        int left   = Math.max(x, 0);
+        int top    = Math.max(y, 0);
+        int right  = Math.min(x + w, framebufferwidth);
+        int bottom = Math.min(y + h, framebufferheight);
+
+        for (int ty = top / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+            int y0 = Math.max(top, ty * TILE_SIZE);
+            int y1 = Math.min(bottom, (ty + 1) * TILE_SIZE);
+            for (int tx = left / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                int x0 = Math.max(left, tx * TILE_SIZE);
+                int x1 = Math.min(right, (tx + 1) * TILE_SIZE);
+                int[] tile = getTile(tx + ty * tilesX, true);
+                int d = (y0 - ty * TILE_SIZE) * TILE_SIZE + x0 - tx * TILE_SIZE;
+                for (int j = y0; j < y1; j++, d += TILE_SIZE)
+                    Arrays.fill(tile, d, d + x1 - x0, color);
+            }
+        }
+    }
+
+    @Override
+    public void imageRect(int x, int y, int w, int h, int[] pix) {
+        synchronized (this) {
+            copyToTiles(pix, 0, w, x, y, w, h);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#offset(int, int)
+     */
+    @Override
+    public int offset(int x, int y) {
+        return (y - yoffset) * bitmapwidth + x - xoffset;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#scrollChanged(int, int)
+     */
+    @Override
+    synchronized void scrollChanged(int newx, int newy) {
+        int newScrolledToX = scrolledToX;
+        int newScrolledToY = scrolledToY;
+        int visibleWidth = vncCanvas.getVisibleWidth();
+        int visibleHeight = vncCanvas.getVisibleHeight();
+        if (newx - xoffset < 0 || newx - xoffset + visibleWidth > bitmapwidth)
+            newScrolledToX = alignedWindowPosition(newx + visibleWidth / 2 - bitmapwidth / 2,
+                                                   bitmapwidth, framebufferwidth);
+        if (newy - yoffset < 0 || newy - yoffset + visibleHeight > bitmapheight)
+            newScrolledToY = alignedWindowPosition(newy + visibleHeight / 2 - bitmapheight / 2,
+                                                   bitmapheight, framebufferheight);
+
+        if (newScrolledToX != scrolledToX || newScrolledToY != scrolledToY) {
+            scrolledToX = newScrolledToX;
+            scrolledToY = newScrolledToY;
+            if (waitingForInput)
+                syncScroll();
+        }
+    }
+
+    /*
+     * Rounds a window position to the nearest tile boundary, so that every tile is either
+     * entirely inside the window or entirely outside it. At the far edge, the window may
+     * reach past the framebuffer rather than stop short of it.
+     */
+    private static int alignedWindowPosition(int position, int windowSize, int framebufferSize) {
+        int last = (Math.max(framebufferSize - windowSize, 0) + TILE_SIZE - 1) / TILE_SIZE;
+        int tile = (Math.max(position, 0) + TILE_SIZE / 2) / TILE_SIZE;
+        return Math.min(tile, last) * TILE_SIZE;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(int, int, int, int)
+     */
+    @Override
+    public synchronized void updateBitmap(int x, int y, int w, int h) {
+        int left   = Math.max(x, xoffset);
+        int top    = Math.max(y, yoffset);
+        int right  = Math.min(x + w, xoffset + bitmapwidth);
+        int bottom = Math.min(y + h, yoffset + bitmapheight);
+        if (left >= right || top >= bottom)
+            return;
+        copyToTiles(bitmapPixels, offset(left, top), bitmapwidth, left, top, right - left, bottom - top);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#updateBitmap(Bitmap, int, int, int, int)
+     */
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+        updateBitmap(x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#validDraw(int, int, int, int)
+     */
+    @Override
+    public synchronized boolean validDraw(int x, int y, int w, int h) {
+        boolean result = x-xoffset>=0 && x-xoffset+w<=bitmapwidth && y-yoffset>=0 && y-yoffset+h<=bitmapheight;
+        // The update is dropped, so the tiles it covers are out of date until requested again.
+        if (!result)
+            markStale(x, y, w, h);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#prepareFullUpdateRequest(boolean)
+     */
+    @Override
+    public synchronized void prepareFullUpdateRequest(boolean incremental) {
+        if (!incremental)
+            requestTiles(false);
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#syncScroll()
+     */
+    @Override
+    synchronized void syncScroll() {
+        if (xoffset != scrolledToX || yoffset != scrolledToY) {
+            xoffset = scrolledToX;
+            yoffset = scrolledToY;
+            // The server keeps track of what changed in the new window while it was elsewhere.
+            rfb.writeFramebufferUpdateRequest(xoffset, yoffset, bmWidth(), bmHeight(), true);
+        }
+        requestTiles(true);
+        waitingForInput = true;
+    }
+
+    /*
+     * Allocates the tiles in the window which are missing or stale and, if sendRequests
+     * is set, requests their contents from the server, one request per run of tiles.
+     */
+    private void requestTiles(boolean sendRequests) {
+        int lastTx = (Math.min(xoffset + bitmapwidth,  framebufferwidth)  + TILE_SIZE - 1) / TILE_SIZE;
+        int lastTy = (Math.min(yoffset + bitmapheight, framebufferheight) + TILE_SIZE - 1) / TILE_SIZE;
+
+        for (int ty = yoffset / TILE_SIZE; ty < lastTy; ty++) {
+            int runStart = -1;
+            for (int tx = xoffset / TILE_SIZE; tx <= lastTx; tx++) {
+                int i = tx + ty * tilesX;
+                if (tx < lastTx && (stale[i] || (!hotTiles.containsKey(i) && !coldTiles.containsKey(i)))) {
+                    getTile(i, true);
+                    stale[i] = false;
+                    if (runStart < 0)
+                        runStart = tx;
+                } else if (runStart >= 0) {
+                    if (sendRequests) {
+                        int x = runStart * TILE_SIZE;
+                        int y = ty * TILE_SIZE;
+                        rfb.writeFramebufferUpdateRequest(x, y, Math.min(tx * TILE_SIZE, framebufferwidth) - x,
+                                                          Math.min(y + TILE_SIZE, framebufferheight) - y, false);
+                    }
+                    runStart = -1;
+                }
+            }
+        }
+    }
+
+    private void markStale(int x, int y, int w, int h) {
+        int left   = Math.max(x, 0);
+        int top    = Math.max(y, 0);
+        int right  = Math.min(x + w, framebufferwidth);
+        int bottom = Math.min(y + h, framebufferheight);
+        for (int ty = top / TILE_SIZE; ty * TILE_SIZE < bottom; ty++)
+            for (int tx = left / TILE_SIZE; tx * TILE_SIZE < right; tx++)
+                stale[tx + ty * tilesX] = true;
+    }
+
+    /*
+     * Copies a rectangle of pixels, laid out in src with the given stride, into the tiles.
+     */
+    private void copyToTiles(int[] src, int srcOffset, int srcStride, int x, int y, int w, int h) {
+        int left   = Math.max(x, 0);
+        int top    = Math.max(y, 0);
+        int right  = Math.min(x + w, framebufferwidth);
+        int bottom = Math.min(y + h, framebufferheight);
+
+        for (int ty = top / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+            int y0 = Math.max(top, ty * TILE_SIZE);
+            int y1 = Math.min(bottom, (ty + 1) * TILE_SIZE);
+            for (int tx = left / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                int x0 = Math.max(left, tx * TILE_SIZE);
+                int x1 = Math.min(right, (tx + 1) * TILE_SIZE);
+                int[] tile = getTile(tx + ty * tilesX, true);
+                int s = srcOffset + (y0 - y) * srcStride + x0 - x;
+                int d = (y0 - ty * TILE_SIZE) * TILE_SIZE + x0 - tx * TILE_SIZE;
+                for (int j = y0; j < y1; j++, s += srcStride, d += TILE_SIZE)
+                    System.arraycopy(src, s, tile, d, x1 - x0);
+            }
+        }
+    }
+
+    /*
+     * Copies a rectangle of pixels out of the tiles into dst, laid out with the given stride.
+     * @return False if part of the rectangle was never received or is out of date.
+     */
+    private boolean copyFromTiles(int x, int y, int w, int h, int[] dst, int dstOffset, int dstStride) {
+        int left   = Math.max(x, 0);
+        int top    = Math.max(y, 0);
+        int right  = Math.min(x + w, framebufferwidth);
+        int bottom = Math.min(y + h, framebufferheight);
+        boolean complete = true;
+
+        for (int ty = top / TILE_SIZE; ty * TILE_SIZE < bottom; ty++) {
+            int y0 = Math.max(top, ty * TILE_SIZE);
+            int y1 = Math.min(bottom, (ty + 1) * TILE_SIZE);
+            for (int tx = left / TILE_SIZE; tx * TILE_SIZE < right; tx++) {
+                int x0 = Math.max(left, tx * TILE_SIZE);
+                int x1 = Math.min(right, (tx + 1) * TILE_SIZE);
+                int i = tx + ty * tilesX;
+                int[] tile = getTile(i, false);
+                if (tile == null || stale[i]) {
+                    complete = false;
+                    if (tile == null)
+                        continue;
+                }
+                int s = (y0 - ty * TILE_SIZE) * TILE_SIZE + x0 - tx * TILE_SIZE;
+                int d = dstOffset + (y0 - y) * dstStride + x0 - x;
+                for (int j = y0; j < y1; j++, s += TILE_SIZE, d += dstStride)
+                    System.arraycopy(tile, s, dst, d, x1 - x0);
+            }
+        }
+        return complete;
+    }
+
+    /*
+     * Returns the uncompressed pixels of tile i, inflating it from the cold tier if needed.
+     * A tile which is missing is allocated if create is set, and is stale until its
+     * contents are requested. Must hold the lock.
+     */
+    private int[] getTile(int i, boolean create) {
+        int[] tile = hotTiles.get(i);
+        if (tile != null)
+            return tile;
+
+        byte[] frozen = coldTiles.remove(i);
+        if (frozen != null) {
+            coldBytes -= frozen.length;
+            tile = thaw(frozen);
+        }
+        if (tile == null) {
+            if (!create)
+                return null;
+            tile = new int[TILE_SIZE * TILE_SIZE];
+            stale[i] = true;
+        }
+        hotTiles.put(i, tile);
+        evictTiles();
+        return tile;
+    }
+
+    /*
+     * Moves the least recently used tiles over maxHotTiles to the cold tier, and drops the
+     * least recently used cold tiles over maxColdBytes. Tiles in the window are kept, since
+     * the decoders are about to draw in them.
+     */
+    private void evictTiles() {
+        Iterator<Map.Entry<Integer, int[]>> hot = hotTiles.entrySet().iterator();
+        while (hotTiles.size() > maxHotTiles && hot.hasNext()) {
+            Map.Entry<Integer, int[]> eldest = hot.next();
+            if (isInWindow(eldest.getKey()))
+                continue;
+            hot.remove();
+            if (compressColdTiles) {
+                byte[] frozen = freeze(eldest.getValue());
+                coldTiles.put(eldest.getKey(), frozen);
+                coldBytes += frozen.length;
+            }
+        }
+
+        Iterator<Map.Entry<Integer, byte[]>> cold = coldTiles.entrySet().iterator();
+        while (coldBytes > maxColdBytes && cold.hasNext()) {
+            Map.Entry<Integer, byte[]> eldest = cold.next();
+            if (isInWindow(eldest.getKey()))
+                continue;
+            coldBytes -= eldest.getValue().length;
+            cold.remove();
+        }
+    }
+
+    private boolean isInWindow(int i) {
+        int x = (i % tilesX) * TILE_SIZE;
+        int y = (i / tilesX) * TILE_SIZE;
+        return x >= xoffset && x < xoffset + bitmapwidth && y >= yoffset && y < yoffset + bitmapheight;
+    }
+
+    /*
+     * Compresses a tile. The alpha channel is not kept, since the desktop is opaque.
+     */
+    private byte[] freeze(int[] tile) {
+        byte[] packed = packBuffer;
+        for (int i = 0, p = 0; i < tile.length; i++) {
+            int pix = tile[i];
+            packed[p++] = (byte)(pix >> 16);
+            packed[p++] = (byte)(pix >> 8);
+            packed[p++] = (byte)pix;
+        }
+
+        deflater.reset();
+        deflater.setInput(packed);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == deflateBuffer.length) {
+                byte[] larger = new byte[deflateBuffer.length * 2];
+                System.arraycopy(deflateBuffer, 0, larger, 0, n);
+                deflateBuffer = larger;
+            }
+            n += deflater.deflate(deflateBuffer, n, deflateBuffer.length - n);
+        }
+
+        byte[] frozen = new byte[n];
+        System.arraycopy(deflateBuffer, 0, frozen, 0, n);
+        return frozen;
+    }
+
+    /*
+     * Decompresses a tile compressed by freeze(), or returns null if it can not be.
+     */
+    private int[] thaw(byte[] frozen) {
+        byte[] packed = packBuffer;
+        inflater.reset();
+        inflater.setInput(frozen);
+        try {
+            int n = 0;
+            while (n < packed.length && !inflater.finished())
+                n += inflater.inflate(packed, n, packed.length - n);
+            if (n < packed.length)
+                return null;
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Could not inflate tile: " + e.getMessage());
+            return null;
+        }
+
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        for (int i = 0, p = 0; i < tile.length; i++, p += 3)
+            tile[i] = 0xFF000000 | (packed[p] & 0xFF) << 16 | (packed[p + 1] & 0xFF) << 8 | (packed[p + 2] & 0xFF);
+        return tile;
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#frameBufferSizeChanged()
+     */
+    @Override
+    public void frameBufferSizeChanged () {
+        xoffset = 0;
+        yoffset = 0;
+        scrolledToX = 0;
+        scrolledToY = 0;
+        framebufferwidth  = rfb.framebufferWidth();
+        framebufferheight = rfb.framebufferHeight();
+        allocateObjects();
+    }
+
+    synchronized void allocateObjects () {
+        dispose();
+        // Try to free up some memory.
+        System.gc();
+
+        // The window covers the display with a margin, plus a tile since it is aligned to the
+        // tiles, and does not have to be any larger than the tiles covering the framebuffer.
+        tilesX = (framebufferwidth  + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (framebufferheight + TILE_SIZE - 1) / TILE_SIZE;
+        bitmapwidth  = Math.min(tilesX, ((int)(displayWidth  * 1.2) + TILE_SIZE - 1) / TILE_SIZE + 1) * TILE_SIZE;
+        bitmapheight = Math.min(tilesY, ((int)(displayHeight * 1.2) + TILE_SIZE - 1) / TILE_SIZE + 1) * TILE_SIZE;
+        android.util.Log.i(TAG, "bitmapsize = ("+bitmapwidth+","+bitmapheight+")");
+
+        long heap = (long)capacity * 1024 * 1024;
+        int windowTiles = (bitmapwidth / TILE_SIZE) * (bitmapheight / TILE_SIZE);
+        maxHotTiles  = (int)Math.max(2 * windowTiles, heap / HOT_TILES_DIVISOR / (TILE_SIZE * TILE_SIZE * 4));
+        maxColdBytes = heap / COLD_TILES_DIVISOR;
+        coldBytes    = 0;
+        hotTiles     = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+        coldTiles    = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+        stale        = new boolean[tilesX * tilesY];
+
+        deflater      = new Deflater(Deflater.BEST_SPEED);
+        inflater      = new Inflater();
+        packBuffer    = new byte[TILE_SIZE * TILE_SIZE * 3];
+        deflateBuffer = new byte[packBuffer.length / 4];
+
+        bitmapPixels = new int[bitmapwidth * bitmapheight];
+        drawable     = createDrawable();
+        drawable.startDrawing();
+    }
+
+    /* (non-Javadoc)
+     * @see com.iiordanov.bVNC.AbstractBitmapData#dispose()
+     */
+    @Override
+    synchronized void dispose() {
+        super.dispose();
+        hotTiles  = null;
+        coldTiles = null;
+        if (deflater != null)
+            deflater.end();
+        if (inflater != null)
+            inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+}
@@ -32,7 +32,7 @@ public class RawDecoder extends Decoder {
     while (h > 0) {
       int nRows = nPixels / w;
       if (nRows > h) nRows = h;
-      reader.is.readPixels(imageBuf, w * h, (reader.bpp() / 8), handler.cp.pf().bigEndian);
+      reader.is.readPixels(imageBuf, nRows * w, (reader.bpp() / 8), handler.cp.pf().bigEndian);
       handler.imageRect(new Rect(x, y, x+w, y+nRows), imageBuf);
       h -= nRows;
       y += nRows;
@@ -303,6 +303,8 @@ public class CConn extends CConnection
   public void framebufferUpdateEnd() {
     //desktop.framebufferUpdateEnd();
 
+    viewer.flushDamage();
+
     if (firstUpdate) {
       int width, height;
       
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Replays a whole update trace per operation, through bVNC's Decoder and
+ * through the TigerVNC decoders. Besides traces/s, the "bytes" and "rects"
+ * counters give the encoded bytes and rectangles decoded per second.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecoderBenchmark {
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Counters {
+        public long bytes;
+        public long rects;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            rects = 0;
+        }
+    }
+
+    @Param({ "Raw", "RRE", "CoRRE", "Hextile", "Zlib", "Tight", "ZRLE" })
+    public String encoding;
+
+    private UpdateTrace trace;
+    private UpdateReplayer bvnc;
+    private TigerReplayer tiger;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        trace = UpdateTrace.load(encoding);
+        bvnc  = new UpdateReplayer(trace.width, trace.height);
+        if (TigerReplayer.supports(encoding))
+            tiger = new TigerReplayer(trace.width, trace.height);
+    }
+
+    @Benchmark
+    public int bVNC(Counters counters) throws Exception {
+        int rects = bvnc.replay(trace);
+        counters.bytes += trace.updates.length;
+        counters.rects += rects;
+        return rects;
+    }
+
+    @Benchmark
+    public int tigerVNC(Counters counters) {
+        // CoRRE and Zlib have no TigerVNC decoder.
+        if (tiger == null)
+            return 0;
+        int rects = tiger.replay(trace);
+        counters.bytes += trace.updates.length;
+        counters.rects += rects;
+        return rects;
+    }
+}
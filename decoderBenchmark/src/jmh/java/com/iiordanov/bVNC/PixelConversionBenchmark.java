@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Converts one full-width row of pixels per operation, with PixelConverter and
+ * with the per-pixel loops the decoders used before it: Raw and Zlib PIXELs,
+ * ZRLE CPIXELs and Tight TPIXELs, in each color model.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PixelConversionBenchmark {
+
+    @Param({ "C24bit", "C256" })
+    public String colorModel;
+
+    @Param({ "1920" })
+    public int width;
+
+    private PixelConverter converter;
+    private int[] colorPalette;
+    private int bytesPerPixel;
+    private byte[] src;
+    private int[] dst;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        COLORMODEL cm = COLORMODEL.valueOf(colorModel);
+        converter = cm.converter();
+        colorPalette = cm.palette();
+        bytesPerPixel = cm.bpp();
+        src = new byte[width * 4];
+        new Random(1).nextBytes(src);
+        dst = new int[width];
+    }
+
+    @Benchmark
+    public int pixelsEngine() {
+        converter.convert(src, 0, dst, 0, width);
+        return dst[width - 1];
+    }
+
+    @Benchmark
+    public int pixelsLegacy() {
+        if (bytesPerPixel == 1) {
+            for (int i = 0; i < width; i++)
+                dst[i] = colorPalette[0xFF & src[i]];
+        } else {
+            for (int i = 0; i < width; i++) {
+                final int idx = i*4;
+                dst[i] = (src[idx + 2] & 0xff) << 16 | (src[idx + 1] & 0xff) << 8 | (src[idx] & 0xff);
+            }
+        }
+        return dst[width - 1];
+    }
+
+    @Benchmark
+    public int cpixelsEngine() {
+        converter.convertCompact(src, 0, dst, 0, width);
+        return dst[width - 1];
+    }
+
+    @Benchmark
+    public int cpixelsLegacy() {
+        for (int i = 0; i < width; i++)
+            dst[i] = legacyCpixel(i * converter.cpixelSize);
+        return dst[width - 1];
+    }
+
+    private int legacyCpixel(int pos) {
+        if (bytesPerPixel == 1)
+            return colorPalette[0xFF & src[pos]];
+        else
+            return (src[pos + 2] & 0xFF) << 16 | (src[pos + 1] & 0xFF) << 8 | (src[pos] & 0xFF);
+    }
+
+    @Benchmark
+    public int tpixelsEngine() {
+        PixelConverter.convertRGB(src, 0, dst, 0, width);
+        return dst[width - 1];
+    }
+
+    @Benchmark
+    public int tpixelsLegacy() {
+        for (int i = 0, j = 0; i < width; i++, j += 3)
+            dst[i] = (src[j] & 0xFF) << 16 | (src[j + 1] & 0xFF) << 8 | (src[j + 2] & 0xFF);
+        return dst[width - 1];
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package android.graphics;
+
+/*
+ * Headless stand-in for android.graphics.Bitmap, backed by an int[] of ARGB pixels.
+ */
+
+public final class Bitmap {
+    public enum Config { ALPHA_8, RGB_565, ARGB_4444, ARGB_8888 }
+
+    private int width, height;
+    private final Config config;
+    private int[] pixels;
+
+    private Bitmap(int width, int height, Config config) {
+        this.width  = width;
+        this.height = height;
+        this.config = config;
+        this.pixels = new int[width * height];
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config);
+    }
+
+    public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+        Bitmap b = new Bitmap(width, height, config);
+        System.arraycopy(colors, 0, b.pixels, 0, width * height);
+        return b;
+    }
+
+    /*
+     * Gives the bitmap new dimensions, as BitmapFactory does when it decodes into
+     * an existing bitmap, if its pixels fit.
+     */
+    boolean reuse(int width, int height) {
+        if (pixels == null || width * height > pixels.length)
+            return false;
+        this.width  = width;
+        this.height = height;
+        return true;
+    }
+
+    int[] pixels() {
+        return pixels;
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getAllocationByteCount() {
+        int bytesPerPixel = (config == Config.ALPHA_8) ? 1 : (config == Config.ARGB_8888) ? 4 : 2;
+        return pixels.length * bytesPerPixel;
+    }
+
+    public void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h) {
+        for (int j = 0; j < h; j++)
+            System.arraycopy(pixels, (y + j) * width + x, dst, offset + j * stride, w);
+    }
+
+    public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        for (int j = 0; j < h; j++)
+            System.arraycopy(src, offset + j * stride, pixels, (y + j) * width + x, w);
+    }
+
+    public void eraseColor(int c) {
+        java.util.Arrays.fill(pixels, c);
+    }
+
+    public void recycle() {
+        pixels = null;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package android.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Headless stand-in for android.graphics.BitmapFactory. JPEG data is decoded
+ * with ImageIO, so that Tight JPEG rectangles cost roughly what they would on
+ * a device with a software decoder.
+ */
+
+public final class BitmapFactory {
+    public static class Options {
+        public boolean inPurgeable;
+        public boolean inInputShareable;
+        public boolean inDither;
+        public boolean inScaled;
+        public boolean inMutable;
+        public Bitmap inBitmap;
+        public byte[] inTempStorage;
+        public Bitmap.Config inPreferredConfig;
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data, offset, length));
+            if (image == null)
+                return null;
+            int w = image.getWidth(), h = image.getHeight();
+            if (opts != null && opts.inBitmap != null) {
+                if (!opts.inBitmap.reuse(w, h))
+                    throw new IllegalArgumentException("Problem decoding into existing bitmap");
+                image.getRGB(0, 0, w, h, opts.inBitmap.pixels(), 0, w);
+                return opts.inBitmap;
+            }
+            int[] pixels = image.getRGB(0, 0, w, h, null, 0, w);
+            Bitmap.Config config = (opts != null && opts.inPreferredConfig != null) ? opts.inPreferredConfig
+                                                                                    : Bitmap.Config.ARGB_8888;
+            return Bitmap.createBitmap(pixels, w, h, config);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
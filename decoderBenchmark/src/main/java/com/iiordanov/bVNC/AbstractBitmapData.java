@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/*
+ * Headless stand-in for the app's AbstractBitmapData, reduced to the part of
+ * the interface the decoders use.
+ */
+
+abstract public class AbstractBitmapData {
+    int framebufferwidth;
+    int framebufferheight;
+    int bitmapwidth;
+    int bitmapheight;
+    int[] bitmapPixels;
+    RectF cursorRect = new RectF();
+    int[] softCursorPixels;
+
+    void setCursorRect(int x, int y, int w, int h, int hX, int hY) {
+        cursorRect.left   = x - hX;
+        cursorRect.right  = cursorRect.left + w;
+        cursorRect.top    = y - hY;
+        cursorRect.bottom = cursorRect.top + h;
+    }
+
+    void setSoftCursor (int[] newSoftCursorPixels) {
+        softCursorPixels = newSoftCursorPixels;
+    }
+
+    RectF getCursorRect () {
+        return cursorRect;
+    }
+
+    public abstract boolean validDraw(int x, int y, int w, int h);
+
+    public abstract int offset(int x, int y);
+
+    public abstract void updateBitmap(int x, int y, int w, int h);
+
+    public abstract void updateBitmap(Bitmap b, int x, int y, int w, int h);
+
+    public abstract void copyRect(int sx, int sy, int dx, int dy, int w, int h);
+
+    abstract void drawRect( int x, int y, int w, int h, Paint paint);
+
+    public int fbWidth () {
+        return framebufferwidth;
+    }
+
+    public int fbHeight () {
+        return framebufferheight;
+    }
+
+    public int bmWidth () {
+        return bitmapwidth;
+    }
+
+    public int bmHeight () {
+        return bitmapheight;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.io.File;
+
+/*
+ * Replays the trace of every encoding through each decoder that supports it,
+ * and prints the throughput. Quicker and noisier than the JMH benchmarks.
+ *
+ * System properties: traces=<dir> to use recorded traces, save=<dir> to write
+ * out the traces used, width, height and frames to size synthetic ones.
+ */
+
+public class DecoderThroughput {
+    private static final int WARMUP_RUNS   = 3;
+    private static final int MEASURED_RUNS = 10;
+
+    public static void main(String[] args) throws Exception {
+        String save = System.getProperty("save");
+        System.out.println(String.format("%-8s %-9s %10s %12s %10s", "encoding", "decoder", "MB/s", "rects/s", "trace KB"));
+
+        for (String encoding : UpdateTrace.ENCODINGS) {
+            UpdateTrace trace = UpdateTrace.load(encoding);
+            if (save != null)
+                trace.write(new File(save, encoding + ".rfbu"));
+
+            final UpdateReplayer bvnc = new UpdateReplayer(trace.width, trace.height);
+            report(trace, "bVNC", new Replay() {
+                public int run(UpdateTrace t) throws Exception { return bvnc.replay(t); }
+            });
+
+            if (TigerReplayer.supports(encoding)) {
+                final TigerReplayer tiger = new TigerReplayer(trace.width, trace.height);
+                report(trace, "TigerVNC", new Replay() {
+                    public int run(UpdateTrace t) { return tiger.replay(t); }
+                });
+            }
+        }
+        // The decode workers are daemon threads, but do not wait for the JVM to notice.
+        System.exit(0);
+    }
+
+    private interface Replay {
+        int run(UpdateTrace trace) throws Exception;
+    }
+
+    private static void report(UpdateTrace trace, String decoder, Replay replay) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            replay.run(trace);
+
+        long rects = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++)
+            rects += replay.run(trace);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        double megabytes = (double)trace.updates.length * MEASURED_RUNS / (1024 * 1024);
+        System.out.println(String.format("%-8s %-9s %10.1f %12.0f %10.1f",
+                trace.encoding, decoder, megabytes / seconds, rects / seconds, trace.updates.length / 1024.0));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+
+/*
+ * A framebuffer held entirely in an int[], like FullBufferBitmapData but
+ * without the Bitmap copy that needs a display.
+ */
+
+class HeadlessBitmapData extends AbstractBitmapData {
+
+    HeadlessBitmapData(int width, int height) {
+        framebufferwidth  = bitmapwidth  = width;
+        framebufferheight = bitmapheight = height;
+        bitmapPixels = new int[width * height];
+    }
+
+    @Override
+    public boolean validDraw(int x, int y, int w, int h) {
+        return x + w <= bitmapwidth && y + h <= bitmapheight;
+    }
+
+    @Override
+    public int offset(int x, int y) {
+        return y * bitmapwidth + x;
+    }
+
+    @Override
+    public void updateBitmap(int x, int y, int w, int h) {
+    }
+
+    @Override
+    public void updateBitmap(Bitmap b, int x, int y, int w, int h) {
+        b.getPixels(bitmapPixels, offset(x, y), bitmapwidth, 0, 0, w, h);
+    }
+
+    @Override
+    public void copyRect(int sx, int sy, int dx, int dy, int w, int h) {
+        int srcOffset, dstOffset;
+        int dstH = h;
+        int dstW = w;
+
+        int startSrcY, endSrcY, dstY, deltaY;
+        if (sy > dy) {
+            startSrcY = sy;
+            endSrcY = sy + dstH;
+            dstY = dy;
+            deltaY = +1;
+        } else {
+            startSrcY = sy + dstH - 1;
+            endSrcY = sy - 1;
+            dstY = dy + dstH - 1;
+            deltaY = -1;
+        }
+        for (int y = startSrcY; y != endSrcY; y += deltaY) {
+            srcOffset = offset(sx, y);
+            dstOffset = offset(dx, dstY);
+            System.arraycopy(bitmapPixels, srcOffset, bitmapPixels, dstOffset, dstW);
+            dstY += deltaY;
+        }
+    }
+
+    @Override
+    void drawRect(int x, int y, int w, int h, Paint paint) {
+        int color = paint.getColor();
+        for (int j = 0; j < h; j++) {
+            int offset = offset(x, y + j);
+            Arrays.fill(bitmapPixels, offset, offset + w, color);
+        }
+    }
+}
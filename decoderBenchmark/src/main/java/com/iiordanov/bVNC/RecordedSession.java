@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Reads a session file written by SessionRecorder and hands out the recorded
+ * server data as a stream. When paced, each chunk is held back until as much
+ * time has passed since the start of the replay as had passed in the original
+ * session, and the time by which the reader fell behind that schedule is kept.
+ */
+
+class RecordedSession extends InputStream {
+    final int width, height;
+    final COLORMODEL colorModel;
+    final String desktopName;
+
+    private final DataInputStream in;
+    private final boolean paced;
+    private long startNanos = -1;
+    private long dueMicros = 0;
+    private int chunkLeft = 0;
+
+    private long bytes = 0;
+    private long chunks = 0;
+    private long lagMicros = 0;
+    private long maxLagMicros = 0;
+
+    RecordedSession(File f, boolean paced) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 65536));
+        if (in.readInt() != SessionRecorder.MAGIC || in.readInt() != SessionRecorder.VERSION)
+            throw new IOException(f + " is not a recorded session");
+        width       = in.readUnsignedShort();
+        height      = in.readUnsignedShort();
+        colorModel  = COLORMODEL.valueOf(in.readUTF());
+        desktopName = in.readUTF();
+        this.paced  = paced;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (chunkLeft == 0 && !nextChunk())
+            return -1;
+        int n = in.read(b, off, Math.min(len, chunkLeft));
+        if (n < 0)
+            throw new EOFException("Recording ends in the middle of a chunk");
+        chunkLeft -= n;
+        bytes += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /*
+     * Moves on to the next chunk, waiting for its time to come when paced.
+     * Returns false at the end of the recording.
+     */
+    private boolean nextChunk() throws IOException {
+        int micros;
+        try {
+            micros = in.readInt();
+        } catch (EOFException e) {
+            // Recordings end wherever the connection or the recording stopped.
+            return false;
+        }
+        chunkLeft = in.readInt();
+        chunks++;
+
+        if (startNanos < 0)
+            startNanos = System.nanoTime();
+        dueMicros += micros;
+        if (paced) {
+            long early = dueMicros - (System.nanoTime() - startNanos) / 1000;
+            if (early > 0) {
+                try {
+                    Thread.sleep(early / 1000, (int)(early % 1000) * 1000);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while pacing the replay");
+                }
+            } else {
+                lagMicros    += -early;
+                maxLagMicros  = Math.max(maxLagMicros, -early);
+            }
+        }
+        return true;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long chunks() {
+        return chunks;
+    }
+
+    /**
+     * @return The length of the original session in microseconds, up to the current chunk.
+     */
+    long recordedMicros() {
+        return dueMicros;
+    }
+
+    /**
+     * @return The average time by which chunks were handed out late, in microseconds.
+     */
+    long meanLagMicros() {
+        return chunks == 0 ? 0 : lagMicros / chunks;
+    }
+
+    long maxLagMicros() {
+        return maxLagMicros;
+    }
+}
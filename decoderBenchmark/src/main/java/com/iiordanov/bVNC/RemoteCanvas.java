@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import android.os.Handler;
+
+import com.iiordanov.bVNC.input.RemotePointer;
+
+/*
+ * Headless stand-in for the app's RemoteCanvas. Redraws and the ends of
+ * updates are only counted, since there is no view to invalidate. A
+ * framebuffer size change replaces the bitmap data.
+ */
+
+public class RemoteCanvas {
+    public AbstractBitmapData bitmapData;
+    public Handler handler = new Handler();
+    public boolean serverJustCutText = false;
+    boolean useFull = true;
+    private RemotePointer pointer = new RemotePointer();
+    RfbProto rfb;
+    Decoder decoder;
+    long redraws;
+    long updates;
+
+    RemoteCanvas (AbstractBitmapData bitmapData) {
+        this.bitmapData = bitmapData;
+    }
+
+    public boolean isCertificateAccepted() {
+        return true;
+    }
+
+    public void updateFBSize() {
+        bitmapData = new HeadlessBitmapData(rfb.framebufferWidth, rfb.framebufferHeight);
+        decoder.setBitmapData(bitmapData);
+    }
+
+    public void writeFullUpdateRequest(boolean incremental) {}
+
+    public void flushDamage() {
+        updates++;
+    }
+
+    public void displayShortToastMessage(CharSequence message) {}
+
+    public void setClipboardText(String s) {}
+
+    public void doneWaiting() {}
+
+    public void syncScroll() {}
+
+    void softCursorMove(int x, int y) {}
+
+    public RemotePointer getPointer() {
+        return pointer;
+    }
+
+    public void reDraw(int x, int y, int w, int h) {
+        redraws++;
+    }
+
+    public void reDraw(float x, float y, float w, float h) {
+        redraws++;
+    }
+}
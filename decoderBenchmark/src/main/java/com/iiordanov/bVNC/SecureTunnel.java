@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import javax.net.ssl.SSLSocket;
+
+import android.os.Handler;
+
+/*
+ * Headless stand-in for the app's SecureTunnel. Replays never connect anywhere.
+ */
+
+public class SecureTunnel {
+    public SecureTunnel(String address, int port, int hashAlgorithm, String hash, String cert, Handler messageBus) {
+    }
+
+    public void setup() throws Exception {
+        throw new Exception("Secure tunnels are not available headless");
+    }
+
+    public SSLSocket getSocket() {
+        return null;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.io.EOFException;
+import java.io.File;
+
+/*
+ * Replays a session recorded by the app (see SessionRecorder) through the real
+ * RfbProto and Decoder, with the headless canvas standing in for the view.
+ * Run it under a profiler to find decode hotspots in real sessions.
+ *
+ * Usage: SessionReplayer <file>. System properties: paced=true to keep the
+ * original timing rather than replay flat out, repeat=<n> to replay n times.
+ */
+
+public class SessionReplayer {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 || args[0].length() == 0) {
+            System.err.println("usage: SessionReplayer <session" + SessionRecorder.FILE_EXTENSION + ">");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        boolean paced = Boolean.getBoolean("paced");
+        int repeat = Integer.getInteger("repeat", 1);
+
+        for (int i = 0; i < repeat; i++)
+            replay(file, paced);
+        // The decode workers are daemon threads, but do not wait for the JVM to notice.
+        System.exit(0);
+    }
+
+    private static void replay(File file, boolean paced) throws Exception {
+        RecordedSession session = new RecordedSession(file, paced);
+        HeadlessBitmapData bitmapData = new HeadlessBitmapData(session.width, session.height);
+        RemoteCanvas canvas = new RemoteCanvas(bitmapData);
+        Decoder decoder = new Decoder(canvas);
+        decoder.setBitmapData(bitmapData);
+        RfbProto rfb = new RfbProto(decoder, canvas, session.width, session.height, session.desktopName);
+        canvas.rfb = rfb;
+        canvas.decoder = decoder;
+
+        rfb.setStreams(session, new NullOutputStream());
+        decoder.setColorModel(session.colorModel);
+        decoder.setPixelFormat(rfb);
+
+        long start = System.nanoTime();
+        try {
+            rfb.processProtocol();
+        } catch (EOFException e) {
+            // The end of the recording.
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        session.close();
+
+        double megabytes = session.bytes() / (1024.0 * 1024);
+        System.out.println(String.format("%s: %dx%d %s, %.1f MB in %d chunks, %.1f s long",
+                file.getName(), session.width, session.height, session.colorModel,
+                megabytes, session.chunks(), session.recordedMicros() / 1e6));
+        System.out.println(String.format("  replayed %s in %.2f s: %.1f MB/s, %d updates, %d redraws",
+                paced ? "paced" : "flat out", seconds, megabytes / seconds,
+                canvas.updates, canvas.redraws));
+        if (paced)
+            System.out.println(String.format("  behind the original by %.1f ms on average, %.1f ms at most",
+                    session.meanLagMicros() / 1e3, session.maxLagMicros() / 1e3));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import android.graphics.Bitmap;
+
+import com.iiordanov.tigervnc.rdr.MemInStream;
+import com.iiordanov.tigervnc.rfb.CMsgHandler;
+import com.iiordanov.tigervnc.rfb.CMsgReaderV3;
+import com.iiordanov.tigervnc.rfb.Decoder;
+import com.iiordanov.tigervnc.rfb.ManagedPixelBuffer;
+import com.iiordanov.tigervnc.rfb.PixelFormat;
+import com.iiordanov.tigervnc.rfb.Rect;
+
+/*
+ * Replays an update trace through the TigerVNC decoders into a ManagedPixelBuffer.
+ */
+
+class TigerReplayer extends CMsgHandler {
+    private final PixelFormat pf = new PixelFormat(32, 24, false, true, 255, 255, 255, 16, 8, 0);
+    private final ManagedPixelBuffer pb = new ManagedPixelBuffer();
+    private int[] bitmapPixels = new int[0];
+    private int rects;
+
+    TigerReplayer(int width, int height) {
+        setDesktopSize(width, height);
+        setPixelFormat(pf);
+        pb.setPF(pf);
+        pb.setSize(width, height);
+    }
+
+    static boolean supports(String encoding) {
+        return Decoder.supported(UpdateTrace.encodingNumber(encoding));
+    }
+
+    int[] pixels() {
+        return pb.data;
+    }
+
+    /**
+     * Decodes every update in the trace, starting from fresh decoder state.
+     * @return The number of rectangles decoded.
+     */
+    int replay(UpdateTrace trace) {
+        MemInStream is = new MemInStream(trace.updates, 0, trace.updates.length);
+        CMsgReaderV3 reader = new CMsgReaderV3(this, is);
+        rects = 0;
+        while (is.pos() < trace.updates.length)
+            reader.readMsg();
+        return rects;
+    }
+
+    public PixelFormat getPreferredPF() {
+        return pf;
+    }
+
+    public void endRect(Rect r, int encoding) {
+        rects++;
+    }
+
+    public void fillRect(Rect r, int pix) {
+        pb.fillRect(r.tl.x, r.tl.y, r.width(), r.height(), pix);
+    }
+
+    public void imageRect(Rect r, int[] pixels) {
+        pb.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), pixels);
+    }
+
+    public void imageRect(Rect r, Bitmap b) {
+        int n = r.area();
+        if (bitmapPixels.length < n)
+            bitmapPixels = new int[n];
+        b.getPixels(bitmapPixels, 0, r.width(), 0, 0, r.width(), r.height());
+        pb.imageRect(r.tl.x, r.tl.y, r.width(), r.height(), bitmapPixels);
+    }
+
+    public void copyRect(Rect r, int srcX, int srcY) {
+        pb.copyRect(r.tl.x, r.tl.y, r.width(), r.height(), srcX, srcY);
+    }
+}
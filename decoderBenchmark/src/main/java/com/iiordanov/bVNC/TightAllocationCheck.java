@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+package com.iiordanov.bVNC;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Checks that the Tight decoder does not allocate once a connection is running.
+ *
+ * A lossless Tight trace (fills, palettes, gradient-filtered and plain zlib data, on
+ * all four zlib streams) is decoded through one decoder. After the first updates,
+ * which size the decoder's buffers, the bytes allocated by the decoding thread and
+ * the decode workers are counted over the remaining updates, and must be zero. The
+ * framebuffer must then match the generated desktop.
+ *
+ * JPEG rectangles are left out: the platform's JPEG decoder allocates its own state.
+ * Run it interpreted (-Xint), as the tightAllocationCheck task does, so that the JIT
+ * neither hides allocations through escape analysis nor adds its own when it
+ * deoptimizes.
+ *
+ * System properties: width, height and frames to size the trace.
+ */
+
+public class TightAllocationCheck {
+    private static final int WARMUP_UPDATES = 10;
+
+    public static void main(String[] args) throws Exception {
+        int width  = Integer.getInteger("width", 640);
+        int height = Integer.getInteger("height", 400);
+        int frames = Integer.getInteger("frames", 40);
+
+        TraceGenerator generator = new TraceGenerator(width, height);
+        generator.setTightJpeg(false);
+        UpdateTrace trace = generator.generate("Tight", frames);
+
+        boolean ok = check(trace, generator.desktop(), false);
+        ok &= check(trace, generator.desktop(), true);
+        // The decode workers are daemon threads, but do not wait for the JVM to notice.
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean check(UpdateTrace trace, int[] expected, boolean parallel) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        UpdateReplayer replayer = new UpdateReplayer(trace.width, trace.height);
+        replayer.open(trace);
+        replayer.decoder().setParallelTight(parallel);
+        replayer.decodeUpdates(WARMUP_UPDATES);
+
+        long[] ids = decodingThreads();
+        long[] before = new long[ids.length];
+        long[] after = new long[ids.length];
+        // Once, so that any allocation made by the measurement itself is out of the way.
+        allocatedBytes(threads, ids, before);
+
+        allocatedBytes(threads, ids, before);
+        int rects = replayer.decodeUpdates(trace.updateCount - WARMUP_UPDATES);
+        allocatedBytes(threads, ids, after);
+
+        long bytes = 0;
+        for (int i = 0; i < ids.length; i++)
+            bytes += after[i] - before[i];
+
+        int mismatches = 0;
+        int[] pixels = replayer.pixels();
+        for (int i = 0; i < expected.length; i++)
+            if (((expected[i] ^ pixels[i]) & 0xFFFFFF) != 0)
+                mismatches++;
+
+        System.out.println(String.format("%-8s %d rectangles on %d threads, %d bytes allocated (%.2f per rectangle), %d pixels wrong",
+                parallel ? "parallel" : "serial", rects, ids.length, bytes, (double)bytes / rects, mismatches));
+        return bytes == 0 && mismatches == 0;
+    }
+
+    //
+    // The current thread, which reads and queues the rectangles, and the decode workers.
+    //
+    private static long[] decodingThreads() {
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(Thread.currentThread().getId());
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().startsWith("DecodeWorkers"))
+                ids.add(t.getId());
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    private static void allocatedBytes(com.sun.management.ThreadMXBean threads, long[] ids, long[] bytes) {
+        for (int i = 0; i < ids.length; i++)
+            bytes[i] = threads.getThreadAllocatedBytes(ids[i]);
+    }
+}
@@ -0,0 +1,623 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Builds synthetic update traces, for when no recorded ones are at hand.
+ *
+ * A desktop made of text windows, flat panels, gradients and photographs is
+ * sent whole, followed by frames in which a handful of regions are repainted
+ * with new content. The same content and the same sequence of updates are
+ * produced for every encoding, and each encoder makes choices similar to
+ * those of common servers (solid tiles, palettes, runs, JPEG for photos).
+ */
+
+class TraceGenerator {
+    private static final int CONTENT_SOLID    = 0;
+    private static final int CONTENT_TEXT     = 1;
+    private static final int CONTENT_GRADIENT = 2;
+    private static final int CONTENT_PHOTO    = 3;
+
+    // Tight rectangles are split the way TightVNC servers do.
+    private static final int TIGHT_MAX_WIDTH = 2048;
+    private static final int TIGHT_MAX_AREA  = 65536;
+
+    private final int width, height;
+    private final int[] desktop;
+    private Random random;
+
+    // Compression state kept across rectangles, as on a real server.
+    private Deflater zlibStream;
+    private Deflater zrleStream;
+    private Deflater[] tightStreams = new Deflater[4];
+    private byte[] deflateBuf = new byte[65536];
+
+    // Whether Tight sends photos as JPEG, or losslessly through the gradient filter.
+    private boolean tightJpeg = true;
+
+    TraceGenerator(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        this.desktop = new int[width * height];
+    }
+
+    /**
+     * Makes Tight send photos through the gradient filter instead of as JPEG, as
+     * TightVNC servers do when the client has not asked for JPEG.
+     */
+    void setTightJpeg(boolean jpeg) {
+        tightJpeg = jpeg;
+    }
+
+    /**
+     * @return The desktop as it looks after the last update generated.
+     */
+    int[] desktop() {
+        return desktop;
+    }
+
+    UpdateTrace generate(String encoding, int frames) throws IOException {
+        int enc = UpdateTrace.encodingNumber(encoding);
+        random = new Random(1);
+        zlibStream = new Deflater();
+        zrleStream = new Deflater();
+        for (int i = 0; i < tightStreams.length; i++)
+            tightStreams[i] = new Deflater();
+
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(trace);
+        int rectCount = 0;
+
+        for (int f = 0; f < frames; f++) {
+            List<int[]> dirty = new ArrayList<int[]>();
+            if (f == 0) {
+                paintDesktop();
+                dirty.add(new int[] { 0, 0, width, height });
+            } else {
+                int n = 4 + random.nextInt(12);
+                for (int i = 0; i < n; i++) {
+                    int w = Math.min(width,  16 + random.nextInt(400));
+                    int h = Math.min(height, 16 + random.nextInt(300));
+                    int x = random.nextInt(width  - w + 1);
+                    int y = random.nextInt(height - h + 1);
+                    paint(pickContent(), x, y, w, h);
+                    dirty.add(new int[] { x, y, w, h });
+                }
+            }
+
+            ByteArrayOutputStream rects = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(rects);
+            int n = 0;
+            for (int[] r : dirty)
+                n += encodeRect(d, enc, r[0], r[1], r[2], r[3]);
+
+            out.writeByte(RfbProto.FramebufferUpdate);
+            out.writeByte(0);
+            out.writeShort(n);
+            rects.writeTo(out);
+            rectCount += n;
+        }
+
+        return new UpdateTrace(encoding, width, height, frames, rectCount, trace.toByteArray());
+    }
+
+    //
+    // Desktop content.
+    //
+
+    private void paintDesktop() {
+        paint(CONTENT_GRADIENT, 0, 0, width, height);
+        paint(CONTENT_TEXT,  width / 16, height / 10, width / 2, height * 2 / 3);
+        paint(CONTENT_PHOTO, width / 2, height / 4, width * 2 / 5, height / 2);
+        paint(CONTENT_SOLID, 0, height - height / 20, width, height / 20);
+    }
+
+    private int pickContent() {
+        int r = random.nextInt(100);
+        if (r < 40) return CONTENT_TEXT;
+        if (r < 60) return CONTENT_SOLID;
+        if (r < 75) return CONTENT_GRADIENT;
+        return CONTENT_PHOTO;
+    }
+
+    private void paint(int content, int x, int y, int w, int h) {
+        switch (content) {
+        case CONTENT_SOLID:
+            int c = randomColor();
+            for (int j = y; j < y + h; j++)
+                for (int i = x; i < x + w; i++)
+                    desktop[j * width + i] = c;
+            break;
+        case CONTENT_TEXT:
+            // Dark glyph-like bit patterns on a light background, in 8x14 cells.
+            int paper = 0xF0F0F0 | random.nextInt(0x10);
+            int ink   = random.nextInt(0x40) << 16 | random.nextInt(0x40) << 8 | random.nextInt(0x40);
+            for (int j = y; j < y + h; j++) {
+                int row = (j - y) % 14;
+                for (int i = x; i < x + w; i += 8) {
+                    int bits = (row >= 3 && row < 12 && random.nextInt(5) != 0) ? random.nextInt(256) & 0x7E : 0;
+                    for (int k = 0; k < 8 && i + k < x + w; k++)
+                        desktop[j * width + i + k] = ((bits >> k) & 1) != 0 ? ink : paper;
+                }
+            }
+            break;
+        case CONTENT_GRADIENT:
+            int from = randomColor(), to = randomColor();
+            for (int j = y; j < y + h; j++) {
+                for (int i = x; i < x + w; i++) {
+                    int t = ((i - x) + (j - y)) * 256 / (w + h);
+                    desktop[j * width + i] = blend(from, to, t);
+                }
+            }
+            break;
+        default:
+            // Smooth shapes with a little noise, which is what JPEG is good at.
+            double fx = 0.01 + random.nextDouble() * 0.05, fy = 0.01 + random.nextDouble() * 0.05;
+            double phase = random.nextDouble() * Math.PI;
+            for (int j = y; j < y + h; j++) {
+                for (int i = x; i < x + w; i++) {
+                    double v = Math.sin(i * fx + phase) * Math.cos(j * fy - phase);
+                    int r = clamp((int)(128 + 100 * v) + random.nextInt(9) - 4);
+                    int g = clamp((int)(128 + 100 * Math.sin(v * 3 + phase)) + random.nextInt(9) - 4);
+                    int b = clamp((int)(128 - 100 * v) + random.nextInt(9) - 4);
+                    desktop[j * width + i] = r << 16 | g << 8 | b;
+                }
+            }
+        }
+    }
+
+    private int randomColor() {
+        return random.nextInt(0x1000000);
+    }
+
+    private static int blend(int from, int to, int t) {
+        int r = ((from >> 16 & 0xFF) * (256 - t) + (to >> 16 & 0xFF) * t) >> 8;
+        int g = ((from >> 8  & 0xFF) * (256 - t) + (to >> 8  & 0xFF) * t) >> 8;
+        int b = ((from       & 0xFF) * (256 - t) + (to       & 0xFF) * t) >> 8;
+        return r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    //
+    // Encoders. Each writes one or more rectangles, headers included, and
+    // returns how many it wrote.
+    //
+
+    private int encodeRect(DataOutputStream d, int enc, int x, int y, int w, int h) throws IOException {
+        switch (enc) {
+        case RfbProto.EncodingRaw:
+            writeHeader(d, x, y, w, h, enc);
+            writePixels(d, x, y, w, h);
+            return 1;
+        case RfbProto.EncodingRRE:
+            encodeRRE(d, x, y, w, h, false);
+            return 1;
+        case RfbProto.EncodingCoRRE:
+            int n = 0;
+            for (int j = y; j < y + h; j += 255)
+                for (int i = x; i < x + w; i += 255, n++)
+                    encodeRRE(d, i, j, Math.min(255, x + w - i), Math.min(255, y + h - j), true);
+            return n;
+        case RfbProto.EncodingHextile:
+            encodeHextile(d, x, y, w, h);
+            return 1;
+        case RfbProto.EncodingZlib:
+            encodeZlib(d, x, y, w, h);
+            return 1;
+        case RfbProto.EncodingTight:
+            int count = 0;
+            for (int i = x; i < x + w; i += TIGHT_MAX_WIDTH) {
+                int tw = Math.min(TIGHT_MAX_WIDTH, x + w - i);
+                int rows = Math.max(1, TIGHT_MAX_AREA / tw);
+                for (int j = y; j < y + h; j += rows, count++)
+                    encodeTight(d, i, j, tw, Math.min(rows, y + h - j));
+            }
+            return count;
+        default:
+            encodeZRLE(d, x, y, w, h);
+            return 1;
+        }
+    }
+
+    private static void writeHeader(DataOutputStream d, int x, int y, int w, int h, int enc) throws IOException {
+        d.writeShort(x);
+        d.writeShort(y);
+        d.writeShort(w);
+        d.writeShort(h);
+        d.writeInt(enc);
+    }
+
+    // A 32bpp little-endian pixel.
+    private static void writePixel(DataOutputStream d, int p) throws IOException {
+        d.writeByte(p);
+        d.writeByte(p >> 8);
+        d.writeByte(p >> 16);
+        d.writeByte(0);
+    }
+
+    private void writePixels(DataOutputStream d, int x, int y, int w, int h) throws IOException {
+        for (int j = y; j < y + h; j++)
+            for (int i = x; i < x + w; i++)
+                writePixel(d, desktop[j * width + i]);
+    }
+
+    // Distinct colors of a region, mapped to their index, or null if there are more than limit.
+    private HashMap<Integer, Integer> palette(int x, int y, int w, int h, int limit) {
+        HashMap<Integer, Integer> palette = new HashMap<Integer, Integer>();
+        for (int j = y; j < y + h; j++) {
+            for (int i = x; i < x + w; i++) {
+                Integer c = desktop[j * width + i];
+                if (!palette.containsKey(c)) {
+                    if (palette.size() == limit)
+                        return null;
+                    palette.put(c, palette.size());
+                }
+            }
+        }
+        return palette;
+    }
+
+    private int[] paletteColors(HashMap<Integer, Integer> palette) {
+        int[] colors = new int[palette.size()];
+        for (java.util.Map.Entry<Integer, Integer> e : palette.entrySet())
+            colors[e.getValue()] = e.getKey();
+        return colors;
+    }
+
+    private void encodeRRE(DataOutputStream d, int x, int y, int w, int h, boolean compact) throws IOException {
+        int bg = desktop[y * width + x];
+        ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+        DataOutputStream s = new DataOutputStream(subrects);
+        int n = 0;
+        for (int j = y; j < y + h; j++) {
+            int i = x;
+            while (i < x + w) {
+                int c = desktop[j * width + i];
+                int start = i;
+                while (i < x + w && desktop[j * width + i] == c)
+                    i++;
+                if (c == bg)
+                    continue;
+                writePixel(s, c);
+                if (compact) {
+                    s.writeByte(start - x);
+                    s.writeByte(j - y);
+                    s.writeByte(i - start);
+                    s.writeByte(1);
+                } else {
+                    s.writeShort(start - x);
+                    s.writeShort(j - y);
+                    s.writeShort(i - start);
+                    s.writeShort(1);
+                }
+                n++;
+            }
+        }
+        writeHeader(d, x, y, w, h, compact ? RfbProto.EncodingCoRRE : RfbProto.EncodingRRE);
+        d.writeInt(n);
+        writePixel(d, bg);
+        subrects.writeTo(d);
+    }
+
+    private void encodeHextile(DataOutputStream d, int x, int y, int w, int h) throws IOException {
+        writeHeader(d, x, y, w, h, RfbProto.EncodingHextile);
+        for (int ty = y; ty < y + h; ty += 16) {
+            int th = Math.min(16, y + h - ty);
+            for (int tx = x; tx < x + w; tx += 16) {
+                int tw = Math.min(16, x + w - tx);
+                HashMap<Integer, Integer> palette = palette(tx, ty, tw, th, 2);
+
+                if (palette != null && palette.size() == 1) {
+                    d.writeByte(RfbProto.HextileBackgroundSpecified);
+                    writePixel(d, desktop[ty * width + tx]);
+                    continue;
+                }
+
+                if (palette != null) {
+                    int[] colors = paletteColors(palette);
+                    int bg = colors[0], fg = colors[1];
+                    ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+                    int n = 0;
+                    for (int j = 0; j < th; j++) {
+                        int i = 0;
+                        while (i < tw) {
+                            if (desktop[(ty + j) * width + tx + i] != fg) {
+                                i++;
+                                continue;
+                            }
+                            int start = i;
+                            while (i < tw && desktop[(ty + j) * width + tx + i] == fg)
+                                i++;
+                            subrects.write(start << 4 | j);
+                            subrects.write((i - start - 1) << 4);
+                            n++;
+                        }
+                    }
+                    if (n <= 255) {
+                        d.writeByte(RfbProto.HextileBackgroundSpecified | RfbProto.HextileForegroundSpecified |
+                                    RfbProto.HextileAnySubrects);
+                        writePixel(d, bg);
+                        writePixel(d, fg);
+                        d.writeByte(n);
+                        subrects.writeTo(d);
+                        continue;
+                    }
+                }
+
+                d.writeByte(RfbProto.HextileRaw);
+                writePixels(d, tx, ty, tw, th);
+            }
+        }
+    }
+
+    private void encodeZlib(DataOutputStream d, int x, int y, int w, int h) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(w * h * 4);
+        writePixels(new DataOutputStream(raw), x, y, w, h);
+        byte[] compressed = deflate(zlibStream, raw.toByteArray(), raw.size());
+        writeHeader(d, x, y, w, h, RfbProto.EncodingZlib);
+        d.writeInt(compressed.length);
+        d.write(compressed);
+    }
+
+    private void encodeTight(DataOutputStream d, int x, int y, int w, int h) throws IOException {
+        writeHeader(d, x, y, w, h, RfbProto.EncodingTight);
+        HashMap<Integer, Integer> palette = palette(x, y, w, h, 256);
+
+        if (palette != null && palette.size() == 1) {
+            d.writeByte(RfbProto.TightFill << 4);
+            writeTightPixel(d, desktop[y * width + x]);
+            return;
+        }
+
+        if (palette != null) {
+            int[] colors = paletteColors(palette);
+            byte[] data;
+            int stream;
+            if (colors.length == 2) {
+                // One bit per pixel, rows padded to a byte.
+                stream = 1;
+                int rowBytes = (w + 7) / 8;
+                data = new byte[rowBytes * h];
+                for (int j = 0; j < h; j++)
+                    for (int i = 0; i < w; i++)
+                        if (desktop[(y + j) * width + x + i] == colors[1])
+                            data[j * rowBytes + i / 8] |= 0x80 >> (i % 8);
+            } else {
+                stream = 2;
+                data = new byte[w * h];
+                for (int j = 0; j < h; j++)
+                    for (int i = 0; i < w; i++)
+                        data[j * w + i] = (byte)(int)palette.get(desktop[(y + j) * width + x + i]);
+            }
+            d.writeByte((stream << 4) | (RfbProto.TightExplicitFilter << 4));
+            d.writeByte(RfbProto.TightFilterPalette);
+            d.writeByte(colors.length - 1);
+            for (int c : colors)
+                writeTightPixel(d, c);
+            writeTightData(d, stream, data);
+            return;
+        }
+
+        if (w * h >= 4096 && !tightJpeg) {
+            d.writeByte((3 << 4) | (RfbProto.TightExplicitFilter << 4));
+            d.writeByte(RfbProto.TightFilterGradient);
+            writeTightData(d, 3, gradientData(x, y, w, h));
+            return;
+        }
+
+        if (w * h >= 4096) {
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, w, h, desktop, y * width + x, width);
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", jpeg);
+            d.writeByte(RfbProto.TightJpeg << 4);
+            writeCompactLen(d, jpeg.size());
+            jpeg.writeTo(d);
+            return;
+        }
+
+        byte[] data = new byte[w * h * 3];
+        for (int j = 0, k = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int p = desktop[(y + j) * width + x + i];
+                data[k++] = (byte)(p >> 16);
+                data[k++] = (byte)(p >> 8);
+                data[k++] = (byte)p;
+            }
+        }
+        d.writeByte(0);
+        writeTightData(d, 0, data);
+    }
+
+    //
+    // Each color component minus its prediction from the pixels above and to the left.
+    //
+    private byte[] gradientData(int x, int y, int w, int h) {
+        byte[] data = new byte[w * h * 3];
+        for (int j = 0, k = 0; j < h; j++) {
+            for (int i = 0; i < w; i++) {
+                int p = desktop[(y + j) * width + x + i];
+                int above = (j > 0) ? desktop[(y + j - 1) * width + x + i] : 0;
+                int left = (i > 0) ? desktop[(y + j) * width + x + i - 1] : 0;
+                int aboveLeft = (i > 0 && j > 0) ? desktop[(y + j - 1) * width + x + i - 1] : 0;
+                for (int s = 16; s >= 0; s -= 8) {
+                    int est = ((above >> s) & 0xFF) + ((left >> s) & 0xFF) - ((aboveLeft >> s) & 0xFF);
+                    est = Math.max(0, Math.min(0xFF, est));
+                    data[k++] = (byte)(((p >> s) & 0xFF) - est);
+                }
+            }
+        }
+        return data;
+    }
+
+    private static void writeTightPixel(DataOutputStream d, int p) throws IOException {
+        d.writeByte(p >> 16);
+        d.writeByte(p >> 8);
+        d.writeByte(p);
+    }
+
+    private void writeTightData(DataOutputStream d, int stream, byte[] data) throws IOException {
+        if (data.length < RfbProto.TightMinToCompress) {
+            d.write(data);
+            return;
+        }
+        byte[] compressed = deflate(tightStreams[stream], data, data.length);
+        writeCompactLen(d, compressed.length);
+        d.write(compressed);
+    }
+
+    private static void writeCompactLen(DataOutputStream d, int len) throws IOException {
+        if (len < 0x80) {
+            d.writeByte(len);
+        } else if (len < 0x4000) {
+            d.writeByte(len & 0x7F | 0x80);
+            d.writeByte(len >> 7);
+        } else {
+            d.writeByte(len & 0x7F | 0x80);
+            d.writeByte(len >> 7 & 0x7F | 0x80);
+            d.writeByte(len >> 14);
+        }
+    }
+
+    private void encodeZRLE(DataOutputStream d, int x, int y, int w, int h) throws IOException {
+        ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+        for (int ty = y; ty < y + h; ty += 64) {
+            int th = Math.min(64, y + h - ty);
+            for (int tx = x; tx < x + w; tx += 64)
+                encodeZrleTile(tiles, tx, ty, Math.min(64, x + w - tx), th);
+        }
+        byte[] compressed = deflate(zrleStream, tiles.toByteArray(), tiles.size());
+        writeHeader(d, x, y, w, h, RfbProto.EncodingZRLE);
+        d.writeInt(compressed.length);
+        d.write(compressed);
+    }
+
+    private void encodeZrleTile(ByteArrayOutputStream out, int x, int y, int w, int h) {
+        HashMap<Integer, Integer> palette = palette(x, y, w, h, 127);
+
+        if (palette != null && palette.size() == 1) {
+            out.write(1);
+            writeZrlePixel(out, desktop[y * width + x]);
+            return;
+        }
+
+        if (palette != null && palette.size() <= 16) {
+            int[] colors = paletteColors(palette);
+            out.write(colors.length);
+            for (int c : colors)
+                writeZrlePixel(out, c);
+            int bits = colors.length > 4 ? 4 : (colors.length > 2 ? 2 : 1);
+            for (int j = y; j < y + h; j++) {
+                int b = 0, nbits = 0;
+                for (int i = x; i < x + w; i++) {
+                    b = b << bits | palette.get(desktop[j * width + i]);
+                    nbits += bits;
+                    if (nbits == 8) {
+                        out.write(b);
+                        b = nbits = 0;
+                    }
+                }
+                if (nbits > 0)
+                    out.write(b << (8 - nbits));
+            }
+            return;
+        }
+
+        if (palette != null) {
+            int[] colors = paletteColors(palette);
+            out.write(128 | colors.length);
+            for (int c : colors)
+                writeZrlePixel(out, c);
+        }
+
+        // Runs may span rows within the tile.
+        int runs = 0;
+        for (int k = 0, prev = -1; k < w * h; k++) {
+            int p = desktop[(y + k / w) * width + x + k % w];
+            if (k == 0 || p != prev)
+                runs++;
+            prev = p;
+        }
+
+        if (palette == null && runs * 4 >= w * h * 3) {
+            out.write(0);
+            for (int j = y; j < y + h; j++)
+                for (int i = x; i < x + w; i++)
+                    writeZrlePixel(out, desktop[j * width + i]);
+            return;
+        }
+
+        if (palette == null)
+            out.write(128);
+        int k = 0;
+        while (k < w * h) {
+            int p = desktop[(y + k / w) * width + x + k % w];
+            int len = 1;
+            while (k + len < w * h && desktop[(y + (k + len) / w) * width + x + (k + len) % w] == p)
+                len++;
+            k += len;
+            if (palette == null) {
+                writeZrlePixel(out, p);
+            } else if (len == 1) {
+                out.write(palette.get(p));
+                continue;
+            } else {
+                out.write(palette.get(p) | 128);
+            }
+            for (len -= 1; len >= 255; len -= 255)
+                out.write(255);
+            out.write(len);
+        }
+    }
+
+    // A compressed pixel: the three significant bytes of a little-endian pixel.
+    private static void writeZrlePixel(ByteArrayOutputStream out, int p) {
+        out.write(p);
+        out.write(p >> 8);
+        out.write(p >> 16);
+    }
+
+    private byte[] deflate(Deflater deflater, byte[] data, int len) {
+        deflater.setInput(data, 0, len);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+        int n;
+        do {
+            n = deflater.deflate(deflateBuf, 0, deflateBuf.length, Deflater.SYNC_FLUSH);
+            out.write(deflateBuf, 0, n);
+        } while (n == deflateBuf.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/*
+ * Replays an update trace through bVNC's Decoder into a headless framebuffer,
+ * dispatching rectangles the way RfbProto.processProtocol() does.
+ */
+
+class UpdateReplayer {
+    private final HeadlessBitmapData bitmapData;
+    private final RemoteCanvas canvas;
+    private Decoder decoder;
+    private RfbProto rfb;
+
+    UpdateReplayer(int width, int height) {
+        bitmapData = new HeadlessBitmapData(width, height);
+        canvas = new RemoteCanvas(bitmapData);
+    }
+
+    int[] pixels() {
+        return bitmapData.bitmapPixels;
+    }
+
+    /**
+     * Decodes every update in the trace, starting from fresh decoder state.
+     * @return The number of rectangles decoded.
+     */
+    int replay(UpdateTrace trace) throws Exception {
+        open(trace);
+        return decodeUpdates(trace.updateCount);
+    }
+
+    /**
+     * Starts decoding the trace from its first update, with fresh decoder state.
+     */
+    void open(UpdateTrace trace) throws Exception {
+        decoder = new Decoder(canvas);
+        rfb = new RfbProto(decoder, canvas, trace.width, trace.height, "");
+        rfb.setStreams(new ByteArrayInputStream(trace.updates), new NullOutputStream());
+        decoder.setBitmapData(bitmapData);
+        decoder.setColorModel(COLORMODEL.C24bit);
+        decoder.setPixelFormat(rfb);
+    }
+
+    Decoder decoder() {
+        return decoder;
+    }
+
+    /**
+     * Decodes the next count updates of the trace opened last.
+     * @return The number of rectangles decoded.
+     */
+    int decodeUpdates(int count) throws Exception {
+        int rects = 0;
+        for (int u = 0; u < count; u++) {
+            if (rfb.is.readUnsignedByte() != RfbProto.FramebufferUpdate)
+                throw new IOException("Trace contains a message other than FramebufferUpdate");
+            rfb.is.readByte();
+            int n = rfb.is.readUnsignedShort();
+
+            for (int i = 0; i < n; i++, rects++) {
+                int x = rfb.is.readUnsignedShort();
+                int y = rfb.is.readUnsignedShort();
+                int w = rfb.is.readUnsignedShort();
+                int h = rfb.is.readUnsignedShort();
+                int encoding = rfb.is.readInt();
+
+                if (encoding != RfbProto.EncodingTight)
+                    decoder.flushTightRects();
+
+                switch (encoding) {
+                case RfbProto.EncodingRaw:
+                    decoder.handleRawRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingCopyRect:
+                    decoder.handleCopyRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingRRE:
+                    decoder.handleRRERect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingCoRRE:
+                    decoder.handleCoRRERect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingHextile:
+                    decoder.handleHextileRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingZlib:
+                    decoder.handleZlibRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingTight:
+                    decoder.handleTightRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingZRLE:
+                    decoder.handleZRLERect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingXCursor:
+                case RfbProto.EncodingRichCursor:
+                    decoder.handleCursorShapeUpdate(rfb, encoding, x, y, w, h);
+                    break;
+                case RfbProto.EncodingLastRect:
+                    n = i;
+                    break;
+                default:
+                    throw new IOException("Unsupported encoding " + encoding + " in trace");
+                }
+            }
+            decoder.flushTightRects();
+        }
+        return rects;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * The server-to-client FramebufferUpdate messages of a session, for replaying
+ * through the decoders. Pixels are always 32bpp, depth 24, little-endian, the
+ * format bVNC asks for by default.
+ *
+ * On disk (<Encoding>.rfbu) a trace is a header followed by the messages:
+ *   u32 magic "RFBU", u8 version, u16 width, u16 height,
+ *   u32 number of updates, u32 number of rectangles, u32 length of the messages.
+ */
+
+class UpdateTrace {
+    static final int MAGIC   = 0x52464255;
+    static final int VERSION = 1;
+
+    // Encodings with a trace, in the order they are reported.
+    static final String[] ENCODINGS = { "Raw", "RRE", "CoRRE", "Hextile", "Zlib", "Tight", "ZRLE" };
+
+    final String encoding;
+    final int width, height;
+    final int updateCount;
+    final int rectCount;
+    final byte[] updates;
+
+    UpdateTrace(String encoding, int width, int height, int updateCount, int rectCount, byte[] updates) {
+        this.encoding    = encoding;
+        this.width       = width;
+        this.height      = height;
+        this.updateCount = updateCount;
+        this.rectCount   = rectCount;
+        this.updates     = updates;
+    }
+
+    static int encodingNumber(String encoding) {
+        if (encoding.equals("Raw"))     return RfbProto.EncodingRaw;
+        if (encoding.equals("RRE"))     return RfbProto.EncodingRRE;
+        if (encoding.equals("CoRRE"))   return RfbProto.EncodingCoRRE;
+        if (encoding.equals("Hextile")) return RfbProto.EncodingHextile;
+        if (encoding.equals("Zlib"))    return RfbProto.EncodingZlib;
+        if (encoding.equals("Tight"))   return RfbProto.EncodingTight;
+        if (encoding.equals("ZRLE"))    return RfbProto.EncodingZRLE;
+        throw new IllegalArgumentException("Unknown encoding " + encoding);
+    }
+
+    /**
+     * Loads the recorded trace for an encoding from the directory named by the
+     * "traces" system property, or generates a synthetic one if there is none.
+     */
+    static UpdateTrace load(String encoding) throws IOException {
+        String dir = System.getProperty("traces");
+        if (dir != null) {
+            File f = new File(dir, encoding + ".rfbu");
+            if (f.exists())
+                return read(encoding, f);
+        }
+        int width  = Integer.getInteger("width", 1280);
+        int height = Integer.getInteger("height", 800);
+        int frames = Integer.getInteger("frames", 30);
+        return new TraceGenerator(width, height).generate(encoding, frames);
+    }
+
+    static UpdateTrace read(String encoding, File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION)
+                throw new IOException(f + " is not an update trace");
+            int width  = in.readUnsignedShort();
+            int height = in.readUnsignedShort();
+            int updateCount = in.readInt();
+            int rectCount   = in.readInt();
+            byte[] updates  = new byte[in.readInt()];
+            in.readFully(updates);
+            return new UpdateTrace(encoding, width, height, updateCount, rectCount, updates);
+        } finally {
+            in.close();
+        }
+    }
+
+    void write(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(width);
+            out.writeShort(height);
+            out.writeInt(updateCount);
+            out.writeInt(rectCount);
+            out.writeInt(updates.length);
+            out.write(updates);
+        } finally {
+            out.close();
+        }
+    }
+}
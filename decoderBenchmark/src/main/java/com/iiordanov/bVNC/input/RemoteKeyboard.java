@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2012 Iordan Iordanov
+ *
+ * This is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307,
+ * USA.
+ */
+
+
+package com.iiordanov.bVNC.input;
+
+/*
+ * Headless stand-in for the app's RemoteKeyboard, holding only the modifier
+ * masks RfbProto uses.
+ */
+
+public abstract class RemoteKeyboard {
+    public final static int CTRL_MASK  = 4;
+    public final static int SHIFT_MASK = 1;
+    public final static int ALT_MASK   = 2;
+    public final static int SUPER_MASK = 8;
+    public final static int ALTGR_MASK = 16;
+    public final static int META_MASK  = 0;
+}
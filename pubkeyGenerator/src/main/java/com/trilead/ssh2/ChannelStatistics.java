@@ -0,0 +1,58 @@
+package com.trilead.ssh2;
+
+/**
+ * A snapshot of the traffic on one channel, see {@link ConnectionStatistics}.
+ * <p>
+ * The two window times tell who holds a slow channel back. Time on an empty
+ * remote window means that the server does not make room quickly enough (a
+ * slow network, or a slow reader on the other side). Time on an empty local
+ * window means that the local application does not read fast enough.
+ */
+public class ChannelStatistics
+{
+	/**
+	 * The local id of the channel.
+	 */
+	public int localChannelID;
+
+	/**
+	 * What the channel is used for, e.g. "session" or "direct-tcpip host:port".
+	 */
+	public String description;
+
+	/**
+	 * Channel data sent and received, in bytes. Includes stderr data.
+	 */
+	public long bytesSent;
+	public long bytesReceived;
+
+	/**
+	 * Number of data packets sent and received.
+	 */
+	public long packetsSent;
+	public long packetsReceived;
+
+	/**
+	 * How long, in milliseconds, the remote window was used up, i.e., how long
+	 * sending data had to wait for the server.
+	 */
+	public long remoteWindowEmptyTime;
+
+	/**
+	 * How long, in milliseconds, the local window was used up, i.e., how long the
+	 * server had to wait for the received data to be read.
+	 */
+	public long localWindowEmptyTime;
+
+	/**
+	 * The current remote window, i.e., how much may be sent right now.
+	 */
+	public long remoteWindow;
+
+	/**
+	 * The current local window, and the size it is topped up to (which grows on
+	 * links with a large bandwidth-delay product).
+	 */
+	public int localWindow;
+	public int localWindowSize;
+}
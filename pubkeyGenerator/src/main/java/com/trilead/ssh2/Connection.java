@@ -90,7 +90,8 @@ public class Connection
 
 	private boolean authenticated = false;
 	private boolean compression = false;
-	private ChannelManager cm;
+	/* Volatile so that statistics can be taken without the connection lock */
+	private volatile ChannelManager cm;
 
 	private CryptoWishList cryptoWishList = new CryptoWishList();
 
@@ -100,14 +101,22 @@ public class Connection
 
 	private final int port;
 
-	private TransportManager tm;
+	private volatile TransportManager tm;
 
 	private boolean tcpNoDelay = false;
 
+	private long rekeyBytes = TransportManager.DEFAULT_REKEY_BYTES;
+
+	private long rekeyTime = TransportManager.DEFAULT_REKEY_TIME;
+
+	private int maxChannelWindowSize = ChannelManager.DEFAULT_MAX_CHANNEL_WINDOW_SIZE;
+
 	private ProxyData proxyData = null;
 
 	private Vector<ConnectionMonitor> connectionMonitors = new Vector<ConnectionMonitor>();
 
+	private Vector<StatisticsReporter> statisticsReporters = new Vector<StatisticsReporter>();
+
 	/**
 	 * Prepares a fresh <code>Connection</code> object which can then be used
 	 * to establish a connection to the specified SSH-2 server.
@@ -181,7 +190,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -264,7 +273,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -312,7 +321,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -363,7 +372,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -433,7 +442,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -486,7 +495,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -603,6 +612,10 @@ public class Connection
 
 	private void close(Throwable t, boolean hard)
 	{
+		for (int i = 0; i < statisticsReporters.size(); i++)
+			statisticsReporters.elementAt(i).stopReporting();
+		statisticsReporters.removeAllElements();
+
 		if (cm != null)
 			cm.closeAllChannels();
 
@@ -749,6 +762,7 @@ public class Connection
 		tm = new TransportManager(hostname, port);
 
 		tm.setConnectionMonitors(connectionMonitors);
+		tm.setRekeyLimits(rekeyBytes, rekeyTime);
 
 		// Don't offer compression if not requested
 		if (!compression) {
@@ -1035,8 +1049,9 @@ public class Connection
 	 * the only effect that the so far specified parameters will be used for the
 	 * next (server driven) key exchange.
 	 * <p>
-	 * Note: This implementation will never start a key exchange (other than the
-	 * initial one) unless you or the SSH-2 server ask for it.
+	 * Apart from this, keys are only re-exchanged when the SSH-2 server asks for
+	 * it, or when the limits set with {@link #setRekeyLimits(long, long)} are
+	 * reached.
 	 * 
 	 * @throws IOException
 	 *             In case of any failure behind the scenes.
@@ -1086,6 +1101,104 @@ public class Connection
 		return tm.getConnectionInfo(1);
 	}
 
+	/**
+	 * Returns a snapshot of the traffic on this connection and on each of its
+	 * channels: bytes and packets, the time spent on crypto and compression,
+	 * how long the channel windows held the traffic back, and the key
+	 * exchanges. Meant to find out why a connection is slow.
+	 * 
+	 * @return a {@link ConnectionStatistics} object.
+	 */
+	public ConnectionStatistics getStatistics()
+	{
+		/* Not synchronized: connect() and the authentication methods hold the
+		 * lock across network round trips, and the statistics are wanted most
+		 * when the connection is stalled. */
+
+		TransportManager t = tm;
+		ChannelManager c = cm;
+
+		if (t == null)
+			throw new IllegalStateException(
+					"Cannot get statistics of connection, you need to establish a connection first.");
+
+		ConnectionStatistics stats = t.getStatistics();
+
+		if (c != null)
+			stats.channels = c.getChannelStatistics();
+
+		return stats;
+	}
+
+	/**
+	 * Have the statistics of this connection (see {@link #getStatistics()})
+	 * handed to a listener at regular intervals, until the listener is removed
+	 * or the connection is closed or lost. Can be called before the connection is
+	 * established; no statistics are handed over until it is.
+	 * 
+	 * @param listener
+	 *            the listener
+	 * @param interval
+	 *            time between two snapshots, in milliseconds
+	 */
+	public synchronized void addStatisticsListener(ConnectionStatisticsListener listener, long interval)
+	{
+		if (listener == null)
+			throw new IllegalArgumentException("listener may not be null");
+
+		if (interval <= 0)
+			throw new IllegalArgumentException("interval must be positive");
+
+		StatisticsReporter sr = new StatisticsReporter(this, listener, interval);
+		statisticsReporters.addElement(sr);
+		sr.start();
+	}
+
+	/**
+	 * Stop handing statistics to a listener added with
+	 * {@link #addStatisticsListener(ConnectionStatisticsListener, long)}.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public synchronized void removeStatisticsListener(ConnectionStatisticsListener listener)
+	{
+		for (int i = 0; i < statisticsReporters.size(); i++)
+		{
+			StatisticsReporter sr = statisticsReporters.elementAt(i);
+
+			if (sr.listener == listener)
+			{
+				sr.stopReporting();
+				statisticsReporters.removeElementAt(i);
+				i--;
+			}
+		}
+	}
+
+	/**
+	 * Called by a {@link StatisticsReporter} before each snapshot. The
+	 * connection can be lost without {@link #close()} being called, for
+	 * instance when the server goes away, so a reporter finds out here that it
+	 * has to stop.
+	 * 
+	 * @return false if the connection has been lost; the reporter is then
+	 *         forgotten and must stop.
+	 */
+	boolean keepReporting(StatisticsReporter sr)
+	{
+		TransportManager t = tm;
+
+		if ((t == null) || (t.isConnectionClosed() == false))
+			return true;
+
+		synchronized (this)
+		{
+			statisticsReporters.removeElement(sr);
+		}
+		return false;
+	}
+
 	/**
 	 * After a successful connect, one has to authenticate oneself. This method
 	 * can be used to tell which authentication methods are supported by the
@@ -1126,7 +1239,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, maxChannelWindowSize);
 
 		return am.getRemainingMethods(user);
 	}
@@ -1390,7 +1503,9 @@ public class Connection
 	 * 
 	 * @param algos
 	 *            An array of allowed server host key algorithms. SSH-2 defines
-	 *            <code>ssh-dss</code> and <code>ssh-rsa</code>. The
+	 *            <code>ssh-dss</code> and <code>ssh-rsa</code>, this
+	 *            implementation also supports <code>ssh-ed25519</code> and
+	 *            <code>ecdsa-sha2-nistp256</code>. The
 	 *            entries of the array must be ordered after preference, i.e.,
 	 *            the entry at index 0 is the most preferred one. You must
 	 *            specify at least one entry.
@@ -1426,6 +1541,55 @@ public class Connection
 			tm.setTcpNoDelay(enable);
 	}
 
+	/**
+	 * Set when the keys are re-exchanged automatically: after a given amount of
+	 * data has been sent and received with the same keys, or after they have
+	 * been in use for a given time, whichever comes first. The defaults are 1
+	 * GB and one hour. The limits are checked whenever a message is sent.
+	 * <p>
+	 * Channel traffic is not stalled by a key exchange, what is sent meanwhile
+	 * is queued and sent with the new keys.
+	 * <p>
+	 * Can be called at any time.
+	 * 
+	 * @param bytes
+	 *            the number of bytes, 0 for no limit
+	 * @param millis
+	 *            the time in milliseconds, 0 for no limit
+	 */
+	public synchronized void setRekeyLimits(long bytes, long millis)
+	{
+		if ((bytes < 0) || (millis < 0))
+			throw new IllegalArgumentException("The limits must be non-negative!");
+
+		rekeyBytes = bytes;
+		rekeyTime = millis;
+
+		if (tm != null)
+			tm.setRekeyLimits(bytes, millis);
+	}
+
+	/**
+	 * Set how large the receive window of a channel may grow. Windows start out
+	 * small and are grown automatically while the remote side is held back by
+	 * them, which matters on links with a large bandwidth-delay product. Each
+	 * channel may buffer up to a full window of data if the application does
+	 * not read it.
+	 * <p>
+	 * Can be called at any time, the value applies to channels opened
+	 * afterwards. The default is 4 MB.
+	 * 
+	 * @param size
+	 *            the ceiling for the receive window in bytes.
+	 */
+	public synchronized void setMaxChannelWindowSize(int size)
+	{
+		maxChannelWindowSize = size;
+
+		if (cm != null)
+			cm.setMaxChannelWindowSize(size);
+	}
+
 	/**
 	 * Used to tell the library that the connection shall be established through
 	 * a proxy server. It only makes sense to call this method before calling
@@ -27,18 +27,18 @@ public class ConnectionInfo
 
 	/**
 	 * The currently used MAC algorithm for packets from to the client to the
-	 * server.
+	 * server. <code>null</code> if the cipher authenticates the packets itself.
 	 */
 	public String clientToServerMACAlgorithm;
 	/**
 	 * The currently used MAC algorithm for packets from to the server to the
-	 * client.
+	 * client. <code>null</code> if the cipher authenticates the packets itself.
 	 */
 	public String serverToClientMACAlgorithm;
 
 	/**
-	 * The type of the server host key (currently either "ssh-dss" or
-	 * "ssh-rsa").
+	 * The type of the server host key (currently one of "ssh-ed25519",
+	 * "ecdsa-sha2-nistp256", "ssh-rsa" or "ssh-dss").
 	 */
 	public String serverHostKeyAlgorithm;
 	/**
@@ -50,4 +50,12 @@ public class ConnectionInfo
 	 * Number of kex exchanges performed on this connection so far.
 	 */
 	public int keyExchangeCounter = 0;
+
+	/**
+	 * How long the latest key exchange took in milliseconds, from the first
+	 * SSH_MSG_KEXINIT until the server's SSH_MSG_NEWKEYS. Outgoing messages are
+	 * queued during this time, senders are only held back once a lot has been
+	 * queued.
+	 */
+	public long keyExchangeDuration = 0;
 }
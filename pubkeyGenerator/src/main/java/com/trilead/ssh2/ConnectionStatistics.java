@@ -0,0 +1,76 @@
+package com.trilead.ssh2;
+
+/**
+ * A snapshot of the traffic on a connection, see
+ * {@link Connection#getStatistics()}. All counters start when the connection
+ * is established and only ever grow, so the difference of two snapshots gives
+ * the rates in between.
+ * <p>
+ * Whether a slow connection is held back by the network, by the windows of
+ * its channels or by the CPU can be told apart roughly as follows: the window
+ * times of the {@link ChannelStatistics} grow when the windows are the limit,
+ * the crypto and compression times grow close to the elapsed time when the
+ * CPU is.
+ */
+public class ConnectionStatistics
+{
+	/**
+	 * When the snapshot was taken, from <code>System.currentTimeMillis()</code>.
+	 */
+	public long time;
+
+	/**
+	 * Number of SSH packets sent and received.
+	 */
+	public long packetsSent;
+	public long packetsReceived;
+
+	/**
+	 * Payload of the packets sent and received, in bytes, before compression and
+	 * after decompression.
+	 */
+	public long payloadBytesSent;
+	public long payloadBytesReceived;
+
+	/**
+	 * Payload of the packets sent and received, in bytes, as it went over the
+	 * wire: after compression and before decompression. The same as the payload
+	 * if compression is not used.
+	 */
+	public long compressedBytesSent;
+	public long compressedBytesReceived;
+
+	/**
+	 * Bytes sent and received on the socket, including the packet headers,
+	 * padding and MACs.
+	 */
+	public long wireBytesSent;
+	public long wireBytesReceived;
+
+	/**
+	 * Time spent on packets sent and received, in nanoseconds, not counting
+	 * compression and waiting for the socket. This is mostly encryption and the
+	 * MAC.
+	 */
+	public long sendCryptoTime;
+	public long receiveCryptoTime;
+
+	/**
+	 * Time spent on compressing and decompressing, in nanoseconds.
+	 */
+	public long compressionTime;
+	public long decompressionTime;
+
+	/**
+	 * Number of key exchanges done so far, how long they took altogether and
+	 * how long the latest one took, in milliseconds.
+	 */
+	public int keyExchangeCounter;
+	public long keyExchangeTime;
+	public long lastKeyExchangeDuration;
+
+	/**
+	 * The channels which are open, or being opened or closed.
+	 */
+	public ChannelStatistics[] channels = new ChannelStatistics[0];
+}
@@ -0,0 +1,20 @@
+package com.trilead.ssh2;
+
+/**
+ * A <code>ConnectionStatisticsListener</code> is handed a snapshot of the
+ * statistics of a connection at regular intervals.
+ * 
+ * @see Connection#addStatisticsListener(ConnectionStatisticsListener, long)
+ */
+public interface ConnectionStatisticsListener
+{
+	/**
+	 * Called with the latest statistics. It is called from a thread of its own
+	 * which only serves this listener, so taking a while does no harm except
+	 * delaying the next call.
+	 * 
+	 * @param stats
+	 *            the snapshot
+	 */
+	public void statisticsUpdated(ConnectionStatistics stats);
+}
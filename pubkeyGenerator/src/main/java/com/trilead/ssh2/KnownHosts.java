@@ -12,6 +12,8 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Vector;
@@ -23,8 +25,11 @@ import com.trilead.ssh2.crypto.digest.MD5;
 import com.trilead.ssh2.crypto.digest.SHA1;
 import com.trilead.ssh2.signature.DSAPublicKey;
 import com.trilead.ssh2.signature.DSASHA1Verify;
+import com.trilead.ssh2.signature.ECDSASHA2Verify;
+import com.trilead.ssh2.signature.Ed25519Verify;
 import com.trilead.ssh2.signature.RSAPublicKey;
 import com.trilead.ssh2.signature.RSASHA1Verify;
+import com.trilead.ssh2.transport.KexManager;
 
 
 /**
@@ -61,7 +66,7 @@ public class KnownHosts
 		}
 	}
 
-	private LinkedList publicKeys = new LinkedList();
+	private LinkedList<KnownHostsEntry> publicKeys = new LinkedList<KnownHostsEntry>();
 
 	public KnownHosts()
 	{
@@ -111,6 +116,26 @@ public class KnownHosts
 				publicKeys.add(new KnownHostsEntry(hostnames, dpk));
 			}
 		}
+		else if ("ecdsa-sha2-nistp256".equals(serverHostKeyAlgorithm))
+		{
+			ECPublicKey epk = ECDSASHA2Verify.decodeSSHECDSAPublicKey(serverHostKey);
+
+			synchronized (publicKeys)
+			{
+				publicKeys.add(new KnownHostsEntry(hostnames, epk));
+			}
+		}
+		else if ("ssh-ed25519".equals(serverHostKeyAlgorithm))
+		{
+			/* Ed25519 keys are kept as their 32 byte encoding */
+
+			byte[] epk = Ed25519Verify.decodeSSHEd25519PublicKey(serverHostKey);
+
+			synchronized (publicKeys)
+			{
+				publicKeys.add(new KnownHostsEntry(hostnames, epk));
+			}
+		}
 		else
 			throw new IOException("Unknwon host key type (" + serverHostKeyAlgorithm + ")");
 	}
@@ -277,7 +302,7 @@ public class KnownHosts
 	/**
 	 * Try to find the preferred order of hostkey algorithms for the given hostname.
 	 * Based on the type of hostkey that is present in the internal database
-	 * (i.e., either <code>ssh-rsa</code> or <code>ssh-dss</code>)
+	 * (i.e., <code>ssh-rsa</code>, <code>ssh-dss</code>, <code>ecdsa-sha2-nistp256</code> or <code>ssh-ed25519</code>)
 	 * an ordered list of hostkey algorithms is returned which can be passed
 	 * to <code>Connection.setServerHostKeyAlgorithms</code>. 
 	 * 
@@ -405,7 +430,8 @@ public class KnownHosts
 
 			if (arr.length >= 3)
 			{
-				if ((arr[1].compareTo("ssh-rsa") == 0) || (arr[1].compareTo("ssh-dss") == 0))
+				if ((arr[1].compareTo("ssh-rsa") == 0) || (arr[1].compareTo("ssh-dss") == 0)
+						|| (arr[1].compareTo("ecdsa-sha2-nistp256") == 0) || (arr[1].compareTo("ssh-ed25519") == 0))
 				{
 					String[] hostnames = arr[0].split(",");
 
@@ -476,6 +502,19 @@ public class KnownHosts
 			return true;
 		}
 
+		if ((key1 instanceof ECPublicKey) && (key2 instanceof ECPublicKey))
+		{
+			ECPublicKey savedECKey = (ECPublicKey) key1;
+			ECPublicKey remoteECKey = (ECPublicKey) key2;
+
+			return savedECKey.getW().equals(remoteECKey.getW());
+		}
+
+		if ((key1 instanceof byte[]) && (key2 instanceof byte[]))
+		{
+			return Arrays.equals((byte[]) key1, (byte[]) key2);
+		}
+
 		return false;
 	}
 
@@ -544,6 +583,10 @@ public class KnownHosts
 				thisAlgo = "ssh-rsa";
 			else if (keys.elementAt(i) instanceof DSAPublicKey)
 				thisAlgo = "ssh-dss";
+			else if (keys.elementAt(i) instanceof ECPublicKey)
+				thisAlgo = "ecdsa-sha2-nistp256";
+			else if (keys.elementAt(i) instanceof byte[])
+				thisAlgo = "ssh-ed25519";
 			else
 				continue;
 
@@ -558,6 +601,8 @@ public class KnownHosts
 
 				continue;
 			}
+
+			preferredAlgo = thisAlgo;
 		}
 
 		/* If we did not find anything that we know of, return null */
@@ -577,10 +622,18 @@ public class KnownHosts
 		 * if he/she wants to accept the new key.
 		 */
 
-		if (preferredAlgo.equals("ssh-rsa"))
-			return new String[] { "ssh-rsa", "ssh-dss" };
+		String[] defaults = KexManager.getDefaultServerHostkeyAlgorithmList();
+		Vector<String> algos = new Vector<String>();
+
+		algos.addElement(preferredAlgo);
+
+		for (int i = 0; i < defaults.length; i++)
+		{
+			if (defaults[i].equals(preferredAlgo) == false)
+				algos.addElement(defaults[i]);
+		}
 
-		return new String[] { "ssh-dss", "ssh-rsa" };
+		return algos.toArray(new String[algos.size()]);
 	}
 
 	/**
@@ -589,7 +642,7 @@ public class KnownHosts
 	 * and the search is repeated using that IP address.
 	 * 
 	 * @param hostname the server's hostname, will be matched with all hostname patterns
-	 * @param serverHostKeyAlgorithm type of hostkey, either <code>ssh-rsa</code> or <code>ssh-dss</code>
+	 * @param serverHostKeyAlgorithm type of hostkey, <code>ssh-rsa</code>, <code>ssh-dss</code>, <code>ecdsa-sha2-nistp256</code> or <code>ssh-ed25519</code>
 	 * @param serverHostKey the key blob
 	 * @return <ul>
 	 *         <li><code>HOSTKEY_IS_OK</code>: the given hostkey matches an entry for the given hostname</li>
@@ -611,6 +664,14 @@ public class KnownHosts
 		{
 			remoteKey = DSASHA1Verify.decodeSSHDSAPublicKey(serverHostKey);
 		}
+		else if ("ecdsa-sha2-nistp256".equals(serverHostKeyAlgorithm))
+		{
+			remoteKey = ECDSASHA2Verify.decodeSSHECDSAPublicKey(serverHostKey);
+		}
+		else if ("ssh-ed25519".equals(serverHostKeyAlgorithm))
+		{
+			remoteKey = Ed25519Verify.decodeSSHEd25519PublicKey(serverHostKey);
+		}
 		else
 			throw new IllegalArgumentException("Unknown hostkey type " + serverHostKeyAlgorithm);
 
@@ -701,7 +762,7 @@ public class KnownHosts
 	 * Generates a "raw" fingerprint of a hostkey.
 	 * 
 	 * @param type either "md5" or "sha1"
-	 * @param keyType either "ssh-rsa" or "ssh-dss"
+	 * @param keyType "ssh-rsa", "ssh-dss", "ecdsa-sha2-nistp256" or "ssh-ed25519"
 	 * @param hostkey the hostkey
 	 * @return the raw fingerprint
 	 */
@@ -726,6 +787,12 @@ public class KnownHosts
 		else if ("ssh-dss".equals(keyType))
 		{
 		}
+		else if ("ecdsa-sha2-nistp256".equals(keyType))
+		{
+		}
+		else if ("ssh-ed25519".equals(keyType))
+		{
+		}
 		else
 			throw new IllegalArgumentException("Unknown key type " + keyType);
 
@@ -815,7 +882,7 @@ public class KnownHosts
 	 * <p>
 	 * Example fingerprint: d0:cb:76:19:99:5a:03:fc:73:10:70:93:f2:44:63:47.
 
-	 * @param keytype either "ssh-rsa" or "ssh-dss"
+	 * @param keytype "ssh-rsa", "ssh-dss", "ecdsa-sha2-nistp256" or "ssh-ed25519"
 	 * @param publickey key blob
 	 * @return Hex fingerprint
 	 */
@@ -832,7 +899,7 @@ public class KnownHosts
 	 * <p>
 	 * Example fingerprint: xofoc-bubuz-cazin-zufyl-pivuk-biduk-tacib-pybur-gonar-hotat-lyxux.
 	 * 
-	 * @param keytype either "ssh-rsa" or "ssh-dss"
+	 * @param keytype "ssh-rsa", "ssh-dss", "ecdsa-sha2-nistp256" or "ssh-ed25519"
 	 * @param publickey key data
 	 * @return Bubblebabble fingerprint
 	 */
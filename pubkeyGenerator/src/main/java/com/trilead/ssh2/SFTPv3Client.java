@@ -8,6 +8,8 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Vector;
 
 import com.trilead.ssh2.packets.TypesReader;
@@ -22,6 +24,12 @@ import com.trilead.ssh2.sftp.Packet;
  * client connection tunnelled over a SSH-2 connection. This is a very simple
  * (synchronous) implementation.
  * <p>
+ * Bulk transfers are the exception: {@link #write(SFTPv3FileHandle, long, byte[], int, int)},
+ * {@link SFTPv3FileInputStream}, {@link SFTPv3FileOutputStream} and the {@link #get(String, OutputStream)}
+ * and {@link #put(InputStream, String)} helpers keep several read or write requests in flight
+ * (see {@link #setMaxOutstandingRequests(int)}), so that their throughput is not limited to
+ * one request per round trip.
+ * <p>
  * Basically, most methods in this class map directly to one of
  * the packet types described in draft-ietf-secsh-filexfer-02.txt.
  * <p>
@@ -74,6 +82,24 @@ public class SFTPv3Client
 
 	int next_request_id = 1000;
 
+	/* The most read or write requests a pipelined transfer keeps in flight */
+	int max_outstanding_requests = DEFAULT_MAX_OUTSTANDING_REQUESTS;
+
+	/* Ids of pipelined requests whose replies have not been received yet */
+	final HashSet<Integer> pending_requests = new HashSet<Integer>();
+
+	/* Replies to pipelined requests which arrived while waiting for another one */
+	final HashMap<Integer, byte[]> early_replies = new HashMap<Integer, byte[]>();
+
+	/**
+	 * The number of requests kept in flight by pipelined transfers unless
+	 * {@link #setMaxOutstandingRequests(int)} is used, the same as OpenSSH's sftp.
+	 */
+	public static final int DEFAULT_MAX_OUTSTANDING_REQUESTS = 64;
+
+	/* The largest amount of data in a single read or write request */
+	static final int MAX_TRANSFER_LENGTH = 32768;
+
 	String charsetName = null;
 
 	/**
@@ -170,6 +196,37 @@ public class SFTPv3Client
 		return charsetName;
 	}
 
+	/**
+	 * Set the number of read or write requests which pipelined transfers may have
+	 * outstanding at once. Each request carries up to 32768 bytes, so this bounds the
+	 * amount of data in flight, and hence the throughput on links with a long round trip
+	 * time. The default is {@link #DEFAULT_MAX_OUTSTANDING_REQUESTS}.
+	 * <p>
+	 * The new value applies to transfers started afterwards.
+	 * 
+	 * @param max the number of outstanding requests, at least 1. Using 1 gives
+	 *        the strict request/response behavior of earlier versions.
+	 */
+	public void setMaxOutstandingRequests(int max)
+	{
+		if (max < 1)
+			throw new IllegalArgumentException("max must be at least 1");
+
+		max_outstanding_requests = max;
+	}
+
+	/**
+	 * The number of read or write requests which pipelined transfers may have outstanding.
+	 * 
+	 * @see #setMaxOutstandingRequests(int)
+	 * 
+	 * @return the maximum number of outstanding requests
+	 */
+	public int getMaxOutstandingRequests()
+	{
+		return max_outstanding_requests;
+	}
+
 	private final void checkHandleValidAndOpen(SFTPv3FileHandle handle) throws IOException
 	{
 		if (handle.client != this)
@@ -180,6 +237,14 @@ public class SFTPv3Client
 	}
 
 	private final void sendMessage(int type, int requestId, byte[] msg, int off, int len) throws IOException
+	{
+		writeMessage(type, requestId, msg, off, len);
+		os.flush();
+	}
+
+	/* Like sendMessage(), but leaves the message in the buffer of the stream */
+
+	private final void writeMessage(int type, int requestId, byte[] msg, int off, int len) throws IOException
 	{
 		int msglen = len + 1;
 
@@ -201,7 +266,6 @@ public class SFTPv3Client
 		}
 
 		os.write(msg, off, len);
-		os.flush();
 	}
 
 	private final void sendMessage(int type, int requestId, byte[] msg) throws IOException
@@ -252,6 +316,56 @@ public class SFTPv3Client
 		return msg;
 	}
 
+	/**
+	 * Read the reply to the request with the given id. The server may answer
+	 * pipelined requests in any order, replies to other pipelined requests which
+	 * arrive first are kept until they are asked for.
+	 * <p>
+	 * A reply to an unknown request is returned as it is, so that the caller
+	 * complains about the invalid id field.
+	 * 
+	 * @param id the request id
+	 * @param maxlen see {@link #receiveMessage(int)}
+	 * @return the message contents
+	 * @throws IOException
+	 */
+	private final byte[] receiveReply(int id, int maxlen) throws IOException
+	{
+		pending_requests.remove(id);
+
+		byte[] msg = early_replies.remove(id);
+
+		if (msg != null)
+			return msg;
+
+		while (true)
+		{
+			msg = receiveMessage(Math.max(maxlen, 34000));
+
+			if (msg.length < 5)
+				return msg;
+
+			int rep_id = ((msg[1] & 0xff) << 24) | ((msg[2] & 0xff) << 16) | ((msg[3] & 0xff) << 8) | (msg[4] & 0xff);
+
+			if ((rep_id == id) || (pending_requests.remove(rep_id) == false))
+				return msg;
+
+			early_replies.put(rep_id, msg);
+		}
+	}
+
+	/**
+	 * Wait for the reply to a pipelined request and drop it, e.g., after a
+	 * transfer has been aborted or reached the end of the file.
+	 * 
+	 * @param id the request id
+	 * @throws IOException
+	 */
+	void discardReply(int id) throws IOException
+	{
+		receiveReply(id, 34000);
+	}
+
 	private final int generateNextRequestID()
 	{
 		synchronized (this)
@@ -368,7 +482,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_FSTAT, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(req_id, 34000);
 
 		if (debug != null)
 		{
@@ -412,7 +526,7 @@ public class SFTPv3Client
 
 		sendMessage(statMethod, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(req_id, 34000);
 
 		if (debug != null)
 		{
@@ -493,7 +607,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_READLINK, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(req_id, 34000);
 
 		if (debug != null)
 		{
@@ -529,7 +643,7 @@ public class SFTPv3Client
 
 	private void expectStatusOKMessage(int id) throws IOException
 	{
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(id, 34000);
 
 		if (debug != null)
 		{
@@ -669,7 +783,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_REALPATH, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(req_id, 34000);
 
 		if (debug != null)
 		{
@@ -725,7 +839,7 @@ public class SFTPv3Client
 			/* Some servers send here a packet with size > 34000 */
 			/* To whom it may concern: please learn to read the specs. */
 			
-			byte[] resp = receiveMessage(65536);
+			byte[] resp = receiveReply(req_id, 65536);
 
 			if (debug != null)
 			{
@@ -792,7 +906,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_OPENDIR, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(req_id, 34000);
 
 		TypesReader tr = new TypesReader(resp);
 
@@ -1172,7 +1286,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_OPEN, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveReply(req_id, 34000);
 
 		TypesReader tr = new TypesReader(resp);
 
@@ -1232,6 +1346,25 @@ public class SFTPv3Client
 		if ((len > 32768) || (len <= 0))
 			throw new IllegalArgumentException("invalid len argument");
 
+		int req_id = sendReadRequest(handle, fileOffset, len);
+
+		os.flush();
+
+		return receiveReadReply(req_id, dst, dstoff, len);
+	}
+
+	/**
+	 * Send a SSH_FXP_READ request without waiting for the reply, which must then be
+	 * received with {@link #receiveReadReply(int, byte[], int, int)} or dropped with
+	 * {@link #discardReply(int)}. The request stays in the buffer of the stream
+	 * until {@link #flushRequests()} is called.
+	 * 
+	 * @return the request id
+	 */
+	int sendReadRequest(SFTPv3FileHandle handle, long fileOffset, int len) throws IOException
+	{
+		checkHandleValidAndOpen(handle);
+
 		int req_id = generateNextRequestID();
 
 		TypesWriter tw = new TypesWriter();
@@ -1245,9 +1378,30 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_READ, req_id, tw.getBytes());
+		byte[] msg = tw.getBytes();
+
+		writeMessage(Packet.SSH_FXP_READ, req_id, msg, 0, msg.length);
+
+		pending_requests.add(req_id);
+
+		return req_id;
+	}
 
-		byte[] resp = receiveMessage(34000);
+	/**
+	 * Send requests which were written by {@link #sendReadRequest(SFTPv3FileHandle, long, int)}.
+	 */
+	void flushRequests() throws IOException
+	{
+		os.flush();
+	}
+
+	/**
+	 * Receive the reply to a SSH_FXP_READ request, see
+	 * {@link #read(SFTPv3FileHandle, long, byte[], int, int)} for the return value.
+	 */
+	int receiveReadReply(int req_id, byte[] dst, int dstoff, int len) throws IOException
+	{
+		byte[] resp = receiveReply(req_id, 34000);
 
 		TypesReader tr = new TypesReader(resp);
 
@@ -1298,7 +1452,9 @@ public class SFTPv3Client
 
 	/**
 	 * Write bytes to a file. If <code>len</code> &gt; 32768, then the write operation will
-	 * be split into multiple writes.
+	 * be split into multiple writes, which are sent without waiting for the replies
+	 * to the previous ones (see {@link #setMaxOutstandingRequests(int)}). The method
+	 * returns once the server has confirmed all of them.
 	 * 
 	 * @param handle a SFTPv3FileHandle handle.
 	 * @param fileOffset offset (in bytes) in the file.
@@ -1311,54 +1467,144 @@ public class SFTPv3Client
 	{
 		checkHandleValidAndOpen(handle);
 
-		while (len > 0)
+		LinkedList<Integer> outstanding = new LinkedList<Integer>();
+
+		try
 		{
-			int writeRequestLen = len;
+			while (len > 0)
+			{
+				int writeRequestLen = len;
 
-			if (writeRequestLen > 32768)
-				writeRequestLen = 32768;
+				if (writeRequestLen > 32768)
+					writeRequestLen = 32768;
 
-			int req_id = generateNextRequestID();
+				if (outstanding.size() >= max_outstanding_requests)
+					receiveWriteReply(outstanding.removeFirst().intValue());
 
-			TypesWriter tw = new TypesWriter();
-			tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
-			tw.writeUINT64(fileOffset);
-			tw.writeString(src, srcoff, writeRequestLen);
+				outstanding.addLast(sendWriteRequest(handle, fileOffset, src, srcoff, writeRequestLen));
 
-			if (debug != null)
-			{
-				debug.println("Sending SSH_FXP_WRITE...");
-				debug.flush();
+				fileOffset += writeRequestLen;
+
+				srcoff += writeRequestLen;
+				len -= writeRequestLen;
 			}
 
-			sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
+			while (outstanding.isEmpty() == false)
+				receiveWriteReply(outstanding.removeFirst().intValue());
+		}
+		catch (IOException e)
+		{
+			while (outstanding.isEmpty() == false)
+				discardReply(outstanding.removeFirst().intValue());
 
-			fileOffset += writeRequestLen;
+			throw e;
+		}
+	}
 
-			srcoff += writeRequestLen;
-			len -= writeRequestLen;
+	/**
+	 * Send a SSH_FXP_WRITE request without waiting for the reply, which must then be
+	 * received with {@link #receiveWriteReply(int)} or dropped with {@link #discardReply(int)}.
+	 * 
+	 * @param len how many bytes to write, 0 &lt; len &lt;= 32768 bytes
+	 * @return the request id
+	 */
+	int sendWriteRequest(SFTPv3FileHandle handle, long fileOffset, byte[] src, int srcoff, int len)
+			throws IOException
+	{
+		checkHandleValidAndOpen(handle);
 
-			byte[] resp = receiveMessage(34000);
+		int req_id = generateNextRequestID();
 
-			TypesReader tr = new TypesReader(resp);
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
+		tw.writeUINT64(fileOffset);
+		tw.writeString(src, srcoff, len);
 
-			int t = tr.readByte();
+		if (debug != null)
+		{
+			debug.println("Sending SSH_FXP_WRITE...");
+			debug.flush();
+		}
 
-			int rep_id = tr.readUINT32();
-			if (rep_id != req_id)
-				throw new IOException("The server sent an invalid id field.");
+		sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
 
-			if (t != Packet.SSH_FXP_STATUS)
-				throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+		pending_requests.add(req_id);
 
-			int errorCode = tr.readUINT32();
+		return req_id;
+	}
 
-			if (errorCode == ErrorCodes.SSH_FX_OK)
-				continue;
+	/**
+	 * Receive the reply to a SSH_FXP_WRITE request.
+	 * 
+	 * @throws SFTPException if the server could not write the data
+	 */
+	void receiveWriteReply(int req_id) throws IOException
+	{
+		expectStatusOKMessage(req_id);
+	}
+
+	/**
+	 * Download a file. The data is requested ahead of time (see
+	 * {@link #setMaxOutstandingRequests(int)}), so that the transfer is not
+	 * limited to 32768 bytes per round trip.
+	 * 
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param out where the contents of the file is written to, it is not closed.
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	public long get(String fileName, OutputStream out) throws IOException
+	{
+		SFTPv3FileInputStream in = new SFTPv3FileInputStream(openFileRO(fileName));
+
+		try
+		{
+			return copy(in, out);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Upload a file. If the file exists it is truncated, otherwise it is created. The
+	 * data is sent without waiting for each write to be confirmed (see
+	 * {@link #setMaxOutstandingRequests(int)}).
+	 * 
+	 * @param in where the contents of the file is read from, until EOF. It is not closed.
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	public long put(InputStream in, String fileName) throws IOException
+	{
+		SFTPv3FileOutputStream out = new SFTPv3FileOutputStream(createFileTruncate(fileName));
+
+		try
+		{
+			return copy(in, out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static long copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buffer = new byte[MAX_TRANSFER_LENGTH];
+		long total = 0;
+
+		while (true)
+		{
+			int len = in.read(buffer);
 
-			String errorMessage = tr.readString();
+			if (len < 0)
+				return total;
 
-			throw new SFTPException(errorMessage, errorCode);
+			out.write(buffer, 0, len);
+			total += len;
 		}
 	}
 
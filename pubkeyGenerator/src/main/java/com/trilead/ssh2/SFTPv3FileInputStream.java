@@ -0,0 +1,198 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+/**
+ * A <code>SFTPv3FileInputStream</code> reads a remote file sequentially. It keeps
+ * requests for the following parts of the file in flight while the caller consumes
+ * the data (up to {@link SFTPv3Client#getMaxOutstandingRequests()}), so that reading
+ * is not limited to one request per round trip. The number of requests starts at one
+ * and grows as data arrives, so small files cost no more than before.
+ * <p>
+ * Like the {@link SFTPv3Client} it belongs to, a stream must not be used concurrently
+ * with other operations on the same client from another thread.
+ */
+public class SFTPv3FileInputStream extends InputStream
+{
+	private static class ReadRequest
+	{
+		final int id;
+		final long offset;
+		final int len;
+
+		ReadRequest(int id, long offset, int len)
+		{
+			this.id = id;
+			this.offset = offset;
+			this.len = len;
+		}
+	}
+
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+
+	/* Outstanding requests, in the order of their offsets */
+	private final LinkedList<ReadRequest> requests = new LinkedList<ReadRequest>();
+
+	private long nextRequestOffset;
+	private int maxRequests = 1;
+	private boolean eof = false;
+
+	private final byte[] buffer = new byte[SFTPv3Client.MAX_TRANSFER_LENGTH];
+	private int pos = 0;
+	private int end = 0;
+
+	/**
+	 * Read a file from the beginning. {@link #close()} closes the handle.
+	 * 
+	 * @param handle a handle opened for reading
+	 */
+	public SFTPv3FileInputStream(SFTPv3FileHandle handle)
+	{
+		this(handle, 0);
+	}
+
+	/**
+	 * Read a file from the given position. {@link #close()} closes the handle.
+	 * 
+	 * @param handle a handle opened for reading
+	 * @param fileOffset offset (in bytes) in the file
+	 */
+	public SFTPv3FileInputStream(SFTPv3FileHandle handle, long fileOffset)
+	{
+		if (handle == null)
+			throw new IllegalArgumentException("handle may not be null");
+
+		this.client = handle.getClient();
+		this.handle = handle;
+		this.nextRequestOffset = fileOffset;
+	}
+
+	public int read() throws IOException
+	{
+		while (pos == end)
+		{
+			if (fill() == false)
+				return -1;
+		}
+
+		return buffer[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || (off + len > b.length) || (off + len < 0))
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return 0;
+
+		while (pos == end)
+		{
+			if (fill() == false)
+				return -1;
+		}
+
+		int copylen = Math.min(len, end - pos);
+
+		System.arraycopy(buffer, pos, b, off, copylen);
+		pos += copylen;
+
+		return copylen;
+	}
+
+	public int available()
+	{
+		return end - pos;
+	}
+
+	/**
+	 * Drop the replies to outstanding requests and close the handle.
+	 */
+	public void close() throws IOException
+	{
+		if (handle.isClosed())
+			return;
+
+		try
+		{
+			discardRequests();
+		}
+		finally
+		{
+			client.closeFile(handle);
+		}
+	}
+
+	/**
+	 * Receive the next part of the file into the buffer.
+	 * 
+	 * @return <code>false</code> at the end of the file
+	 */
+	private boolean fill() throws IOException
+	{
+		if (handle.isClosed())
+			throw new IOException("The file handle is closed.");
+
+		if (eof == false)
+			sendRequests();
+
+		if (requests.isEmpty())
+			return false;
+
+		ReadRequest r = requests.removeFirst();
+
+		int len = client.receiveReadReply(r.id, buffer, 0, r.len);
+
+		if (len < 0)
+		{
+			eof = true;
+			discardRequests();
+			return false;
+		}
+
+		pos = 0;
+		end = len;
+
+		if (len < r.len)
+		{
+			/* A short read, ask for the rest before anything that follows it */
+
+			int rest = client.sendReadRequest(handle, r.offset + len, r.len - len);
+			requests.addFirst(new ReadRequest(rest, r.offset + len, r.len - len));
+			client.flushRequests();
+		}
+		else if (maxRequests < client.getMaxOutstandingRequests())
+		{
+			maxRequests++;
+		}
+
+		return true;
+	}
+
+	private void sendRequests() throws IOException
+	{
+		boolean sent = false;
+
+		while (requests.size() < maxRequests)
+		{
+			int len = SFTPv3Client.MAX_TRANSFER_LENGTH;
+			int id = client.sendReadRequest(handle, nextRequestOffset, len);
+
+			requests.addLast(new ReadRequest(id, nextRequestOffset, len));
+			nextRequestOffset += len;
+			sent = true;
+		}
+
+		if (sent)
+			client.flushRequests();
+	}
+
+	private void discardRequests() throws IOException
+	{
+		while (requests.isEmpty() == false)
+			client.discardReply(requests.removeFirst().id);
+	}
+}
@@ -0,0 +1,154 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * A <code>SFTPv3FileOutputStream</code> writes a remote file sequentially. The data
+ * is sent in writes of up to 32768 bytes without waiting for the server to confirm
+ * each of them, as long as no more than {@link SFTPv3Client#getMaxOutstandingRequests()}
+ * are unconfirmed. Errors reported by the server may therefore surface in a later call
+ * to <code>write()</code>, or in {@link #flush()} or {@link #close()}.
+ * <p>
+ * Like the {@link SFTPv3Client} it belongs to, a stream must not be used concurrently
+ * with other operations on the same client from another thread.
+ */
+public class SFTPv3FileOutputStream extends OutputStream
+{
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+
+	/* Ids of unconfirmed writes, oldest first */
+	private final LinkedList<Integer> outstanding = new LinkedList<Integer>();
+
+	private long fileOffset;
+
+	private final byte[] buffer = new byte[SFTPv3Client.MAX_TRANSFER_LENGTH];
+	private int count = 0;
+
+	/**
+	 * Write a file from the beginning. {@link #close()} closes the handle.
+	 * 
+	 * @param handle a handle opened for writing
+	 */
+	public SFTPv3FileOutputStream(SFTPv3FileHandle handle)
+	{
+		this(handle, 0);
+	}
+
+	/**
+	 * Write a file from the given position. {@link #close()} closes the handle.
+	 * 
+	 * @param handle a handle opened for writing
+	 * @param fileOffset offset (in bytes) in the file
+	 */
+	public SFTPv3FileOutputStream(SFTPv3FileHandle handle, long fileOffset)
+	{
+		if (handle == null)
+			throw new IllegalArgumentException("handle may not be null");
+
+		this.client = handle.getClient();
+		this.handle = handle;
+		this.fileOffset = fileOffset;
+	}
+
+	public void write(int b) throws IOException
+	{
+		buffer[count++] = (byte) b;
+
+		if (count == buffer.length)
+			sendBuffer();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || (off + len > b.length) || (off + len < 0))
+			throw new IndexOutOfBoundsException();
+
+		while (len > 0)
+		{
+			if ((count == 0) && (len >= buffer.length))
+			{
+				/* Whole requests are sent straight from the caller's array */
+
+				send(b, off, buffer.length);
+				off += buffer.length;
+				len -= buffer.length;
+				continue;
+			}
+
+			int copylen = Math.min(len, buffer.length - count);
+
+			System.arraycopy(b, off, buffer, count, copylen);
+			count += copylen;
+			off += copylen;
+			len -= copylen;
+
+			if (count == buffer.length)
+				sendBuffer();
+		}
+	}
+
+	/**
+	 * Send the buffered data and wait until the server has confirmed all writes.
+	 */
+	public void flush() throws IOException
+	{
+		if (count > 0)
+			sendBuffer();
+
+		while (outstanding.isEmpty() == false)
+			confirm(outstanding.removeFirst().intValue());
+	}
+
+	/**
+	 * Flush the stream and close the handle.
+	 */
+	public void close() throws IOException
+	{
+		if (handle.isClosed())
+			return;
+
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			client.closeFile(handle);
+		}
+	}
+
+	private void sendBuffer() throws IOException
+	{
+		send(buffer, 0, count);
+		count = 0;
+	}
+
+	private void send(byte[] b, int off, int len) throws IOException
+	{
+		if (outstanding.size() >= client.getMaxOutstandingRequests())
+			confirm(outstanding.removeFirst().intValue());
+
+		outstanding.addLast(client.sendWriteRequest(handle, fileOffset, b, off, len));
+		fileOffset += len;
+	}
+
+	private void confirm(int id) throws IOException
+	{
+		try
+		{
+			client.receiveWriteReply(id);
+		}
+		catch (IOException e)
+		{
+			/* Do not leave the replies to the other writes behind */
+
+			while (outstanding.isEmpty() == false)
+				client.discardReply(outstanding.removeFirst().intValue());
+
+			throw e;
+		}
+	}
+}
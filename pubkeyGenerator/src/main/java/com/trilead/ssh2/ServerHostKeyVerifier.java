@@ -20,7 +20,8 @@ public interface ServerHostKeyVerifier
 	 * 
 	 * @param hostname the hostname used to create the {@link Connection} object
 	 * @param port the remote TCP port
-	 * @param serverHostKeyAlgorithm the public key algorithm (<code>ssh-rsa</code> or <code>ssh-dss</code>)
+	 * @param serverHostKeyAlgorithm the public key algorithm (<code>ssh-ed25519</code>, <code>ecdsa-sha2-nistp256</code>,
+	 *        <code>ssh-rsa</code> or <code>ssh-dss</code>)
 	 * @param serverHostKey the server's public key blob
 	 * @return if the client wants to accept the server's host key - if not, the
 	 *         connection will be closed.
@@ -0,0 +1,93 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * Hands the statistics of a connection to a
+ * {@link ConnectionStatisticsListener} at regular intervals, on a thread of
+ * its own so that a slow listener holds up nothing else. Stops once the
+ * connection is closed or lost.
+ */
+class StatisticsReporter extends Thread
+{
+	private static final Logger log = Logger.getLogger(StatisticsReporter.class);
+
+	private final Connection conn;
+	final ConnectionStatisticsListener listener;
+	private final long interval;
+	private boolean stopped = false;
+
+	StatisticsReporter(Connection conn, ConnectionStatisticsListener listener, long interval)
+	{
+		this.conn = conn;
+		this.listener = listener;
+		this.interval = interval;
+
+		setName("StatisticsReporter");
+		setDaemon(true);
+	}
+
+	public void run()
+	{
+		long next = System.currentTimeMillis() + interval;
+
+		while (true)
+		{
+			synchronized (this)
+			{
+				while (stopped == false)
+				{
+					long now = System.currentTimeMillis();
+
+					if (now >= next)
+						break;
+
+					try
+					{
+						wait(next - now);
+					}
+					catch (InterruptedException ignore)
+					{
+					}
+				}
+
+				if (stopped)
+					return;
+			}
+
+			/* After a slow listener or a long stall, don't catch up with a burst */
+			next = Math.max(next + interval, System.currentTimeMillis());
+
+			if (conn.keepReporting(this) == false)
+				return;
+
+			ConnectionStatistics stats;
+
+			try
+			{
+				stats = conn.getStatistics();
+			}
+			catch (IllegalStateException e)
+			{
+				/* Not connected yet */
+				continue;
+			}
+
+			try
+			{
+				listener.statisticsUpdated(stats);
+			}
+			catch (RuntimeException e)
+			{
+				if (log.isEnabled())
+					log.log(20, "Exception in statistics listener: " + e.getMessage());
+			}
+		}
+	}
+
+	synchronized void stopReporting()
+	{
+		stopped = true;
+		notifyAll();
+	}
+}
@@ -98,6 +98,13 @@ public class Channel
 
 	final byte[] msgWindowAdjust = new byte[9];
 
+	/*
+	 * Header of SSH_MSG_CHANNEL_DATA messages, the payload is passed to the
+	 * transport separately. May only be used while holding the channelSendLock
+	 */
+
+	final byte[] msgDataHeader = new byte[9];
+
 	// If you access (read or write) any of the following fields, then you have
 	// to synchronize on the channel.
 
@@ -114,16 +121,44 @@ public class Channel
 	int localWindow = 0; /* locally, we use a small window, < 2^31 */
 	long remoteWindow = 0; /* long for readable  2^32 - 1 window support */
 
+	/*
+	 * Window auto-tuning. localWindow is topped up to localWindowSize, which
+	 * starts out at CHANNEL_BUFFER_SIZE and may grow up to maxLocalWindowSize. The
+	 * round trip time is measured from a window adjust to the arrival of the
+	 * first byte that only the adjust allowed the remote side to send. If more
+	 * than half the window arrives within one round trip, the remote side is
+	 * held back by the window, which is then grown to twice what arrived.
+	 */
+
+	int localWindowSize = CHANNEL_BUFFER_SIZE;
+	int maxLocalWindowSize = ChannelManager.DEFAULT_MAX_CHANNEL_WINDOW_SIZE;
+	long bytesReceived = 0;
+	long rttMark = -1;
+	long rttMarkTime = 0;
+	long rtt = 0;
+	long rttStartTime = 0;
+	long rttBytes = 0;
+
 	int localMaxPacketSize = -1;
 	int remoteMaxPacketSize = -1;
 
-	final byte[] stdoutBuffer = new byte[CHANNEL_BUFFER_SIZE];
-	final byte[] stderrBuffer = new byte[CHANNEL_BUFFER_SIZE];
+	/*
+	 * Statistics, see ChannelStatistics. A window is empty from the moment it
+	 * drops to 0 (at the time stored in ...EmptySince, from System.nanoTime())
+	 * until it is grown again; the time is then added to ...EmptyTime.
+	 */
+
+	String description;
+	long bytesSent = 0;
+	long packetsSent = 0;
+	long packetsReceived = 0;
+	long remoteWindowEmptySince = 0;
+	long remoteWindowEmptyTime = 0;
+	long localWindowEmptySince = 0;
+	long localWindowEmptyTime = 0;
 
-	int stdoutReadpos = 0;
-	int stdoutWritepos = 0;
-	int stderrReadpos = 0;
-	int stderrWritepos = 0;
+	final ChannelBuffer stdoutBuffer = new ChannelBuffer();
+	final ChannelBuffer stderrBuffer = new ChannelBuffer();
 
 	boolean EOF = false;
 
@@ -136,6 +171,10 @@ public class Channel
 
 	String hexX11FakeCookie;
 
+	// Told about changes of the channel if it is forwarded by a SelectorForwarder
+
+	IChannelListener listener;
+
 	// reasonClosed is special, since we sometimes need to access it
 	// while holding the channelSendLock.
 	// We protect it with a private short term lock.
@@ -148,6 +187,7 @@ public class Channel
 		this.cm = cm;
 
 		this.localWindow = CHANNEL_BUFFER_SIZE;
+		this.maxLocalWindowSize = Math.max(CHANNEL_BUFFER_SIZE, cm.getMaxChannelWindowSize());
 		this.localMaxPacketSize = 35000 - 1024; // leave enough slack
 
 		this.stdinStream = new ChannelOutputStream(this);
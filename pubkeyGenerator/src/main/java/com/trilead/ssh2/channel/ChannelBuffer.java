@@ -0,0 +1,79 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * ChannelBuffer. A ring buffer for data received on a channel. The array is
+ * only allocated once data arrives and grows as the channel window does, so
+ * that channels with a large window, or which never see any stderr data, do
+ * not hold on to large buffers.
+ * <p>
+ * Packets are copied in once and read straight into the caller's array; the
+ * data is never moved around within the buffer, so many small reads cost no
+ * more than one large one. The capacity is kept at a power of two so that
+ * positions wrap with a mask.
+ * <p>
+ * Not thread safe, access it while holding the lock of the channel.
+ */
+final class ChannelBuffer
+{
+	private byte[] buffer;
+	private int mask;
+	private int readpos = 0;
+	private int count = 0;
+
+	int available()
+	{
+		return count;
+	}
+
+	void write(byte[] src, int off, int len)
+	{
+		if (buffer == null || buffer.length - count < len)
+			grow(count + len);
+
+		int writepos = (readpos + count) & mask;
+		int first = Math.min(len, buffer.length - writepos);
+
+		System.arraycopy(src, off, buffer, writepos, first);
+		System.arraycopy(src, off + first, buffer, 0, len - first);
+		count += len;
+	}
+
+	int read(byte[] target, int off, int len)
+	{
+		int copylen = Math.min(len, count);
+
+		if (copylen <= 0)
+			return 0;
+
+		int first = Math.min(copylen, buffer.length - readpos);
+
+		System.arraycopy(buffer, readpos, target, off, first);
+		System.arraycopy(buffer, 0, target, off + first, copylen - first);
+		readpos = (readpos + copylen) & mask;
+		count -= copylen;
+
+		if (count == 0)
+			readpos = 0;
+
+		return copylen;
+	}
+
+	private void grow(int needed)
+	{
+		int size = (buffer != null) ? 2 * buffer.length : Integer.highestOneBit(Channel.CHANNEL_BUFFER_SIZE);
+
+		while (size < needed)
+			size *= 2;
+
+		byte[] larger = new byte[size];
+		int n = count;
+
+		if (n > 0)
+			read(larger, 0, n);
+
+		buffer = larger;
+		mask = size - 1;
+		readpos = 0;
+		count = n;
+	}
+}
@@ -7,6 +7,7 @@ import java.util.Vector;
 
 import com.trilead.ssh2.AuthAgentCallback;
 import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.ChannelStatistics;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketChannelAuthAgentReq;
 import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
@@ -40,6 +41,12 @@ public class ChannelManager implements MessageHandler
 {
 	private static final Logger log = Logger.getLogger(ChannelManager.class);
 
+	/**
+	 * The default ceiling for the receive window of a channel, see
+	 * {@link #setMaxChannelWindowSize(int)}.
+	 */
+	public static final int DEFAULT_MAX_CHANNEL_WINDOW_SIZE = 4 * 1024 * 1024;
+
 	private HashMap x11_magic_cookies = new HashMap();
 
 	private TransportManager tm;
@@ -58,12 +65,41 @@ public class ChannelManager implements MessageHandler
 
 	private boolean listenerThreadsAllowed = true;
 
+	private int maxChannelWindowSize = DEFAULT_MAX_CHANNEL_WINDOW_SIZE;
+
+	private SelectorForwarder forwarder;
+
 	public ChannelManager(TransportManager tm)
+	{
+		this(tm, DEFAULT_MAX_CHANNEL_WINDOW_SIZE);
+	}
+
+	public ChannelManager(TransportManager tm, int maxChannelWindowSize)
 	{
 		this.tm = tm;
+		setMaxChannelWindowSize(maxChannelWindowSize);
 		tm.registerMessageHandler(this, 80, 100);
 	}
 
+	/**
+	 * Sets how large the receive window of channels opened from now on may grow.
+	 * Windows start out small and grow with the measured bandwidth-delay product,
+	 * and a channel may buffer up to a window of data when it is not read quickly
+	 * enough.
+	 * 
+	 * @param size
+	 *            the ceiling in bytes
+	 */
+	public synchronized void setMaxChannelWindowSize(int size)
+	{
+		maxChannelWindowSize = size;
+	}
+
+	public synchronized int getMaxChannelWindowSize()
+	{
+		return maxChannelWindowSize;
+	}
+
 	private Channel getChannel(int id)
 	{
 		synchronized (channels)
@@ -78,6 +114,62 @@ public class ChannelManager implements MessageHandler
 		return null;
 	}
 
+	/**
+	 * Takes a snapshot of the statistics of all channels which have not been
+	 * closed yet.
+	 * 
+	 * @return the statistics, ordered by channel id
+	 */
+	public ChannelStatistics[] getChannelStatistics()
+	{
+		Channel[] all;
+
+		synchronized (channels)
+		{
+			all = new Channel[channels.size()];
+			channels.copyInto(all);
+		}
+
+		ChannelStatistics[] stats = new ChannelStatistics[all.length];
+
+		for (int i = 0; i < all.length; i++)
+		{
+			Channel c = all[i];
+			ChannelStatistics cs = new ChannelStatistics();
+
+			synchronized (c)
+			{
+				long now = System.nanoTime();
+				long remoteEmpty = c.remoteWindowEmptyTime;
+				long localEmpty = c.localWindowEmptyTime;
+
+				/* Include the periods which are still going on */
+
+				if (c.remoteWindowEmptySince != 0)
+					remoteEmpty += now - c.remoteWindowEmptySince;
+
+				if (c.localWindowEmptySince != 0)
+					localEmpty += now - c.localWindowEmptySince;
+
+				cs.localChannelID = c.localID;
+				cs.description = c.description;
+				cs.bytesSent = c.bytesSent;
+				cs.bytesReceived = c.bytesReceived;
+				cs.packetsSent = c.packetsSent;
+				cs.packetsReceived = c.packetsReceived;
+				cs.remoteWindow = c.remoteWindow;
+				cs.localWindow = c.localWindow;
+				cs.localWindowSize = c.localWindowSize;
+				cs.remoteWindowEmptyTime = remoteEmpty / 1000000;
+				cs.localWindowEmptyTime = localEmpty / 1000000;
+			}
+
+			stats[i] = cs;
+		}
+
+		return stats;
+	}
+
 	private void removeChannel(int id)
 	{
 		synchronized (channels)
@@ -306,6 +398,7 @@ public class ChannelManager implements MessageHandler
 			msg[4] = (byte) (c.remoteID);
 
 			c.notifyAll();
+			notifyListener(c);
 		}
 
 		synchronized (c.channelSendLock)
@@ -374,7 +467,6 @@ public class ChannelManager implements MessageHandler
 		while (len > 0)
 		{
 			int thislen = 0;
-			byte[] msg;
 
 			synchronized (c)
 			{
@@ -416,7 +508,19 @@ public class ChannelManager implements MessageHandler
 
 				c.remoteWindow -= thislen;
 
-				msg = new byte[1 + 8 + thislen];
+				c.bytesSent += thislen;
+				c.packetsSent++;
+
+				if (c.remoteWindow == 0)
+					c.remoteWindowEmptySince = System.nanoTime();
+			}
+
+			synchronized (c.channelSendLock)
+			{
+				if (c.closeMessageSent == true)
+					throw new IOException("SSH channel is closed. (" + c.getReasonClosed() + ")");
+
+				byte[] msg = c.msgDataHeader;
 
 				msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
 				msg[1] = (byte) (c.remoteID >> 24);
@@ -428,15 +532,9 @@ public class ChannelManager implements MessageHandler
 				msg[7] = (byte) (thislen >> 8);
 				msg[8] = (byte) (thislen);
 
-				System.arraycopy(buffer, pos, msg, 9, thislen);
-			}
-
-			synchronized (c.channelSendLock)
-			{
-				if (c.closeMessageSent == true)
-					throw new IOException("SSH channel is closed. (" + c.getReasonClosed() + ")");
+				/* The payload is copied only once, straight into the packet */
 
-				tm.sendMessage(msg);
+				tm.sendMessage(msg, buffer, pos, thislen);
 			}
 
 			pos += thislen;
@@ -444,6 +542,23 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * The number of bytes which {@link #sendData(Channel, byte[], int, int)} can
+	 * send right away, without waiting for the remote side to grow the window.
+	 * 
+	 * @return the remote window, or -1 if the channel is not open
+	 */
+	int getRemoteWindow(Channel c)
+	{
+		synchronized (c)
+		{
+			if (c.state != Channel.STATE_OPEN)
+				return -1;
+
+			return (int) Math.min(c.remoteWindow, Integer.MAX_VALUE);
+		}
+	}
+
 	public int requestGlobalForward(String bindAddress, int bindPort, String targetAddress, int targetPort)
 			throws IOException
 	{
@@ -576,6 +691,33 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Returns the thread which forwards data between sockets and channels of this
+	 * connection, it is started on first use.
+	 */
+	SelectorForwarder getForwarder() throws IOException
+	{
+		synchronized (listenerThreads)
+		{
+			if (forwarder == null)
+			{
+				SelectorForwarder sf = new SelectorForwarder(this);
+				registerThread(sf);
+				sf.start();
+				forwarder = sf;
+			}
+			return forwarder;
+		}
+	}
+
+	/* Call while holding the lock of the channel, after notifyAll() */
+
+	private void notifyListener(Channel c)
+	{
+		if (c.listener != null)
+			c.listener.channelChanged();
+	}
+
 	public Channel openDirectTCPIPChannel(String host_to_connect, int port_to_connect, String originator_IP_address,
 			int originator_port) throws IOException
 	{
@@ -584,6 +726,7 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.localID = addChannel(c);
+			c.description = "direct-tcpip " + host_to_connect + ":" + port_to_connect;
 			// end of synchronized block forces writing out to main memory
 		}
 
@@ -604,6 +747,7 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.localID = addChannel(c);
+			c.description = "session";
 			// end of synchronized block forces the writing out to main memory
 		}
 
@@ -910,11 +1054,17 @@ public class ChannelManager implements MessageHandler
 				throw new IOException("Remote sent too much data, does not fit into window.");
 
 			c.localWindow -= len;
+			tuneWindow(c, len);
+
+			c.packetsReceived++;
 
-			System.arraycopy(msg, 13, c.stderrBuffer, c.stderrWritepos, len);
-			c.stderrWritepos += len;
+			if (c.localWindow == 0)
+				c.localWindowEmptySince = System.nanoTime();
+
+			c.stderrBuffer.write(msg, 13, len);
 
 			c.notifyAll();
+			notifyListener(c);
 		}
 	}
 
@@ -941,8 +1091,8 @@ public class ChannelManager implements MessageHandler
 			{
 				int current_cond = 0;
 
-				int stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-				int stderrAvail = c.stderrWritepos - c.stderrReadpos;
+				int stdoutAvail = c.stdoutBuffer.available();
+				int stderrAvail = c.stderrBuffer.available();
 
 				if (stdoutAvail > 0)
 					current_cond = current_cond | ChannelCondition.STDOUT_DATA;
@@ -1002,15 +1152,26 @@ public class ChannelManager implements MessageHandler
 			int avail;
 
 			if (extended)
-				avail = c.stderrWritepos - c.stderrReadpos;
+				avail = c.stderrBuffer.available();
 			else
-				avail = c.stdoutWritepos - c.stdoutReadpos;
+				avail = c.stdoutBuffer.available();
 
 			return ((avail > 0) ? avail : (c.EOF ? -1 : 0));
 		}
 	}
 
 	public int getChannelData(Channel c, boolean extended, byte[] target, int off, int len) throws IOException
+	{
+		return getChannelData(c, extended, target, off, len, true);
+	}
+
+	/**
+	 * Like {@link #getChannelData(Channel, boolean, byte[], int, int)}, but
+	 * returns 0 instead of waiting if <code>wait</code> is false and no data is
+	 * available.
+	 */
+	int getChannelData(Channel c, boolean extended, byte[] target, int off, int len, boolean wait)
+			throws IOException
 	{
 		int copylen = 0;
 		int increment = 0;
@@ -1029,8 +1190,8 @@ public class ChannelManager implements MessageHandler
 				 * channel is already closed.
 				 */
 
-				stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-				stderrAvail = c.stderrWritepos - c.stderrReadpos;
+				stdoutAvail = c.stdoutBuffer.available();
+				stderrAvail = c.stderrBuffer.available();
 
 				if ((!extended) && (stdoutAvail != 0))
 					break;
@@ -1043,6 +1204,9 @@ public class ChannelManager implements MessageHandler
 				if ((c.EOF) || (c.state != Channel.STATE_OPEN))
 					return -1;
 
+				if (wait == false)
+					return 0;
+
 				try
 				{
 					c.wait();
@@ -1055,44 +1219,42 @@ public class ChannelManager implements MessageHandler
 			/* OK, there is some data. Return it. */
 
 			if (!extended)
-			{
-				copylen = (stdoutAvail > len) ? len : stdoutAvail;
-				System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, target, off, copylen);
-				c.stdoutReadpos += copylen;
+				copylen = c.stdoutBuffer.read(target, off, len);
+			else
+				copylen = c.stderrBuffer.read(target, off, len);
 
-				if (c.stdoutReadpos != c.stdoutWritepos)
+			if (c.state != Channel.STATE_OPEN)
+				return copylen;
 
-					System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, c.stdoutBuffer, 0, c.stdoutWritepos
-							- c.stdoutReadpos);
+			/*
+			 * Adjusts are batched, the window is only topped up once half of it
+			 * has been used up.
+			 */
 
-				c.stdoutWritepos -= c.stdoutReadpos;
-				c.stdoutReadpos = 0;
-			}
-			else
+			if (c.localWindow < ((c.localWindowSize + 1) / 2))
 			{
-				copylen = (stderrAvail > len) ? len : stderrAvail;
-				System.arraycopy(c.stderrBuffer, c.stderrReadpos, target, off, copylen);
-				c.stderrReadpos += copylen;
-
-				if (c.stderrReadpos != c.stderrWritepos)
+				int minFreeSpace = c.localWindowSize - Math.max(c.stdoutBuffer.available(), c.stderrBuffer.available());
 
-					System.arraycopy(c.stderrBuffer, c.stderrReadpos, c.stderrBuffer, 0, c.stderrWritepos
-							- c.stderrReadpos);
+				increment = minFreeSpace - c.localWindow;
 
-				c.stderrWritepos -= c.stderrReadpos;
-				c.stderrReadpos = 0;
-			}
+				if (increment > 0)
+				{
+					/* Anything past the current window is sent only after the adjust arrives */
 
-			if (c.state != Channel.STATE_OPEN)
-				return copylen;
+					if (c.rttMark < 0)
+					{
+						c.rttMark = c.bytesReceived + c.localWindow;
+						c.rttMarkTime = System.nanoTime();
+					}
 
-			if (c.localWindow < ((Channel.CHANNEL_BUFFER_SIZE + 1) / 2))
-			{
-				int minFreeSpace = Math.min(Channel.CHANNEL_BUFFER_SIZE - c.stdoutWritepos, Channel.CHANNEL_BUFFER_SIZE
-						- c.stderrWritepos);
+					if (c.localWindowEmptySince != 0)
+					{
+						c.localWindowEmptyTime += System.nanoTime() - c.localWindowEmptySince;
+						c.localWindowEmptySince = 0;
+					}
 
-				increment = minFreeSpace - c.localWindow;
-				c.localWindow = minFreeSpace;
+					c.localWindow = minFreeSpace;
+				}
 			}
 
 			remoteID = c.remoteID; /* read while holding the lock */
@@ -1132,6 +1294,53 @@ public class ChannelManager implements MessageHandler
 		return copylen;
 	}
 
+	/**
+	 * Accounts for data received on a channel, and grows its window if the data
+	 * shows that the remote side is held back by it. Call while holding the lock
+	 * of the channel.
+	 * 
+	 * @param c
+	 *            Channel
+	 * @param len
+	 *            number of bytes received
+	 */
+	private void tuneWindow(Channel c, int len)
+	{
+		long now = System.nanoTime();
+
+		c.bytesReceived += len;
+
+		if ((c.rttMark >= 0) && (c.bytesReceived > c.rttMark))
+		{
+			long sample = now - c.rttMarkTime;
+
+			if ((c.rtt == 0) || (sample < c.rtt))
+				c.rtt = sample;
+
+			c.rttMark = -1;
+		}
+
+		if (c.rtt == 0)
+			return;
+
+		c.rttBytes += len;
+
+		if (now - c.rttStartTime < c.rtt)
+			return;
+
+		if ((2 * c.rttBytes > c.localWindowSize) && (c.localWindowSize < c.maxLocalWindowSize))
+		{
+			c.localWindowSize = (int) Math.min(2 * c.rttBytes, c.maxLocalWindowSize);
+
+			if (log.isEnabled())
+				log.log(80, "Growing window of channel " + c.localID + " to " + c.localWindowSize + " (rtt "
+						+ (c.rtt / 1000000) + " ms)");
+		}
+
+		c.rttStartTime = now;
+		c.rttBytes = 0;
+	}
+
 	public void msgChannelData(byte[] msg, int msglen) throws IOException
 	{
 		if (msglen <= 9)
@@ -1164,11 +1373,17 @@ public class ChannelManager implements MessageHandler
 				throw new IOException("Remote sent too much data, does not fit into window.");
 
 			c.localWindow -= len;
+			tuneWindow(c, len);
+
+			c.packetsReceived++;
 
-			System.arraycopy(msg, 9, c.stdoutBuffer, c.stdoutWritepos, len);
-			c.stdoutWritepos += len;
+			if (c.localWindow == 0)
+				c.localWindowEmptySince = System.nanoTime();
+
+			c.stdoutBuffer.write(msg, 9, len);
 
 			c.notifyAll();
+			notifyListener(c);
 		}
 	}
 
@@ -1189,6 +1404,12 @@ public class ChannelManager implements MessageHandler
 		{
 			final long huge = 0xFFFFffffL; /* 2^32 - 1 */
 
+			if ((c.remoteWindowEmptySince != 0) && (windowChange != 0))
+			{
+				c.remoteWindowEmptyTime += System.nanoTime() - c.remoteWindowEmptySince;
+				c.remoteWindowEmptySince = 0;
+			}
+
 			c.remoteWindow += (windowChange & huge); /* avoid sign extension */
 
 			/* TODO - is this a good heuristic? */
@@ -1197,6 +1418,7 @@ public class ChannelManager implements MessageHandler
 				c.remoteWindow = huge;
 
 			c.notifyAll();
+			notifyListener(c);
 		}
 
 		if (log.isEnabled())
@@ -1244,6 +1466,7 @@ public class ChannelManager implements MessageHandler
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* properly convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
 				c.localID = addChannel(c);
+				c.description = "x11 " + remoteOriginatorAddress + ":" + remoteOriginatorPort;
 			}
 
 			/*
@@ -1295,6 +1518,8 @@ public class ChannelManager implements MessageHandler
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
 				c.localID = addChannel(c);
+				c.description = "forwarded-tcpip " + remoteConnectedAddress + ":" + remoteConnectedPort + " to "
+						+ rfd.targetAddress + ":" + rfd.targetPort;
 			}
 
 			/*
@@ -1319,6 +1544,7 @@ public class ChannelManager implements MessageHandler
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* properly convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
 				c.localID = addChannel(c);
+				c.description = "auth-agent";
 			}
 
 			AuthAgentForwardThread aat = new AuthAgentForwardThread(c, authAgent);
@@ -1442,6 +1668,7 @@ public class ChannelManager implements MessageHandler
 		{
 			c.EOF = true;
 			c.notifyAll();
+			notifyListener(c);
 		}
 
 		if (log.isEnabled())
@@ -1470,6 +1697,7 @@ public class ChannelManager implements MessageHandler
 			removeChannel(c.localID);
 
 			c.notifyAll();
+			notifyListener(c);
 		}
 
 		if (log.isEnabled())
@@ -1695,6 +1923,7 @@ public class ChannelManager implements MessageHandler
 																															 * from the server...
 																															 */
 						c.notifyAll();
+						notifyListener(c);
 					}
 				}
 				/* Works with J2ME */
@@ -28,6 +28,7 @@ import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 import net.sourceforge.jsocks.Proxy;
 import net.sourceforge.jsocks.ProxyMessage;
@@ -164,8 +165,6 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 		private void onConnect(ProxyMessage msg) throws IOException {
 			ProxyMessage response = null;
 			Channel cn = null;
-			StreamForwarder r2l = null;
-			StreamForwarder l2r = null;
 
 			if (msg instanceof Socks5Message) {
 				response = new Socks5Message(Proxy.SOCKS_SUCCESS, (InetAddress)null, 0);
@@ -202,8 +201,12 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 			}
 
 			try {
-				r2l = new StreamForwarder(cn, null, sock, cn.stdoutStream, out, "RemoteToLocal");
-				l2r = new StreamForwarder(cn, r2l, sock, in, cn.stdinStream, "LocalToRemote");
+				/*
+				 * The SOCKS request has been read completely, so nothing is
+				 * left behind in the streams when the socket's channel takes
+				 * over. This thread ends here.
+				 */
+				cm.getForwarder().forward(cn, sock.getChannel());
 			} catch (IOException e) {
 				try {
 					/*
@@ -211,18 +214,16 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 					 * discard the channel immediatelly
 					 */
 					cn.cm.closeChannel(cn,
-							"Weird error during creation of StreamForwarder ("
+							"Weird error during creation of SelectorForwarder ("
 									+ e.getMessage() + ")", true);
 				} catch (IOException ignore) {
 				}
 
-				return;
+				try {
+					sock.close();
+				} catch (IOException ignore) {
+				}
 			}
-
-			r2l.setDaemon(true);
-			l2r.setDaemon(true);
-			r2l.start();
-			l2r.start();
 		}
 	}
 
@@ -232,14 +233,15 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 
 		setName("DynamicAcceptThread");
 
-		ss = new ServerSocket(local_port);
+		ss = ServerSocketChannel.open().socket();
+		ss.bind(new InetSocketAddress(local_port));
 	}
 
 	public DynamicAcceptThread(ChannelManager cm, InetSocketAddress localAddress)
 			throws IOException {
 		this.cm = cm;
 
-		ss = new ServerSocket();
+		ss = ServerSocketChannel.open().socket();
 		ss.bind(localAddress);
 	}
 
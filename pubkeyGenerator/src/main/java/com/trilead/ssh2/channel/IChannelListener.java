@@ -0,0 +1,14 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * IChannelListener. Is told when data, window space, EOF or a close arrive
+ * on a channel, as an alternative to waiting on the channel.
+ * <p>
+ * The listener is called by the receive thread while it holds the lock of the
+ * channel. It must return quickly, and must not send messages or wait for
+ * other threads.
+ */
+interface IChannelListener
+{
+	public void channelChanged();
+}
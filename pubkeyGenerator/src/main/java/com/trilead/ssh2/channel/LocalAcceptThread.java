@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * LocalAcceptThread.
@@ -27,7 +28,8 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 		this.host_to_connect = host_to_connect;
 		this.port_to_connect = port_to_connect;
 
-		ss = new ServerSocket(local_port);
+		ss = ServerSocketChannel.open().socket();
+		ss.bind(new InetSocketAddress(local_port));
 	}
 
 	public LocalAcceptThread(ChannelManager cm, InetSocketAddress localAddress, String host_to_connect,
@@ -37,7 +39,7 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 		this.host_to_connect = host_to_connect;
 		this.port_to_connect = port_to_connect;
 
-		ss = new ServerSocket();
+		ss = ServerSocketChannel.open().socket();
 		ss.bind(localAddress);
 	}
 
@@ -68,8 +70,6 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 			}
 
 			Channel cn = null;
-			StreamForwarder r2l = null;
-			StreamForwarder l2r = null;
 
 			try
 			{
@@ -96,28 +96,30 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread
 
 			try
 			{
-				r2l = new StreamForwarder(cn, null, s, cn.stdoutStream, s.getOutputStream(), "RemoteToLocal");
-				l2r = new StreamForwarder(cn, r2l, s, s.getInputStream(), cn.stdinStream, "LocalToRemote");
+				/* The socket was accepted from a ServerSocketChannel, so it has a channel */
+
+				cm.getForwarder().forward(cn, s.getChannel());
 			}
 			catch (IOException e)
 			{
 				try
 				{
 					/* This message is only visible during debugging, since we discard the channel immediatelly */
-					cn.cm.closeChannel(cn, "Weird error during creation of StreamForwarder (" + e.getMessage() + ")",
+					cn.cm.closeChannel(cn, "Weird error during creation of SelectorForwarder (" + e.getMessage() + ")",
 							true);
 				}
 				catch (IOException ignore)
 				{
 				}
 
-				continue;
+				try
+				{
+					s.close();
+				}
+				catch (IOException ignore)
+				{
+				}
 			}
-
-			r2l.setDaemon(true);
-			l2r.setDaemon(true);
-			r2l.start();
-			l2r.start();
 		}
 	}
 
@@ -2,7 +2,8 @@
 package com.trilead.ssh2.channel;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 import com.trilead.ssh2.log.Logger;
 
@@ -26,7 +27,7 @@ public class RemoteAcceptThread extends Thread
 	String targetAddress;
 	int targetPort;
 
-	Socket s;
+	SocketChannel s;
 
 	public RemoteAcceptThread(Channel c, String remoteConnectedAddress, int remoteConnectedPort,
 			String remoteOriginatorAddress, int remoteOriginatorPort, String targetAddress, int targetPort)
@@ -50,34 +51,11 @@ public class RemoteAcceptThread extends Thread
 		{
 			c.cm.sendOpenConfirmation(c);
 
-			s = new Socket(targetAddress, targetPort);
+			s = SocketChannel.open(new InetSocketAddress(targetAddress, targetPort));
 
-			StreamForwarder r2l = new StreamForwarder(c, null, s, c.getStdoutStream(), s.getOutputStream(),
-					"RemoteToLocal");
-			StreamForwarder l2r = new StreamForwarder(c, null, null, s.getInputStream(), c.getStdinStream(),
-					"LocalToRemote");
+			/* From here on, the forwarder closes the channel and the socket */
 
-			/* No need to start two threads, one can be executed in the current thread */
-			
-			r2l.setDaemon(true);
-			r2l.start();
-			l2r.run();
-
-			while (r2l.isAlive())
-			{
-				try
-				{
-					r2l.join();
-				}
-				catch (InterruptedException e)
-				{
-				}
-			}
-
-			/* If the channel is already closed, then this is a no-op */
-
-			c.cm.closeChannel(c, "EOF on both streams reached.", true);
-			s.close();
+			c.cm.getForwarder().forward(c, s);
 		}
 		catch (IOException e)
 		{
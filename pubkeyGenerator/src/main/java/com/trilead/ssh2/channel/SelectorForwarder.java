@@ -0,0 +1,365 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * A SelectorForwarder forwards data between local sockets and channels. One
+ * thread serves all forwarded sockets of a connection with non-blocking I/O,
+ * instead of a pair of {@link StreamForwarder} threads for each socket.
+ * <p>
+ * Data is only read from a socket as far as the remote window of its channel
+ * allows, and only taken out of a channel once the socket has accepted what was
+ * taken before. A slow peer therefore holds back the other side through the
+ * SSH window, and never blocks the thread. An idle socket costs neither a thread
+ * nor a buffer.
+ * <p>
+ * The receive thread of the connection only marks a channel as changed and wakes
+ * up the selector (see {@link IChannelListener}).
+ */
+class SelectorForwarder extends Thread implements IChannelWorkerThread
+{
+	private static final Logger log = Logger.getLogger(SelectorForwarder.class);
+
+	/* How many reads one socket or channel gets in a row, before the others get a turn */
+	private static final int MAX_READS_PER_TURN = 8;
+
+	private class Forwarding implements IChannelListener
+	{
+		final Channel c;
+		final SocketChannel sc;
+		SelectionKey key;
+
+		/* Channel data which the socket did not accept yet */
+		byte[] pending;
+		int pendingOff = 0;
+		int pendingLen = 0;
+
+		boolean localEOF = false;
+		boolean remoteEOF = false;
+
+		/* Whether it is in the changed list, protected by the list */
+		boolean scheduled = false;
+
+		Forwarding(Channel c, SocketChannel sc)
+		{
+			this.c = c;
+			this.sc = sc;
+		}
+
+		public void channelChanged()
+		{
+			schedule(this);
+		}
+	}
+
+	private final ChannelManager cm;
+	private final Selector selector;
+
+	/* Only used by this thread, shared by all sockets */
+	private final byte[] buffer = new byte[Channel.CHANNEL_BUFFER_SIZE];
+	private final ByteBuffer readBuffer = ByteBuffer.wrap(buffer);
+
+	/* Sockets waiting to be registered with the selector */
+	private final ArrayList<Forwarding> added = new ArrayList<Forwarding>();
+
+	/* Sockets whose channel has changed */
+	private final ArrayList<Forwarding> changed = new ArrayList<Forwarding>();
+
+	private volatile boolean stopped = false;
+
+	SelectorForwarder(ChannelManager cm) throws IOException
+	{
+		this.cm = cm;
+		this.selector = Selector.open();
+
+		setName("SelectorForwarder");
+		setDaemon(true);
+	}
+
+	/**
+	 * Start forwarding between an open channel and a connected socket. Once both
+	 * have reached EOF, or one of them fails, both are closed.
+	 */
+	void forward(Channel c, SocketChannel sc) throws IOException
+	{
+		sc.configureBlocking(false);
+
+		synchronized (added)
+		{
+			if (stopped)
+				throw new IOException("The forwarder has been stopped.");
+
+			added.add(new Forwarding(c, sc));
+		}
+
+		selector.wakeup();
+	}
+
+	private void schedule(Forwarding f)
+	{
+		synchronized (changed)
+		{
+			if (f.scheduled)
+				return;
+
+			f.scheduled = true;
+			changed.add(f);
+		}
+
+		selector.wakeup();
+	}
+
+	public void run()
+	{
+		ArrayList<Forwarding> work = new ArrayList<Forwarding>();
+
+		try
+		{
+			while (stopped == false)
+			{
+				selector.select();
+
+				synchronized (added)
+				{
+					for (int i = 0; i < added.size(); i++)
+					{
+						Forwarding f = added.get(i);
+
+						f.key = f.sc.register(selector, 0, f);
+
+						synchronized (f.c)
+						{
+							f.c.listener = f;
+						}
+
+						/* Pick up anything which arrived on the channel before */
+
+						work.add(f);
+					}
+					added.clear();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext())
+				{
+					work.add((Forwarding) keys.next().attachment());
+					keys.remove();
+				}
+
+				synchronized (changed)
+				{
+					for (int i = 0; i < changed.size(); i++)
+					{
+						Forwarding f = changed.get(i);
+						f.scheduled = false;
+						work.add(f);
+					}
+					changed.clear();
+				}
+
+				for (int i = 0; i < work.size(); i++)
+					service(work.get(i));
+
+				work.clear();
+			}
+		}
+		catch (IOException e)
+		{
+			if (log.isEnabled())
+				log.log(20, "SelectorForwarder failed: " + e.getMessage());
+		}
+		finally
+		{
+			stopped = true;
+
+			Iterator<SelectionKey> keys = selector.keys().iterator();
+
+			while (keys.hasNext())
+			{
+				Forwarding f = (Forwarding) keys.next().attachment();
+				close(f, "The forwarder has been stopped");
+			}
+
+			synchronized (added)
+			{
+				for (int i = 0; i < added.size(); i++)
+					close(added.get(i), "The forwarder has been stopped");
+				added.clear();
+			}
+
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	private void service(Forwarding f)
+	{
+		if (f.key.isValid() == false)
+			return;
+
+		try
+		{
+			boolean more = remoteToLocal(f);
+
+			localToRemote(f);
+
+			int window = cm.getRemoteWindow(f.c);
+
+			if (f.remoteEOF && (f.pendingLen == 0) && (f.localEOF || (window < 0)))
+			{
+				close(f, "EOF on both streams reached.");
+				return;
+			}
+
+			int ops = 0;
+
+			if (f.pendingLen > 0)
+				ops |= SelectionKey.OP_WRITE;
+
+			if ((f.localEOF == false) && (window > 0))
+				ops |= SelectionKey.OP_READ;
+
+			f.key.interestOps(ops);
+
+			if (more)
+				schedule(f);
+		}
+		catch (IOException e)
+		{
+			close(f, "Closed due to exception in SelectorForwarder: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Move data from the channel to the socket, until either runs dry.
+	 *
+	 * @return whether the turn ended with more data possibly waiting
+	 */
+	private boolean remoteToLocal(Forwarding f) throws IOException
+	{
+		for (int i = 0; i < MAX_READS_PER_TURN; i++)
+		{
+			if (f.pendingLen > 0)
+			{
+				int n = f.sc.write(ByteBuffer.wrap(f.pending, f.pendingOff, f.pendingLen));
+
+				f.pendingOff += n;
+				f.pendingLen -= n;
+
+				if (f.pendingLen > 0)
+					return false;
+
+				f.pending = null;
+			}
+
+			if (f.remoteEOF)
+				return false;
+
+			int len = cm.getChannelData(f.c, false, buffer, 0, buffer.length, false);
+
+			if (len == 0)
+				return false;
+
+			if (len < 0)
+			{
+				f.remoteEOF = true;
+				f.sc.socket().shutdownOutput();
+				return false;
+			}
+
+			int n = f.sc.write(ByteBuffer.wrap(buffer, 0, len));
+
+			if (n < len)
+			{
+				/* The socket is full, keep the rest until it can take more */
+
+				f.pending = new byte[len - n];
+				f.pendingOff = 0;
+				f.pendingLen = len - n;
+				System.arraycopy(buffer, n, f.pending, 0, f.pendingLen);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Move data from the socket to the channel, as far as the remote window allows.
+	 */
+	private void localToRemote(Forwarding f) throws IOException
+	{
+		for (int i = 0; (i < MAX_READS_PER_TURN) && (f.localEOF == false); i++)
+		{
+			int window = cm.getRemoteWindow(f.c);
+
+			if (window <= 0)
+				return;
+
+			readBuffer.clear();
+			readBuffer.limit(Math.min(window, buffer.length));
+
+			int len = f.sc.read(readBuffer);
+
+			if (len == 0)
+				return;
+
+			if (len < 0)
+			{
+				f.localEOF = true;
+				cm.sendEOF(f.c);
+				return;
+			}
+
+			/* Cannot block, the data fits into the window */
+
+			cm.sendData(f.c, buffer, 0, len);
+		}
+	}
+
+	private void close(Forwarding f, String reason)
+	{
+		if (f.key != null)
+			f.key.cancel();
+
+		synchronized (f.c)
+		{
+			f.c.listener = null;
+		}
+
+		try
+		{
+			f.sc.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+
+		try
+		{
+			cm.closeChannel(f.c, reason, true);
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+
+	public void stopWorking()
+	{
+		stopped = true;
+		selector.wakeup();
+	}
+}
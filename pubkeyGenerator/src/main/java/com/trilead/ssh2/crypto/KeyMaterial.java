@@ -26,6 +26,9 @@ public class KeyMaterial
 	{
 		byte[] res = new byte[keyLength];
 
+		if (keyLength == 0)
+			return res;
+
 		int dglen = sh.getDigestLength();
 		int numRounds = (keyLength + dglen - 1) / dglen;
 
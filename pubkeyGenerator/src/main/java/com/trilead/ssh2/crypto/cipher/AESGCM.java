@@ -0,0 +1,107 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AESGCM. aes128-gcm@openssh.com and aes256-gcm@openssh.com (RFC 5647), on top
+ * of the platform's <code>AES/GCM/NoPadding</code>. The length field stays
+ * readable and is authenticated as additional data. The 12 byte nonce is the
+ * IV from the key exchange, whose last 8 bytes are incremented after every
+ * packet.
+ */
+public final class AESGCM implements AeadCipher
+{
+	private static final int TAG_SIZE = 16;
+
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] nonce = new byte[12];
+	private final int mode;
+
+	public AESGCM(boolean encrypt, byte[] key, byte[] iv) throws GeneralSecurityException
+	{
+		if (iv.length != nonce.length)
+			throw new GeneralSecurityException("IV must be " + nonce.length + " bytes long");
+
+		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.key = new SecretKeySpec(key, "AES");
+		this.mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+		System.arraycopy(iv, 0, nonce, 0, nonce.length);
+	}
+
+	public int getBlockSize()
+	{
+		return 16;
+	}
+
+	public int getTagSize()
+	{
+		return TAG_SIZE;
+	}
+
+	public int getPacketLength(int seq, byte[] packet, int off)
+	{
+		return ((packet[off] & 0xff) << 24) | ((packet[off + 1] & 0xff) << 16) | ((packet[off + 2] & 0xff) << 8)
+				| (packet[off + 3] & 0xff);
+	}
+
+	public void seal(int seq, byte[] packet, int off, int len)
+	{
+		try
+		{
+			start(packet, off);
+			cipher.doFinal(packet, off + 4, len - 4, packet, off + 4);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e.getMessage());
+		}
+		finally
+		{
+			nextNonce();
+		}
+	}
+
+	public void open(int seq, byte[] packet, int off, int len) throws IOException
+	{
+		try
+		{
+			start(packet, off);
+			cipher.doFinal(packet, off + 4, len - 4 + TAG_SIZE, packet, off + 4);
+		}
+		catch (AEADBadTagException e)
+		{
+			throw new IOException("Remote sent corrupt MAC.");
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw (IOException) new IOException("Error while decrypting packet.").initCause(e);
+		}
+		finally
+		{
+			nextNonce();
+		}
+	}
+
+	private void start(byte[] packet, int off) throws GeneralSecurityException
+	{
+		cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+		cipher.updateAAD(packet, off, 4);
+	}
+
+	private void nextNonce()
+	{
+		for (int i = nonce.length - 1; i >= 4; i--)
+		{
+			nonce[i]++;
+			if (nonce[i] != 0)
+				break;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.io.IOException;
+
+/**
+ * AeadCipher. A cipher which encrypts and authenticates whole packets in one
+ * pass, instead of a {@link BlockCipher} followed by a separate MAC.
+ * <p>
+ * Packets are passed starting with their 4 byte length field, which the
+ * cipher may authenticate but leaves readable or encrypts itself. The tag
+ * directly follows the packet.
+ */
+public interface AeadCipher
+{
+	/**
+	 * Packets are padded to a multiple of this, not counting the length field.
+	 */
+	public int getBlockSize();
+
+	public int getTagSize();
+
+	/**
+	 * Returns the packet_length of a packet from its first 4 bytes, without
+	 * changing them.
+	 */
+	public int getPacketLength(int seq, byte[] packet, int off);
+
+	/**
+	 * Encrypts a packet in place and writes the tag after it.
+	 * 
+	 * @param len
+	 *            length of the packet including the length field, excluding
+	 *            the tag
+	 */
+	public void seal(int seq, byte[] packet, int off, int len);
+
+	/**
+	 * Checks the tag following a packet and decrypts the packet in place.
+	 * 
+	 * @param len
+	 *            length of the packet including the length field, excluding
+	 *            the tag
+	 * @throws IOException
+	 *             if the tag does not match
+	 */
+	public void open(int seq, byte[] packet, int off, int len) throws IOException;
+}
@@ -1,6 +1,7 @@
 
 package com.trilead.ssh2.crypto.cipher;
 
+import java.security.GeneralSecurityException;
 import java.util.Vector;
 
 /**
@@ -16,13 +17,22 @@ public class BlockCipherFactory
 		String type;
 		int blocksize;
 		int keysize;
+		int ivsize;
+		boolean aead;
 		String cipherClass;
 
 		public CipherEntry(String type, int blockSize, int keySize, String cipherClass)
+		{
+			this(type, blockSize, keySize, blockSize, false, cipherClass);
+		}
+
+		public CipherEntry(String type, int blockSize, int keySize, int ivSize, boolean aead, String cipherClass)
 		{
 			this.type = type;
 			this.blocksize = blockSize;
 			this.keysize = keySize;
+			this.ivsize = ivSize;
+			this.aead = aead;
 			this.cipherClass = cipherClass;
 		}
 	}
@@ -33,6 +43,16 @@ public class BlockCipherFactory
 	{
 		/* Higher Priority First */
 
+		if (isGCMAvailable())
+		{
+			ciphers.addElement(new CipherEntry("aes256-gcm@openssh.com", 16, 32, 12, true,
+					"com.trilead.ssh2.crypto.cipher.AESGCM"));
+			ciphers.addElement(new CipherEntry("aes128-gcm@openssh.com", 16, 16, 12, true,
+					"com.trilead.ssh2.crypto.cipher.AESGCM"));
+		}
+		ciphers.addElement(new CipherEntry("chacha20-poly1305@openssh.com", 8, 64, 0, true,
+				"com.trilead.ssh2.crypto.cipher.ChaCha20Poly1305"));
+
 		ciphers.addElement(new CipherEntry("aes256-ctr", 16, 32, "com.trilead.ssh2.crypto.cipher.AES"));
 		ciphers.addElement(new CipherEntry("aes192-ctr", 16, 24, "com.trilead.ssh2.crypto.cipher.AES"));
 		ciphers.addElement(new CipherEntry("aes128-ctr", 16, 16, "com.trilead.ssh2.crypto.cipher.AES"));
@@ -47,6 +67,24 @@ public class BlockCipherFactory
 		ciphers.addElement(new CipherEntry("3des-cbc", 8, 24, "com.trilead.ssh2.crypto.cipher.DESede"));
 	}
 
+	/*
+	 * GCMParameterSpec is only referenced by AESGCM, so that older platforms
+	 * can still load this class.
+	 */
+	private static boolean isGCMAvailable()
+	{
+		try
+		{
+			Class.forName("javax.crypto.spec.GCMParameterSpec");
+			javax.crypto.Cipher.getInstance("AES/GCM/NoPadding");
+			return true;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
 	public static String[] getDefaultCipherList()
 	{
 		String list[] = new String[ciphers.size()];
@@ -66,6 +104,13 @@ public class BlockCipherFactory
 
 	public static BlockCipher createCipher(String type, boolean encrypt, byte[] key, byte[] iv)
 	{
+		/* Prefer the platform's implementation, it may use CPU intrinsics */
+
+		BlockCipher jce = createJceCipher(type, encrypt, key, iv);
+
+		if (jce != null)
+			return jce;
+
 		try
 		{
 			CipherEntry ce = getEntry(type);
@@ -90,6 +135,54 @@ public class BlockCipherFactory
 		}
 	}
 
+	/**
+	 * Creates one of the ciphers for which {@link #isAead(String)} is true.
+	 */
+	public static AeadCipher createAeadCipher(String type, boolean encrypt, byte[] key, byte[] iv)
+	{
+		CipherEntry ce = getEntry(type);
+
+		if (ce.aead == false)
+			throw new IllegalArgumentException("Cannot instantiate " + type);
+
+		try
+		{
+			if (ce.cipherClass.endsWith("ChaCha20Poly1305"))
+				return new ChaCha20Poly1305(key);
+
+			return new AESGCM(encrypt, key, iv);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalArgumentException("Cannot instantiate " + type);
+		}
+	}
+
+	/**
+	 * Returns the platform's implementation of an AES cipher mode, or
+	 * <code>null</code> if it has none.
+	 */
+	private static BlockCipher createJceCipher(String type, boolean encrypt, byte[] key, byte[] iv)
+	{
+		String transformation;
+
+		if (type.startsWith("aes") && type.endsWith("-ctr"))
+			transformation = "AES/CTR/NoPadding";
+		else if (type.startsWith("aes") && type.endsWith("-cbc"))
+			transformation = "AES/CBC/NoPadding";
+		else
+			return null;
+
+		try
+		{
+			return new JceCipher(transformation, "AES", encrypt, key, iv);
+		}
+		catch (GeneralSecurityException e)
+		{
+			return null;
+		}
+	}
+
 	private static CipherEntry getEntry(String type)
 	{
 		for (int i = 0; i < ciphers.size(); i++)
@@ -112,4 +205,20 @@ public class BlockCipherFactory
 		CipherEntry ce = getEntry(type);
 		return ce.keysize;
 	}
+
+	public static int getIvSize(String type)
+	{
+		CipherEntry ce = getEntry(type);
+		return ce.ivsize;
+	}
+
+	/**
+	 * Whether the cipher authenticates the packets itself, so that no MAC is
+	 * used with it.
+	 */
+	public static boolean isAead(String type)
+	{
+		CipherEntry ce = getEntry(type);
+		return ce.aead;
+	}
 }
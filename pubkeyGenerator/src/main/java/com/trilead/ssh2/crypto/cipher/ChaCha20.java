@@ -0,0 +1,102 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * ChaCha20. The original variant of the stream cipher by D. J. Bernstein, with
+ * a 64 bit nonce and a 64 bit block counter, as used by
+ * chacha20-poly1305@openssh.com.
+ */
+public final class ChaCha20
+{
+	private final int[] input = new int[16];
+	private final int[] x = new int[16];
+	private final byte[] block = new byte[64];
+
+	/**
+	 * @param key
+	 *            32 bytes starting at <code>off</code>
+	 */
+	public ChaCha20(byte[] key, int off)
+	{
+		input[0] = 0x61707865;
+		input[1] = 0x3320646e;
+		input[2] = 0x79622d32;
+		input[3] = 0x6b206574;
+
+		for (int i = 0; i < 8; i++)
+			input[4 + i] = le32(key, off + 4 * i);
+	}
+
+	/**
+	 * XORs <code>len</code> bytes of key stream into <code>dst</code>. The
+	 * key stream starts at block <code>counter</code> for the given nonce.
+	 * Source and destination may be the same buffer.
+	 */
+	public void crypt(long nonce, long counter, byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		/* The nonce is serialized big endian, the state words are little endian */
+
+		input[14] = Integer.reverseBytes((int) (nonce >>> 32));
+		input[15] = Integer.reverseBytes((int) nonce);
+
+		while (len > 0)
+		{
+			input[12] = (int) counter;
+			input[13] = (int) (counter >>> 32);
+
+			nextBlock();
+
+			int n = Math.min(len, 64);
+
+			for (int i = 0; i < n; i++)
+				dst[dstoff + i] = (byte) (src[srcoff + i] ^ block[i]);
+
+			srcoff += n;
+			dstoff += n;
+			len -= n;
+			counter++;
+		}
+	}
+
+	private void nextBlock()
+	{
+		System.arraycopy(input, 0, x, 0, 16);
+
+		for (int i = 0; i < 10; i++)
+		{
+			quarterRound(0, 4, 8, 12);
+			quarterRound(1, 5, 9, 13);
+			quarterRound(2, 6, 10, 14);
+			quarterRound(3, 7, 11, 15);
+			quarterRound(0, 5, 10, 15);
+			quarterRound(1, 6, 11, 12);
+			quarterRound(2, 7, 8, 13);
+			quarterRound(3, 4, 9, 14);
+		}
+
+		for (int i = 0; i < 16; i++)
+		{
+			int v = x[i] + input[i];
+			block[4 * i] = (byte) v;
+			block[4 * i + 1] = (byte) (v >>> 8);
+			block[4 * i + 2] = (byte) (v >>> 16);
+			block[4 * i + 3] = (byte) (v >>> 24);
+		}
+	}
+
+	private void quarterRound(int a, int b, int c, int d)
+	{
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+	}
+
+	private static int le32(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+}
@@ -0,0 +1,83 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.io.IOException;
+
+/**
+ * ChaCha20Poly1305. chacha20-poly1305@openssh.com, as described in
+ * PROTOCOL.chacha20poly1305 of OpenSSH. The 64 byte key holds two ChaCha20
+ * keys: the second one encrypts the length field, the first one the rest of
+ * the packet, starting at block 1. Block 0 of the first key stream is the
+ * Poly1305 key, which authenticates the whole encrypted packet. The nonce is
+ * the packet sequence number.
+ */
+public final class ChaCha20Poly1305 implements AeadCipher
+{
+	private static final int TAG_SIZE = 16;
+
+	private final ChaCha20 main;
+	private final ChaCha20 header;
+	private final Poly1305 poly = new Poly1305();
+
+	private final byte[] polyKey = new byte[32];
+	private final byte[] zeros = new byte[32];
+	private final byte[] tag = new byte[TAG_SIZE];
+	private final byte[] length = new byte[4];
+
+	public ChaCha20Poly1305(byte[] key)
+	{
+		if (key.length != 64)
+			throw new IllegalArgumentException("Key must be 64 bytes long! (currently " + key.length + ")");
+
+		main = new ChaCha20(key, 0);
+		header = new ChaCha20(key, 32);
+	}
+
+	public int getBlockSize()
+	{
+		return 8;
+	}
+
+	public int getTagSize()
+	{
+		return TAG_SIZE;
+	}
+
+	public int getPacketLength(int seq, byte[] packet, int off)
+	{
+		header.crypt(seq & 0xffffffffL, 0, packet, off, length, 0, 4);
+
+		return ((length[0] & 0xff) << 24) | ((length[1] & 0xff) << 16) | ((length[2] & 0xff) << 8)
+				| (length[3] & 0xff);
+	}
+
+	public void seal(int seq, byte[] packet, int off, int len)
+	{
+		long nonce = seq & 0xffffffffL;
+
+		header.crypt(nonce, 0, packet, off, packet, off, 4);
+		main.crypt(nonce, 1, packet, off + 4, packet, off + 4, len - 4);
+
+		main.crypt(nonce, 0, zeros, 0, polyKey, 0, polyKey.length);
+		poly.mac(polyKey, 0, packet, off, len, packet, off + len);
+	}
+
+	public void open(int seq, byte[] packet, int off, int len) throws IOException
+	{
+		long nonce = seq & 0xffffffffL;
+
+		main.crypt(nonce, 0, zeros, 0, polyKey, 0, polyKey.length);
+		poly.mac(polyKey, 0, packet, off, len, tag, 0);
+
+		/* Compare in constant time */
+
+		int diff = 0;
+		for (int i = 0; i < TAG_SIZE; i++)
+			diff |= tag[i] ^ packet[off + len + i];
+
+		if (diff != 0)
+			throw new IOException("Remote sent corrupt MAC.");
+
+		header.crypt(nonce, 0, packet, off, packet, off, 4);
+		main.crypt(nonce, 1, packet, off + 4, packet, off + 4, len - 4);
+	}
+}
@@ -29,6 +29,9 @@ public class CipherInputStream
 	int input_buffer_pos = 0;
 	int input_buffer_size = 0;
 
+	/* Time spent waiting for the underlying stream, in nanoseconds */
+	long read_nanos = 0;
+
 	public CipherInputStream(BlockCipher tc, InputStream bi)
 	{
 		this.bi = bi;
@@ -37,11 +40,24 @@ public class CipherInputStream
 
 	private int fill_buffer() throws IOException
 	{
+		long start = System.nanoTime();
+
 		input_buffer_pos = 0;
 		input_buffer_size = bi.read(input_buffer, 0, BUFF_SIZE);
+
+		read_nanos += System.nanoTime() - start;
 		return input_buffer_size;
 	}
 
+	/**
+	 * @return the time spent reading from the underlying stream so far, in
+	 *         nanoseconds
+	 */
+	public long getReadTime()
+	{
+		return read_nanos;
+	}
+
 	private int internal_read(byte[] b, int off, int len) throws IOException
 	{
 		if (input_buffer_size < 0)
@@ -93,6 +109,27 @@ public class CipherInputStream
 		pos = 0;
 	}
 
+	private void readBlocks(byte[] dst, int off, int len) throws IOException
+	{
+		int n = 0;
+		while (n < len)
+		{
+			int cnt = internal_read(dst, off + n, len - n);
+			if (cnt < 0)
+				throw new IOException("Cannot read full block, EOF reached.");
+			n += cnt;
+		}
+
+		try
+		{
+			((JceCipher) currentCipher).transformBlocks(dst, off, dst, off, len);
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Error while decrypting block.");
+		}
+	}
+
 	public int read(byte[] dst) throws IOException
 	{
 		return read(dst, 0, dst.length);
@@ -104,6 +141,19 @@ public class CipherInputStream
 
 		while (len > 0)
 		{
+			if ((pos >= blockSize) && (len >= blockSize) && (currentCipher instanceof JceCipher))
+			{
+				/* Decrypt all whole blocks with one call, straight into dst */
+
+				int n = len - (len % blockSize);
+
+				readBlocks(dst, off, n);
+				off += n;
+				len -= n;
+				count += n;
+				continue;
+			}
+
 			if (pos >= blockSize)
 				getBlock();
 
@@ -28,12 +28,33 @@ public class CipherOutputStream
 	byte[] out_buffer = new byte[BUFF_SIZE];
 	int out_buffer_pos = 0;
 
+	/* Time spent writing to the underlying stream, in nanoseconds */
+	long write_nanos = 0;
+
 	public CipherOutputStream(BlockCipher tc, OutputStream bo)
 	{
 		this.bo = bo;
 		changeCipher(tc);
 	}
 
+	private void bo_write(byte[] src, int off, int len) throws IOException
+	{
+		long start = System.nanoTime();
+
+		bo.write(src, off, len);
+
+		write_nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the time spent writing to the underlying stream so far, in
+	 *         nanoseconds
+	 */
+	public long getWriteTime()
+	{
+		return write_nanos;
+	}
+
 	private void internal_write(byte[] src, int off, int len) throws IOException
 	{
 		while (len > 0)
@@ -49,7 +70,7 @@ public class CipherOutputStream
 
 			if (out_buffer_pos >= BUFF_SIZE)
 			{
-				bo.write(out_buffer, 0, BUFF_SIZE);
+				bo_write(out_buffer, 0, BUFF_SIZE);
 				out_buffer_pos = 0;
 			}
 		}
@@ -60,7 +81,7 @@ public class CipherOutputStream
 		out_buffer[out_buffer_pos++] = (byte) b;
 		if (out_buffer_pos >= BUFF_SIZE)
 		{
-			bo.write(out_buffer, 0, BUFF_SIZE);
+			bo_write(out_buffer, 0, BUFF_SIZE);
 			out_buffer_pos = 0;
 		}
 	}
@@ -70,12 +91,16 @@ public class CipherOutputStream
 		if (pos != 0)
 			throw new IOException("FATAL: cannot flush since crypto buffer is not aligned.");
 
+		long start = System.nanoTime();
+
 		if (out_buffer_pos > 0)
 		{
 			bo.write(out_buffer, 0, out_buffer_pos);
 			out_buffer_pos = 0;
 		}
 		bo.flush();
+
+		write_nanos += System.nanoTime() - start;
 	}
 
 	public void changeCipher(BlockCipher bc)
@@ -119,6 +144,44 @@ public class CipherOutputStream
 		}
 	}
 
+	/**
+	 * Encrypts whole blocks in place and writes them out. Large writes go
+	 * straight to the underlying stream instead of through the internal
+	 * buffers. The contents of <code>src</code> are replaced by the
+	 * ciphertext.
+	 */
+	public void writeInPlace(byte[] src, int off, int len) throws IOException
+	{
+		if ((pos != 0) || (len % blockSize) != 0)
+			throw new IOException("Cannot encrypt in place since crypto buffer is not aligned.");
+
+		try
+		{
+			if (currentCipher instanceof JceCipher)
+				((JceCipher) currentCipher).transformBlocks(src, off, src, off, len);
+			else
+				for (int i = off; i < off + len; i += blockSize)
+					currentCipher.transformBlock(src, i, src, i);
+		}
+		catch (Exception e)
+		{
+			throw (IOException) new IOException("Error while encrypting block.").initCause(e);
+		}
+
+		if (len < BUFF_SIZE)
+		{
+			internal_write(src, off, len);
+			return;
+		}
+
+		if (out_buffer_pos > 0)
+		{
+			bo_write(out_buffer, 0, out_buffer_pos);
+			out_buffer_pos = 0;
+		}
+		bo_write(src, off, len);
+	}
+
 	public void write(int b) throws IOException
 	{
 		buffer[pos++] = (byte) b;
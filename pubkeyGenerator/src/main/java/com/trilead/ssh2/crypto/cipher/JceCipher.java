@@ -0,0 +1,75 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JceCipher. A block cipher mode provided by the platform through
+ * <code>javax.crypto.Cipher</code>, which can make use of AES instructions of
+ * the CPU. Unlike the other ciphers it can transform many blocks per call,
+ * see {@link #transformBlocks(byte[], int, byte[], int, int)}.
+ */
+public final class JceCipher implements BlockCipher
+{
+	private final Cipher cipher;
+	private final int blockSize;
+
+	/**
+	 * @param transformation
+	 *            for example <code>AES/CTR/NoPadding</code>
+	 * @throws GeneralSecurityException
+	 *             if the platform does not provide the transformation
+	 */
+	public JceCipher(String transformation, String algorithm, boolean encrypt, byte[] key, byte[] iv)
+			throws GeneralSecurityException
+	{
+		cipher = Cipher.getInstance(transformation);
+		cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, algorithm),
+				new IvParameterSpec(iv));
+		blockSize = cipher.getBlockSize();
+
+		if (blockSize != iv.length)
+			throw new GeneralSecurityException("Unexpected block size " + blockSize);
+	}
+
+	public void init(boolean forEncryption, byte[] key)
+	{
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff)
+	{
+		transformBlocks(src, srcoff, dst, dstoff, blockSize);
+	}
+
+	/**
+	 * Transforms <code>len</code> bytes, a multiple of the block size. Source
+	 * and destination may be the same buffer.
+	 */
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst, int dstoff, int len)
+	{
+		int n;
+
+		try
+		{
+			n = cipher.update(src, srcoff, len, dst, dstoff);
+		}
+		catch (ShortBufferException e)
+		{
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		/* Without padding, whole blocks never have to be held back */
+
+		if (n != len)
+			throw new IllegalStateException("Cipher returned " + n + " instead of " + len + " bytes");
+	}
+}
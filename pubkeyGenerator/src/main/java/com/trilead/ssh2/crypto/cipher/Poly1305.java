@@ -0,0 +1,165 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * Poly1305. The one-time authenticator by D. J. Bernstein, computed with 26 bit
+ * limbs so that all products fit into a long.
+ */
+public final class Poly1305
+{
+	private static final long MASK26 = 0x3ffffff;
+
+	private final byte[] last = new byte[16];
+
+	/**
+	 * Computes the 16 byte tag of a message.
+	 * 
+	 * @param key
+	 *            32 bytes, which must never be used for a second message
+	 */
+	public void mac(byte[] key, int keyoff, byte[] msg, int off, int len, byte[] out, int outoff)
+	{
+		long r0 = le32(key, keyoff) & 0x3ffffff;
+		long r1 = (le32(key, keyoff + 3) >>> 2) & 0x3ffff03;
+		long r2 = (le32(key, keyoff + 6) >>> 4) & 0x3ffc0ff;
+		long r3 = (le32(key, keyoff + 9) >>> 6) & 0x3f03fff;
+		long r4 = (le32(key, keyoff + 12) >>> 8) & 0x00fffff;
+
+		long s1 = r1 * 5;
+		long s2 = r2 * 5;
+		long s3 = r3 * 5;
+		long s4 = r4 * 5;
+
+		long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+		while (len > 0)
+		{
+			byte[] m = msg;
+			int moff = off;
+			long hibit = 1 << 24;
+
+			if (len < 16)
+			{
+				System.arraycopy(msg, off, last, 0, len);
+				last[len] = 1;
+				for (int i = len + 1; i < 16; i++)
+					last[i] = 0;
+
+				m = last;
+				moff = 0;
+				hibit = 0;
+			}
+
+			long t0 = le32(m, moff);
+			long t1 = le32(m, moff + 4);
+			long t2 = le32(m, moff + 8);
+			long t3 = le32(m, moff + 12);
+
+			h0 += t0 & MASK26;
+			h1 += ((t0 >>> 26) | (t1 << 6)) & MASK26;
+			h2 += ((t1 >>> 20) | (t2 << 12)) & MASK26;
+			h3 += ((t2 >>> 14) | (t3 << 18)) & MASK26;
+			h4 += (t3 >>> 8) | hibit;
+
+			long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+			long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+			long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+			long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+			long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+			long c = d0 >>> 26;
+			h0 = d0 & MASK26;
+			d1 += c;
+			c = d1 >>> 26;
+			h1 = d1 & MASK26;
+			d2 += c;
+			c = d2 >>> 26;
+			h2 = d2 & MASK26;
+			d3 += c;
+			c = d3 >>> 26;
+			h3 = d3 & MASK26;
+			d4 += c;
+			c = d4 >>> 26;
+			h4 = d4 & MASK26;
+			h0 += c * 5;
+			c = h0 >>> 26;
+			h0 &= MASK26;
+			h1 += c;
+
+			off += 16;
+			len -= 16;
+		}
+
+		/* Fully carry h */
+
+		long c = h1 >>> 26;
+		h1 &= MASK26;
+		h2 += c;
+		c = h2 >>> 26;
+		h2 &= MASK26;
+		h3 += c;
+		c = h3 >>> 26;
+		h3 &= MASK26;
+		h4 += c;
+		c = h4 >>> 26;
+		h4 &= MASK26;
+		h0 += c * 5;
+		c = h0 >>> 26;
+		h0 &= MASK26;
+		h1 += c;
+
+		/* Compute h - (2^130 - 5) and use it if it is not negative */
+
+		long g0 = h0 + 5;
+		c = g0 >>> 26;
+		g0 &= MASK26;
+		long g1 = h1 + c;
+		c = g1 >>> 26;
+		g1 &= MASK26;
+		long g2 = h2 + c;
+		c = g2 >>> 26;
+		g2 &= MASK26;
+		long g3 = h3 + c;
+		c = g3 >>> 26;
+		g3 &= MASK26;
+		long g4 = h4 + c - (1 << 26);
+
+		long select = (g4 >> 63); /* all ones if negative, i.e. keep h */
+
+		h0 = (h0 & select) | (g0 & ~select);
+		h1 = (h1 & select) | (g1 & ~select);
+		h2 = (h2 & select) | (g2 & ~select);
+		h3 = (h3 & select) | (g3 & ~select);
+		h4 = (h4 & select) | (g4 & ~select);
+
+		/* h mod 2^128, plus the second half of the key */
+
+		long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+		long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+		long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+		long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+		f0 += le32(key, keyoff + 16);
+		f1 += le32(key, keyoff + 20) + (f0 >>> 32);
+		f2 += le32(key, keyoff + 24) + (f1 >>> 32);
+		f3 += le32(key, keyoff + 28) + (f2 >>> 32);
+
+		put32(out, outoff, f0);
+		put32(out, outoff + 4, f1);
+		put32(out, outoff + 8, f2);
+		put32(out, outoff + 12, f3);
+	}
+
+	private static long le32(byte[] b, int off)
+	{
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16)
+				| ((long) (b[off + 3] & 0xff) << 24);
+	}
+
+	private static void put32(byte[] b, int off, long v)
+	{
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >>> 8);
+		b[off + 2] = (byte) (v >>> 16);
+		b[off + 3] = (byte) (v >>> 24);
+	}
+}
@@ -0,0 +1,133 @@
+package com.trilead.ssh2.crypto.dh;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Curve25519Exchange. curve25519-sha256 (RFC 8731), with X25519 as in RFC 7748
+ * computed by a Montgomery ladder.
+ */
+public class Curve25519Exchange extends EcDhExchange
+{
+	private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+	private static final BigInteger A24 = BigInteger.valueOf(121665);
+
+	private static final byte[] BASE = new byte[32];
+
+	static
+	{
+		BASE[0] = 9;
+	}
+
+	/* Client private */
+
+	byte[] x;
+
+	public void init(SecureRandom rnd)
+	{
+		x = new byte[32];
+		rnd.nextBytes(x);
+
+		e = x25519(x, BASE);
+	}
+
+	protected byte[] agree(byte[] serverPublic) throws IOException
+	{
+		if (serverPublic.length != 32)
+			throw new IOException("Invalid Curve25519 public key length (" + serverPublic.length + ")");
+
+		byte[] shared = x25519(x, serverPublic);
+
+		int all = 0;
+		for (int i = 0; i < shared.length; i++)
+			all |= shared[i];
+
+		if (all == 0)
+			throw new IOException("Invalid Curve25519 public key, the shared secret is zero");
+
+		/* Unlike the inputs, the secret is used as a big endian number, see RFC 8731 */
+
+		return shared;
+	}
+
+	static byte[] x25519(byte[] scalar, byte[] u)
+	{
+		byte[] kb = scalar.clone();
+		kb[0] &= (byte) 248;
+		kb[31] &= 127;
+		kb[31] |= 64;
+
+		byte[] ub = u.clone();
+		ub[31] &= 127;
+
+		BigInteger k = littleEndian(kb);
+		BigInteger x1 = littleEndian(ub).mod(P);
+
+		BigInteger x2 = BigInteger.ONE;
+		BigInteger z2 = BigInteger.ZERO;
+		BigInteger x3 = x1;
+		BigInteger z3 = BigInteger.ONE;
+
+		boolean swap = false;
+
+		for (int t = 254; t >= 0; t--)
+		{
+			boolean kt = k.testBit(t);
+
+			if (swap != kt)
+			{
+				BigInteger tmp = x2;
+				x2 = x3;
+				x3 = tmp;
+				tmp = z2;
+				z2 = z3;
+				z3 = tmp;
+			}
+			swap = kt;
+
+			BigInteger a = x2.add(z2);
+			BigInteger aa = a.multiply(a).mod(P);
+			BigInteger b = x2.subtract(z2);
+			BigInteger bb = b.multiply(b).mod(P);
+			BigInteger e = aa.subtract(bb);
+			BigInteger c = x3.add(z3);
+			BigInteger d = x3.subtract(z3);
+			BigInteger da = d.multiply(a).mod(P);
+			BigInteger cb = c.multiply(b).mod(P);
+
+			BigInteger sum = da.add(cb);
+			BigInteger diff = da.subtract(cb);
+
+			x3 = sum.multiply(sum).mod(P);
+			z3 = x1.multiply(diff.multiply(diff)).mod(P);
+			x2 = aa.multiply(bb).mod(P);
+			z2 = e.multiply(aa.add(A24.multiply(e))).mod(P);
+		}
+
+		if (swap)
+		{
+			x2 = x3;
+			z2 = z3;
+		}
+
+		BigInteger r = x2.multiply(z2.modPow(P.subtract(BigInteger.valueOf(2)), P)).mod(P);
+
+		byte[] be = r.toByteArray();
+		byte[] out = new byte[32];
+
+		for (int i = 0; (i < 32) && (i < be.length); i++)
+			out[i] = be[be.length - 1 - i];
+
+		return out;
+	}
+
+	private static BigInteger littleEndian(byte[] b)
+	{
+		byte[] be = new byte[b.length];
+		for (int i = 0; i < b.length; i++)
+			be[i] = b[b.length - 1 - i];
+		return new BigInteger(1, be);
+	}
+}
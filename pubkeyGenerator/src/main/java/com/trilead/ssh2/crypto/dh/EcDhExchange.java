@@ -0,0 +1,91 @@
+package com.trilead.ssh2.crypto.dh;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import com.trilead.ssh2.crypto.digest.HashForSSH2Types;
+
+/**
+ * EcDhExchange. The elliptic curve key exchanges of RFC 5656 and RFC 8731.
+ * Unlike in {@link DhExchange}, the public values are exchanged as strings,
+ * and the exchange hash is SHA-256.
+ */
+public abstract class EcDhExchange
+{
+	/* Client public */
+
+	byte[] e;
+
+	/* Server public */
+
+	byte[] f;
+
+	/* Shared secret */
+
+	BigInteger k;
+
+	/**
+	 * @return the exchange for the given kex algorithm, or <code>null</code>
+	 *         if it is not an elliptic curve one
+	 */
+	public static EcDhExchange getInstance(String kexAlgorithm)
+	{
+		if (kexAlgorithm.equals("curve25519-sha256") || kexAlgorithm.equals("curve25519-sha256@libssh.org"))
+			return new Curve25519Exchange();
+
+		if (kexAlgorithm.equals("ecdh-sha2-nistp256"))
+			return new NistP256Exchange();
+
+		return null;
+	}
+
+	public abstract void init(SecureRandom rnd) throws IOException;
+
+	/**
+	 * @return the shared secret, to be read as an unsigned big endian number
+	 */
+	protected abstract byte[] agree(byte[] serverPublic) throws IOException;
+
+	public byte[] getE()
+	{
+		if (e == null)
+			throw new IllegalStateException("EcDhExchange not initialized!");
+
+		return e;
+	}
+
+	public BigInteger getK()
+	{
+		if (k == null)
+			throw new IllegalStateException("Shared secret not yet known, need f first!");
+
+		return k;
+	}
+
+	public void setF(byte[] f) throws IOException
+	{
+		if (e == null)
+			throw new IllegalStateException("EcDhExchange not initialized!");
+
+		this.f = f;
+		this.k = new BigInteger(1, agree(f));
+	}
+
+	public byte[] calculateH(byte[] clientversion, byte[] serverversion, byte[] clientKexPayload,
+			byte[] serverKexPayload, byte[] hostKey)
+	{
+		HashForSSH2Types hash = new HashForSSH2Types("SHA256");
+
+		hash.updateByteString(clientversion);
+		hash.updateByteString(serverversion);
+		hash.updateByteString(clientKexPayload);
+		hash.updateByteString(serverKexPayload);
+		hash.updateByteString(hostKey);
+		hash.updateByteString(e);
+		hash.updateByteString(f);
+		hash.updateBigInt(k);
+
+		return hash.getDigest();
+	}
+}
@@ -0,0 +1,64 @@
+package com.trilead.ssh2.crypto.dh;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+import com.trilead.ssh2.signature.ECDSASHA2Verify;
+
+/**
+ * NistP256Exchange. ecdh-sha2-nistp256 (RFC 5656), on top of the platform's
+ * EC key pair generator and ECDH key agreement.
+ */
+public class NistP256Exchange extends EcDhExchange
+{
+	KeyPair kp;
+
+	public void init(SecureRandom rnd) throws IOException
+	{
+		try
+		{
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+			kpg.initialize(ECDSASHA2Verify.NISTP256, rnd);
+			kp = kpg.generateKeyPair();
+		}
+		catch (GeneralSecurityException ex)
+		{
+			throw (IOException) new IOException("Cannot generate an ECDH key pair").initCause(ex);
+		}
+
+		e = ECDSASHA2Verify.encodePoint(((ECPublicKey) kp.getPublic()).getW(), ECDSASHA2Verify.NISTP256);
+	}
+
+	protected byte[] agree(byte[] serverPublic) throws IOException
+	{
+		ECPoint q = ECDSASHA2Verify.decodePoint(serverPublic, ECDSASHA2Verify.NISTP256);
+
+		if (q == null)
+			throw new IOException("Invalid ECDH public key from server");
+
+		try
+		{
+			PublicKey pk = KeyFactory.getInstance("EC").generatePublic(
+					new ECPublicKeySpec(q, ECDSASHA2Verify.NISTP256));
+
+			KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+			ka.init(kp.getPrivate());
+			ka.doPhase(pk, true);
+			return ka.generateSecret();
+		}
+		catch (GeneralSecurityException ex)
+		{
+			throw (IOException) new IOException("ECDH key agreement failed").initCause(ex);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.trilead.ssh2.crypto.digest;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * JceDigest. A hash provided by the platform through
+ * <code>java.security.MessageDigest</code>, for the hashes this package has
+ * no implementation of.
+ */
+public final class JceDigest implements Digest
+{
+	MessageDigest md;
+
+	/**
+	 * @param algorithm
+	 *            for example <code>SHA-256</code>
+	 * @throws IllegalArgumentException
+	 *             if the platform does not provide the algorithm
+	 */
+	public JceDigest(String algorithm)
+	{
+		try
+		{
+			md = MessageDigest.getInstance(algorithm);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+		}
+	}
+
+	public final int getDigestLength()
+	{
+		return md.getDigestLength();
+	}
+
+	public final void update(byte b)
+	{
+		md.update(b);
+	}
+
+	public final void update(byte[] b)
+	{
+		md.update(b);
+	}
+
+	public final void update(byte[] b, int off, int len)
+	{
+		md.update(b, off, len);
+	}
+
+	public final void reset()
+	{
+		md.reset();
+	}
+
+	public final void digest(byte[] out)
+	{
+		digest(out, 0);
+	}
+
+	public final void digest(byte[] out, int off)
+	{
+		try
+		{
+			md.digest(out, off, md.getDigestLength());
+		}
+		catch (DigestException e)
+		{
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.trilead.ssh2.crypto.digest;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JceHMAC. An HMAC provided by the platform through
+ * <code>javax.crypto.Mac</code>, which is usually much faster than
+ * {@link HMAC} on top of the digests in this package.
+ */
+public final class JceHMAC implements Digest
+{
+	Mac mac;
+	byte[] tmp;
+
+	int size;
+
+	/**
+	 * @param algorithm
+	 *            for example <code>HmacSHA1</code>
+	 * @param size
+	 *            the number of bytes of the MAC to use
+	 * @throws GeneralSecurityException
+	 *             if the platform does not provide the algorithm
+	 */
+	public JceHMAC(String algorithm, byte[] key, int size) throws GeneralSecurityException
+	{
+		this.mac = Mac.getInstance(algorithm);
+		this.size = size;
+
+		mac.init(new SecretKeySpec(key, algorithm));
+		tmp = new byte[mac.getMacLength()];
+	}
+
+	public final int getDigestLength()
+	{
+		return size;
+	}
+
+	public final void update(byte b)
+	{
+		mac.update(b);
+	}
+
+	public final void update(byte[] b)
+	{
+		mac.update(b);
+	}
+
+	public final void update(byte[] b, int off, int len)
+	{
+		mac.update(b, off, len);
+	}
+
+	public final void reset()
+	{
+		mac.reset();
+	}
+
+	public final void digest(byte[] out)
+	{
+		digest(out, 0);
+	}
+
+	public final void digest(byte[] out, int off)
+	{
+		try
+		{
+			mac.doFinal(tmp, 0);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		System.arraycopy(tmp, 0, out, off, size);
+	}
+}
@@ -1,6 +1,8 @@
 
 package com.trilead.ssh2.crypto.digest;
 
+import java.security.GeneralSecurityException;
+
 /**
  * MAC.
  * 
@@ -39,27 +41,51 @@ public final class MAC
 	}
 
 	public MAC(String type, byte[] key)
+	{
+		/* Prefer the platform's implementation, it may use CPU intrinsics */
+
+		mac = createJceHMAC(type, key);
+
+		if (mac == null)
+			mac = createHMAC(type, key);
+
+		size = mac.getDigestLength();
+	}
+
+	private static Digest createHMAC(String type, byte[] key)
 	{
 		if (type.equals("hmac-sha1"))
+			return new HMAC(new SHA1(), key, 20);
+		if (type.equals("hmac-sha1-96"))
+			return new HMAC(new SHA1(), key, 12);
+		if (type.equals("hmac-md5"))
+			return new HMAC(new MD5(), key, 16);
+		if (type.equals("hmac-md5-96"))
+			return new HMAC(new MD5(), key, 12);
+		throw new IllegalArgumentException("Unkown algorithm " + type);
+	}
+
+	/**
+	 * Returns the platform's implementation of the MAC, or <code>null</code> if
+	 * it has none.
+	 */
+	private static Digest createJceHMAC(String type, byte[] key)
+	{
+		try
 		{
-			mac = new HMAC(new SHA1(), key, 20);
-		}
-		else if (type.equals("hmac-sha1-96"))
-		{
-			mac = new HMAC(new SHA1(), key, 12);
-		}
-		else if (type.equals("hmac-md5"))
-		{
-			mac = new HMAC(new MD5(), key, 16);
+			if (type.equals("hmac-sha1"))
+				return new JceHMAC("HmacSHA1", key, 20);
+			if (type.equals("hmac-sha1-96"))
+				return new JceHMAC("HmacSHA1", key, 12);
+			if (type.equals("hmac-md5"))
+				return new JceHMAC("HmacMD5", key, 16);
+			if (type.equals("hmac-md5-96"))
+				return new JceHMAC("HmacMD5", key, 12);
 		}
-		else if (type.equals("hmac-md5-96"))
+		catch (GeneralSecurityException e)
 		{
-			mac = new HMAC(new MD5(), key, 12);
 		}
-		else
-			throw new IllegalArgumentException("Unkown algorithm " + type);
-
-		size = mac.getDigestLength();
+		return null;
 	}
 
 	public final void initMac(int seq)
@@ -22,6 +22,9 @@ public class Packets
 	public static final int SSH_MSG_KEXDH_INIT = 30;
 	public static final int SSH_MSG_KEXDH_REPLY = 31;
 
+	public static final int SSH_MSG_KEX_ECDH_INIT = 30;
+	public static final int SSH_MSG_KEX_ECDH_REPLY = 31;
+
 	public static final int SSH_MSG_KEX_DH_GEX_REQUEST_OLD = 30;
 	public static final int SSH_MSG_KEX_DH_GEX_REQUEST = 34;
 	public static final int SSH_MSG_KEX_DH_GEX_GROUP = 31;
@@ -88,8 +91,8 @@ public class Packets
 		reverseNames[20] = "SSH_MSG_KEXINIT";
 		reverseNames[21] = "SSH_MSG_NEWKEYS";
 
-		reverseNames[30] = "SSH_MSG_KEXDH_INIT";
-		reverseNames[31] = "SSH_MSG_KEXDH_REPLY/SSH_MSG_KEX_DH_GEX_GROUP";
+		reverseNames[30] = "SSH_MSG_KEXDH_INIT/SSH_MSG_KEX_ECDH_INIT";
+		reverseNames[31] = "SSH_MSG_KEXDH_REPLY/SSH_MSG_KEX_DH_GEX_GROUP/SSH_MSG_KEX_ECDH_REPLY";
 		reverseNames[32] = "SSH_MSG_KEX_DH_GEX_INIT";
 		reverseNames[33] = "SSH_MSG_KEX_DH_GEX_REPLY";
 		reverseNames[34] = "SSH_MSG_KEX_DH_GEX_REQUEST";
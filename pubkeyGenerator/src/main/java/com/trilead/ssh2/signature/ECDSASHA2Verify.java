@@ -0,0 +1,185 @@
+package com.trilead.ssh2.signature;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+
+import com.trilead.ssh2.packets.TypesReader;
+
+
+/**
+ * ECDSASHA2Verify. Verification of ecdsa-sha2-nistp256 signatures (RFC 5656)
+ * through the platform's <code>SHA256withECDSA</code>.
+ */
+public class ECDSASHA2Verify
+{
+	/* The curve is spelled out since not all platforms can look it up by name */
+
+	public static final ECParameterSpec NISTP256;
+
+	static
+	{
+		BigInteger p = new BigInteger("FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFF", 16);
+		BigInteger a = p.subtract(BigInteger.valueOf(3));
+		BigInteger b = new BigInteger("5AC635D8AA3A93E7B3EBBD55769886BC651D06B0CC53B0F63BCE3C3E27D2604B", 16);
+		BigInteger gx = new BigInteger("6B17D1F2E12C4247F8BCE6E563A440F277037D812DEB33A0F4A13945D898C296", 16);
+		BigInteger gy = new BigInteger("4FE342E2FE1A7F9B8EE7EB4A7C0F9E162BCE33576B315ECECBB6406837BF51F5", 16);
+		BigInteger n = new BigInteger("FFFFFFFF00000000FFFFFFFFFFFFFFFFBCE6FAADA7179E84F3B9CAC2FC632551", 16);
+
+		NISTP256 = new ECParameterSpec(new EllipticCurve(new ECFieldFp(p), a, b), new ECPoint(gx, gy), n, 1);
+	}
+
+	public static ECPublicKey decodeSSHECDSAPublicKey(byte[] key) throws IOException
+	{
+		TypesReader tr = new TypesReader(key);
+
+		String key_format = tr.readString();
+
+		if (key_format.equals("ecdsa-sha2-nistp256") == false)
+			throw new IllegalArgumentException("This is not a ecdsa-sha2-nistp256 public key");
+
+		String curve = tr.readString();
+
+		if (curve.equals("nistp256") == false)
+			throw new IOException("Unexpected curve " + curve + " in ECDSA public key");
+
+		ECPoint q = decodePoint(tr.readByteString(), NISTP256);
+
+		if (q == null)
+			throw new IOException("Invalid point in ECDSA public key");
+
+		if (tr.remain() != 0)
+			throw new IOException("Padding in ECDSA public key!");
+
+		try
+		{
+			KeyFactory kf = KeyFactory.getInstance("EC");
+			return (ECPublicKey) kf.generatePublic(new ECPublicKeySpec(q, NISTP256));
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw (IOException) new IOException("Cannot use ECDSA public key").initCause(e);
+		}
+	}
+
+	/**
+	 * @return the signature in the DER encoding used by the platform
+	 */
+	public static byte[] decodeSSHECDSASignature(byte[] sig) throws IOException
+	{
+		TypesReader tr = new TypesReader(sig);
+
+		String sig_format = tr.readString();
+
+		if (sig_format.equals("ecdsa-sha2-nistp256") == false)
+			throw new IOException("Peer sent wrong signature format");
+
+		TypesReader rs = new TypesReader(tr.readByteString());
+
+		BigInteger r = rs.readMPINT();
+		BigInteger s = rs.readMPINT();
+
+		if ((rs.remain() != 0) || (tr.remain() != 0))
+			throw new IOException("Padding in ECDSA signature!");
+
+		byte[] rb = r.toByteArray();
+		byte[] sb = s.toByteArray();
+
+		byte[] der = new byte[6 + rb.length + sb.length];
+
+		der[0] = 0x30;
+		der[1] = (byte) (4 + rb.length + sb.length);
+		der[2] = 0x02;
+		der[3] = (byte) rb.length;
+		System.arraycopy(rb, 0, der, 4, rb.length);
+		der[4 + rb.length] = 0x02;
+		der[5 + rb.length] = (byte) sb.length;
+		System.arraycopy(sb, 0, der, 6 + rb.length, sb.length);
+
+		return der;
+	}
+
+	public static boolean verifySignature(byte[] message, byte[] sig, ECPublicKey pk) throws IOException
+	{
+		try
+		{
+			Signature s = Signature.getInstance("SHA256withECDSA");
+			s.initVerify(pk);
+			s.update(message);
+			return s.verify(sig);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw (IOException) new IOException("Cannot verify ECDSA signature").initCause(e);
+		}
+	}
+
+	/**
+	 * Decodes an uncompressed point, and checks that it lies on the curve.
+	 * 
+	 * @return the point, or <code>null</code> if it is invalid
+	 */
+	public static ECPoint decodePoint(byte[] b, ECParameterSpec params)
+	{
+		BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+		int len = (p.bitLength() + 7) / 8;
+
+		if ((b.length != 1 + 2 * len) || (b[0] != 4))
+			return null;
+
+		byte[] xb = new byte[len];
+		byte[] yb = new byte[len];
+		System.arraycopy(b, 1, xb, 0, len);
+		System.arraycopy(b, 1 + len, yb, 0, len);
+
+		BigInteger x = new BigInteger(1, xb);
+		BigInteger y = new BigInteger(1, yb);
+
+		if ((x.compareTo(p) >= 0) || (y.compareTo(p) >= 0))
+			return null;
+
+		BigInteger a = params.getCurve().getA();
+		BigInteger bb = params.getCurve().getB();
+
+		BigInteger lhs = y.multiply(y).mod(p);
+		BigInteger rhs = x.multiply(x).add(a).multiply(x).add(bb).mod(p);
+
+		if (lhs.equals(rhs) == false)
+			return null;
+
+		return new ECPoint(x, y);
+	}
+
+	/**
+	 * Encodes a point uncompressed.
+	 */
+	public static byte[] encodePoint(ECPoint q, ECParameterSpec params)
+	{
+		BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+		int len = (p.bitLength() + 7) / 8;
+
+		byte[] b = new byte[1 + 2 * len];
+		b[0] = 4;
+		copyUnsigned(q.getAffineX(), b, 1, len);
+		copyUnsigned(q.getAffineY(), b, 1 + len, len);
+		return b;
+	}
+
+	private static void copyUnsigned(BigInteger v, byte[] dst, int off, int len)
+	{
+		byte[] b = v.toByteArray();
+
+		if (b.length > len)
+			System.arraycopy(b, b.length - len, dst, off, len);
+		else
+			System.arraycopy(b, 0, dst, off + len - b.length, b.length);
+	}
+}
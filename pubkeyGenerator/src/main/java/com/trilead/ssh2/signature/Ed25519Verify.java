@@ -0,0 +1,221 @@
+package com.trilead.ssh2.signature;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.packets.TypesReader;
+
+
+/**
+ * Ed25519Verify. Verification of ssh-ed25519 signatures (RFC 8032, RFC 8709),
+ * computed on twisted Edwards points in extended coordinates.
+ */
+public class Ed25519Verify
+{
+	private static final Logger log = Logger.getLogger(Ed25519Verify.class);
+
+	private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+	private static final BigInteger L = BigInteger.ONE.shiftLeft(252).add(
+			new BigInteger("27742317777372353535851937790883648493"));
+
+	private static final BigInteger D = BigInteger.valueOf(-121665).multiply(
+			BigInteger.valueOf(121666).modInverse(P)).mod(P);
+
+	private static final BigInteger D2 = D.shiftLeft(1).mod(P);
+
+	/* sqrt(-1) */
+	private static final BigInteger I = BigInteger.valueOf(2).modPow(P.subtract(BigInteger.ONE).shiftRight(2), P);
+
+	private static final BigInteger[] B;
+
+	static
+	{
+		BigInteger y = BigInteger.valueOf(4).multiply(BigInteger.valueOf(5).modInverse(P)).mod(P);
+		B = point(recoverX(y, 0), y);
+	}
+
+	public static byte[] decodeSSHEd25519PublicKey(byte[] key) throws IOException
+	{
+		TypesReader tr = new TypesReader(key);
+
+		String key_format = tr.readString();
+
+		if (key_format.equals("ssh-ed25519") == false)
+			throw new IllegalArgumentException("This is not a ssh-ed25519 public key");
+
+		byte[] pk = tr.readByteString();
+
+		if (pk.length != 32)
+			throw new IOException("Ed25519 public key has wrong length (" + pk.length + ")");
+
+		if (tr.remain() != 0)
+			throw new IOException("Padding in Ed25519 public key!");
+
+		return pk;
+	}
+
+	public static byte[] decodeSSHEd25519Signature(byte[] sig) throws IOException
+	{
+		TypesReader tr = new TypesReader(sig);
+
+		String sig_format = tr.readString();
+
+		if (sig_format.equals("ssh-ed25519") == false)
+			throw new IOException("Peer sent wrong signature format");
+
+		byte[] s = tr.readByteString();
+
+		if (s.length != 64)
+			throw new IOException("Ed25519 signature has wrong length (" + s.length + ")");
+
+		if (tr.remain() != 0)
+			throw new IOException("Padding in Ed25519 signature!");
+
+		return s;
+	}
+
+	public static boolean verifySignature(byte[] message, byte[] sig, byte[] pk) throws IOException
+	{
+		BigInteger[] A = decodePoint(pk);
+		BigInteger[] R = decodePoint(copy(sig, 0));
+
+		if ((A == null) || (R == null))
+		{
+			log.log(20, "Ed25519 point does not decode");
+			return false;
+		}
+
+		BigInteger s = littleEndian(copy(sig, 32));
+
+		if (s.compareTo(L) >= 0)
+			return false;
+
+		MessageDigest md;
+
+		try
+		{
+			md = MessageDigest.getInstance("SHA-512");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw (IOException) new IOException("SHA-512 is not available").initCause(e);
+		}
+
+		md.update(sig, 0, 32);
+		md.update(pk);
+		md.update(message);
+
+		BigInteger h = littleEndian(md.digest()).mod(L);
+
+		/* [s]B == R + [h]A */
+
+		BigInteger[] left = multiply(B, s);
+		BigInteger[] right = add(R, multiply(A, h));
+
+		return equal(left, right);
+	}
+
+	private static byte[] copy(byte[] src, int off)
+	{
+		byte[] b = new byte[32];
+		System.arraycopy(src, off, b, 0, 32);
+		return b;
+	}
+
+	private static BigInteger littleEndian(byte[] b)
+	{
+		byte[] be = new byte[b.length];
+		for (int i = 0; i < b.length; i++)
+			be[i] = b[b.length - 1 - i];
+		return new BigInteger(1, be);
+	}
+
+	private static BigInteger recoverX(BigInteger y, int sign)
+	{
+		BigInteger y2 = y.multiply(y);
+		BigInteger u = y2.subtract(BigInteger.ONE).mod(P);
+		BigInteger v = D.multiply(y2).add(BigInteger.ONE).mod(P);
+		BigInteger x2 = u.multiply(v.modInverse(P)).mod(P);
+
+		BigInteger x = x2.modPow(P.add(BigInteger.valueOf(3)).shiftRight(3), P);
+
+		if (x.multiply(x).subtract(x2).mod(P).signum() != 0)
+			x = x.multiply(I).mod(P);
+
+		if (x.multiply(x).subtract(x2).mod(P).signum() != 0)
+			return null;
+
+		if ((x.signum() == 0) && (sign == 1))
+			return null;
+
+		if (x.testBit(0) != (sign == 1))
+			x = P.subtract(x);
+
+		return x;
+	}
+
+	private static BigInteger[] decodePoint(byte[] b)
+	{
+		int sign = (b[31] >> 7) & 1;
+
+		byte[] yb = b.clone();
+		yb[31] &= 0x7f;
+
+		BigInteger y = littleEndian(yb);
+
+		if (y.compareTo(P) >= 0)
+			return null;
+
+		BigInteger x = recoverX(y, sign);
+
+		if (x == null)
+			return null;
+
+		return point(x, y);
+	}
+
+	/* Extended coordinates: X, Y, Z, T with x = X/Z, y = Y/Z, x*y = T/Z */
+
+	private static BigInteger[] point(BigInteger x, BigInteger y)
+	{
+		return new BigInteger[] { x, y, BigInteger.ONE, x.multiply(y).mod(P) };
+	}
+
+	private static BigInteger[] add(BigInteger[] p, BigInteger[] q)
+	{
+		BigInteger a = p[1].subtract(p[0]).multiply(q[1].subtract(q[0])).mod(P);
+		BigInteger b = p[1].add(p[0]).multiply(q[1].add(q[0])).mod(P);
+		BigInteger c = p[3].multiply(D2).multiply(q[3]).mod(P);
+		BigInteger d = p[2].shiftLeft(1).multiply(q[2]).mod(P);
+		BigInteger e = b.subtract(a);
+		BigInteger f = d.subtract(c);
+		BigInteger g = d.add(c);
+		BigInteger h = b.add(a);
+
+		return new BigInteger[] { e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P),
+				e.multiply(h).mod(P) };
+	}
+
+	private static BigInteger[] multiply(BigInteger[] p, BigInteger k)
+	{
+		BigInteger[] r = point(BigInteger.ZERO, BigInteger.ONE);
+
+		for (int i = k.bitLength() - 1; i >= 0; i--)
+		{
+			r = add(r, r);
+			if (k.testBit(i))
+				r = add(r, p);
+		}
+		return r;
+	}
+
+	private static boolean equal(BigInteger[] p, BigInteger[] q)
+	{
+		return p[0].multiply(q[2]).subtract(q[0].multiply(p[2])).mod(P).signum() == 0
+				&& p[1].multiply(q[2]).subtract(q[1].multiply(p[2])).mod(P).signum() == 0;
+	}
+}
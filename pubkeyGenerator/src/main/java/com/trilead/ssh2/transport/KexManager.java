@@ -2,19 +2,29 @@
 package com.trilead.ssh2.transport;
 
 import java.io.IOException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.util.Vector;
+
+import javax.crypto.KeyAgreement;
 
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionStatistics;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.CompressionFactory;
 import com.trilead.ssh2.compression.ICompressor;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.KeyMaterial;
+import com.trilead.ssh2.crypto.cipher.AeadCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
 import com.trilead.ssh2.crypto.dh.DhExchange;
 import com.trilead.ssh2.crypto.dh.DhGroupExchange;
+import com.trilead.ssh2.crypto.dh.EcDhExchange;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketKexDHInit;
@@ -24,12 +34,16 @@ import com.trilead.ssh2.packets.PacketKexDhGexInit;
 import com.trilead.ssh2.packets.PacketKexDhGexReply;
 import com.trilead.ssh2.packets.PacketKexDhGexRequest;
 import com.trilead.ssh2.packets.PacketKexDhGexRequestOld;
+import com.trilead.ssh2.packets.PacketKexECDHInit;
+import com.trilead.ssh2.packets.PacketKexECDHReply;
 import com.trilead.ssh2.packets.PacketKexInit;
 import com.trilead.ssh2.packets.PacketNewKeys;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.signature.DSAPublicKey;
 import com.trilead.ssh2.signature.DSASHA1Verify;
 import com.trilead.ssh2.signature.DSASignature;
+import com.trilead.ssh2.signature.ECDSASHA2Verify;
+import com.trilead.ssh2.signature.Ed25519Verify;
 import com.trilead.ssh2.signature.RSAPublicKey;
 import com.trilead.ssh2.signature.RSASHA1Verify;
 import com.trilead.ssh2.signature.RSASignature;
@@ -53,6 +67,7 @@ public class KexManager
 
 	final Object accessLock = new Object();
 	ConnectionInfo lastConnInfo = null;
+	long kexTime = 0;
 
 	boolean connectionClosed = false;
 
@@ -63,6 +78,18 @@ public class KexManager
 	CryptoWishList nextKEXcryptoWishList;
 	DHGexParameters nextKEXdhgexParameters;
 
+	/* Finishes the current or the last key exchange, see KexWorker */
+	KexWorker worker;
+
+	/* Set until the worker has sent what was queued during its key exchange */
+	boolean workerSending = false;
+
+	/* Wanted while the worker was still sending; the worker starts it when done */
+	boolean kexRequested = false;
+
+	/* Kex messages of the server which arrived while the worker was still sending */
+	Vector<byte[]> deferredMessages = null;
+
 	ServerHostKeyVerifier verifier;
 	final String hostname;
 	final int port;
@@ -105,6 +132,22 @@ public class KexManager
 		}
 	}
 
+	/**
+	 * Fills in the key exchange figures of a snapshot.
+	 */
+	public void getStatistics(ConnectionStatistics stats)
+	{
+		synchronized (accessLock)
+		{
+			if (lastConnInfo == null)
+				return;
+
+			stats.keyExchangeCounter = lastConnInfo.keyExchangeCounter;
+			stats.keyExchangeTime = kexTime;
+			stats.lastKeyExchangeDuration = lastConnInfo.keyExchangeDuration;
+		}
+	}
+
 	private String getFirstMatch(String[] client, String[] server) throws NegotiateException
 	{
 		if (client == null || server == null)
@@ -185,10 +228,14 @@ public class KexManager
 			log.log(20, "enc_algo_client_to_server=" + np.enc_algo_client_to_server);
 			log.log(20, "enc_algo_server_to_client=" + np.enc_algo_server_to_client);
 
-			np.mac_algo_client_to_server = getFirstMatch(client.mac_algorithms_client_to_server,
-					server.mac_algorithms_client_to_server);
-			np.mac_algo_server_to_client = getFirstMatch(client.mac_algorithms_server_to_client,
-					server.mac_algorithms_server_to_client);
+			/* Ciphers which authenticate the packets themselves do not use a MAC */
+
+			if (BlockCipherFactory.isAead(np.enc_algo_client_to_server) == false)
+				np.mac_algo_client_to_server = getFirstMatch(client.mac_algorithms_client_to_server,
+						server.mac_algorithms_client_to_server);
+			if (BlockCipherFactory.isAead(np.enc_algo_server_to_client) == false)
+				np.mac_algo_server_to_client = getFirstMatch(client.mac_algorithms_server_to_client,
+						server.mac_algorithms_server_to_client);
 
 			log.log(20, "mac_algo_client_to_server=" + np.mac_algo_client_to_server);
 			log.log(20, "mac_algo_server_to_client=" + np.mac_algo_server_to_client);
@@ -240,8 +287,20 @@ public class KexManager
 
 		if (kxs == null)
 		{
+			/*
+			 * Our KEXINIT may only follow the messages queued during the last
+			 * key exchange. Leave it to the worker rather than wait here, the
+			 * receive thread may need the lock meanwhile.
+			 */
+			if (workerSending)
+			{
+				kexRequested = true;
+				return;
+			}
+
 			kxs = new KexState();
 
+			kxs.startTime = System.currentTimeMillis();
 			kxs.dhgexParameters = nextKEXdhgexParameters;
 			PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList, rnd);
 			kxs.localKEX = kp;
@@ -249,19 +308,34 @@ public class KexManager
 		}
 	}
 
+	/**
+	 * Starts a key exchange with the parameters of the last one, unless one is
+	 * going on already.
+	 */
+	public synchronized void initiateKEX() throws IOException
+	{
+		initiateKEX(nextKEXcryptoWishList, nextKEXdhgexParameters);
+	}
+
 	private boolean establishKeyMaterial()
 	{
 		try
 		{
-			int mac_cs_key_len = MAC.getKeyLen(kxs.np.mac_algo_client_to_server);
+			int mac_cs_key_len = (kxs.np.mac_algo_client_to_server != null) ? MAC
+					.getKeyLen(kxs.np.mac_algo_client_to_server) : 0;
 			int enc_cs_key_len = BlockCipherFactory.getKeySize(kxs.np.enc_algo_client_to_server);
-			int enc_cs_block_len = BlockCipherFactory.getBlockSize(kxs.np.enc_algo_client_to_server);
+			int enc_cs_block_len = BlockCipherFactory.getIvSize(kxs.np.enc_algo_client_to_server);
 
-			int mac_sc_key_len = MAC.getKeyLen(kxs.np.mac_algo_server_to_client);
+			int mac_sc_key_len = (kxs.np.mac_algo_server_to_client != null) ? MAC
+					.getKeyLen(kxs.np.mac_algo_server_to_client) : 0;
 			int enc_sc_key_len = BlockCipherFactory.getKeySize(kxs.np.enc_algo_server_to_client);
-			int enc_sc_block_len = BlockCipherFactory.getBlockSize(kxs.np.enc_algo_server_to_client);
+			int enc_sc_block_len = BlockCipherFactory.getIvSize(kxs.np.enc_algo_server_to_client);
+
+			/* The key exchange determines the hash used to derive the keys */
+
+			String hashType = (kxs.ecdh != null) ? "SHA256" : "SHA1";
 
-			km = KeyMaterial.create("SHA1", kxs.H, kxs.K, sessionId, enc_cs_key_len, enc_cs_block_len, mac_cs_key_len,
+			km = KeyMaterial.create(hashType, kxs.H, kxs.K, sessionId, enc_cs_key_len, enc_cs_block_len, mac_cs_key_len,
 					enc_sc_key_len, enc_sc_block_len, mac_sc_key_len);
 		}
 		catch (IllegalArgumentException e)
@@ -278,21 +352,25 @@ public class KexManager
 
 		establishKeyMaterial();
 
-		/* Tell the other side that we start using the new material */
-
-		PacketNewKeys ign = new PacketNewKeys();
-		tm.sendKexMessage(ign.getPayload());
-
-		BlockCipher cbc;
-		MAC mac;
+		BlockCipher cbc = null;
+		AeadCipher aead = null;
+		MAC mac = null;
 		ICompressor comp;
 
 		try
 		{
-			cbc = BlockCipherFactory.createCipher(kxs.np.enc_algo_client_to_server, true, km.enc_key_client_to_server,
-					km.initial_iv_client_to_server);
+			if (BlockCipherFactory.isAead(kxs.np.enc_algo_client_to_server))
+			{
+				aead = BlockCipherFactory.createAeadCipher(kxs.np.enc_algo_client_to_server, true,
+						km.enc_key_client_to_server, km.initial_iv_client_to_server);
+			}
+			else
+			{
+				cbc = BlockCipherFactory.createCipher(kxs.np.enc_algo_client_to_server, true,
+						km.enc_key_client_to_server, km.initial_iv_client_to_server);
 
-			mac = new MAC(kxs.np.mac_algo_client_to_server, km.integrity_key_client_to_server);
+				mac = new MAC(kxs.np.mac_algo_client_to_server, km.integrity_key_client_to_server);
+			}
 			
 			comp = CompressionFactory.createCompressor(kxs.np.comp_algo_client_to_server);
 
@@ -302,20 +380,286 @@ public class KexManager
 			throw new IOException("Fatal error during MAC startup!");
 		}
 
-		tm.changeSendCipher(cbc, mac);
+		/* The receive thread may now switch to the new keys, and forget kxs */
+
+		worker.keysReady();
+
+		/* Tell the other side that we start using the new material */
+
+		PacketNewKeys ign = new PacketNewKeys();
+		tm.sendKexMessage(ign.getPayload());
+
+		if (aead != null)
+			tm.changeSendCipher(aead);
+		else
+			tm.changeSendCipher(cbc, mac);
 		tm.changeSendCompression(comp);
 		tm.kexFinished();
 	}
 
+	/**
+	 * Finishes the key exchange once the reply of the server has arrived: checks
+	 * the host key, computes the shared secret, verifies the signature and sends
+	 * our SSH_MSG_NEWKEYS, followed by whatever was queued meanwhile.
+	 * <p>
+	 * This is the expensive part of a key exchange, and the verifier may ask the
+	 * user about the host key, so it is not done on the receive thread. Once the
+	 * server's SSH_MSG_NEWKEYS arrives, the receive thread waits until the new
+	 * keys are known, but not until the queued messages have been sent: the
+	 * server may be busy sending us data, and only read once we do. For the
+	 * same reason a new key exchange, wanted by either side while the queue is
+	 * still being sent, is only started by the worker once it is done.
+	 */
+	class KexWorker extends Thread
+	{
+		private final Object reply;
+		private boolean keysReady = false;
+		private IOException failure;
+
+		KexWorker(Object reply)
+		{
+			this.reply = reply;
+
+			setName("KexWorker");
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			try
+			{
+				try
+				{
+					if (reply instanceof PacketKexDhGexReply)
+						completeKex((PacketKexDhGexReply) reply);
+					else if (reply instanceof PacketKexDHReply)
+						completeKex((PacketKexDHReply) reply);
+					else
+						completeKex((PacketKexECDHReply) reply);
+
+					workerDone();
+				}
+				catch (RuntimeException e)
+				{
+					throw (IOException) new IOException("KEX error.").initCause(e);
+				}
+			}
+			catch (IOException e)
+			{
+				synchronized (this)
+				{
+					failure = e;
+					notifyAll();
+				}
+
+				tm.close(e, false);
+			}
+		}
+
+		synchronized void keysReady()
+		{
+			keysReady = true;
+			notifyAll();
+		}
+
+		synchronized void waitForKeys() throws IOException
+		{
+			while ((keysReady == false) && (failure == null))
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+
+			if (keysReady == false)
+				throw (IOException) new IOException("Key exchange failed: " + failure.getMessage()).initCause(failure);
+		}
+
+	}
+
+	private void startKexWorker(Object reply)
+	{
+		kxs.state = -1;
+
+		workerSending = true;
+		worker = new KexWorker(reply);
+		worker.start();
+	}
+
+	/*
+	 * Called by the worker once the messages queued during its key exchange
+	 * have been sent. Starts what had to wait for that, in the order it came.
+	 */
+	private synchronized void workerDone() throws IOException
+	{
+		workerSending = false;
+
+		if (kexRequested)
+		{
+			kexRequested = false;
+			initiateKEX();
+		}
+
+		Vector<byte[]> deferred = deferredMessages;
+		deferredMessages = null;
+
+		if (deferred != null)
+		{
+			for (int i = 0; i < deferred.size(); i++)
+			{
+				byte[] msg = deferred.elementAt(i);
+				handleMessage(msg, msg.length);
+			}
+		}
+	}
+
+	private void verifyHostKey() throws IOException
+	{
+		if (verifier == null)
+			return;
+
+		boolean vres = false;
+
+		try
+		{
+			vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.hostkey);
+		}
+		catch (Exception e)
+		{
+			throw (IOException) new IOException("The server hostkey was not accepted by the verifier callback.")
+					.initCause(e);
+		}
+
+		if (vres == false)
+			throw new IOException("The server hostkey was not accepted by the verifier callback");
+	}
+
+	private void completeKex(PacketKexDhGexReply dhgexrpl) throws IOException
+	{
+		kxs.hostkey = dhgexrpl.getHostKey();
+
+		verifyHostKey();
+
+		kxs.dhgx.setF(dhgexrpl.getF());
+
+		try
+		{
+			kxs.H = kxs.dhgx.calculateH(csh.getClientString(), csh.getServerString(), kxs.localKEX.getPayload(),
+					kxs.remoteKEX.getPayload(), dhgexrpl.getHostKey(), kxs.dhgexParameters);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw (IOException) new IOException("KEX error.").initCause(e);
+		}
+
+		boolean res = verifySignature(dhgexrpl.getSignature(), kxs.hostkey);
+
+		if (res == false)
+			throw new IOException("Hostkey signature sent by remote is wrong!");
+
+		kxs.K = kxs.dhgx.getK();
+
+		finishKex();
+	}
+
+	private void completeKex(PacketKexDHReply dhr) throws IOException
+	{
+		kxs.hostkey = dhr.getHostKey();
+
+		verifyHostKey();
+
+		kxs.dhx.setF(dhr.getF());
+
+		try
+		{
+			kxs.H = kxs.dhx.calculateH(csh.getClientString(), csh.getServerString(), kxs.localKEX.getPayload(),
+					kxs.remoteKEX.getPayload(), dhr.getHostKey());
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw (IOException) new IOException("KEX error.").initCause(e);
+		}
+
+		boolean res = verifySignature(dhr.getSignature(), kxs.hostkey);
+
+		if (res == false)
+			throw new IOException("Hostkey signature sent by remote is wrong!");
+
+		kxs.K = kxs.dhx.getK();
+
+		finishKex();
+	}
+
+	private void completeKex(PacketKexECDHReply ecdhr) throws IOException
+	{
+		kxs.hostkey = ecdhr.getHostKey();
+
+		verifyHostKey();
+
+		kxs.ecdh.setF(ecdhr.getQ_S());
+
+		kxs.H = kxs.ecdh.calculateH(csh.getClientString(), csh.getServerString(), kxs.localKEX.getPayload(),
+				kxs.remoteKEX.getPayload(), ecdhr.getHostKey());
+
+		boolean res = verifySignature(ecdhr.getSignature(), kxs.hostkey);
+
+		if (res == false)
+			throw new IOException("Hostkey signature sent by remote is wrong!");
+
+		kxs.K = kxs.ecdh.getK();
+
+		finishKex();
+	}
+
+	/*
+	 * ecdh-sha2-nistp256 and ecdsa-sha2-nistp256 rely on the platform, and are
+	 * only offered if it supports them.
+	 */
+	private static final boolean ecAvailable = isECAvailable();
+
+	private static boolean isECAvailable()
+	{
+		try
+		{
+			KeyPairGenerator.getInstance("EC");
+			KeyFactory.getInstance("EC");
+			KeyAgreement.getInstance("ECDH");
+			Signature.getInstance("SHA256withECDSA");
+			return true;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+
 	public static final String[] getDefaultServerHostkeyAlgorithmList()
 	{
-		return new String[] { "ssh-rsa", "ssh-dss" };
+		Vector<String> algos = new Vector<String>();
+
+		algos.addElement("ssh-ed25519");
+		if (ecAvailable)
+			algos.addElement("ecdsa-sha2-nistp256");
+		algos.addElement("ssh-rsa");
+		algos.addElement("ssh-dss");
+
+		return algos.toArray(new String[algos.size()]);
 	}
 
 	public static final void checkServerHostkeyAlgorithmsList(String[] algos)
 	{
 		for (int i = 0; i < algos.length; i++)
 		{
+			if ("ssh-ed25519".equals(algos[i]))
+				continue;
+
+			if ("ecdsa-sha2-nistp256".equals(algos[i]) && ecAvailable)
+				continue;
+
 			if (("ssh-rsa".equals(algos[i]) == false) && ("ssh-dss".equals(algos[i]) == false))
 				throw new IllegalArgumentException("Unknown server host key algorithm '" + algos[i] + "'");
 		}
@@ -323,14 +667,31 @@ public class KexManager
 
 	public static final String[] getDefaultKexAlgorithmList()
 	{
-		return new String[] { "diffie-hellman-group-exchange-sha1", "diffie-hellman-group14-sha1",
-				"diffie-hellman-group1-sha1" };
+		Vector<String> algos = new Vector<String>();
+
+		/* Higher Priority First, the elliptic curve ones are much cheaper to compute */
+
+		algos.addElement("curve25519-sha256");
+		algos.addElement("curve25519-sha256@libssh.org");
+		if (ecAvailable)
+			algos.addElement("ecdh-sha2-nistp256");
+		algos.addElement("diffie-hellman-group-exchange-sha1");
+		algos.addElement("diffie-hellman-group14-sha1");
+		algos.addElement("diffie-hellman-group1-sha1");
+
+		return algos.toArray(new String[algos.size()]);
 	}
 
 	public static final void checkKexAlgorithmList(String[] algos)
 	{
 		for (int i = 0; i < algos.length; i++)
 		{
+			if ("curve25519-sha256".equals(algos[i]) || "curve25519-sha256@libssh.org".equals(algos[i]))
+				continue;
+
+			if ("ecdh-sha2-nistp256".equals(algos[i]) && ecAvailable)
+				continue;
+
 			if ("diffie-hellman-group-exchange-sha1".equals(algos[i]))
 				continue;
 
@@ -366,6 +727,26 @@ public class KexManager
 			return DSASHA1Verify.verifySignature(kxs.H, ds, dpk);
 		}
 
+		if (kxs.np.server_host_key_algo.equals("ssh-ed25519"))
+		{
+			byte[] es = Ed25519Verify.decodeSSHEd25519Signature(sig);
+			byte[] epk = Ed25519Verify.decodeSSHEd25519PublicKey(hostkey);
+
+			log.log(50, "Verifying ssh-ed25519 signature");
+
+			return Ed25519Verify.verifySignature(kxs.H, es, epk);
+		}
+
+		if (kxs.np.server_host_key_algo.equals("ecdsa-sha2-nistp256"))
+		{
+			byte[] es = ECDSASHA2Verify.decodeSSHECDSASignature(sig);
+			ECPublicKey epk = ECDSASHA2Verify.decodeSSHECDSAPublicKey(hostkey);
+
+			log.log(50, "Verifying ecdsa-sha2-nistp256 signature");
+
+			return ECDSASHA2Verify.verifySignature(kxs.H, es, epk);
+		}
+
 		throw new IOException("Unknown server host key algorithm '" + kxs.np.server_host_key_algo + "'");
 	}
 
@@ -383,6 +764,23 @@ public class KexManager
 			}
 		}
 
+		if ((kxs == null) && workerSending)
+		{
+			/*
+			 * The server started a new key exchange while the worker is still
+			 * sending. Our KEXINIT has to come after that, and waiting for it
+			 * here would stop us reading while the server may be blocked
+			 * writing to us. The worker takes over once it is done.
+			 */
+			if (deferredMessages == null)
+				deferredMessages = new Vector<byte[]>();
+
+			byte[] copy = new byte[msglen];
+			System.arraycopy(msg, 0, copy, 0, msglen);
+			deferredMessages.addElement(copy);
+			return;
+		}
+
 		if ((kxs == null) && (msg[0] != Packets.SSH_MSG_KEXINIT))
 			throw new IOException("Unexpected KEX message (type " + msg[0] + ")");
 
@@ -404,6 +802,7 @@ public class KexManager
 				 * together.
 				 */
 				kxs = new KexState();
+				kxs.startTime = System.currentTimeMillis();
 				kxs.dhgexParameters = nextKEXdhgexParameters;
 				kip = new PacketKexInit(nextKEXcryptoWishList, rnd);
 				kxs.localKEX = kip;
@@ -460,24 +859,47 @@ public class KexManager
 				return;
 			}
 
+			kxs.ecdh = EcDhExchange.getInstance(kxs.np.kex_algo);
+
+			if (kxs.ecdh != null)
+			{
+				kxs.ecdh.init(rnd);
+
+				PacketKexECDHInit kp = new PacketKexECDHInit(kxs.ecdh.getE());
+				tm.sendKexMessage(kp.getPayload());
+				kxs.state = 1;
+				return;
+			}
+
 			throw new IllegalStateException("Unkown KEX method!");
 		}
 
 		if (msg[0] == Packets.SSH_MSG_NEWKEYS)
 		{
-			if (km == null)
+			if ((kxs == null) || (kxs.state != -1))
 				throw new IOException("Peer sent SSH_MSG_NEWKEYS, but I have no key material ready!");
 
-			BlockCipher cbc;
-			MAC mac;
+			worker.waitForKeys();
+
+			BlockCipher cbc = null;
+			AeadCipher aead = null;
+			MAC mac = null;
 			ICompressor comp;
 
 			try
 			{
-				cbc = BlockCipherFactory.createCipher(kxs.np.enc_algo_server_to_client, false,
-						km.enc_key_server_to_client, km.initial_iv_server_to_client);
+				if (BlockCipherFactory.isAead(kxs.np.enc_algo_server_to_client))
+				{
+					aead = BlockCipherFactory.createAeadCipher(kxs.np.enc_algo_server_to_client, false,
+							km.enc_key_server_to_client, km.initial_iv_server_to_client);
+				}
+				else
+				{
+					cbc = BlockCipherFactory.createCipher(kxs.np.enc_algo_server_to_client, false,
+							km.enc_key_server_to_client, km.initial_iv_server_to_client);
 
-				mac = new MAC(kxs.np.mac_algo_server_to_client, km.integrity_key_server_to_client);
+					mac = new MAC(kxs.np.mac_algo_server_to_client, km.integrity_key_server_to_client);
+				}
 				
 				comp = CompressionFactory.createCompressor(kxs.np.comp_algo_server_to_client);
 			}
@@ -486,7 +908,10 @@ public class KexManager
 				throw new IOException("Fatal error during MAC startup!");
 			}
 
-			tm.changeRecvCipher(cbc, mac);
+			if (aead != null)
+				tm.changeRecvCipher(aead);
+			else
+				tm.changeRecvCipher(cbc, mac);
 			tm.changeRecvCompression(comp);
 
 			ConnectionInfo sci = new ConnectionInfo();
@@ -501,10 +926,15 @@ public class KexManager
 			sci.serverToClientMACAlgorithm = kxs.np.mac_algo_server_to_client;
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
 			sci.serverHostKey = kxs.hostkey;
+			sci.keyExchangeDuration = System.currentTimeMillis() - kxs.startTime;
+
+			if (log.isEnabled())
+				log.log(20, "Key exchange " + kexCount + " took " + sci.keyExchangeDuration + " ms");
 
 			synchronized (accessLock)
 			{
 				lastConnInfo = sci;
+				kexTime += sci.keyExchangeDuration;
 				accessLock.notifyAll();
 			}
 
@@ -530,50 +960,7 @@ public class KexManager
 
 			if (kxs.state == 2)
 			{
-				PacketKexDhGexReply dhgexrpl = new PacketKexDhGexReply(msg, 0, msglen);
-
-				kxs.hostkey = dhgexrpl.getHostKey();
-
-				if (verifier != null)
-				{
-					boolean vres = false;
-
-					try
-					{
-						vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.hostkey);
-					}
-					catch (Exception e)
-					{
-						throw (IOException) new IOException(
-								"The server hostkey was not accepted by the verifier callback.").initCause(e);
-					}
-
-					if (vres == false)
-						throw new IOException("The server hostkey was not accepted by the verifier callback");
-				}
-
-				kxs.dhgx.setF(dhgexrpl.getF());
-
-				try
-				{
-					kxs.H = kxs.dhgx.calculateH(csh.getClientString(), csh.getServerString(),
-							kxs.localKEX.getPayload(), kxs.remoteKEX.getPayload(), dhgexrpl.getHostKey(),
-							kxs.dhgexParameters);
-				}
-				catch (IllegalArgumentException e)
-				{
-					throw (IOException) new IOException("KEX error.").initCause(e);
-				}
-
-				boolean res = verifySignature(dhgexrpl.getSignature(), kxs.hostkey);
-
-				if (res == false)
-					throw new IOException("Hostkey signature sent by remote is wrong!");
-
-				kxs.K = kxs.dhgx.getK();
-
-				finishKex();
-				kxs.state = -1;
+				startKexWorker(new PacketKexDhGexReply(msg, 0, msglen));
 				return;
 			}
 
@@ -585,50 +972,16 @@ public class KexManager
 		{
 			if (kxs.state == 1)
 			{
+				startKexWorker(new PacketKexDHReply(msg, 0, msglen));
+				return;
+			}
+		}
 
-				PacketKexDHReply dhr = new PacketKexDHReply(msg, 0, msglen);
-
-				kxs.hostkey = dhr.getHostKey();
-
-				if (verifier != null)
-				{
-					boolean vres = false;
-
-					try
-					{
-						vres = verifier.verifyServerHostKey(hostname, port, kxs.np.server_host_key_algo, kxs.hostkey);
-					}
-					catch (Exception e)
-					{
-						throw (IOException) new IOException(
-								"The server hostkey was not accepted by the verifier callback.").initCause(e);
-					}
-
-					if (vres == false)
-						throw new IOException("The server hostkey was not accepted by the verifier callback");
-				}
-
-				kxs.dhx.setF(dhr.getF());
-
-				try
-				{
-					kxs.H = kxs.dhx.calculateH(csh.getClientString(), csh.getServerString(), kxs.localKEX.getPayload(),
-							kxs.remoteKEX.getPayload(), dhr.getHostKey());
-				}
-				catch (IllegalArgumentException e)
-				{
-					throw (IOException) new IOException("KEX error.").initCause(e);
-				}
-
-				boolean res = verifySignature(dhr.getSignature(), kxs.hostkey);
-
-				if (res == false)
-					throw new IOException("Hostkey signature sent by remote is wrong!");
-
-				kxs.K = kxs.dhx.getK();
-
-				finishKex();
-				kxs.state = -1;
+		if (kxs.ecdh != null)
+		{
+			if (kxs.state == 1)
+			{
+				startKexWorker(new PacketKexECDHReply(msg, 0, msglen));
 				return;
 			}
 		}
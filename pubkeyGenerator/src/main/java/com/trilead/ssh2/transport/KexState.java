@@ -6,6 +6,7 @@ import java.math.BigInteger;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.crypto.dh.DhExchange;
 import com.trilead.ssh2.crypto.dh.DhGroupExchange;
+import com.trilead.ssh2.crypto.dh.EcDhExchange;
 import com.trilead.ssh2.packets.PacketKexInit;
 
 /**
@@ -28,5 +29,8 @@ public class KexState
 	
 	public DhExchange dhx;
 	public DhGroupExchange dhgx;
+	public EcDhExchange ecdh;
 	public DHGexParameters dhgexParameters;
+
+	public long startTime;
 }
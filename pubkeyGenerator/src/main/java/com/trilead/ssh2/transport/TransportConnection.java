@@ -6,7 +6,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SecureRandom;
 
+import com.trilead.ssh2.ConnectionStatistics;
 import com.trilead.ssh2.compression.ICompressor;
+import com.trilead.ssh2.crypto.cipher.AeadCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.CipherInputStream;
 import com.trilead.ssh2.crypto.cipher.CipherOutputStream;
@@ -51,6 +53,12 @@ public class TransportConnection
 	byte[] recv_mac_buffer_cmp;
 
 	int recv_padd_blocksize = 8;
+
+	/* Replace the cipher and MAC above if set */
+
+	AeadCipher send_aead;
+
+	AeadCipher recv_aead;
 	
 	ICompressor recv_comp = null;
 	
@@ -68,7 +76,13 @@ public class TransportConnection
 
 	final byte[] send_padding_buffer = new byte[256];
 
-	final byte[] send_packet_header_buffer = new byte[5];
+	/* Grows to the largest packet sent */
+
+	byte[] send_packet_buffer = new byte[256];
+
+	byte[] send_gather_buffer = new byte[0];
+
+	byte[] recv_packet_buffer = new byte[256];
 
 	final byte[] recv_padding_buffer = new byte[256];
 
@@ -80,6 +94,26 @@ public class TransportConnection
 
 	final SecureRandom rnd;
 
+	/*
+	 * Statistics, see ConnectionStatistics. The send side is only written while
+	 * sending, the receive side only by the receive thread. They are volatile so
+	 * that a snapshot never has to wait for either.
+	 */
+
+	volatile long packets_sent = 0;
+	volatile long payload_bytes_sent = 0;
+	volatile long compressed_bytes_sent = 0;
+	volatile long wire_bytes_sent = 0;
+	volatile long send_crypto_nanos = 0;
+	volatile long compression_nanos = 0;
+
+	volatile long packets_received = 0;
+	volatile long payload_bytes_received = 0;
+	volatile long compressed_bytes_received = 0;
+	volatile long wire_bytes_received = 0;
+	volatile long recv_crypto_nanos = 0;
+	volatile long decompression_nanos = 0;
+
 	public TransportConnection(InputStream is, OutputStream os, SecureRandom rnd)
 	{
 		this.cis = new CipherInputStream(new NullCipher(), is);
@@ -89,6 +123,7 @@ public class TransportConnection
 
 	public void changeRecvCipher(BlockCipher bc, MAC mac)
 	{
+		recv_aead = null;
 		cis.changeCipher(bc);
 		recv_mac = mac;
 		recv_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
@@ -107,6 +142,7 @@ public class TransportConnection
 			/* Once we start encrypting, there is no way back */
 		}
 
+		send_aead = null;
 		cos.changeCipher(bc);
 		send_mac = mac;
 		send_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
@@ -115,6 +151,29 @@ public class TransportConnection
 			send_padd_blocksize = 8;
 	}
 	
+	public void changeRecvCipher(AeadCipher ac)
+	{
+		recv_aead = ac;
+		recv_mac = null;
+		recv_mac_buffer = null;
+		recv_mac_buffer_cmp = null;
+		recv_padd_blocksize = ac.getBlockSize();
+		if (recv_padd_blocksize < 8)
+			recv_padd_blocksize = 8;
+	}
+
+	public void changeSendCipher(AeadCipher ac)
+	{
+		useRandomPadding = true;
+
+		send_aead = ac;
+		send_mac = null;
+		send_mac_buffer = null;
+		send_padd_blocksize = ac.getBlockSize();
+		if (send_padd_blocksize < 8)
+			send_padd_blocksize = 8;
+	}
+
 	public void changeRecvCompression(ICompressor comp)
 	{
 		recv_comp = comp;
@@ -148,36 +207,78 @@ public class TransportConnection
 	public int getPacketOverheadEstimate()
 	{
 		// return an estimate for the paket overhead (for send operations)
-		return 5 + 4 + (send_padd_blocksize - 1) + send_mac_buffer.length;
+		int auth_len = (send_aead != null) ? send_aead.getTagSize() : send_mac_buffer.length;
+
+		return 5 + 4 + (send_padd_blocksize - 1) + auth_len;
 	}
 
 	public void sendMessage(byte[] message, int off, int len, int padd) throws IOException
+	{
+		sendMessage(message, off, len, null, 0, 0, padd);
+	}
+
+	/**
+	 * Sends a packet whose payload is <code>message</code> followed by
+	 * <code>data</code>. The packet is put together in a buffer that is reused
+	 * for every packet, and the MAC and encryption are done on that buffer in
+	 * place, so the payload is copied only once on its way to the socket.
+	 */
+	public void sendMessage(byte[] message, int off, int len, byte[] data, int dataOff, int dataLen, int padd)
+			throws IOException
 	{
 		if (padd < 4)
 			padd = 4;
 		else if (padd > 64)
 			padd = 64;
-		
+
+		if (data == null)
+			dataLen = 0;
+
+		long start = System.nanoTime();
+		long write_time = cos.getWriteTime();
+		long comp_time = 0;
+
+		int uncompressed_len = len + dataLen;
+
 		if (send_comp != null && can_send_compress) {
-			if (send_comp_buffer.length < message.length + 1024)
-				send_comp_buffer = new byte[message.length + 1024];
+			if (dataLen > 0) {
+				if (send_gather_buffer.length < len + dataLen)
+					send_gather_buffer = new byte[len + dataLen];
+				System.arraycopy(message, off, send_gather_buffer, 0, len);
+				System.arraycopy(data, dataOff, send_gather_buffer, len, dataLen);
+				message = send_gather_buffer;
+				off = 0;
+				len += dataLen;
+				dataLen = 0;
+			}
+			if (send_comp_buffer.length < len + 1024)
+				send_comp_buffer = new byte[len + 1024];
+			long comp_start = System.nanoTime();
 			len = send_comp.compress(message, off, len, send_comp_buffer);
+			comp_time = System.nanoTime() - comp_start;
 			message = send_comp_buffer;
+			off = 0;
 		}
 
-		int packet_len = 5 + len + padd; /* Minimum allowed padding is 4 */
+		int payload_len = len + dataLen;
+
+		int packet_len = 5 + payload_len + padd; /* Minimum allowed padding is 4 */
+
+		/* With an AEAD cipher, the length field does not count towards the alignment */
 
-		int slack = packet_len % send_padd_blocksize;
+		int aligned_len = (send_aead != null) ? packet_len - 4 : packet_len;
+
+		int slack = aligned_len % send_padd_blocksize;
 
 		if (slack != 0)
 		{
 			packet_len += (send_padd_blocksize - slack);
 		}
 
-		if (packet_len < 16)
-			packet_len = 16;
+		while (packet_len < 16)
+			packet_len += send_padd_blocksize;
 
-		int padd_len = packet_len - (5 + len);
+		int padd_len = packet_len - (5 + payload_len);
 
 		if (useRandomPadding)
 		{
@@ -209,32 +310,62 @@ public class TransportConnection
 			 */
 		}
 
-		send_packet_header_buffer[0] = (byte) ((packet_len - 4) >> 24);
-		send_packet_header_buffer[1] = (byte) ((packet_len - 4) >> 16);
-		send_packet_header_buffer[2] = (byte) ((packet_len - 4) >> 8);
-		send_packet_header_buffer[3] = (byte) ((packet_len - 4));
-		send_packet_header_buffer[4] = (byte) padd_len;
+		int tag_len = (send_aead != null) ? send_aead.getTagSize() : 0;
+
+		if (send_packet_buffer.length < packet_len + tag_len)
+			send_packet_buffer = new byte[Math.max(packet_len + tag_len, 2 * send_packet_buffer.length)];
+
+		byte[] packet = send_packet_buffer;
 
-		cos.write(send_packet_header_buffer, 0, 5);
-		cos.write(message, off, len);
-		cos.write(send_padding_buffer, 0, padd_len);
+		packet[0] = (byte) ((packet_len - 4) >> 24);
+		packet[1] = (byte) ((packet_len - 4) >> 16);
+		packet[2] = (byte) ((packet_len - 4) >> 8);
+		packet[3] = (byte) ((packet_len - 4));
+		packet[4] = (byte) padd_len;
 
-		if (send_mac != null)
+		System.arraycopy(message, off, packet, 5, len);
+		if (dataLen > 0)
+			System.arraycopy(data, dataOff, packet, 5 + len, dataLen);
+		System.arraycopy(send_padding_buffer, 0, packet, 5 + payload_len, padd_len);
+
+		int type = packet[5] & 0xff;
+
+		if (send_aead != null)
+		{
+			/* Encrypts and authenticates in one pass, the tag is appended */
+
+			send_aead.seal(send_seq_number, packet, 0, packet_len);
+			cos.writePlain(packet, 0, packet_len + tag_len);
+		}
+		else
 		{
-			send_mac.initMac(send_seq_number);
-			send_mac.update(send_packet_header_buffer, 0, 5);
-			send_mac.update(message, off, len);
-			send_mac.update(send_padding_buffer, 0, padd_len);
+			if (send_mac != null)
+			{
+				send_mac.initMac(send_seq_number);
+				send_mac.update(packet, 0, packet_len);
+				send_mac.getMac(send_mac_buffer, 0);
+			}
+
+			/* This replaces the packet by its ciphertext */
 
-			send_mac.getMac(send_mac_buffer, 0);
-			cos.writePlain(send_mac_buffer, 0, send_mac_buffer.length);
+			cos.writeInPlace(packet, 0, packet_len);
+
+			if (send_mac != null)
+				cos.writePlain(send_mac_buffer, 0, send_mac_buffer.length);
 		}
 
 		cos.flush();
 
+		packets_sent++;
+		payload_bytes_sent += uncompressed_len;
+		compressed_bytes_sent += payload_len;
+		wire_bytes_sent += packet_len + tag_len + ((send_mac != null) ? send_mac_buffer.length : 0);
+		compression_nanos += comp_time;
+		send_crypto_nanos += System.nanoTime() - start - comp_time - (cos.getWriteTime() - write_time);
+
 		if (log.isEnabled())
 		{
-			log.log(90, "Sent " + Packets.getMessageName(message[off] & 0xff) + " " + len + " bytes payload");
+			log.log(90, "Sent " + Packets.getMessageName(type) + " " + payload_len + " bytes payload");
 		}
 
 		send_seq_number++;
@@ -242,6 +373,9 @@ public class TransportConnection
 
 	public int peekNextMessageLength() throws IOException
 	{
+		if (recv_aead != null)
+			throw new IOException("Cannot peek at the length of packets of an AEAD cipher.");
+
 		if (recv_packet_header_present == false)
 		{
 			cis.read(recv_packet_header_buffer, 0, 5);
@@ -266,6 +400,24 @@ public class TransportConnection
 	}
 
 	public int receiveMessage(byte buffer[], int off, int len) throws IOException
+	{
+		long start = System.nanoTime();
+		long read_time = cis.getReadTime();
+
+		int payload_length = (recv_aead != null) ? receiveAeadPacket(buffer, off, len) : receivePacket(buffer, off, len);
+
+		recv_crypto_nanos += System.nanoTime() - start - (cis.getReadTime() - read_time);
+
+		return finishReceive(buffer, off, payload_length);
+	}
+
+	/**
+	 * Reads a packet of a block cipher, decrypts and checks it, and copies the
+	 * payload to <code>buffer</code>.
+	 * 
+	 * @return the length of the payload
+	 */
+	private int receivePacket(byte buffer[], int off, int len) throws IOException
 	{
 		if (recv_packet_header_present == false)
 		{
@@ -313,26 +465,106 @@ public class TransportConnection
 
 		recv_seq_number++;
 
+		wire_bytes_received += 4 + packet_length + ((recv_mac != null) ? recv_mac_buffer.length : 0);
+
+		return payload_length;
+	}
+
+	/**
+	 * Reads a packet of an AEAD cipher, checks and decrypts it in one pass,
+	 * and copies the payload to <code>buffer</code>.
+	 * 
+	 * @return the length of the payload
+	 */
+	private int receiveAeadPacket(byte buffer[], int off, int len) throws IOException
+	{
+		cis.readPlain(recv_packet_header_buffer, 0, 4);
+
+		int packet_length = recv_aead.getPacketLength(recv_seq_number, recv_packet_header_buffer, 0);
+
+		if (packet_length > 35000 || packet_length < 12 || (packet_length % recv_padd_blocksize) != 0)
+			throw new IOException("Illegal packet size! (" + packet_length + ")");
+
+		int total = 4 + packet_length + recv_aead.getTagSize();
+
+		if (recv_packet_buffer.length < total)
+			recv_packet_buffer = new byte[Math.max(total, 2 * recv_packet_buffer.length)];
+
+		byte[] packet = recv_packet_buffer;
+
+		System.arraycopy(recv_packet_header_buffer, 0, packet, 0, 4);
+		cis.readPlain(packet, 4, total - 4);
+
+		recv_aead.open(recv_seq_number, packet, 0, 4 + packet_length);
+
+		int padding_length = packet[4] & 0xff;
+
+		int payload_length = packet_length - padding_length - 1;
+
+		if (payload_length < 0)
+			throw new IOException("Illegal padding_length in packet from remote (" + padding_length + ")");
+
+		if (payload_length >= len)
+			throw new IOException("Receive buffer too small (" + len + ", need " + payload_length + ")");
+
+		System.arraycopy(packet, 5, buffer, off, payload_length);
+
+		recv_seq_number++;
+
+		wire_bytes_received += total;
+
+		return payload_length;
+	}
+
+	private int finishReceive(byte buffer[], int off, int payload_length) throws IOException
+	{
 		if (log.isEnabled())
 		{
 			log.log(90, "Received " + Packets.getMessageName(buffer[off] & 0xff) + " " + payload_length
 					+ " bytes payload");
 		}
 
+		packets_received++;
+		compressed_bytes_received += payload_length;
+
 		if (recv_comp != null && can_recv_compress) {
 			int[] uncomp_len = new int[] { payload_length };
+			long start = System.nanoTime();
 			buffer = recv_comp.uncompress(buffer, off, uncomp_len);
+			decompression_nanos += System.nanoTime() - start;
 			
 			if (buffer == null) {
 				throw new IOException("Error while inflating remote data");
 			} else {
+				payload_bytes_received += uncomp_len[0];
 				return uncomp_len[0];
 			}
 		} else {
+			payload_bytes_received += payload_length;
 			return payload_length;
 		}
 	}
 
+	/**
+	 * Fills in the traffic counters of a snapshot.
+	 */
+	public void getStatistics(ConnectionStatistics stats)
+	{
+		stats.packetsSent = packets_sent;
+		stats.payloadBytesSent = payload_bytes_sent;
+		stats.compressedBytesSent = compressed_bytes_sent;
+		stats.wireBytesSent = wire_bytes_sent;
+		stats.sendCryptoTime = send_crypto_nanos;
+		stats.compressionTime = compression_nanos;
+
+		stats.packetsReceived = packets_received;
+		stats.payloadBytesReceived = payload_bytes_received;
+		stats.compressedBytesReceived = compressed_bytes_received;
+		stats.wireBytesReceived = wire_bytes_received;
+		stats.receiveCryptoTime = recv_crypto_nanos;
+		stats.decompressionTime = decompression_nanos;
+	}
+
 	/**
 	 * 
 	 */
@@ -13,6 +13,7 @@ import java.util.Vector;
 
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ConnectionStatistics;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.HTTPProxyData;
 import com.trilead.ssh2.HTTPProxyException;
@@ -21,6 +22,7 @@ import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.ICompressor;
 import com.trilead.ssh2.crypto.Base64;
 import com.trilead.ssh2.crypto.CryptoWishList;
+import com.trilead.ssh2.crypto.cipher.AeadCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
@@ -42,6 +44,10 @@ import com.trilead.ssh2.util.Tokenizer;
  * we are very likely going to communicate with OpenSSH servers, we have to play
  * the same game - even though we could do better.
  * 
+ * Local traffic is not stalled during a re-key though: messages sent while a
+ * key exchange is going on are queued (up to MAX_KEX_QUEUE_BYTES) and sent
+ * right after our SSH_MSG_NEWKEYS, with the new keys.
+ * 
  * btw: having stdout and stderr on the same channel, with a shared window, is
  * also a VERY good idea... =(
  */
@@ -130,7 +136,36 @@ public class TransportManager
 	Object connectionSemaphore = new Object();
 
 	boolean flagKexOngoing = false;
-	boolean connectionClosed = false;
+	/* Volatile so that isConnectionClosed() can do without connectionSemaphore */
+	volatile boolean connectionClosed = false;
+
+	/* How much may be queued while a key exchange is going on, before senders have to wait */
+	static final int MAX_KEX_QUEUE_BYTES = 256 * 1024;
+
+	/* Messages sent during a key exchange, protected by connectionSemaphore */
+	private final Vector<byte[]> kexQueue = new Vector<byte[]>();
+	private int kexQueueBytes = 0;
+
+	/**
+	 * By default a new key exchange is started after this many bytes have been
+	 * sent and received with the same keys (RFC 4253, section 9).
+	 */
+	public static final long DEFAULT_REKEY_BYTES = 1L << 30;
+
+	/**
+	 * By default a new key exchange is started after the same keys have been
+	 * used for this long (in milliseconds).
+	 */
+	public static final long DEFAULT_REKEY_TIME = 60 * 60 * 1000L;
+
+	private long rekeyBytes = DEFAULT_REKEY_BYTES;
+	private long rekeyTime = DEFAULT_REKEY_TIME;
+
+	/* Traffic counters, for the automatic key re-exchange */
+	private long bytesSent = 0;
+	private volatile long bytesReceived = 0;
+	private long bytesAtLastKex = 0;
+	private long timeOfLastKex = 0;
 
 	Throwable reasonClosedCause = null;
 
@@ -231,6 +266,25 @@ public class TransportManager
 		return km.getOrWaitForConnectionInfo(kexNumber);
 	}
 
+	/**
+	 * Takes a snapshot of the traffic and key exchange statistics. The channels
+	 * are left to the ChannelManager.
+	 */
+	public ConnectionStatistics getStatistics()
+	{
+		ConnectionStatistics stats = new ConnectionStatistics();
+
+		stats.time = System.currentTimeMillis();
+
+		if (tc != null)
+			tc.getStatistics(stats);
+
+		if (km != null)
+			km.getStatistics(stats);
+
+		return stats;
+	}
+
 	public Throwable getReasonClosedCause()
 	{
 		synchronized (connectionSemaphore)
@@ -239,6 +293,16 @@ public class TransportManager
 		}
 	}
 
+	/**
+	 * Tells whether the connection has been closed, by either side. Unlike
+	 * {@link #getReasonClosedCause()} this does not wait for a sender which is
+	 * blocked on the socket.
+	 */
+	public boolean isConnectionClosed()
+	{
+		return connectionClosed;
+	}
+
 	public byte[] getSessionIdentifier()
 	{
 		return km.sessionId;
@@ -563,12 +627,73 @@ public class TransportManager
 		}
 	}
 
+	/**
+	 * Called once our SSH_MSG_NEWKEYS has been sent and the new keys are in use.
+	 * Sends what has been queued in the meantime, and lets senders continue.
+	 */
 	public void kexFinished() throws IOException
 	{
 		synchronized (connectionSemaphore)
 		{
-			flagKexOngoing = false;
-			connectionSemaphore.notifyAll();
+			try
+			{
+				for (int i = 0; i < kexQueue.size(); i++)
+				{
+					byte[] msg = kexQueue.elementAt(i);
+					tc.sendMessage(msg);
+					bytesSent += msg.length;
+				}
+			}
+			catch (IOException e)
+			{
+				close(e, false);
+				throw e;
+			}
+			finally
+			{
+				kexQueue.removeAllElements();
+				kexQueueBytes = 0;
+
+				flagKexOngoing = false;
+				bytesAtLastKex = bytesSent + bytesReceived;
+				timeOfLastKex = System.currentTimeMillis();
+				connectionSemaphore.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sets after how much traffic, and after how much time, the keys are
+	 * automatically re-exchanged. The check is done whenever a message is sent.
+	 * 
+	 * @param bytes
+	 *            bytes sent and received with the same keys, 0 for no limit
+	 * @param millis
+	 *            age of the keys in milliseconds, 0 for no limit
+	 */
+	public void setRekeyLimits(long bytes, long millis)
+	{
+		synchronized (connectionSemaphore)
+		{
+			rekeyBytes = bytes;
+			rekeyTime = millis;
+		}
+	}
+
+	private boolean isRekeyDue()
+	{
+		synchronized (connectionSemaphore)
+		{
+			if (flagKexOngoing || connectionClosed || (timeOfLastKex == 0))
+				return false;
+
+			if ((rekeyBytes > 0) && (bytesSent + bytesReceived - bytesAtLastKex >= rekeyBytes))
+				return true;
+
+			if ((rekeyTime > 0) && (System.currentTimeMillis() - timeOfLastKex >= rekeyTime))
+				return true;
+
+			return false;
 		}
 	}
 
@@ -587,6 +712,16 @@ public class TransportManager
 		tc.changeSendCipher(bc, mac);
 	}
 
+	public void changeRecvCipher(AeadCipher ac)
+	{
+		tc.changeRecvCipher(ac);
+	}
+
+	public void changeSendCipher(AeadCipher ac)
+	{
+		tc.changeSendCipher(ac);
+	}
+
 	/**
 	 * @param comp
 	 */
@@ -645,10 +780,36 @@ public class TransportManager
 	}
 
 	public void sendMessage(byte[] msg) throws IOException
+	{
+		sendMessage(msg, null, 0, 0);
+	}
+
+	/**
+	 * Sends a message made up of a header followed by (a part of) a second
+	 * buffer, without first joining the two.
+	 * 
+	 * @param header
+	 *            start of the message
+	 * @param data
+	 *            rest of the message, may be <code>null</code>
+	 * @param off
+	 *            offset of the rest in <code>data</code>
+	 * @param len
+	 *            length of the rest
+	 * @throws IOException
+	 */
+	public void sendMessage(byte[] header, byte[] data, int off, int len) throws IOException
 	{
 		if (Thread.currentThread() == receiveThread)
 			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
 
+		/* Not while holding connectionSemaphore, the KexManager is locked first */
+
+		if (isRekeyDue())
+			km.initiateKEX();
+
+		int msglen = header.length + ((data != null) ? len : 0);
+
 		synchronized (connectionSemaphore)
 		{
 			while (true)
@@ -662,6 +823,20 @@ public class TransportManager
 				if (flagKexOngoing == false)
 					break;
 
+				/* Queue it, there may only be kex messages until our NEWKEYS has been sent */
+
+				if ((kexQueueBytes + msglen <= MAX_KEX_QUEUE_BYTES) || (kexQueue.size() == 0))
+				{
+					byte[] msg = new byte[msglen];
+					System.arraycopy(header, 0, msg, 0, header.length);
+					if (data != null)
+						System.arraycopy(data, off, msg, header.length, len);
+
+					kexQueue.addElement(msg);
+					kexQueueBytes += msglen;
+					return;
+				}
+
 				try
 				{
 					connectionSemaphore.wait();
@@ -673,7 +848,8 @@ public class TransportManager
 
 			try
 			{
-				tc.sendMessage(msg);
+				tc.sendMessage(header, 0, header.length, data, off, len, 0);
+				bytesSent += msglen;
 			}
 			catch (IOException e)
 			{
@@ -691,6 +867,8 @@ public class TransportManager
 		{
 			int msglen = tc.receiveMessage(msg, 0, msg.length);
 
+			bytesReceived += msglen;
+
 			int type = msg[0] & 0xff;
 
 			if (type == Packets.SSH_MSG_IGNORE)